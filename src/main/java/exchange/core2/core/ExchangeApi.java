@@ -15,11 +15,14 @@
  */
 package exchange.core2.core;
 
+import com.lmax.disruptor.EventTranslator;
 import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.EventTranslatorTwoArg;
 import com.lmax.disruptor.RingBuffer;
 import exchange.core2.core.common.BalanceAdjustmentType;
 import exchange.core2.core.common.OrderAction;
 import exchange.core2.core.common.OrderType;
+import exchange.core2.core.common.QuoteLevels;
 import exchange.core2.core.common.api.*;
 import exchange.core2.core.common.api.reports.ReportQuery;
 import exchange.core2.core.common.api.reports.ReportResult;
@@ -33,9 +36,10 @@ import lombok.extern.slf4j.Slf4j;
 import net.openhft.chronicle.bytes.BytesIn;
 import net.openhft.chronicle.bytes.WriteBytesMarshallable;
 import net.openhft.chronicle.wire.Wire;
-import org.eclipse.collections.impl.map.mutable.ConcurrentHashMap;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 import java.util.function.Consumer;
@@ -48,55 +52,280 @@ public final class ExchangeApi {
 
     private final RingBuffer<OrderCommand> ringBuffer;
 
-    // promises cache (TODO can be changed to queue)
-    private final Map<Long, Consumer<OrderCommand>> promises = new ConcurrentHashMap<>();
+    // result callbacks indexed by (sequence & promisesMask), ring buffer size
+    // slot can be reused only after results handler processed the sequence (publisher is gated by results handler)
+    private final Consumer<OrderCommand>[] promises;
+    private final int promisesMask;
+
+    // max number of sequences claimed at once by batch submission
+    private final int maxBatchSize;
+
+    // mass cancel of all order books is published once per matching engine shard
+    private final int matchingEnginesNum;
+
+    // stamp publishing time (OrderCommand.publishingNs), used by stage latency monitoring
+    private final boolean publishingTimestamps;
 
     public ExchangeApi(RingBuffer<OrderCommand> ringBuffer) {
+        this(ringBuffer, 1);
+    }
+
+    public ExchangeApi(RingBuffer<OrderCommand> ringBuffer, int matchingEnginesNum) {
+        this(ringBuffer, matchingEnginesNum, false);
+    }
+
+    public ExchangeApi(RingBuffer<OrderCommand> ringBuffer, int matchingEnginesNum, boolean publishingTimestamps) {
         this.ringBuffer = ringBuffer;
+        this.matchingEnginesNum = matchingEnginesNum;
+        this.publishingTimestamps = publishingTimestamps;
+        this.maxBatchSize = Math.max(1, ringBuffer.getBufferSize() / 4);
+        this.promises = newPromisesArray(ringBuffer.getBufferSize());
+        this.promisesMask = ringBuffer.getBufferSize() - 1;
     }
 
     public void processResult(final long seq, final OrderCommand cmd) {
-        final Consumer<OrderCommand> consumer = promises.remove(seq);
+        final int idx = (int) seq & promisesMask;
+        final Consumer<OrderCommand> consumer = promises[idx];
         if (consumer != null) {
+            promises[idx] = null;
             consumer.accept(cmd);
         }
     }
 
+    private void publishEvent(final EventTranslator<OrderCommand> translator) {
+        final long seq = ringBuffer.next();
+        try {
+            translator.translateTo(ringBuffer.get(seq), seq);
+        } finally {
+            publish(seq);
+        }
+    }
+
+    private <A> void publishEvent(final EventTranslatorOneArg<OrderCommand, A> translator, final A arg) {
+        final long seq = ringBuffer.next();
+        try {
+            translator.translateTo(ringBuffer.get(seq), seq, arg);
+        } finally {
+            publish(seq);
+        }
+    }
+
+    private void publish(final long seq) {
+        publish(seq, seq);
+    }
+
+    /**
+     * Publish claimed sequences, all commands are published through this method
+     */
+    private void publish(final long lowSeq, final long highSeq) {
+        if (publishingTimestamps) {
+            final long t = System.nanoTime();
+            for (long seq = lowSeq; seq <= highSeq; seq++) {
+                ringBuffer.get(seq).publishingNs = t;
+            }
+        }
+        ringBuffer.publish(lowSeq, highSeq);
+    }
+
+    /**
+     * Register result callback, must be called before publishing the sequence
+     */
+    private void putPromise(final long seq, final Consumer<OrderCommand> callback) {
+        promises[(int) seq & promisesMask] = callback;
+    }
+
     public void submitCommand(ApiCommand cmd) {
         //log.debug("{}", cmd);
 
         // TODO benchmark instanceof performance
 
         if (cmd instanceof ApiMoveOrder) {
-            ringBuffer.publishEvent(MOVE_ORDER_TRANSLATOR, (ApiMoveOrder) cmd);
+            publishEvent(MOVE_ORDER_TRANSLATOR, (ApiMoveOrder) cmd);
         } else if (cmd instanceof ApiPlaceOrder) {
-            ringBuffer.publishEvent(NEW_ORDER_TRANSLATOR, (ApiPlaceOrder) cmd);
+            publishEvent(NEW_ORDER_TRANSLATOR, (ApiPlaceOrder) cmd);
         } else if (cmd instanceof ApiCancelOrder) {
-            ringBuffer.publishEvent(CANCEL_ORDER_TRANSLATOR, (ApiCancelOrder) cmd);
+            publishEvent(CANCEL_ORDER_TRANSLATOR, (ApiCancelOrder) cmd);
         } else if (cmd instanceof ApiOrderBookRequest) {
-            ringBuffer.publishEvent(ORDER_BOOK_REQUEST_TRANSLATOR, (ApiOrderBookRequest) cmd);
+            publishEvent(ORDER_BOOK_REQUEST_TRANSLATOR, (ApiOrderBookRequest) cmd);
         } else if (cmd instanceof ApiAddUser) {
-            ringBuffer.publishEvent(ADD_USER_TRANSLATOR, (ApiAddUser) cmd);
+            publishEvent(ADD_USER_TRANSLATOR, (ApiAddUser) cmd);
         } else if (cmd instanceof ApiAdjustUserBalance) {
-            ringBuffer.publishEvent(ADJUST_USER_BALANCE_TRANSLATOR, (ApiAdjustUserBalance) cmd);
+            publishEvent(ADJUST_USER_BALANCE_TRANSLATOR, (ApiAdjustUserBalance) cmd);
         } else if (cmd instanceof ApiResumeUser) {
-            ringBuffer.publishEvent(RESUME_USER_TRANSLATOR, (ApiResumeUser) cmd);
+            publishEvent(RESUME_USER_TRANSLATOR, (ApiResumeUser) cmd);
         } else if (cmd instanceof ApiSuspendUser) {
-            ringBuffer.publishEvent(SUSPEND_USER_TRANSLATOR, (ApiSuspendUser) cmd);
+            publishEvent(SUSPEND_USER_TRANSLATOR, (ApiSuspendUser) cmd);
         } else if (cmd instanceof ApiBinaryDataCommand) {
             publishBinaryData((ApiBinaryDataCommand) cmd, seq -> {
             });
         } else if (cmd instanceof ApiPersistState) {
-            publishPersistCmd((ApiPersistState) cmd);
+            publishPersistCmd((ApiPersistState) cmd, seq -> {
+            });
         } else if (cmd instanceof ApiReset) {
-            ringBuffer.publishEvent(RESET_TRANSLATOR, (ApiReset) cmd);
+            publishEvent(RESET_TRANSLATOR, (ApiReset) cmd);
         } else if (cmd instanceof ApiNoOp) {
-            ringBuffer.publishEvent(NOOP_TRANSLATOR, (ApiNoOp) cmd);
+            publishEvent(NOOP_TRANSLATOR, (ApiNoOp) cmd);
+        } else if (cmd instanceof ApiMigrateOrderBook) {
+            publishEvent(MIGRATE_ORDER_BOOK_TRANSLATOR, (ApiMigrateOrderBook) cmd);
+        } else if (cmd instanceof ApiMassCancel) {
+            publishMassCancel((ApiMassCancel) cmd, seq -> {
+            });
+        } else if (cmd instanceof ApiQuoteReplace) {
+            validateQuoteReplace((ApiQuoteReplace) cmd);
+            publishEvent(QUOTE_REPLACE_TRANSLATOR, (ApiQuoteReplace) cmd);
         } else {
             throw new IllegalArgumentException("Unsupported command type: " + cmd.getClass().getSimpleName());
         }
     }
 
+    /**
+     * Submit commands in the same order, claiming ring buffer sequences in batches (one CAS per batch instead of per command).
+     * Binary data and persist commands are published separately, as they occupy several sequences.
+     *
+     * @param cmds - commands
+     */
+    public void submitCommands(final List<? extends ApiCommand> cmds) {
+        submitCommandsImpl(cmds, null);
+    }
+
+    public void submitCommands(final ApiCommand[] cmds) {
+        submitCommandsImpl(Arrays.asList(cmds), null);
+    }
+
+    /**
+     * Same as {@link #submitCommands(List)}, but returns result code future for every command.
+     * For binary data command - result of the last frame, for persist command - result of risk engine (second) command,
+     * for mass cancel of all symbols - result of the last shard command.
+     *
+     * @param cmds - commands
+     * @return futures list (same order as commands)
+     */
+    public List<CompletableFuture<CommandResultCode>> submitCommandsAsync(final List<? extends ApiCommand> cmds) {
+        final List<CompletableFuture<CommandResultCode>> futures = new ArrayList<>(cmds.size());
+        submitCommandsImpl(cmds, futures);
+        return futures;
+    }
+
+    private void submitCommandsImpl(final List<? extends ApiCommand> cmds, final List<CompletableFuture<CommandResultCode>> futures) {
+
+        // all or nothing - claimed sequences can not be returned, so every command is validated before publishing
+        for (final ApiCommand cmd : cmds) {
+            if (!isSupportedCommand(cmd)) {
+                throw new IllegalArgumentException("Unsupported command type: " + cmd.getClass().getSimpleName());
+            }
+            if (cmd instanceof ApiQuoteReplace) {
+                validateQuoteReplace((ApiQuoteReplace) cmd);
+            }
+        }
+
+        final int size = cmds.size();
+        int from = 0;
+        while (from < size) {
+
+            final ApiCommand firstCmd = cmds.get(from);
+            if (!isSingleSequenceCommand(firstCmd)) {
+                final LongConsumer endSeqConsumer = (futures == null) ? seq -> {
+                } : seq -> futures.add(registerResultPromise(seq));
+                if (firstCmd instanceof ApiBinaryDataCommand) {
+                    publishBinaryData((ApiBinaryDataCommand) firstCmd, endSeqConsumer);
+                } else if (firstCmd instanceof ApiMassCancel) {
+                    publishMassCancel((ApiMassCancel) firstCmd, endSeqConsumer);
+                } else {
+                    publishPersistCmd((ApiPersistState) firstCmd, endSeqConsumer);
+                }
+                from++;
+                continue;
+            }
+
+            int to = from + 1;
+            while (to < size && to - from < maxBatchSize && isSingleSequenceCommand(cmds.get(to))) {
+                to++;
+            }
+
+            final int n = to - from;
+            final long highSeq = ringBuffer.next(n);
+            final long lowSeq = highSeq - n + 1;
+            try {
+                for (int i = 0; i < n; i++) {
+                    final long seq = lowSeq + i;
+                    translateSingleSequenceCommand(cmds.get(from + i), ringBuffer.get(seq), seq);
+                    if (futures != null) {
+                        futures.add(registerResultPromise(seq));
+                    }
+                }
+            } finally {
+                publish(lowSeq, highSeq);
+            }
+
+            from = to;
+        }
+    }
+
+    private static boolean isSingleSequenceCommand(final ApiCommand cmd) {
+        return !(cmd instanceof ApiBinaryDataCommand)
+                && !(cmd instanceof ApiPersistState)
+                && !(cmd instanceof ApiMassCancel && ((ApiMassCancel) cmd).symbol == ApiMassCancel.ALL_SYMBOLS);
+    }
+
+    private static boolean isSupportedCommand(final ApiCommand cmd) {
+        return cmd instanceof ApiMoveOrder
+                || cmd instanceof ApiPlaceOrder
+                || cmd instanceof ApiCancelOrder
+                || cmd instanceof ApiOrderBookRequest
+                || cmd instanceof ApiAddUser
+                || cmd instanceof ApiAdjustUserBalance
+                || cmd instanceof ApiResumeUser
+                || cmd instanceof ApiSuspendUser
+                || cmd instanceof ApiBinaryDataCommand
+                || cmd instanceof ApiPersistState
+                || cmd instanceof ApiReset
+                || cmd instanceof ApiNoOp
+                || cmd instanceof ApiMigrateOrderBook
+                || cmd instanceof ApiMassCancel
+                || cmd instanceof ApiQuoteReplace;
+    }
+
+    /**
+     * Command type must be validated by {@link #isSupportedCommand(ApiCommand)} before claiming the sequence
+     */
+    private static void translateSingleSequenceCommand(final ApiCommand apiCmd, final OrderCommand cmd, final long seq) {
+        if (apiCmd instanceof ApiMoveOrder) {
+            MOVE_ORDER_TRANSLATOR.translateTo(cmd, seq, (ApiMoveOrder) apiCmd);
+        } else if (apiCmd instanceof ApiPlaceOrder) {
+            NEW_ORDER_TRANSLATOR.translateTo(cmd, seq, (ApiPlaceOrder) apiCmd);
+        } else if (apiCmd instanceof ApiCancelOrder) {
+            CANCEL_ORDER_TRANSLATOR.translateTo(cmd, seq, (ApiCancelOrder) apiCmd);
+        } else if (apiCmd instanceof ApiOrderBookRequest) {
+            ORDER_BOOK_REQUEST_TRANSLATOR.translateTo(cmd, seq, (ApiOrderBookRequest) apiCmd);
+        } else if (apiCmd instanceof ApiAddUser) {
+            ADD_USER_TRANSLATOR.translateTo(cmd, seq, (ApiAddUser) apiCmd);
+        } else if (apiCmd instanceof ApiAdjustUserBalance) {
+            ADJUST_USER_BALANCE_TRANSLATOR.translateTo(cmd, seq, (ApiAdjustUserBalance) apiCmd);
+        } else if (apiCmd instanceof ApiResumeUser) {
+            RESUME_USER_TRANSLATOR.translateTo(cmd, seq, (ApiResumeUser) apiCmd);
+        } else if (apiCmd instanceof ApiSuspendUser) {
+            SUSPEND_USER_TRANSLATOR.translateTo(cmd, seq, (ApiSuspendUser) apiCmd);
+        } else if (apiCmd instanceof ApiReset) {
+            RESET_TRANSLATOR.translateTo(cmd, seq, (ApiReset) apiCmd);
+        } else if (apiCmd instanceof ApiNoOp) {
+            NOOP_TRANSLATOR.translateTo(cmd, seq, (ApiNoOp) apiCmd);
+        } else if (apiCmd instanceof ApiMigrateOrderBook) {
+            MIGRATE_ORDER_BOOK_TRANSLATOR.translateTo(cmd, seq, (ApiMigrateOrderBook) apiCmd);
+        } else if (apiCmd instanceof ApiMassCancel) {
+            MASS_CANCEL_TRANSLATOR.translateTo(cmd, seq, (ApiMassCancel) apiCmd, 0);
+        } else if (apiCmd instanceof ApiQuoteReplace) {
+            QUOTE_REPLACE_TRANSLATOR.translateTo(cmd, seq, (ApiQuoteReplace) apiCmd);
+        } else {
+            throw new IllegalStateException("Unsupported command type: " + apiCmd.getClass().getSimpleName());
+        }
+    }
+
+    private CompletableFuture<CommandResultCode> registerResultPromise(final long seq) {
+        final CompletableFuture<CommandResultCode> future = new CompletableFuture<>();
+        putPromise(seq, cmd -> future.complete(cmd.resultCode));
+        return future;
+    }
+
     public <R> Future<R> submitBinaryCommandAsync(
             final WriteBytesMarshallable data,
             final int transferId,
@@ -106,7 +335,7 @@ public final class ExchangeApi {
 
         publishBinaryData(
                 ApiBinaryDataCommand.builder().data(data).transferId(transferId).build(),
-                seq -> promises.put(seq, orderCommand -> future.complete(translator.apply(orderCommand))));
+                seq -> putPromise(seq, orderCommand -> future.complete(translator.apply(orderCommand))));
 
         return future;
     }
@@ -118,7 +347,7 @@ public final class ExchangeApi {
 
         publishBinaryData(
                 ApiBinaryDataCommand.builder().data(data).transferId(transferId).build(),
-                seq -> promises.put(seq, consumer));
+                seq -> putPromise(seq, consumer));
     }
 
 
@@ -171,11 +400,40 @@ public final class ExchangeApi {
         } finally {
             // report last sequence before actually publishing data
             endSeqConsumer.accept(highSeq);
-            ringBuffer.publish(lowSeq, highSeq);
+            publish(lowSeq, highSeq);
         }
     }
 
-    private void publishPersistCmd(final ApiPersistState api) {
+    /**
+     * Mass cancel of one order book is a single command.
+     * Mass cancel of all order books is published as one command per matching engine shard (target shard in size field),
+     * so every shard attaches cancel events of its own order books.
+     */
+    private void publishMassCancel(final ApiMassCancel api, final LongConsumer endSeqConsumer) {
+
+        final int n = api.symbol == ApiMassCancel.ALL_SYMBOLS ? matchingEnginesNum : 1;
+        final long highSeq = ringBuffer.next(n);
+        final long lowSeq = highSeq - n + 1;
+
+        try {
+            for (int i = 0; i < n; i++) {
+                MASS_CANCEL_TRANSLATOR.translateTo(ringBuffer.get(lowSeq + i), lowSeq + i, api, i);
+            }
+        } finally {
+            // report last sequence before actually publishing data
+            endSeqConsumer.accept(highSeq);
+            publish(lowSeq, highSeq);
+        }
+    }
+
+    private void validateQuoteReplace(final ApiQuoteReplace api) {
+        final int n = api.levels.size();
+        if (n == 0 || n > ApiQuoteReplace.MAX_LEVELS) {
+            throw new IllegalArgumentException("Quote replace should have 1.." + ApiQuoteReplace.MAX_LEVELS + " levels, found " + n);
+        }
+    }
+
+    private void publishPersistCmd(final ApiPersistState api, final LongConsumer endSeqConsumer) {
 
         long secondSeq = ringBuffer.next(2);
         long firstSeq = secondSeq - 1;
@@ -187,7 +445,7 @@ public final class ExchangeApi {
             cmdMatching.orderId = api.dumpId;
             cmdMatching.symbol = -1;
             cmdMatching.uid = 0;
-            cmdMatching.price = 0;
+            cmdMatching.price = api.delta ? ApiPersistState.SNAPSHOT_DELTA : ApiPersistState.SNAPSHOT_FULL;
             cmdMatching.timestamp = api.timestamp;
             cmdMatching.resultCode = CommandResultCode.NEW;
 
@@ -199,7 +457,7 @@ public final class ExchangeApi {
             cmdRisk.orderId = api.dumpId;
             cmdRisk.symbol = -1;
             cmdRisk.uid = 0;
-            cmdRisk.price = 0;
+            cmdRisk.price = api.delta ? ApiPersistState.SNAPSHOT_DELTA : ApiPersistState.SNAPSHOT_FULL;
             cmdRisk.timestamp = api.timestamp;
             cmdRisk.resultCode = CommandResultCode.NEW;
 
@@ -207,7 +465,9 @@ public final class ExchangeApi {
 
             // short delay to reduce probability of batching both commands together in R1
         } finally {
-            ringBuffer.publish(firstSeq, secondSeq);
+            // report last sequence before actually publishing data
+            endSeqConsumer.accept(secondSeq);
+            publish(firstSeq, secondSeq);
         }
     }
 
@@ -316,9 +576,57 @@ public final class ExchangeApi {
         cmd.resultCode = CommandResultCode.NEW;
     };
 
+    private static final EventTranslatorOneArg<OrderCommand, ApiMigrateOrderBook> MIGRATE_ORDER_BOOK_TRANSLATOR = (cmd, seq, api) -> {
+        cmd.command = OrderCommandType.MIGRATE_ORDER_BOOK;
+        cmd.orderId = -1;
+        cmd.symbol = api.symbol;
+        cmd.uid = -1;
+        cmd.price = -1;
+        cmd.size = api.targetShard;
+        cmd.timestamp = api.timestamp;
+        cmd.resultCode = CommandResultCode.NEW;
+    };
+
+    private static final EventTranslatorTwoArg<OrderCommand, ApiMassCancel, Integer> MASS_CANCEL_TRANSLATOR = (cmd, seq, api, targetShard) -> {
+        cmd.command = OrderCommandType.MASS_CANCEL;
+        cmd.orderId = -1;
+        cmd.symbol = api.symbol;
+        cmd.uid = api.uid;
+        cmd.price = -1;
+        cmd.size = targetShard;
+        cmd.timestamp = api.timestamp;
+        cmd.resultCode = CommandResultCode.NEW;
+    };
+
+    /**
+     * Whole ladder is copied into levels carrier of the slot (allocated on first quote replace, then reused)
+     */
+    private static final EventTranslatorOneArg<OrderCommand, ApiQuoteReplace> QUOTE_REPLACE_TRANSLATOR = (cmd, seq, api) -> {
+        final List<ApiQuoteReplace.Level> levels = api.levels;
+        final int n = levels.size();
+        if (cmd.quoteLevels == null) {
+            cmd.quoteLevels = new QuoteLevels(n);
+        }
+        cmd.quoteLevels.clear(n);
+        for (int i = 0; i < n; i++) {
+            final ApiQuoteReplace.Level level = levels.get(i);
+            cmd.quoteLevels.add(level.id, level.price, level.size, level.action, level.reservePrice);
+        }
+        cmd.command = OrderCommandType.QUOTE_REPLACE;
+        cmd.orderId = -1;
+        cmd.price = 0;
+        cmd.reserveBidPrice = 0;
+        cmd.size = 0;
+        cmd.action = null;
+        cmd.orderType = OrderType.GTC;
+        cmd.symbol = api.symbol;
+        cmd.uid = api.uid;
+        cmd.timestamp = api.timestamp;
+        cmd.resultCode = CommandResultCode.NEW;
+    };
 
     public void createUser(long userId, Consumer<OrderCommand> callback) {
-        ringBuffer.publishEvent(((cmd, seq) -> {
+        publishEvent(((cmd, seq) -> {
             cmd.command = OrderCommandType.ADD_USER;
             cmd.orderId = -1;
             cmd.symbol = -1;
@@ -326,12 +634,12 @@ public final class ExchangeApi {
             cmd.timestamp = System.currentTimeMillis();
             cmd.resultCode = CommandResultCode.NEW;
 
-            promises.put(seq, callback);
+            putPromise(seq, callback);
         }));
     }
 
     public void suspendUser(long userId, Consumer<OrderCommand> callback) {
-        ringBuffer.publishEvent(((cmd, seq) -> {
+        publishEvent(((cmd, seq) -> {
             cmd.command = OrderCommandType.SUSPEND_USER;
             cmd.orderId = -1;
             cmd.symbol = -1;
@@ -339,12 +647,12 @@ public final class ExchangeApi {
             cmd.timestamp = System.currentTimeMillis();
             cmd.resultCode = CommandResultCode.NEW;
 
-            promises.put(seq, callback);
+            putPromise(seq, callback);
         }));
     }
 
     public void resumeUser(long userId, Consumer<OrderCommand> callback) {
-        ringBuffer.publishEvent(((cmd, seq) -> {
+        publishEvent(((cmd, seq) -> {
             cmd.command = OrderCommandType.RESUME_USER;
             cmd.orderId = -1;
             cmd.symbol = -1;
@@ -352,7 +660,7 @@ public final class ExchangeApi {
             cmd.timestamp = System.currentTimeMillis();
             cmd.resultCode = CommandResultCode.NEW;
 
-            promises.put(seq, callback);
+            putPromise(seq, callback);
         }));
     }
 
@@ -363,7 +671,7 @@ public final class ExchangeApi {
                                   BalanceAdjustmentType adjustmentType,
                                   Consumer<OrderCommand> callback) {
 
-        ringBuffer.publishEvent(((cmd, seq) -> {
+        publishEvent(((cmd, seq) -> {
             cmd.command = OrderCommandType.BALANCE_ADJUSTMENT;
             cmd.orderId = transactionId;
             cmd.symbol = currency;
@@ -374,14 +682,14 @@ public final class ExchangeApi {
             cmd.timestamp = System.currentTimeMillis();
             cmd.resultCode = CommandResultCode.NEW;
 
-            promises.put(seq, callback);
+            putPromise(seq, callback);
         }));
 
     }
 
     public void orderBookRequest(int symbolId, int depth, Consumer<OrderCommand> callback) {
 
-        ringBuffer.publishEvent(((cmd, seq) -> {
+        publishEvent(((cmd, seq) -> {
             cmd.command = OrderCommandType.ORDER_BOOK_REQUEST;
             cmd.orderId = -1;
             cmd.symbol = symbolId;
@@ -390,7 +698,7 @@ public final class ExchangeApi {
             cmd.timestamp = System.currentTimeMillis();
             cmd.resultCode = CommandResultCode.NEW;
 
-            promises.put(seq, callback);
+            putPromise(seq, callback);
         }));
 
     }
@@ -422,10 +730,10 @@ public final class ExchangeApi {
             cmd.symbol = symbol;
             cmd.uid = uid;
             cmd.userCookie = userCookie;
-            promises.put(seq, callback);
+            putPromise(seq, callback);
 
         } finally {
-            ringBuffer.publish(seq);
+            publish(seq);
         }
         return seq;
     }
@@ -437,7 +745,7 @@ public final class ExchangeApi {
             long uid,
             Consumer<OrderCommand> callback) {
 
-        ringBuffer.publishEvent((cmd, seq) -> {
+        publishEvent((cmd, seq) -> {
             cmd.command = OrderCommandType.MOVE_ORDER;
             cmd.resultCode = CommandResultCode.NEW;
 
@@ -447,7 +755,7 @@ public final class ExchangeApi {
             cmd.symbol = symbol;
             cmd.uid = uid;
 
-            promises.put(seq, callback);
+            putPromise(seq, callback);
         });
     }
 
@@ -457,7 +765,7 @@ public final class ExchangeApi {
             long uid,
             Consumer<OrderCommand> callback) {
 
-        ringBuffer.publishEvent((cmd, seq) -> {
+        publishEvent((cmd, seq) -> {
             cmd.command = OrderCommandType.CANCEL_ORDER;
             cmd.resultCode = CommandResultCode.NEW;
 
@@ -466,9 +774,99 @@ public final class ExchangeApi {
             cmd.symbol = symbol;
             cmd.uid = uid;
 
-            promises.put(seq, callback);
+            putPromise(seq, callback);
+        });
+
+    }
+
+    public CompletableFuture<CommandResultCode> placeNewOrderAsync(
+            int userCookie,
+            long price,
+            long reservedBidPrice,
+            long size,
+            OrderAction action,
+            OrderType orderType,
+            int symbol,
+            long uid,
+            long orderId) {
+
+        final CompletableFuture<CommandResultCode> future = new CompletableFuture<>();
+
+        publishEvent((cmd, seq) -> {
+            cmd.command = OrderCommandType.PLACE_ORDER;
+            cmd.resultCode = CommandResultCode.NEW;
+
+            cmd.price = price;
+            cmd.reserveBidPrice = reservedBidPrice;
+            cmd.size = size;
+            cmd.orderId = orderId;
+            cmd.timestamp = System.currentTimeMillis();
+            cmd.action = action;
+            cmd.orderType = orderType;
+            cmd.symbol = symbol;
+            cmd.uid = uid;
+            cmd.userCookie = userCookie;
+
+            putPromise(seq, orderCommand -> future.complete(orderCommand.resultCode));
+        });
+
+        return future;
+    }
+
+    public CompletableFuture<CommandResultCode> moveOrderAsync(
+            long price,
+            long orderId,
+            int symbol,
+            long uid) {
+
+        final CompletableFuture<CommandResultCode> future = new CompletableFuture<>();
+        moveOrder(price, orderId, symbol, uid, cmd -> future.complete(cmd.resultCode));
+        return future;
+    }
+
+    public CompletableFuture<CommandResultCode> cancelOrderAsync(
+            long orderId,
+            int symbol,
+            long uid) {
+
+        final CompletableFuture<CommandResultCode> future = new CompletableFuture<>();
+        cancelOrder(orderId, symbol, uid, cmd -> future.complete(cmd.resultCode));
+        return future;
+    }
+
+    /**
+     * Cancel all orders of the user (or ApiMassCancel.ALL_USERS) in the order book (or ApiMassCancel.ALL_SYMBOLS)
+     */
+    public CompletableFuture<CommandResultCode> massCancelAsync(
+            long uid,
+            int symbol) {
+
+        final CompletableFuture<CommandResultCode> future = new CompletableFuture<>();
+        publishMassCancel(
+                ApiMassCancel.builder().uid(uid).symbol(symbol).build(),
+                seq -> putPromise(seq, cmd -> future.complete(cmd.resultCode)));
+        return future;
+    }
+
+    /**
+     * Atomically replace all orders of the user in the order book with new orders.
+     * Funds held by current quote orders of the user can be reused by new levels (see {@link ApiQuoteReplace}).
+     *
+     * @return SUCCESS, or reason why quote was rejected
+     */
+    public CompletableFuture<CommandResultCode> quoteReplaceAsync(final ApiQuoteReplace api) {
+        validateQuoteReplace(api);
+        final CompletableFuture<CommandResultCode> future = new CompletableFuture<>();
+        publishEvent((cmd, seq) -> {
+            QUOTE_REPLACE_TRANSLATOR.translateTo(cmd, seq, api);
+            putPromise(seq, c -> future.complete(c.resultCode));
         });
+        return future;
+    }
 
+    @SuppressWarnings(value = {"unchecked"})
+    private static Consumer<OrderCommand>[] newPromisesArray(int size) {
+        return new Consumer[size];
     }
 
 }
@@ -18,6 +18,7 @@ package exchange.core2.core;
 import com.google.common.collect.Streams;
 import com.lmax.disruptor.EventHandler;
 import com.lmax.disruptor.EventTranslator;
+import com.lmax.disruptor.Sequence;
 import com.lmax.disruptor.dsl.Disruptor;
 import com.lmax.disruptor.dsl.EventHandlerGroup;
 import com.lmax.disruptor.dsl.ProducerType;
@@ -29,12 +30,15 @@ import exchange.core2.core.common.cmd.OrderCommandType;
 import exchange.core2.core.orderbook.IOrderBook;
 import exchange.core2.core.processors.*;
 import exchange.core2.core.processors.journalling.ISerializationProcessor;
-import exchange.core2.core.processors.journalling.JournallingProcessor;
+import exchange.core2.core.processors.journalling.JournalGroupCommitProcessor;
+import exchange.core2.core.processors.journalling.JournalReplayer;
+import exchange.core2.core.processors.journalling.MappedJournallingProcessor;
+import exchange.core2.core.processors.sharding.IShardMapping;
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.ArrayUtils;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
@@ -50,6 +54,16 @@ public final class ExchangeCore {
 
     private final ExchangeApi api;
 
+    // engines are kept for completing background snapshots on shutdown
+    private final List<MatchingEngineRouter> matchingEngines;
+    private final List<RiskEngine> riskEngines;
+    private final boolean asyncSnapshots;
+
+    // null if stage latency monitoring is disabled
+    private final StageLatencyMonitor stageLatencyMonitor;
+
+    private final GroupingController groupingController;
+
     // core can be started and stopped only once
     private boolean started = false;
     private boolean stopped = false;
@@ -59,29 +73,58 @@ public final class ExchangeCore {
 
     @Builder
     public ExchangeCore(final ObjLongConsumer<OrderCommand> resultsConsumer,
-                        final JournallingProcessor journallingHandler,
+                        final EventHandler<OrderCommand> journallingHandler,
                         final ISerializationProcessor serializationProcessor,
                         final int ringBufferSize,
                         final int matchingEnginesNum,
                         final int riskEnginesNum,
                         final int msgsInGroupLimit,
+                        final long groupMaxDurationNs,
+                        final boolean adaptiveGrouping,
+                        final int msgsInGroupLimitMin,
+                        final long groupMaxDurationNsMin,
+                        final long groupMaxDurationNsMax,
+                        final long l2PublishIntervalNs,
+                        final boolean l2DataPooling,
                         final ThreadFactory threadFactory,
                         final CoreWaitStrategy waitStrategy,
                         final BiFunction<CoreSymbolSpecification, ObjectsPool, IOrderBook> orderBookFactory,
-                        final Long loadStateId) {
+                        final Long loadStateId,
+                        final JournalReplayer journalReplayer,
+                        final boolean asyncSnapshots,
+                        final boolean stageLatencyMonitoring,
+                        final int denseSymbolsLimit,
+                        final IShardMapping riskShardMapping,
+                        final IShardMapping matchingShardMapping,
+                        final Long rejectionsLogIntervalNs) {
 
         if (msgsInGroupLimit >= ringBufferSize) {
             throw new IllegalArgumentException("msgsInGroupLimit should be less than ringBufferSize");
         }
 
+        // with L2 data pooling each ring buffer slot owns reusable market data carrier (see OrderCommand.attachMarketData)
         this.disruptor = new Disruptor<>(
-                OrderCommand::new,
+                l2DataPooling ? OrderCommand::withMarketDataCarrier : OrderCommand::new,
                 ringBufferSize,
                 threadFactory,
                 ProducerType.MULTI, // multiple gateway threads are writing
                 waitStrategy.create());
 
-        this.api = new ExchangeApi(disruptor.getRingBuffer());
+        this.api = new ExchangeApi(disruptor.getRingBuffer(), matchingEnginesNum, stageLatencyMonitoring);
+        this.asyncSnapshots = asyncSnapshots;
+
+        // adaptive grouping: msgsInGroupLimit and groupMaxDurationNs are the upper bounds, unspecified bounds are set to defaults
+        final long groupDurationNs = groupMaxDurationNs > 0 ? groupMaxDurationNs : GroupingProcessor.GROUP_MAX_DURATION_NS;
+        this.groupingController = adaptiveGrouping
+                ? GroupingController.adaptive(
+                msgsInGroupLimitMin > 0 ? msgsInGroupLimitMin : Math.max(1, msgsInGroupLimit / 16),
+                msgsInGroupLimit,
+                groupMaxDurationNsMin > 0 ? groupMaxDurationNsMin : Math.max(1, groupDurationNs / 10),
+                groupMaxDurationNsMax > 0 ? groupMaxDurationNsMax : groupDurationNs)
+                : GroupingController.fixed(msgsInGroupLimit, groupDurationNs);
+
+        this.stageLatencyMonitor = stageLatencyMonitoring ? new StageLatencyMonitor(matchingEnginesNum, riskEnginesNum) : null;
+        final StageLatencyMonitor latencyMonitor = this.stageLatencyMonitor;
 
         // creating shared objects pool
         final int poolInitialSize = (matchingEnginesNum + riskEnginesNum) * 8;
@@ -101,26 +144,34 @@ public final class ExchangeCore {
         // advice completable future to use the same socket as disruptor
         final ExecutorService loaderExecutor = Executors.newFixedThreadPool(matchingEnginesNum + riskEnginesNum, threadFactory);
 
+        // order books transfer between matching engine shards (live migration)
+        final OrderBookHandover orderBookHandover = new OrderBookHandover();
+
         // start creating matching engines
         final Map<Integer, CompletableFuture<MatchingEngineRouter>> matchingEngineFutures = IntStream.range(0, matchingEnginesNum)
                 .boxed()
                 .collect(Collectors.toMap(
                         shardId -> shardId,
                         shardId -> CompletableFuture.supplyAsync(
-                                () -> new MatchingEngineRouter(shardId, matchingEnginesNum, serializationProcessor, orderBookFactory, sharedPool, loadStateId),
+                                () -> new MatchingEngineRouter(shardId, matchingEnginesNum, serializationProcessor, orderBookFactory, sharedPool, loadStateId, asyncSnapshots, denseSymbolsLimit, matchingShardMapping, orderBookHandover),
                                 loaderExecutor)));
 
 
+        // rejection details log interval: default if not configured, 0 - log every rejection, negative - never log details
+        final long rejectionsDetailsLogIntervalNs = rejectionsLogIntervalNs != null
+                ? rejectionsLogIntervalNs
+                : RiskRejectionsTelemetry.DEFAULT_DETAILS_LOG_INTERVAL_NS;
+
         // start creating risk engines
         final Map<Integer, CompletableFuture<RiskEngine>> riskEngineFutures = IntStream.range(0, riskEnginesNum)
                 .boxed()
                 .collect(Collectors.toMap(
                         shardId -> shardId,
                         shardId -> CompletableFuture.supplyAsync(
-                                () -> new RiskEngine(shardId, riskEnginesNum, serializationProcessor, sharedPool, loadStateId),
+                                () -> new RiskEngine(shardId, riskEnginesNum, serializationProcessor, sharedPool, loadStateId, asyncSnapshots, denseSymbolsLimit, riskShardMapping, rejectionsDetailsLogIntervalNs),
                                 loaderExecutor)));
 
-        final EventHandler<OrderCommand>[] matchingEngineHandlers = matchingEngineFutures.values().stream()
+        this.matchingEngines = matchingEngineFutures.values().stream()
                 .map(merFuture -> {
                     try {
                         return merFuture.get();
@@ -128,7 +179,15 @@ public final class ExchangeCore {
                         throw new RuntimeException(ex);
                     }
                 })
-                .map(mer -> (EventHandler<OrderCommand>) (cmd, seq, eob) -> mer.processOrder(cmd))
+                .collect(Collectors.toList());
+
+        final EventHandler<OrderCommand>[] matchingEngineHandlers = IntStream.range(0, matchingEngines.size())
+                .mapToObj(idx -> {
+                    final MatchingEngineRouter mer = matchingEngines.get(idx);
+                    return latencyMonitor == null
+                            ? (EventHandler<OrderCommand>) (cmd, seq, eob) -> mer.processOrder(cmd)
+                            : (EventHandler<OrderCommand>) (cmd, seq, eob) -> latencyMonitor.matching(mer, idx, cmd);
+                })
                 .toArray(ExchangeCore::newEventHandlersArray);
 
         final Map<Integer, RiskEngine> riskEngines = riskEngineFutures.entrySet().stream()
@@ -142,22 +201,44 @@ public final class ExchangeCore {
                             }
                         }));
 
+        this.riskEngines = new ArrayList<>(riskEngines.values());
+
+        // replay journal tail on top of loaded snapshot, directly into engines
+        if (journalReplayer != null) {
+            journalReplayer.replay(loadStateId, matchingEngines, this.riskEngines, loaderExecutor);
+        }
 
         final List<TwoStepMasterProcessor> procR1 = new ArrayList<>(riskEnginesNum);
         final List<TwoStepSlaveProcessor> procR2 = new ArrayList<>(riskEnginesNum);
+        final List<GroupingProcessor> procG = new ArrayList<>(1);
 
         // 1. grouping processor (G)
         final EventHandlerGroup<OrderCommand> afterGrouping =
-                disruptor.handleEventsWith((rb, bs) -> new GroupingProcessor(rb, rb.newBarrier(bs), msgsInGroupLimit, waitStrategy, sharedPool));
+                disruptor.handleEventsWith((rb, bs) -> {
+                    final GroupingProcessor g = new GroupingProcessor(rb, rb.newBarrier(bs), groupingController,
+                            l2PublishIntervalNs > 0 ? l2PublishIntervalNs : GroupingProcessor.L2_PUBLISH_INTERVAL_NS,
+                            waitStrategy, sharedPool, latencyMonitor);
+                    procG.add(g);
+                    return g;
+                });
 
         // 2. [journalling (J)] in parallel with risk hold (R1) + matching engine (ME)
-        if (journallingHandler != null) {
-            afterGrouping.handleEventsWith(journallingHandler::onEvent);
+        // memory-mapped journal is group-committed: J releases sequences only after group is durable
+        final EventHandlerGroup<OrderCommand> afterJournalling;
+        if (journallingHandler instanceof MappedJournallingProcessor) {
+            afterJournalling = afterGrouping.handleEventsWith((rb, bs) -> new JournalGroupCommitProcessor(rb, rb.newBarrier(bs),
+                    (MappedJournallingProcessor) journallingHandler, groupingController, waitStrategy, exceptionHandler, latencyMonitor));
+        } else if (journallingHandler != null) {
+            afterJournalling = afterGrouping.handleEventsWith(latencyMonitor != null ? latencyMonitor.journalling(journallingHandler) : journallingHandler);
+        } else {
+            afterJournalling = null;
         }
 
         riskEngines.forEach((idx, riskEngine) -> afterGrouping.handleEventsWith(
                 (rb, bs) -> {
-                    final TwoStepMasterProcessor r1 = new TwoStepMasterProcessor(rb, rb.newBarrier(bs), riskEngine::preProcessCommand, exceptionHandler, waitStrategy, "R" + idx);
+                    final TwoStepMasterProcessor r1 = new TwoStepMasterProcessor(rb, rb.newBarrier(bs),
+                            latencyMonitor == null ? riskEngine::preProcessCommand : latencyMonitor.riskHold(riskEngine, idx),
+                            exceptionHandler, waitStrategy, "R" + idx);
                     procR1.add(r1);
                     return r1;
                 }));
@@ -169,21 +250,31 @@ public final class ExchangeCore {
 
         riskEngines.forEach((idx, riskEngine) -> afterMatchingEngine.handleEventsWith(
                 (rb, bs) -> {
-                    final TwoStepSlaveProcessor r2 = new TwoStepSlaveProcessor(rb, rb.newBarrier(bs), riskEngine::handlerRiskRelease, exceptionHandler);
+                    final TwoStepSlaveProcessor r2 = new TwoStepSlaveProcessor(rb, rb.newBarrier(bs),
+                            latencyMonitor == null ? riskEngine::handlerRiskRelease : latencyMonitor.riskRelease(riskEngine, idx),
+                            riskEngine::applyPendingSettlements,
+                            exceptionHandler);
                     procR2.add(r2);
                     return r2;
                 }));
 
         // 4. results handler (E) after matching engine (ME) + [journalling (J)]
-        (journallingHandler != null ? disruptor.after(ArrayUtils.add(matchingEngineHandlers, journallingHandler::onEvent)) : afterMatchingEngine)
+        final boolean journalling = afterJournalling != null;
+        (journalling ? afterMatchingEngine.and(afterJournalling) : afterMatchingEngine)
                 .handleEventsWith((cmd, seq, eob) -> {
                     resultsConsumer.accept(cmd, seq);
                     api.processResult(seq, cmd); // TODO SLOW ?(volatile operations)
+                    if (latencyMonitor != null) {
+                        latencyMonitor.results(cmd, journalling);
+                    }
                 });
 
         // attach slave processors to master processor
         Streams.forEachPair(procR1.stream(), procR2.stream(), TwoStepMasterProcessor::setSlaveProcessor);
 
+        // grouping processor observes risk release progress for adapting groups
+        procG.get(0).setDownstreamSequences(procR2.stream().map(TwoStepSlaveProcessor::getSequence).toArray(Sequence[]::new));
+
         try {
             loaderExecutor.shutdown();
             loaderExecutor.awaitTermination(1, TimeUnit.SECONDS);
@@ -204,6 +295,20 @@ public final class ExchangeCore {
         return api;
     }
 
+    /**
+     * @return grouping controller exposing current events group limit and duration (metrics)
+     */
+    public GroupingController getGroupingController() {
+        return groupingController;
+    }
+
+    /**
+     * @return per-stage latency monitor, or null if stageLatencyMonitoring is disabled
+     */
+    public StageLatencyMonitor getStageLatencyMonitor() {
+        return stageLatencyMonitor;
+    }
+
     private static final EventTranslator<OrderCommand> SHUTDOWN_SIGNAL_TRANSLATOR = (cmd, seq) -> {
         cmd.command = OrderCommandType.SHUTDOWN_SIGNAL;
         cmd.resultCode = CommandResultCode.NEW;
@@ -217,7 +322,56 @@ public final class ExchangeCore {
             disruptor.getRingBuffer().publishEvent(SHUTDOWN_SIGNAL_TRANSLATOR);
             disruptor.shutdown();
             log.info("Disruptor stopped");
+            // engines threads are stopped, remaining background snapshots can be completed
+            matchingEngines.forEach(MatchingEngineRouter::shutdownSnapshots);
+            riskEngines.forEach(RiskEngine::shutdownSnapshots);
+            getObjectsPoolsStatistics().forEach((engine, statistics) -> log.info("{} objects pool: {}", engine, statistics));
+            getRiskRejectionsTelemetry().forEach(telemetry -> log.info("{}", telemetry));
+        }
+    }
+
+    /**
+     * Objects pools usage of all engines (ME0.., RE0..), for sizing pools.
+     * Can be called while core is running (counters are not synchronized, values can be slightly stale).
+     */
+    public Map<String, List<ObjectsPool.Statistics>> getObjectsPoolsStatistics() {
+        final Map<String, List<ObjectsPool.Statistics>> statistics = new LinkedHashMap<>();
+        for (int i = 0; i < matchingEngines.size(); i++) {
+            statistics.put("ME" + i, matchingEngines.get(i).getObjectsPoolStatistics());
+        }
+        for (int i = 0; i < riskEngines.size(); i++) {
+            statistics.put("RE" + i, riskEngines.get(i).getObjectsPoolStatistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * Counters of orders rejected by risk engines (one per shard), can be read while core is running.
+     */
+    public List<RiskRejectionsTelemetry> getRiskRejectionsTelemetry() {
+        return riskEngines.stream().map(RiskEngine::getRejectionsTelemetry).collect(Collectors.toList());
+    }
+
+    /**
+     * Outcome of asynchronous snapshot (ApiPersistState returns STATE_PERSIST_STARTED when async snapshots are enabled).
+     * Can be called by any thread.
+     *
+     * @param snapshotId - snapshot id (dumpId)
+     * @return future completed with true when all engines have written their snapshots,
+     * false if any write failed or snapshot is unknown (not started or too old)
+     */
+    public CompletableFuture<Boolean> getSnapshotResult(final long snapshotId) {
+        if (!asyncSnapshots) {
+            throw new IllegalStateException("Async snapshots are disabled, ApiPersistState returns final result");
+        }
+        final List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        matchingEngines.forEach(mer -> results.add(mer.getSnapshotResult(snapshotId)));
+        riskEngines.forEach(re -> results.add(re.getSnapshotResult(snapshotId)));
+        if (results.contains(null)) {
+            return CompletableFuture.completedFuture(false);
         }
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture[0]))
+                .thenApply(ignore -> results.stream().allMatch(CompletableFuture::join));
     }
 
     @SuppressWarnings(value = {"unchecked"})
@@ -40,6 +40,9 @@ public final class L2MarketData {
     public long[] bidVolumes;
     public long[] bidOrders;
 
+    // order book symbol (set for top-of-book updates published by matching engine)
+    public int symbol;
+
     // when published
     public long timestamp;
     public long referenceSeq;
@@ -68,6 +71,25 @@ public final class L2MarketData {
         this.bidOrders = new long[bidSize];
     }
 
+    /**
+     * Grow arrays if required (existing content is not preserved)
+     *
+     * @param askSize - required asks capacity
+     * @param bidSize - required bids capacity
+     */
+    public void ensureCapacity(final int askSize, final int bidSize) {
+        if (askPrices.length < askSize) {
+            this.askPrices = new long[askSize];
+            this.askVolumes = new long[askSize];
+            this.askOrders = new long[askSize];
+        }
+        if (bidPrices.length < bidSize) {
+            this.bidPrices = new long[bidSize];
+            this.bidVolumes = new long[bidSize];
+            this.bidOrders = new long[bidSize];
+        }
+    }
+
     public long[] getAskPricesCopy() {
         return Arrays.copyOf(askPrices, askSize);
     }
@@ -149,13 +171,15 @@ public final class L2MarketData {
     }
 
     public L2MarketData copy() {
-        return new L2MarketData(
+        final L2MarketData copy = new L2MarketData(
                 getAskPricesCopy(),
                 getAskVolumesCopy(),
                 getAskOrdersCopy(),
                 getBidPricesCopy(),
                 getBidVolumesCopy(),
                 getBidOrdersCopy());
+        copy.symbol = symbol;
+        return copy;
     }
 
     @Override
@@ -54,6 +54,11 @@ public final class MatcherTradeEvent {
 
     public long bidderHoldPrice; // frozen price from BID order owner (depends on activeOrderAction)
 
+    // symbol and action of the order (MASS_CANCEL and QUOTE_REPLACE commands only)
+    // for CANCEL events of MASS_CANCEL/QUOTE_REPLACE matchedOrderId/matchedOrderUid of cancelled order are set as well
+    public int symbol;
+    public OrderAction action;
+
     // reference to next event in chain
     public MatcherTradeEvent nextEvent;
 
@@ -71,6 +76,8 @@ public final class MatcherTradeEvent {
         evt.size = this.size;
 //        evt.timestamp = this.timestamp;
         evt.bidderHoldPrice = this.bidderHoldPrice;
+        evt.symbol = this.symbol;
+        evt.action = this.action;
         return evt;
     }
 
@@ -15,7 +15,6 @@
  */
 package exchange.core2.core.common;
 
-import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
@@ -34,8 +33,6 @@ import java.util.Objects;
  * No external references allowed to such object - order objects only live inside OrderBook.
  */
 @NoArgsConstructor
-@AllArgsConstructor
-@Builder
 public final class Order implements WriteBytesMarshallable, IOrder {
 
     @Getter
@@ -66,6 +63,22 @@ public final class Order implements WriteBytesMarshallable, IOrder {
 
 //    public int userCookie;
 
+    // other orders of the same user (only if order book maintains user orders index)
+    public Order userNext;
+    public Order userPrev;
+
+    @Builder
+    public Order(long orderId, long price, long size, long filled, long reserveBidPrice, OrderAction action, long uid, long timestamp) {
+        this.orderId = orderId;
+        this.price = price;
+        this.size = size;
+        this.filled = filled;
+        this.reserveBidPrice = reserveBidPrice;
+        this.action = action;
+        this.uid = uid;
+        this.timestamp = timestamp;
+    }
+
     public Order(BytesIn bytes) {
 
 
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.common;
+
+import lombok.ToString;
+
+/**
+ * Levels carrier of QUOTE_REPLACE command, owned by ring buffer slot and reused (whole ladder is published in one slot).
+ * <p>
+ * NOTE: Can have dirty data, size is important!
+ */
+@ToString
+public final class QuoteLevels {
+
+    public int size;
+
+    public long[] orderIds;
+    public long[] prices;
+    public long[] sizes;
+    public long[] reservePrices;
+    public OrderAction[] actions;
+
+    // filled by risk engine (exchange pairs only):
+    // amounts held for new bids (quote currency) and new asks (base currency)
+    public long bidsHold;
+    public long asksHold;
+    // part of held amounts not covered by free funds - must be released by replaced orders (verified by matching engine)
+    public long bidsCredit;
+    public long asksCredit;
+
+    public QuoteLevels(final int capacity) {
+        this.orderIds = new long[capacity];
+        this.prices = new long[capacity];
+        this.sizes = new long[capacity];
+        this.reservePrices = new long[capacity];
+        this.actions = new OrderAction[capacity];
+    }
+
+    /**
+     * Remove all levels and grow arrays if required
+     *
+     * @param capacity - required number of levels
+     */
+    public void clear(final int capacity) {
+        if (orderIds.length < capacity) {
+            this.orderIds = new long[capacity];
+            this.prices = new long[capacity];
+            this.sizes = new long[capacity];
+            this.reservePrices = new long[capacity];
+            this.actions = new OrderAction[capacity];
+        }
+        size = 0;
+        bidsHold = 0;
+        asksHold = 0;
+        bidsCredit = 0;
+        asksCredit = 0;
+    }
+
+    public void add(final long orderId, final long price, final long size, final OrderAction action, final long reservePrice) {
+        final int idx = this.size++;
+        orderIds[idx] = orderId;
+        prices[idx] = price;
+        sizes[idx] = size;
+        actions[idx] = action;
+        reservePrices[idx] = reservePrice;
+    }
+
+    public QuoteLevels copy() {
+        final QuoteLevels copy = new QuoteLevels(size);
+        copy.size = size;
+        System.arraycopy(orderIds, 0, copy.orderIds, 0, size);
+        System.arraycopy(prices, 0, copy.prices, 0, size);
+        System.arraycopy(sizes, 0, copy.sizes, 0, size);
+        System.arraycopy(reservePrices, 0, copy.reservePrices, 0, size);
+        System.arraycopy(actions, 0, copy.actions, 0, size);
+        copy.bidsHold = bidsHold;
+        copy.asksHold = asksHold;
+        copy.bidsCredit = bidsCredit;
+        copy.asksCredit = asksCredit;
+        return copy;
+    }
+}
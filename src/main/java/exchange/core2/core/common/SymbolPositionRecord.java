@@ -46,6 +46,9 @@ public final class SymbolPositionRecord implements WriteBytesMarshallable, State
     public long pendingSellSize = 0;
     public long pendingBuySize = 0;
 
+    // cached free margin contribution (estimated profit minus required margin), maintained by risk engine, not serialized
+    public long freeMargin = 0;
+
     public void initialize(long uid, int symbol, int currency) {
         this.uid = uid;
 
@@ -59,6 +62,8 @@ public final class SymbolPositionRecord implements WriteBytesMarshallable, State
 
         this.pendingSellSize = 0;
         this.pendingBuySize = 0;
+
+        this.freeMargin = 0;
     }
 
     public SymbolPositionRecord(long uid, BytesIn bytes) {
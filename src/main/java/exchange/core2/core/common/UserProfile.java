@@ -30,11 +30,18 @@ import java.util.Objects;
 @Slf4j
 public final class UserProfile implements WriteBytesMarshallable, StateHash {
 
-    public final long uid;
+    // shared by all profiles without margin positions, must never be modified
+    private static final IntObjectHashMap<SymbolPositionRecord> NO_POSITIONS = new IntObjectHashMap<>(0);
+    private static final IntLongHashMap NO_FREE_MARGIN = new IntLongHashMap(0);
+    // shared by all profiles without quote orders, must never be modified
+    private static final IntLongHashMap NO_QUOTE_HOLDS = new IntLongHashMap(0);
+
+    // not final - profile objects are recycled after suspend
+    public long uid;
 
     // symbol -> margin position records
-    // TODO initialize lazily (only needed if margin trading allowed)
-    public final IntObjectHashMap<SymbolPositionRecord> positions;
+    // allocated lazily on first margin order (most users trade only exchange pairs), use addPositionRecord for adding
+    public IntObjectHashMap<SymbolPositionRecord> positions;
 
     // protects from double adjustment
     public long adjustmentsCounter;
@@ -43,14 +50,47 @@ public final class UserProfile implements WriteBytesMarshallable, StateHash {
     // currency -> balance
     public final IntLongHashMap accounts;
 
+    // currency -> cached free margin of all futures positions quoted in this currency
+    // maintained incrementally by risk engine, not serialized, allocated together with positions
+    public IntLongHashMap futuresFreeMargin;
+
     public boolean suspended;
 
+    // symbol -> amount held by quote replace orders of exchange pair (bids - in quote currency, asks - in base currency)
+    // never exceeds actually held amount, so it can be reused by the next quote replace of the same symbol
+    // allocated lazily on first quote replace, use setQuoteHolds/releaseQuoteHold for changing
+    private IntLongHashMap quoteBidsHolds;
+    private IntLongHashMap quoteAsksHolds;
+
     public UserProfile(long uid, boolean suspended) {
         //log.debug("New {}", uid);
         this.uid = uid;
-        this.positions = new IntObjectHashMap<>();
+        this.positions = NO_POSITIONS;
         this.adjustmentsCounter = 0L;
         this.accounts = new IntLongHashMap();
+        this.futuresFreeMargin = NO_FREE_MARGIN;
+        this.suspended = suspended;
+        this.quoteBidsHolds = NO_QUOTE_HOLDS;
+        this.quoteAsksHolds = NO_QUOTE_HOLDS;
+    }
+
+    /**
+     * Reinitialize recycled profile (accounts and allocated positions maps are kept empty for reuse)
+     */
+    public void initialize(final long uid, final boolean suspended) {
+        if (hasPositions()) {
+            throw new IllegalStateException("Can not reuse profile with positions: " + this);
+        }
+        this.uid = uid;
+        this.adjustmentsCounter = 0L;
+        this.accounts.clear();
+        if (futuresFreeMargin != NO_FREE_MARGIN) {
+            futuresFreeMargin.clear();
+        }
+        if (quoteBidsHolds != NO_QUOTE_HOLDS) {
+            quoteBidsHolds.clear();
+            quoteAsksHolds.clear();
+        }
         this.suspended = suspended;
     }
 
@@ -59,7 +99,8 @@ public final class UserProfile implements WriteBytesMarshallable, StateHash {
         this.uid = bytesIn.readLong();
 
         // positions
-        this.positions = SerializationUtils.readIntHashMap(bytesIn, b -> new SymbolPositionRecord(uid, b));
+        final IntObjectHashMap<SymbolPositionRecord> positions = SerializationUtils.readIntHashMap(bytesIn, b -> new SymbolPositionRecord(uid, b));
+        this.positions = positions.isEmpty() ? NO_POSITIONS : positions;
 
         // adjustmentsCounter
         this.adjustmentsCounter = bytesIn.readLong();
@@ -69,6 +110,72 @@ public final class UserProfile implements WriteBytesMarshallable, StateHash {
 
         // suspended
         this.suspended = bytesIn.readBoolean();
+
+        // quote holds
+        final IntLongHashMap quoteBidsHolds = SerializationUtils.readIntLongHashMap(bytesIn);
+        final IntLongHashMap quoteAsksHolds = SerializationUtils.readIntLongHashMap(bytesIn);
+        final boolean noQuoteHolds = quoteBidsHolds.isEmpty() && quoteAsksHolds.isEmpty();
+        this.quoteBidsHolds = noQuoteHolds ? NO_QUOTE_HOLDS : quoteBidsHolds;
+        this.quoteAsksHolds = noQuoteHolds ? NO_QUOTE_HOLDS : quoteAsksHolds;
+
+        this.futuresFreeMargin = positions.isEmpty() ? NO_FREE_MARGIN : new IntLongHashMap();
+    }
+
+    public boolean hasPositions() {
+        return !positions.isEmpty();
+    }
+
+    public void addPositionRecord(final SymbolPositionRecord record) {
+        if (positions == NO_POSITIONS) {
+            // first margin position - allocating own maps (kept after positions are closed)
+            positions = new IntObjectHashMap<>();
+            futuresFreeMargin = new IntLongHashMap();
+        }
+        positions.put(record.symbol, record);
+    }
+
+    public boolean hasQuoteHolds() {
+        return !quoteBidsHolds.isEmpty() || !quoteAsksHolds.isEmpty();
+    }
+
+    public long getQuoteHold(final int symbol, final OrderAction action) {
+        return (action == OrderAction.BID ? quoteBidsHolds : quoteAsksHolds).get(symbol);
+    }
+
+    /**
+     * Set amounts held by quote orders of the symbol (after quote replace)
+     */
+    public void setQuoteHolds(final int symbol, final long bidsHold, final long asksHold) {
+        if (quoteBidsHolds == NO_QUOTE_HOLDS) {
+            if (bidsHold == 0 && asksHold == 0) {
+                return;
+            }
+            // first quote replace - allocating own maps (kept after quote orders are gone)
+            quoteBidsHolds = new IntLongHashMap();
+            quoteAsksHolds = new IntLongHashMap();
+        }
+        putQuoteHold(quoteBidsHolds, symbol, bidsHold);
+        putQuoteHold(quoteAsksHolds, symbol, asksHold);
+    }
+
+    /**
+     * Reduce amount held by quote orders of the symbol (order of the user was filled, cancelled or rejected).
+     * Amount can belong to another order of the user, so quote hold is only reduced to zero.
+     */
+    public void releaseQuoteHold(final int symbol, final OrderAction action, final long amount) {
+        final IntLongHashMap holds = (action == OrderAction.BID) ? quoteBidsHolds : quoteAsksHolds;
+        final long held = holds.get(symbol);
+        if (held != 0) {
+            putQuoteHold(holds, symbol, held - amount);
+        }
+    }
+
+    private static void putQuoteHold(final IntLongHashMap holds, final int symbol, final long amount) {
+        if (amount > 0) {
+            holds.put(symbol, amount);
+        } else {
+            holds.removeKey(symbol);
+        }
     }
 
     public SymbolPositionRecord getPositionRecordOrThrowEx(int symbol) {
@@ -95,6 +202,10 @@ public final class UserProfile implements WriteBytesMarshallable, StateHash {
 
         // suspended
         bytes.writeBoolean(suspended);
+
+        // quote holds
+        SerializationUtils.marshallIntLongHashMap(quoteBidsHolds, bytes);
+        SerializationUtils.marshallIntLongHashMap(quoteAsksHolds, bytes);
     }
 
 
@@ -116,6 +227,8 @@ public final class UserProfile implements WriteBytesMarshallable, StateHash {
                 HashingUtils.stateHash(positions),
                 adjustmentsCounter,
                 accounts.hashCode(),
-                Boolean.hashCode(suspended));
+                Boolean.hashCode(suspended),
+                quoteBidsHolds.hashCode(),
+                quoteAsksHolds.hashCode());
     }
 }
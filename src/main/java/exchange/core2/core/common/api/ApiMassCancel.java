@@ -0,0 +1,42 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.common.api;
+
+
+import lombok.Builder;
+
+/**
+ * Cancels all orders of the user in one order book, or in all order books.
+ * With ALL_USERS cancels all orders of the order book(s).
+ * <p>
+ * Single CANCEL event is attached for each cancelled order (having order id, uid, symbol and action),
+ * risk engine releases funds of all cancelled orders when processing this command.
+ * When ALL_SYMBOLS specified, one command is published for each matching engine shard.
+ */
+@Builder
+public final class ApiMassCancel extends ApiCommand {
+
+    public static final long ALL_USERS = -1L;
+    public static final int ALL_SYMBOLS = -1;
+
+    public final long uid;
+    public final int symbol;
+
+    @Override
+    public String toString() {
+        return "[MASS_CANCEL u" + uid + " s" + symbol + "]";
+    }
+}
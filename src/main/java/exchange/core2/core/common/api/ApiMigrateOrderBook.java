@@ -0,0 +1,36 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.common.api;
+
+
+import lombok.Builder;
+
+/**
+ * Moves order book to another matching engine shard (without stopping processing).
+ * All commands published after this one are processed by target shard.
+ */
+@Builder
+public final class ApiMigrateOrderBook extends ApiCommand {
+
+    final public int symbol;
+
+    final public int targetShard;
+
+    @Override
+    public String toString() {
+        return "[MIGRATE " + symbol + " to ME" + targetShard + "]";
+    }
+}
@@ -21,11 +21,18 @@ import lombok.Builder;
 @Builder
 public final class ApiPersistState extends ApiCommand {
 
+    // snapshot kind, carried in price field of persist commands
+    public static final long SNAPSHOT_FULL = 0L;
+    public static final long SNAPSHOT_DELTA = 1L;
+
     public long dumpId;
     public boolean seal;
 
+    // write only changes since previous snapshot (full snapshot is written if there is no previous one)
+    public boolean delta;
+
     @Override
     public String toString() {
-        return "[PERSIST]-" + dumpId + " seal=" + seal;
+        return "[PERSIST]-" + dumpId + " seal=" + seal + " delta=" + delta;
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.common.api;
+
+
+import exchange.core2.core.common.OrderAction;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+
+import java.util.List;
+
+/**
+ * Atomically replaces all orders of the user in the order book with new GTC orders (market maker quotes).
+ * <p>
+ * Whole ladder is published as one QUOTE_REPLACE command (levels array in a single ring buffer slot).
+ * Risk engine checks net change of held amounts: funds held by previous quote orders of the user in the same order book
+ * can be reused by new levels. Matching engine applies replace in one pass: either all current orders of the user
+ * are cancelled and all levels are placed (crossing prices are matched), or nothing is changed.
+ * <p>
+ * For margin symbols every level is checked as a new order (no netting with replaced orders).
+ */
+@Builder
+public final class ApiQuoteReplace extends ApiCommand {
+
+    public static final int MAX_LEVELS = 256;
+
+    public final long uid;
+    public final int symbol;
+
+    public final List<Level> levels;
+
+    @Builder
+    @AllArgsConstructor
+    public static final class Level {
+        public final long id;
+        public final long price;
+        public final long size;
+        public final OrderAction action;
+        public final long reservePrice;
+    }
+
+    @Override
+    public String toString() {
+        return "[QUOTE_REPLACE u" + uid + " s" + symbol + " levels:" + (levels != null ? levels.size() : 0) + "]";
+    }
+}
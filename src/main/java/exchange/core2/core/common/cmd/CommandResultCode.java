@@ -24,6 +24,8 @@ public enum CommandResultCode {
 
     SUCCESS(100),
     ACCEPTED(110),
+    // async snapshot: state captured, being written in background (see ExchangeCore.getSnapshotResult)
+    STATE_PERSIST_STARTED(120),
 
     AUTH_INVALID_USER(-1001),
     AUTH_TOKEN_EXPIRED(-1002),
@@ -38,6 +40,7 @@ public enum CommandResultCode {
     MATCHING_UNSUPPORTED_COMMAND(-3004),
     MATCHING_INVALID_ORDER_BOOK_ID(-3005),
     MATCHING_ORDER_BOOK_ALREADY_EXISTS(-3006),
+    MATCHING_INVALID_TARGET_SHARD(-3007),
 //    MATCHING_MOVE_REJECTED_DIFFERENT_PRICE(-3040),
     MATCHING_MOVE_FAILED_PRICE_OVER_RISK_LIMIT(-3041),
 
@@ -66,6 +66,14 @@ public final class OrderCommand implements IOrder {
     public long eventsGroup;
     public int serviceFlags;
 
+    // stages completion timestamps (System.nanoTime), filled only if stage latency monitoring is enabled
+    // publishing time is stamped by ExchangeApi, and cleared by grouping processor
+    public long publishingNs;
+    public long groupingNs;
+    public long journallingNs;
+    public long riskHoldNs;
+    public long matchingNs;
+
     // result code of command execution - can also be used for saving intermediate state
     public CommandResultCode resultCode;
 
@@ -75,6 +83,12 @@ public final class OrderCommand implements IOrder {
     // optional market data
     public L2MarketData marketData;
 
+    // market data carrier owned by ring buffer slot, reused by attachMarketData (null if L2 data pooling is disabled)
+    public L2MarketData marketDataCarrier;
+
+    // levels of QUOTE_REPLACE command, owned by ring buffer slot and reused (allocated by producer on first quote replace)
+    public QuoteLevels quoteLevels;
+
     // sequence of last available for this command
     //public long matcherEventSequence;
     // ---- potential false sharing section ------
@@ -93,6 +107,15 @@ public final class OrderCommand implements IOrder {
         return cmd;
     }
 
+    /**
+     * Ring buffer slot with own market data carrier (L2 data pooling)
+     */
+    public static OrderCommand withMarketDataCarrier() {
+        OrderCommand cmd = new OrderCommand();
+        cmd.marketDataCarrier = new L2MarketData(1, 1);
+        return cmd;
+    }
+
     public static OrderCommand cancel(long orderId, int uid) {
         OrderCommand cmd = new OrderCommand();
         cmd.command = OrderCommandType.CANCEL_ORDER;
@@ -102,6 +125,15 @@ public final class OrderCommand implements IOrder {
         return cmd;
     }
 
+    public static OrderCommand massCancel(long uid, int symbol) {
+        OrderCommand cmd = new OrderCommand();
+        cmd.command = OrderCommandType.MASS_CANCEL;
+        cmd.uid = uid;
+        cmd.symbol = symbol;
+        cmd.resultCode = CommandResultCode.VALID_FOR_MATCHING_ENGINE;
+        return cmd;
+    }
+
     public static OrderCommand update(long orderId, int uid, long price) {
         OrderCommand cmd = new OrderCommand();
         cmd.command = OrderCommandType.MOVE_ORDER;
@@ -112,6 +144,26 @@ public final class OrderCommand implements IOrder {
         return cmd;
     }
 
+    /**
+     * Attach market data object with at least requested capacity.
+     * If command has market data carrier (ring buffer slot created with L2 data pooling enabled),
+     * the carrier grows when required and is reused, so attached data is valid only while command is processed,
+     * and results consumers should copy it. Otherwise new object is allocated every time.
+     *
+     * @param askSize - required asks capacity
+     * @param bidSize - required bids capacity
+     * @return attached market data object (sizes and values should be filled by caller)
+     */
+    public L2MarketData attachMarketData(final int askSize, final int bidSize) {
+        if (marketDataCarrier == null) {
+            marketData = new L2MarketData(askSize, bidSize);
+        } else {
+            marketDataCarrier.ensureCapacity(askSize, bidSize);
+            marketData = marketDataCarrier;
+        }
+        return marketData;
+    }
+
     /**
      * Handles full MatcherTradeEvent chain, without removing/revoking them
      *
@@ -190,6 +242,10 @@ public final class OrderCommand implements IOrder {
             newCmd.marketData = marketData.copy();
         }
 
+        if (quoteLevels != null) {
+            newCmd.quoteLevels = quoteLevels.copy();
+        }
+
 //        System.out.println(">>> newCmd: " + newCmd);
         return newCmd;
     }
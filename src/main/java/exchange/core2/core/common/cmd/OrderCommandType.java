@@ -22,6 +22,8 @@ public enum OrderCommandType {
     PLACE_ORDER(1),
     CANCEL_ORDER(2),
     MOVE_ORDER(3),
+    MASS_CANCEL(4),
+    QUOTE_REPLACE(5),
 
     ORDER_BOOK_REQUEST(6),
 
@@ -37,6 +39,8 @@ public enum OrderCommandType {
     PERSIST_STATE_MATCHING(110),
     PERSIST_STATE_RISK(111),
 
+    MIGRATE_ORDER_BOOK(115),
+
     NOP(120),
     RESET(124),
     SHUTDOWN_SIGNAL(127);
@@ -47,4 +51,47 @@ public enum OrderCommandType {
         this.code = (byte) code;
     }
 
+    public static OrderCommandType of(byte code) {
+        switch (code) {
+            case 1:
+                return PLACE_ORDER;
+            case 2:
+                return CANCEL_ORDER;
+            case 3:
+                return MOVE_ORDER;
+            case 4:
+                return MASS_CANCEL;
+            case 5:
+                return QUOTE_REPLACE;
+            case 6:
+                return ORDER_BOOK_REQUEST;
+            case 10:
+                return ADD_USER;
+            case 11:
+                return BALANCE_ADJUSTMENT;
+            case 12:
+                return SUSPEND_USER;
+            case 13:
+                return RESUME_USER;
+            case 30:
+                return CLEARING_OPERATION;
+            case 90:
+                return BINARY_DATA;
+            case 110:
+                return PERSIST_STATE_MATCHING;
+            case 111:
+                return PERSIST_STATE_RISK;
+            case 115:
+                return MIGRATE_ORDER_BOOK;
+            case 120:
+                return NOP;
+            case 124:
+                return RESET;
+            case 127:
+                return SHUTDOWN_SIGNAL;
+            default:
+                throw new IllegalArgumentException("unknown OrderCommandType:" + code);
+        }
+    }
+
 }
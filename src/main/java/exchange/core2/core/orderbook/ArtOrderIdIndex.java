@@ -0,0 +1,61 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import exchange.core2.core.art.LongAdaptiveRadixTreeMap;
+import exchange.core2.core.art.LongObjConsumer;
+import exchange.core2.core.processors.ObjectsPool;
+
+/**
+ * Order id index based on adaptive radix tree (nodes are taken from objects pool)
+ */
+public final class ArtOrderIdIndex<V> implements IOrderIdIndex<V> {
+
+    private final LongAdaptiveRadixTreeMap<V> map;
+
+    public ArtOrderIdIndex(final ObjectsPool objectsPool) {
+        this.map = new LongAdaptiveRadixTreeMap<>(objectsPool);
+    }
+
+    @Override
+    public V get(final long orderId) {
+        return map.get(orderId);
+    }
+
+    @Override
+    public V putIfAbsent(final long orderId, final V order) {
+        final V existing = map.get(orderId);
+        if (existing == null) {
+            map.put(orderId, order);
+        }
+        return existing;
+    }
+
+    @Override
+    public void remove(final long orderId) {
+        map.remove(orderId);
+    }
+
+    @Override
+    public int size() {
+        return map.size(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void forEach(final LongObjConsumer<V> consumer) {
+        map.forEach(consumer, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * HOT section of one side of OrderBookFastImpl: rolling bitset and buckets array with the same ring offset.
+ * <p>
+ * Index is relative to the base price (0..width-1). Moving the base price only clears the words leaving the window
+ * and rotates the offset, so shifting is O(shift) and does not allocate.
+ * Width and shifts must be aligned by 64 (base price is aligned).
+ * <p>
+ * Not thread safe.
+ */
+final class HotPriceBuckets {
+
+    private final int words;
+
+    private final long[] bits;
+    private final IOrdersBucket[] buckets;
+
+    // physical word of the index 0
+    private int offsetWords = 0;
+
+    private int size = 0;
+
+    HotPriceBuckets(final int width) {
+        if ((width & 63) != 0 || width <= 0) {
+            throw new IllegalArgumentException("invalid width=" + width);
+        }
+        this.words = width >> 6;
+        this.bits = new long[words];
+        this.buckets = new IOrdersBucket[width];
+    }
+
+    IOrdersBucket get(final int idx) {
+        return buckets[physicalIndex(idx)];
+    }
+
+    void put(final int idx, final IOrdersBucket bucket) {
+        final int p = physicalIndex(idx);
+        if (buckets[p] == null) {
+            size++;
+        }
+        buckets[p] = bucket;
+        bits[p >> 6] |= 1L << p;
+    }
+
+    IOrdersBucket remove(final int idx) {
+        final int p = physicalIndex(idx);
+        final IOrdersBucket bucket = buckets[p];
+        if (bucket != null) {
+            buckets[p] = null;
+            bits[p >> 6] &= ~(1L << p);
+            size--;
+        }
+        return bucket;
+    }
+
+    /**
+     * @param fromIdx - index to start from (inclusive)
+     * @return index of the first bucket at or after fromIdx, or -1 if not found
+     */
+    int nextIndex(final int fromIdx) {
+        final int idx = Math.max(fromIdx, 0);
+        int w = idx >> 6;
+        if (w >= words) {
+            return -1;
+        }
+        long word = bits[physicalWord(w)] & (-1L << idx);
+        while (word == 0) {
+            if (++w == words) {
+                return -1;
+            }
+            word = bits[physicalWord(w)];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * @param fromIdx - index to start from (inclusive)
+     * @return index of the last bucket at or before fromIdx, or -1 if not found
+     */
+    int previousIndex(final int fromIdx) {
+        if (fromIdx < 0) {
+            return -1;
+        }
+        final int idx = Math.min(fromIdx, (words << 6) - 1);
+        int w = idx >> 6;
+        long word = bits[physicalWord(w)] & (-1L >>> (63 - (idx & 63)));
+        while (word == 0) {
+            if (--w < 0) {
+                return -1;
+            }
+            word = bits[physicalWord(w)];
+        }
+        return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+    }
+
+    /**
+     * Base price increased by shift: all indexes are decreased by shift, buckets with index below shift are dropped.
+     */
+    void shiftDown(final int shift) {
+        final int shiftWords = shift >> 6;
+        if (shiftWords >= words) {
+            clear();
+            return;
+        }
+        for (int w = 0; w < shiftWords; w++) {
+            clearWord(w);
+        }
+        offsetWords = physicalWord(shiftWords);
+    }
+
+    /**
+     * Base price decreased by shift: all indexes are increased by shift, buckets with index width-shift and above are dropped.
+     */
+    void shiftUp(final int shift) {
+        final int shiftWords = shift >> 6;
+        if (shiftWords >= words) {
+            clear();
+            return;
+        }
+        for (int w = words - shiftWords; w < words; w++) {
+            clearWord(w);
+        }
+        offsetWords = physicalWord(words - shiftWords);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Iterate buckets in index (price) order
+     */
+    void forEach(final Consumer<IOrdersBucket> consumer) {
+        for (int idx = nextIndex(0); idx != -1; idx = nextIndex(idx + 1)) {
+            consumer.accept(get(idx));
+        }
+    }
+
+    /**
+     * @return buckets in index (price) order
+     */
+    List<IOrdersBucket> toList() {
+        final List<IOrdersBucket> list = new ArrayList<>(size);
+        forEach(list::add);
+        return list;
+    }
+
+    LongObjectHashMap<IOrdersBucket> toPriceMap(final long basePrice) {
+        final LongObjectHashMap<IOrdersBucket> map = new LongObjectHashMap<>(size);
+        for (int idx = nextIndex(0); idx != -1; idx = nextIndex(idx + 1)) {
+            map.put(basePrice + idx, get(idx));
+        }
+        return map;
+    }
+
+    void validate() {
+        int count = 0;
+        for (int p = 0; p < buckets.length; p++) {
+            final boolean bit = (bits[p >> 6] & (1L << p)) != 0;
+            if (bit != (buckets[p] != null)) {
+                throw new IllegalStateException("HOT buckets bit set differs from buckets array at " + p);
+            }
+            if (bit) {
+                count++;
+            }
+        }
+        if (count != size) {
+            throw new IllegalStateException("HOT buckets size " + size + " differs from actual " + count);
+        }
+    }
+
+    private void clear() {
+        for (int w = 0; w < words; w++) {
+            clearWord(w);
+        }
+        offsetWords = 0;
+    }
+
+    private void clearWord(final int w) {
+        final int pw = physicalWord(w);
+        long word = bits[pw];
+        while (word != 0) {
+            buckets[(pw << 6) + Long.numberOfTrailingZeros(word)] = null;
+            size--;
+            word &= word - 1;
+        }
+        bits[pw] = 0;
+    }
+
+    private int physicalWord(final int w) {
+        final int pw = w + offsetWords;
+        return pw < words ? pw : pw - words;
+    }
+
+    private int physicalIndex(final int idx) {
+        return (physicalWord(idx >> 6) << 6) | (idx & 63);
+    }
+}
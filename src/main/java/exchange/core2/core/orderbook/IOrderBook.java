@@ -16,6 +16,7 @@
 package exchange.core2.core.orderbook;
 
 import exchange.core2.core.common.*;
+import exchange.core2.core.common.api.ApiMassCancel;
 import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommand;
 import exchange.core2.core.common.cmd.OrderCommandType;
@@ -62,6 +63,70 @@ public interface IOrderBook extends WriteBytesMarshallable, StateHash {
      */
     CommandResultCode moveOrder(OrderCommand cmd);
 
+    /**
+     * Cancel all orders of the user in a single pass (MASS_CANCEL command)
+     * <p>
+     * CANCEL event is attached for each cancelled order, with order id, uid, symbol and action of the order.
+     *
+     * @param uid - user id, or ApiMassCancel.ALL_USERS to cancel all orders
+     * @param cmd - command to attach events to
+     * @return number of cancelled orders
+     */
+    int cancelOrders(long uid, OrderCommand cmd);
+
+    /**
+     * @param uid - user id, or ApiMassCancel.ALL_USERS
+     * @return true if there are orders of the user (any orders for ALL_USERS)
+     */
+    default boolean hasOrders(final long uid) {
+        return uid == ApiMassCancel.ALL_USERS
+                ? getTotalAskBuckets(1) != 0 || getTotalBidBuckets(1) != 0
+                : !findUserOrders(uid).isEmpty();
+    }
+
+    /**
+     * Atomically replace all orders of the user with new GTC orders (QUOTE_REPLACE command, market maker quotes).
+     * Either order book is not changed (invalid level found), or all orders of the user are cancelled
+     * and all new orders are placed in one pass, crossing prices are matched.
+     * <p>
+     * Events are attached to cmd, every event has symbol and action of the order (cancelled order or new order).
+     *
+     * @param uid    - user id
+     * @param levels - new orders (PLACE_ORDER commands checked by risk engine)
+     * @param cmd    - command to attach events to
+     * @return SUCCESS, or rejection reason (result of risk check of the level, or duplicate order id)
+     */
+    default CommandResultCode replaceOrders(final long uid, final List<OrderCommand> levels, final OrderCommand cmd) {
+
+        final int levelsNum = levels.size();
+        for (int i = 0; i < levelsNum; i++) {
+            final OrderCommand level = levels.get(i);
+            if (level.resultCode != CommandResultCode.VALID_FOR_MATCHING_ENGINE) {
+                return level.resultCode;
+            }
+            // order id can be reused only from an order of the same user (cancelled before placing)
+            final IOrder order = getOrderById(level.orderId);
+            if (order != null && order.getUid() != uid) {
+                return CommandResultCode.MATCHING_DUPLICATE_ORDER_ID;
+            }
+            for (int j = 0; j < i; j++) {
+                if (levels.get(j).orderId == level.orderId) {
+                    return CommandResultCode.MATCHING_DUPLICATE_ORDER_ID;
+                }
+            }
+        }
+
+        final int symbol = getSymbolSpec().symbolId;
+        cancelOrders(uid, cmd);
+        for (int i = 0; i < levelsNum; i++) {
+            final OrderCommand level = levels.get(i);
+            level.matcherEvent = null;
+            newOrder(level);
+            OrderBookEventsHelper.transferEvents(level, cmd, symbol);
+        }
+        return CommandResultCode.SUCCESS;
+    }
+
     // testing only ?
     int getOrdersNum(OrderAction action);
 
@@ -81,7 +146,7 @@ public interface IOrderBook extends WriteBytesMarshallable, StateHash {
 
     /**
      * Search for all orders for specified user.<br/>
-     * Slow, because order book do not maintain uid->order index.<br/>
+     * Slow, unless order book maintains uid->order index (optional for Direct and Fast implementations).<br/>
      * Produces garbage.<br/>
      * Orders must be processed before doing any other mutable call.<br/>
      *
@@ -120,6 +185,21 @@ public interface IOrderBook extends WriteBytesMarshallable, StateHash {
         return data;
     }
 
+    /**
+     * Fill L2 Market Data snapshot into market data carrier of the command (no allocation if carrier is big enough)
+     *
+     * @param size max size for each part (ask, bid)
+     * @param cmd  command to attach market data to
+     */
+    default void fillL2MarketDataSnapshot(final int size, final OrderCommand cmd) {
+        final int asksSize = getTotalAskBuckets(size);
+        final int bidsSize = getTotalBidBuckets(size);
+        final L2MarketData data = cmd.attachMarketData(asksSize, bidsSize);
+        fillAsks(asksSize, data);
+        fillBids(bidsSize, data);
+        data.symbol = getSymbolSpec().symbolId;
+    }
+
     /**
      * Request to publish L2 market data into outgoing disruptor message
      *
@@ -159,8 +239,8 @@ public interface IOrderBook extends WriteBytesMarshallable, StateHash {
                     : cmd.resultCode; // no change
 
         } else if (commandType == OrderCommandType.ORDER_BOOK_REQUEST) {
-            int size = (int) cmd.size;
-            cmd.marketData = orderBook.getL2MarketDataSnapshot(size >= 0 ? size : Integer.MAX_VALUE);
+            final int size = (int) cmd.size;
+            orderBook.fillL2MarketDataSnapshot(size >= 0 ? size : Integer.MAX_VALUE, cmd);
             return CommandResultCode.SUCCESS;
 
         } else {
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import exchange.core2.core.art.LongObjConsumer;
+
+/**
+ * Order id -> order index of {@link OrderBookDirectImpl}
+ *
+ * @param <V> order type
+ */
+public interface IOrderIdIndex<V> {
+
+    V get(long orderId);
+
+    /**
+     * Insert order if there is no order with the same id
+     *
+     * @return order already having this id (index is not changed), or null if order was inserted
+     */
+    V putIfAbsent(long orderId, V order);
+
+    void remove(long orderId);
+
+    int size();
+
+    /**
+     * Index must not be modified by consumer, iteration order is implementation specific
+     */
+    void forEach(LongObjConsumer<V> consumer);
+
+}
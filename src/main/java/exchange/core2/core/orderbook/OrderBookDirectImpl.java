@@ -17,6 +17,7 @@ package exchange.core2.core.orderbook;
 
 import exchange.core2.core.art.LongAdaptiveRadixTreeMap;
 import exchange.core2.core.common.*;
+import exchange.core2.core.common.api.ApiMassCancel;
 import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommand;
 import exchange.core2.core.processors.ObjectsPool;
@@ -48,10 +49,11 @@ public final class OrderBookDirectImpl implements IOrderBook {
     // symbol specification
     private final CoreSymbolSpecification symbolSpec;
 
-    // index: orderId -> order
-    private final LongAdaptiveRadixTreeMap<DirectOrder> orderIdIndex;
-    //private final Long2ObjectHashMap<DirectOrder> orderIdIndex = new Long2ObjectHashMap<>();
-    //private final LongObjectHashMap<DirectOrder> orderIdIndex = new LongObjectHashMap<>();
+    // index: orderId -> order (adaptive radix tree or open-addressing hash table)
+    private final IOrderIdIndex<DirectOrder> orderIdIndex;
+
+    // optional index: uid -> most recently placed order of the user (chained through userNext), null if disabled
+    private final LongObjectHashMap<DirectOrder> userOrdersIndex;
 
     // heads (nullable)
     private DirectOrder bestAskOrder = null;
@@ -63,12 +65,33 @@ public final class OrderBookDirectImpl implements IOrderBook {
     private final OrderBookEventsHelper eventsHelper;
 
     public OrderBookDirectImpl(final CoreSymbolSpecification symbolSpec, final ObjectsPool objectsPool) {
+        this(symbolSpec, objectsPool, false);
+    }
+
+    /**
+     * @param userOrdersIndex - maintain uid->orders index, makes findUserOrders proportional to number of user orders
+     *                        (costs one hash table operation per placed and per removed order)
+     */
+    public OrderBookDirectImpl(final CoreSymbolSpecification symbolSpec, final ObjectsPool objectsPool, final boolean userOrdersIndex) {
+        this(symbolSpec, objectsPool, userOrdersIndex, false);
+    }
+
+    /**
+     * @param userOrdersIndex  - maintain uid->orders index
+     * @param hashOrderIdIndex - use open-addressing hash table as orderId->order index instead of adaptive radix tree
+     *                         (single probe for duplicate check and insert, more memory for sparse order ids)
+     */
+    public OrderBookDirectImpl(final CoreSymbolSpecification symbolSpec,
+                               final ObjectsPool objectsPool,
+                               final boolean userOrdersIndex,
+                               final boolean hashOrderIdIndex) {
         this.symbolSpec = symbolSpec;
         this.objectsPool = objectsPool;
         this.askPriceBuckets = new LongAdaptiveRadixTreeMap<>(objectsPool);
         this.bidPriceBuckets = new LongAdaptiveRadixTreeMap<>(objectsPool);
         this.eventsHelper = new OrderBookEventsHelper(() -> objectsPool.getSharedPool().getChain());
-        this.orderIdIndex = new LongAdaptiveRadixTreeMap<>(objectsPool);
+        this.orderIdIndex = createOrderIdIndex(hashOrderIdIndex, objectsPool);
+        this.userOrdersIndex = userOrdersIndex ? new LongObjectHashMap<>() : null;
     }
 
     public OrderBookDirectImpl(final BytesIn bytes, final ObjectsPool objectsPool) {
@@ -77,16 +100,24 @@ public final class OrderBookDirectImpl implements IOrderBook {
         this.askPriceBuckets = new LongAdaptiveRadixTreeMap<>(objectsPool);
         this.bidPriceBuckets = new LongAdaptiveRadixTreeMap<>(objectsPool);
         this.eventsHelper = new OrderBookEventsHelper(() -> objectsPool.getSharedPool().getChain());
-        this.orderIdIndex = new LongAdaptiveRadixTreeMap<>(objectsPool);
+        this.userOrdersIndex = bytes.readBoolean() ? new LongObjectHashMap<>() : null;
+        this.orderIdIndex = createOrderIdIndex(bytes.readBoolean(), objectsPool);
 
         final int size = bytes.readInt();
         for (int i = 0; i < size; i++) {
             DirectOrder order = new DirectOrder(bytes);
             insertOrder(order, null);
-            orderIdIndex.put(order.orderId, order);
+            orderIdIndex.putIfAbsent(order.orderId, order);
+            linkUserOrder(order);
         }
     }
 
+    private static IOrderIdIndex<DirectOrder> createOrderIdIndex(final boolean hashOrderIdIndex, final ObjectsPool objectsPool) {
+        return hashOrderIdIndex
+                ? new OrderIdHashIndex<>(256)
+                : new ArtOrderIdIndex<>(objectsPool);
+    }
+
     @Override
     public CommandResultCode newOrder(OrderCommand cmd) {
         final OrderType orderType = cmd.orderType;
@@ -106,20 +137,20 @@ public final class OrderBookDirectImpl implements IOrderBook {
         }
 
         final long orderId = cmd.orderId;
-        // TODO eliminate double hashtable lookup?
-        if (orderIdIndex.get(orderId) != null) { // containsKey for hashtable
+
+        // normally placing regular GTC order
+        final DirectOrder orderRecord = objectsPool.get(ObjectsPool.DIRECT_ORDER, (Supplier<DirectOrder>) DirectOrder::new);
+
+        // duplicate check and insert in one lookup
+        if (orderIdIndex.putIfAbsent(orderId, orderRecord) != null) {
+            objectsPool.put(ObjectsPool.DIRECT_ORDER, orderRecord);
             // duplicate order id - can match, but can not place
             eventsHelper.attachRejectEvent(cmd, size - filledSize);
             return CommandResultCode.MATCHING_DUPLICATE_ORDER_ID;
         }
 
-        final long price = cmd.price;
-
-        // normally placing regular GTC order
-        final DirectOrder orderRecord = objectsPool.get(ObjectsPool.DIRECT_ORDER, (Supplier<DirectOrder>) DirectOrder::new);
-
         orderRecord.orderId = orderId;
-        orderRecord.price = price;
+        orderRecord.price = cmd.price;
         orderRecord.size = size;
         orderRecord.reserveBidPrice = cmd.reserveBidPrice;
         orderRecord.action = cmd.action;
@@ -127,8 +158,8 @@ public final class OrderBookDirectImpl implements IOrderBook {
         orderRecord.timestamp = cmd.timestamp;
         orderRecord.filled = filledSize;
 
-        orderIdIndex.put(orderId, orderRecord);
         insertOrder(orderRecord, null);
+        linkUserOrder(orderRecord);
 
         return CommandResultCode.SUCCESS;
     }
@@ -202,6 +233,7 @@ public final class OrderBookDirectImpl implements IOrderBook {
 
                 // if completed can remove maker order
                 orderIdIndex.remove(makerOrder.orderId);
+                unlinkUserOrder(makerOrder);
                 objectsPool.put(ObjectsPool.DIRECT_ORDER, makerOrder);
 
             } else {
@@ -324,6 +356,7 @@ public final class OrderBookDirectImpl implements IOrderBook {
             return CommandResultCode.MATCHING_UNKNOWN_ORDER_ID;
         }
         orderIdIndex.remove(cmd.orderId);
+        unlinkUserOrder(order);
         objectsPool.put(ObjectsPool.DIRECT_ORDER, order);
 
         final Bucket freeBucket = removeOrder(order);
@@ -339,6 +372,72 @@ public final class OrderBookDirectImpl implements IOrderBook {
         return CommandResultCode.SUCCESS;
     }
 
+    @Override
+    public int cancelOrders(final long uid, final OrderCommand cmd) {
+        final int symbol = symbolSpec.symbolId;
+        if (userOrdersIndex != null && uid != ApiMassCancel.ALL_USERS) {
+            int cancelled = 0;
+            DirectOrder order = userOrdersIndex.get(uid);
+            while (order != null) {
+                final DirectOrder userNext = order.userNext;
+                removeCancelledOrder(order, cmd, symbol);
+                order = userNext;
+                cancelled++;
+            }
+            return cancelled;
+        } else {
+            // walking through both chains
+            return cancelOrdersInChain(bestAskOrder, uid, cmd, symbol) + cancelOrdersInChain(bestBidOrder, uid, cmd, symbol);
+        }
+    }
+
+    private int cancelOrdersInChain(DirectOrder order, final long uid, final OrderCommand cmd, final int symbol) {
+        int cancelled = 0;
+        while (order != null) {
+            final DirectOrder prev = order.prev; // stays in the chain
+            if (uid == ApiMassCancel.ALL_USERS || order.uid == uid) {
+                removeCancelledOrder(order, cmd, symbol);
+                cancelled++;
+            }
+            order = prev;
+        }
+        return cancelled;
+    }
+
+    private void removeCancelledOrder(final DirectOrder order, final OrderCommand cmd, final int symbol) {
+        orderIdIndex.remove(order.orderId);
+        unlinkUserOrder(order);
+
+        final Bucket freeBucket = removeOrder(order);
+        if (freeBucket != null) {
+            objectsPool.put(ObjectsPool.DIRECT_BUCKET, freeBucket);
+        }
+
+        eventsHelper.sendMassCancelEvent(cmd, order, symbol);
+        objectsPool.put(ObjectsPool.DIRECT_ORDER, order);
+    }
+
+    @Override
+    public boolean hasOrders(final long uid) {
+        if (uid == ApiMassCancel.ALL_USERS) {
+            return bestAskOrder != null || bestBidOrder != null;
+        } else if (userOrdersIndex != null) {
+            return userOrdersIndex.containsKey(uid);
+        } else {
+            return hasOrdersInChain(bestAskOrder, uid) || hasOrdersInChain(bestBidOrder, uid);
+        }
+    }
+
+    private static boolean hasOrdersInChain(DirectOrder order, final long uid) {
+        while (order != null) {
+            if (order.uid == uid) {
+                return true;
+            }
+            order = order.prev;
+        }
+        return false;
+    }
+
     @Override
     public CommandResultCode moveOrder(OrderCommand cmd) {
 
@@ -367,6 +466,7 @@ public final class OrderBookDirectImpl implements IOrderBook {
         if (filled == orderToMove.size) {
             // order was fully matched - removing
             orderIdIndex.remove(cmd.orderId);
+            unlinkUserOrder(orderToMove);
             // returning free object back to the pool
             objectsPool.put(ObjectsPool.DIRECT_ORDER, orderToMove);
             return CommandResultCode.SUCCESS;
@@ -382,6 +482,36 @@ public final class OrderBookDirectImpl implements IOrderBook {
     }
 
 
+    private void linkUserOrder(final DirectOrder order) {
+        if (userOrdersIndex != null) {
+            final DirectOrder head = userOrdersIndex.put(order.uid, order);
+            order.userNext = head;
+            order.userPrev = null;
+            if (head != null) {
+                head.userPrev = order;
+            }
+        }
+    }
+
+    private void unlinkUserOrder(final DirectOrder order) {
+        if (userOrdersIndex != null) {
+            final DirectOrder userNext = order.userNext;
+            final DirectOrder userPrev = order.userPrev;
+            if (userNext != null) {
+                userNext.userPrev = userPrev;
+            }
+            if (userPrev != null) {
+                userPrev.userNext = userNext;
+            } else if (userNext != null) {
+                userOrdersIndex.put(order.uid, userNext);
+            } else {
+                userOrdersIndex.remove(order.uid);
+            }
+            order.userNext = null;
+            order.userPrev = null;
+        }
+    }
+
     private Bucket removeOrder(final DirectOrder order) {
 
         final Bucket bucket = order.parent;
@@ -523,7 +653,7 @@ public final class OrderBookDirectImpl implements IOrderBook {
 
     @Override
     public void validateInternalState() {
-        final Long2ObjectHashMap<DirectOrder> ordersInChain = new Long2ObjectHashMap<>(orderIdIndex.size(Integer.MAX_VALUE), 0.8f);
+        final Long2ObjectHashMap<DirectOrder> ordersInChain = new Long2ObjectHashMap<>(orderIdIndex.size(), 0.8f);
         validateChain(true, ordersInChain);
         validateChain(false, ordersInChain);
 //        log.debug("ordersInChain={}", ordersInChain);
@@ -535,11 +665,32 @@ public final class OrderBookDirectImpl implements IOrderBook {
             if (ordersInChain.remove(k) != v) {
                 thrw("chained orders does not contain orderId=" + k);
             }
-        }, Integer.MAX_VALUE);
+        });
 
         if (ordersInChain.size() != 0) {
             thrw("orderIdIndex does not contain each order from chains");
         }
+
+        if (userOrdersIndex != null) {
+            final MutableInteger userOrdersNum = new MutableInteger();
+            userOrdersIndex.forEachKeyValue((uid, head) -> {
+                if (head.userPrev != null) {
+                    thrw("user orders head has not-null userPrev reference");
+                }
+                for (DirectOrder order = head; order != null; order = order.userNext) {
+                    if (order.uid != uid || orderIdIndex.get(order.orderId) != order) {
+                        thrw("user orders index contains unknown order orderId=" + order.orderId);
+                    }
+                    if (order.userNext != null && order.userNext.userPrev != order) {
+                        thrw("incorrect userPrev reference");
+                    }
+                    userOrdersNum.value++;
+                }
+            });
+            if (userOrdersNum.value != orderIdIndex.size()) {
+                thrw("user orders index does not contain each order");
+            }
+        }
     }
 
     private void validateChain(boolean asksChain, Long2ObjectHashMap<DirectOrder> ordersInChain) {
@@ -661,24 +812,33 @@ public final class OrderBookDirectImpl implements IOrderBook {
     @Override
     public List<Order> findUserOrders(long uid) {
         final List<Order> list = new ArrayList<>();
-        orderIdIndex.forEach((orderId, order) -> {
-            if (order.uid == uid) {
-                list.add(Order.builder()
-                        .orderId(orderId)
-                        .price(order.price)
-                        .size(order.size)
-                        .filled(order.filled)
-                        .reserveBidPrice(order.reserveBidPrice)
-                        .action(order.action)
-                        .uid(order.uid)
-                        .timestamp(order.timestamp)
-                        .build());
+        if (userOrdersIndex != null) {
+            for (DirectOrder order = userOrdersIndex.get(uid); order != null; order = order.userNext) {
+                list.add(toOrder(order));
             }
-        }, Integer.MAX_VALUE);
-
+        } else {
+            orderIdIndex.forEach((orderId, order) -> {
+                if (order.uid == uid) {
+                    list.add(toOrder(order));
+                }
+            });
+        }
         return list;
     }
 
+    private static Order toOrder(final DirectOrder order) {
+        return Order.builder()
+                .orderId(order.orderId)
+                .price(order.price)
+                .size(order.size)
+                .filled(order.filled)
+                .reserveBidPrice(order.reserveBidPrice)
+                .action(order.action)
+                .uid(order.uid)
+                .timestamp(order.timestamp)
+                .build();
+    }
+
     @Override
     public CoreSymbolSpecification getSymbolSpec() {
         return symbolSpec;
@@ -730,7 +890,9 @@ public final class OrderBookDirectImpl implements IOrderBook {
     public void writeMarshallable(BytesOut bytes) {
         bytes.writeByte(getImplementationType().getCode());
         symbolSpec.writeMarshallable(bytes);
-        bytes.writeInt(orderIdIndex.size(Integer.MAX_VALUE));
+        bytes.writeBoolean(userOrdersIndex != null);
+        bytes.writeBoolean(orderIdIndex instanceof OrderIdHashIndex);
+        bytes.writeInt(orderIdIndex.size());
         askOrdersStream(true).forEach(order -> order.writeMarshallable(bytes));
         bidOrdersStream(true).forEach(order -> order.writeMarshallable(bytes));
     }
@@ -777,6 +939,10 @@ public final class OrderBookDirectImpl implements IOrderBook {
         // previous order (to the tail of the queue, lower priority and worst price, towards the matching direction)
         DirectOrder prev;
 
+        // other orders of the same user (only if order book maintains user orders index)
+        DirectOrder userNext;
+        DirectOrder userPrev;
+
 
         // public int userCookie;
 
@@ -92,6 +92,41 @@ public final class OrderBookEventsHelper {
         cmd.matcherEvent = event;
     }
 
+    /**
+     * Cancel event of MASS_CANCEL command, carries cancelled order id, owner, symbol and action
+     * (mass cancel can involve orders of different users, actions and order books)
+     */
+    public void sendMassCancelEvent(final OrderCommand cmd, final IOrder order, final int symbol) {
+        sendCancelEvent(cmd, order);
+        final MatcherTradeEvent event = cmd.matcherEvent;
+        event.matchedOrderId = order.getOrderId();
+        event.matchedOrderUid = order.getUid();
+        event.symbol = symbol;
+        event.action = order.getAction();
+    }
+
+    /**
+     * Move events of the order (keeping their order) to the beginning of command events chain,
+     * setting symbol and action of the order (QUOTE_REPLACE command)
+     */
+    public static void transferEvents(final OrderCommand order, final OrderCommand cmd, final int symbol) {
+        final MatcherTradeEvent head = order.matcherEvent;
+        if (head == null) {
+            return;
+        }
+        MatcherTradeEvent tail = head;
+        while (true) {
+            tail.symbol = symbol;
+            tail.action = order.action;
+            if (tail.nextEvent == null) {
+                break;
+            }
+            tail = tail.nextEvent;
+        }
+        tail.nextEvent = cmd.matcherEvent;
+        cmd.matcherEvent = head;
+        order.matcherEvent = null;
+    }
 
     public void attachRejectEvent(final OrderCommand cmd, final long rejectedSize) {
 
@@ -17,6 +17,7 @@ package exchange.core2.core.orderbook;
 
 import com.google.common.collect.ObjectArrays;
 import exchange.core2.core.common.*;
+import exchange.core2.core.common.api.ApiMassCancel;
 import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommand;
 import exchange.core2.core.processors.ObjectsPool;
@@ -41,10 +42,9 @@ public final class OrderBookFastImpl implements IOrderBook {
 
     private final int hotPricesRange;
 
-    private BitSet hotAskBitSet;
-    private BitSet hotBidBitSet;
-    private final LongObjectHashMap<IOrdersBucket> hotAskBuckets;
-    private final LongObjectHashMap<IOrdersBucket> hotBidBuckets;
+    // rolling bitsets and buckets arrays, index = price - basePrice
+    private final HotPriceBuckets hotAskBuckets;
+    private final HotPriceBuckets hotBidBuckets;
     private long minAskPrice = Long.MAX_VALUE;
     private long maxBidPrice = 0;
 
@@ -61,6 +61,9 @@ public final class OrderBookFastImpl implements IOrderBook {
     // Hashtable for fast (cached) resolving OrderId -> Bucket
     private final LongObjectHashMap<IOrdersBucket> idMapToBucket = new LongObjectHashMap<>();
 
+    // optional index: uid -> most recently placed order of the user (chained through userNext), null if disabled
+    private final LongObjectHashMap<Order> userOrdersIndex;
+
     // Object pools // TODO use objects pool
     private final ArrayDeque<Order> ordersPool = new ArrayDeque<>(16384);
     private final ArrayDeque<IOrdersBucket> bucketsPool = new ArrayDeque<>(16384);
@@ -71,21 +74,30 @@ public final class OrderBookFastImpl implements IOrderBook {
     private final OrderBookEventsHelper eventsHelper;
 
     public OrderBookFastImpl(final int hotPricesRange, final CoreSymbolSpecification symbolSpec, final ObjectsPool objectsPool) {
+        this(hotPricesRange, symbolSpec, objectsPool, false);
+    }
+
+    /**
+     * @param userOrdersIndex - maintain uid->orders index, makes findUserOrders proportional to number of user orders
+     *                        (costs one hash table operation per placed and per removed order)
+     */
+    public OrderBookFastImpl(final int hotPricesRange,
+                             final CoreSymbolSpecification symbolSpec,
+                             final ObjectsPool objectsPool,
+                             final boolean userOrdersIndex) {
         // must be aligned by 64 bit, can not be lower than 1024
         if ((hotPricesRange & 63) != 0 || hotPricesRange < 1024) {
             throw new IllegalArgumentException("invalid hotPricesRange=" + hotPricesRange);
         }
         this.symbolSpec = symbolSpec;
         this.hotPricesRange = hotPricesRange;
-        this.hotAskBitSet = new BitSet(hotPricesRange);
-        this.hotBidBitSet = new BitSet(hotPricesRange);
-        this.hotAskBuckets = new LongObjectHashMap<>();
-        this.hotBidBuckets = new LongObjectHashMap<>();
+        this.hotAskBuckets = new HotPriceBuckets(hotPricesRange);
+        this.hotBidBuckets = new HotPriceBuckets(hotPricesRange);
         this.farAskBuckets = new TreeMap<>();
         this.farBidBuckets = new TreeMap<>(Collections.reverseOrder());
         this.objectsPool = objectsPool;
         this.eventsHelper = new OrderBookEventsHelper(() -> objectsPool.getSharedPool().getChain());
-
+        this.userOrdersIndex = userOrdersIndex ? new LongObjectHashMap<>() : null;
     }
 
     public OrderBookFastImpl(final BytesIn bytes, final ObjectsPool objectsPool) {
@@ -93,12 +105,10 @@ public final class OrderBookFastImpl implements IOrderBook {
         this.symbolSpec = new CoreSymbolSpecification(bytes);
 
         this.hotPricesRange = bytes.readInt();
+        this.userOrdersIndex = bytes.readBoolean() ? new LongObjectHashMap<>() : null;
 
-        this.hotAskBitSet = SerializationUtils.readBitSet(bytes);
-        this.hotBidBitSet = SerializationUtils.readBitSet(bytes);
-
-        this.hotAskBuckets = SerializationUtils.readLongHashMap(bytes, IOrdersBucket::create);
-        this.hotBidBuckets = SerializationUtils.readLongHashMap(bytes, IOrdersBucket::create);
+        final LongObjectHashMap<IOrdersBucket> hotAsks = SerializationUtils.readLongHashMap(bytes, IOrdersBucket::create);
+        final LongObjectHashMap<IOrdersBucket> hotBids = SerializationUtils.readLongHashMap(bytes, IOrdersBucket::create);
 
         this.minAskPrice = bytes.readLong();
         this.maxBidPrice = bytes.readLong();
@@ -107,18 +117,27 @@ public final class OrderBookFastImpl implements IOrderBook {
         this.rebalanceThresholdLow = bytes.readLong();
         this.rebalanceThresholdHigh = bytes.readLong();
 
+        this.hotAskBuckets = new HotPriceBuckets(hotPricesRange);
+        this.hotBidBuckets = new HotPriceBuckets(hotPricesRange);
+        hotAsks.forEachKeyValue((price, bucket) -> this.hotAskBuckets.put(priceToIndex(price), bucket));
+        hotBids.forEachKeyValue((price, bucket) -> this.hotBidBuckets.put(priceToIndex(price), bucket));
+
         this.farAskBuckets = SerializationUtils.readLongMap(bytes, TreeMap::new, IOrdersBucket::create);
         this.farBidBuckets = SerializationUtils.readLongMap(bytes, () -> new TreeMap<>(Collections.reverseOrder()), IOrdersBucket::create);
 
         this.objectsPool = objectsPool;
         this.eventsHelper = new OrderBookEventsHelper(() -> objectsPool.getSharedPool().getChain());
 
-        // reconstruct ordersId-> Bucket cache
+        // reconstruct ordersId-> Bucket cache (and user orders index)
         // TODO check resulting performance
-        hotAskBuckets.forEach(bucket -> bucket.forEachOrder(order -> idMapToBucket.put(order.orderId, bucket)));
-        hotBidBuckets.forEach(bucket -> bucket.forEachOrder(order -> idMapToBucket.put(order.orderId, bucket)));
-        farAskBuckets.values().forEach(bucket -> bucket.forEachOrder(order -> idMapToBucket.put(order.orderId, bucket)));
-        farBidBuckets.values().forEach(bucket -> bucket.forEachOrder(order -> idMapToBucket.put(order.orderId, bucket)));
+        final Consumer<IOrdersBucket> bucketConsumer = bucket -> bucket.forEachOrder(order -> {
+            idMapToBucket.put(order.orderId, bucket);
+            linkUserOrder(order);
+        });
+        hotAskBuckets.forEach(bucketConsumer);
+        hotBidBuckets.forEach(bucketConsumer);
+        farAskBuckets.values().forEach(bucketConsumer);
+        farBidBuckets.values().forEach(bucketConsumer);
 
         //validateInternalState();
     }
@@ -187,6 +206,7 @@ public final class OrderBookFastImpl implements IOrderBook {
         final IOrdersBucket bucket = cmd.action == OrderAction.ASK ? getOrCreateNewBucketAck(price) : getOrCreateNewBucketBid(price);
         bucket.put(orderRecord);
         idMapToBucket.put(orderId, bucket);
+        linkUserOrder(orderRecord);
 
         return CommandResultCode.SUCCESS;
     }
@@ -226,7 +246,7 @@ public final class OrderBookFastImpl implements IOrderBook {
         boolean far = (idx >= hotPricesRange);
 
 //        log.debug("{} idx={} FAR={}", price, idx, far);
-        IOrdersBucket ordersBucket = far ? farAskBuckets.get(price) : hotAskBuckets.get(price);
+        IOrdersBucket ordersBucket = far ? farAskBuckets.get(price) : hotAskBuckets.get(idx);
 
         if (ordersBucket != null) {
             // bucket exists
@@ -245,8 +265,7 @@ public final class OrderBookFastImpl implements IOrderBook {
         if (far) {
             farAskBuckets.put(price, ordersBucket);
         } else {
-            hotAskBuckets.put(price, ordersBucket);
-            hotAskBitSet.set(idx);
+            hotAskBuckets.put(idx, ordersBucket);
         }
 
         return ordersBucket;
@@ -263,7 +282,7 @@ public final class OrderBookFastImpl implements IOrderBook {
         boolean far = idx < 0;
 
 //        log.debug("{} idx={} FAR={}", price, idx, far);
-        IOrdersBucket ordersBucket = far ? farBidBuckets.get(price) : hotBidBuckets.get(price);
+        IOrdersBucket ordersBucket = far ? farBidBuckets.get(price) : hotBidBuckets.get(idx);
         if (ordersBucket != null) {
             // bucket exists
             return ordersBucket;
@@ -281,8 +300,7 @@ public final class OrderBookFastImpl implements IOrderBook {
         if (far) {
             farBidBuckets.put(price, ordersBucket);
         } else {
-            hotBidBuckets.put(price, ordersBucket);
-            hotBidBitSet.set(idx);
+            hotBidBuckets.put(idx, ordersBucket);
         }
         return ordersBucket;
     }
@@ -349,10 +367,41 @@ public final class OrderBookFastImpl implements IOrderBook {
     private void removeFullyMatchedOrder(Order mOrder) {
         // forget if fully matched
         idMapToBucket.remove(mOrder.orderId);
+        unlinkUserOrder(mOrder);
         // saving free object back to pool
         ordersPool.addLast(mOrder);
     }
 
+    private void linkUserOrder(final Order order) {
+        if (userOrdersIndex != null) {
+            final Order head = userOrdersIndex.put(order.uid, order);
+            order.userNext = head;
+            order.userPrev = null;
+            if (head != null) {
+                head.userPrev = order;
+            }
+        }
+    }
+
+    private void unlinkUserOrder(final Order order) {
+        if (userOrdersIndex != null) {
+            final Order userNext = order.userNext;
+            final Order userPrev = order.userPrev;
+            if (userNext != null) {
+                userNext.userPrev = userPrev;
+            }
+            if (userPrev != null) {
+                userPrev.userNext = userNext;
+            } else if (userNext != null) {
+                userOrdersIndex.put(order.uid, userNext);
+            } else {
+                userOrdersIndex.remove(order.uid);
+            }
+            order.userNext = null;
+            order.userPrev = null;
+        }
+    }
+
     /**
      * Searches for next available bucket for matching starting from currentPrice inclusive and till lastPrice inclusive.
      *
@@ -364,12 +413,12 @@ public final class OrderBookFastImpl implements IOrderBook {
         int idx = priceToIndex(currentPrice);
         // normally searching within hot buckets
         if (idx < hotPricesRange) {
-            int nextIdx = hotAskBitSet.nextSetBit(idx);
+            int nextIdx = hotAskBuckets.nextIndex(idx);
             // log.debug("A next {} for currentPrice={} lastPrice={}", next, currentPrice, lastPrice);
             if (nextIdx != -1) {
                 // found a bucket, but if limit is reached - no need to check far orders, just return null
                 long nextPrice = nextIdx + basePrice;
-                return nextPrice <= lastPrice ? hotAskBuckets.get(nextPrice) : null;
+                return nextPrice <= lastPrice ? hotAskBuckets.get(nextIdx) : null;
             }
         }
 
@@ -390,12 +439,12 @@ public final class OrderBookFastImpl implements IOrderBook {
         int idx = priceToIndex(currentPrice);
         // normally searching within hot buckets
         if (idx >= 0) {
-            int nextIdx = hotBidBitSet.previousSetBit(idx);
+            int nextIdx = hotBidBuckets.previousIndex(idx);
             // log.debug("B next {} for currentPrice={} lastPrice={}", next, currentPrice, lastPrice);
             if (nextIdx >= 0) {
                 // found a bucket, but if limit is reached - no need to check far orders, just return null
                 long nextPrice = nextIdx + basePrice;
-                return (nextPrice >= lastPrice) ? hotBidBuckets.get(nextPrice) : null;
+                return (nextPrice >= lastPrice) ? hotBidBuckets.get(nextIdx) : null;
             }
         }
 
@@ -433,6 +482,7 @@ public final class OrderBookFastImpl implements IOrderBook {
 
         // remove from map
         idMapToBucket.remove(cmd.orderId);
+        unlinkUserOrder(removedOrder);
 
         // remove bucket if cancelled order was the last one in the bucket
         if (ordersBucket.getTotalVolume() == 0) {
@@ -452,6 +502,52 @@ public final class OrderBookFastImpl implements IOrderBook {
     }
 
 
+    @Override
+    public int cancelOrders(final long uid, final OrderCommand cmd) {
+        final int symbol = symbolSpec.symbolId;
+        if (userOrdersIndex != null && uid != ApiMassCancel.ALL_USERS) {
+            int cancelled = 0;
+            Order order = userOrdersIndex.get(uid);
+            while (order != null) {
+                final Order userNext = order.userNext;
+                removeCancelledOrder(order, cmd, symbol);
+                order = userNext;
+                cancelled++;
+            }
+            return cancelled;
+        } else {
+            // collecting orders first, because buckets can not be modified while iterating
+            final List<Order> orders = collectOrders(uid);
+            orders.forEach(order -> removeCancelledOrder(order, cmd, symbol));
+            return orders.size();
+        }
+    }
+
+    private void removeCancelledOrder(final Order order, final OrderCommand cmd, final int symbol) {
+        final IOrdersBucket bucket = idMapToBucket.remove(order.orderId);
+        bucket.remove(order.orderId, order.uid);
+        unlinkUserOrder(order);
+
+        // remove bucket if cancelled order was the last one in the bucket
+        if (bucket.getTotalVolume() == 0) {
+            removeBucket(order.action, bucket.getPrice());
+        }
+
+        eventsHelper.sendMassCancelEvent(cmd, order, symbol);
+        ordersPool.addLast(order);
+    }
+
+    @Override
+    public boolean hasOrders(final long uid) {
+        if (uid == ApiMassCancel.ALL_USERS) {
+            return minAskPrice != Long.MAX_VALUE || maxBidPrice != 0;
+        } else if (userOrdersIndex != null) {
+            return userOrdersIndex.containsKey(uid);
+        } else {
+            return IOrderBook.super.hasOrders(uid);
+        }
+    }
+
     /**
      * Move an order to different price
      * <p>
@@ -511,6 +607,7 @@ public final class OrderBookFastImpl implements IOrderBook {
         if (filled == order.size) {
             // order was fully matched (100% marketable) - removing from order book
             idMapToBucket.remove(orderId);
+            unlinkUserOrder(order);
             // saving free object back to pool
             ordersPool.addLast(order);
         } else {
@@ -546,8 +643,7 @@ public final class OrderBookFastImpl implements IOrderBook {
 
         if (idx < hotPricesRange) {
             // in hot area
-            hotAskBitSet.clear(idx);
-            bucketsPool.addLast(hotAskBuckets.remove(price));
+            bucketsPool.addLast(hotAskBuckets.remove(idx));
         } else {
             // in far area
             bucketsPool.addLast(farAskBuckets.remove(price));
@@ -564,7 +660,7 @@ public final class OrderBookFastImpl implements IOrderBook {
     }
 
     private boolean updateMinAskPriceHot(int idx) {
-        int nextIdx = hotAskBitSet.nextSetBit(idx);
+        int nextIdx = hotAskBuckets.nextIndex(idx);
         if (nextIdx == -1) {
             // not found, have to also check far area
             return true;
@@ -585,8 +681,7 @@ public final class OrderBookFastImpl implements IOrderBook {
 
         if (idx >= 0) {
             // in hot area
-            hotBidBitSet.clear(idx);
-            bucketsPool.addLast(hotBidBuckets.remove(price));
+            bucketsPool.addLast(hotBidBuckets.remove(idx));
         } else {
             // in far area
             bucketsPool.addLast(farBidBuckets.remove(price));
@@ -606,7 +701,7 @@ public final class OrderBookFastImpl implements IOrderBook {
     }
 
     private boolean updateMaxBidPriceHot(int idx) {
-        int nextIdx = hotBidBitSet.previousSetBit(idx);
+        int nextIdx = hotBidBuckets.previousIndex(idx);
         if (nextIdx == -1) {
             // not found, have to also check far area
             return true;
@@ -623,7 +718,7 @@ public final class OrderBookFastImpl implements IOrderBook {
     }
 
     /**
-     * Re-balances HOT/FAR parts (bitsets and hashtables)
+     * Re-balances HOT/FAR parts (rolling bitsets and buckets arrays)
      * Triggered when BBO price moved significantly from the center price
      * <p>
      * price going up: asks FAR -> HOT, bids HOT -> FAR
@@ -634,34 +729,34 @@ public final class OrderBookFastImpl implements IOrderBook {
         int shift = (int) (basePrice - newBasePrice);
         //log.debug("decrease base price {}->{}", basePrice, newBasePrice);
         if (maxBidPrice != 0) {
-            // shift hot bids bitset (base price lower -> index is higher for the same price)
-            hotBidBitSet = shiftBitSetUp(hotBidBitSet, shift);
+            // shift hot bids window (base price lower -> index is higher for the same price)
+            hotBidBuckets.shiftUp(shift);
 
             // BID buckets from the FAR section need to be moved to the HOT section where price >= newBasePrice
             NavigableMap<Long, IOrdersBucket> toHotBuckets = farBidBuckets.headMap(newBasePrice, true);
 
             //log.debug("toHotBuckets={}", toHotBuckets);
-            moveBucketsToHot(toHotBuckets, hotBidBuckets, hotBidBitSet, newBasePrice);
+            moveBucketsToHot(toHotBuckets, hotBidBuckets, newBasePrice);
         }
 
         if (minAskPrice != Long.MAX_VALUE) {
             // evicting ASK buckets from the HOT section into the FAR section where price >= newBasePrice + hotPricesRange
             int next = Math.max(hotPricesRange - shift, 0);
-            while ((next = hotAskBitSet.nextSetBit(next)) != -1) {
-                IOrdersBucket bucket = hotAskBuckets.remove(indexToPrice(next));
+            while ((next = hotAskBuckets.nextIndex(next)) != -1) {
+                IOrdersBucket bucket = hotAskBuckets.remove(next);
                 farAskBuckets.put(bucket.getPrice(), bucket);
                 next++;
             }
 
-            // shift up and clear asks BitSet
-            hotAskBitSet = shiftBitSetUp(hotAskBitSet, shift);
+            // shift up asks window
+            hotAskBuckets.shiftUp(shift);
         }
 
         setBasePrice(newBasePrice);
     }
 
     /**
-     * Re-balances HOT/FAR parts (bitsets and hashtables)
+     * Re-balances HOT/FAR parts (rolling bitsets and buckets arrays)
      * Triggered when BBO price moved significantly from the center price
      * <p>
      * price going down: asks HOT -> FAR, bids FAR -> HOT
@@ -672,72 +767,47 @@ public final class OrderBookFastImpl implements IOrderBook {
         int shift = (int) (newBasePrice - basePrice);
 //        log.debug("increase base price {}->{}", basePrice, newBasePrice);
         if (minAskPrice != Long.MAX_VALUE) {
-            // shift hot asks bitset
-            hotAskBitSet = shiftBitSetDown(hotAskBitSet, shift);
+            // shift hot asks window
+            hotAskBuckets.shiftDown(shift);
 
             // moving ASK buckets from the FAR section to the HOT section where price < newBasePrice + hotPricesRange
             NavigableMap<Long, IOrdersBucket> toHotBuckets = farAskBuckets.headMap(newBasePrice + hotPricesRange, false);
-            moveBucketsToHot(toHotBuckets, hotAskBuckets, hotAskBitSet, newBasePrice);
+            moveBucketsToHot(toHotBuckets, hotAskBuckets, newBasePrice);
         }
 
         if (maxBidPrice != 0) {
             // evicting BID buckets from the HOT section into the FAR section where price < newBasePrice
             int next = priceToIndex(newBasePrice - 1); // newBasePrice is left in the hot (will have index 0), therefore -1
-            while ((next = hotBidBitSet.previousSetBit(next)) != -1) {
-                IOrdersBucket bucket = hotBidBuckets.remove(indexToPrice(next));
+            while ((next = hotBidBuckets.previousIndex(next)) != -1) {
+                IOrdersBucket bucket = hotBidBuckets.remove(next);
 //                log.debug("Evicting bucket to FAR: {}", bucket.getPrice());
                 farBidBuckets.put(bucket.getPrice(), bucket);
                 next--;
             }
 
-            // shift down and clear bids BitSet
-            hotBidBitSet = shiftBitSetDown(hotBidBitSet, shift);
+            // shift down bids window
+            hotBidBuckets.shiftDown(shift);
         }
 
         setBasePrice(newBasePrice);
     }
 
-    // TODO slow - implement rolling bitset (extending BitSet)
-    private BitSet shiftBitSetDown(BitSet bitSet, int shift) {
-        int shiftLongs = shift >> 6;
-        long[] src = bitSet.toLongArray();
-        long[] dst = new long[hotPricesRange >> 6];
-        int lengthCopy = src.length - shiftLongs;
-        if (lengthCopy > 0) {
-            System.arraycopy(src, shiftLongs, dst, 0, lengthCopy);
-        }
-        return BitSet.valueOf(dst);
-    }
-
-    private BitSet shiftBitSetUp(BitSet bitSet, int shift) {
-        int shiftLongs = shift >> 6;
-        long[] src = bitSet.toLongArray();
-        long[] dst = new long[hotPricesRange >> 6];
-        int lengthCopy = Math.min(src.length, dst.length - shiftLongs);
-        if (lengthCopy > 0) {
-            System.arraycopy(src, 0, dst, shiftLongs, lengthCopy);
-        }
-        return BitSet.valueOf(dst);
-    }
-
     /**
-     * Moves buckets from FAR subtree into HOT hashmap and update bitset according the new base price
+     * Moves buckets from FAR subtree into HOT section according the new base price
      *
      * @param fromFar
      * @param toHot
-     * @param newBitSet
      * @param newBasePrice
      */
-    private void moveBucketsToHot(SortedMap<Long, IOrdersBucket> fromFar, LongObjectHashMap<IOrdersBucket> toHot, BitSet newBitSet, long newBasePrice) {
+    private void moveBucketsToHot(SortedMap<Long, IOrdersBucket> fromFar, HotPriceBuckets toHot, long newBasePrice) {
         Iterator<IOrdersBucket> iterator = fromFar.values().iterator();
         while (iterator.hasNext()) {
             IOrdersBucket next = iterator.next();
             iterator.remove();
             long price = next.getPrice();
-            toHot.put(price, next);
             int idx = (int) (price - newBasePrice);
             //log.debug("move to hot:{}  idx-set:{}", price, idx);
-            newBitSet.set(idx);
+            toHot.put(idx, next);
         }
     }
 
@@ -765,8 +835,8 @@ public final class OrderBookFastImpl implements IOrderBook {
         // scan hot section only if there are buckets in it
         if (minAskPrice < basePrice + hotPricesRange) {
             int next = priceToIndex(minAskPrice);
-            while ((next = hotAskBitSet.nextSetBit(next)) != -1) {
-                IOrdersBucket bucket = hotAskBuckets.get(indexToPrice(next));
+            while ((next = hotAskBuckets.nextIndex(next)) != -1) {
+                IOrdersBucket bucket = hotAskBuckets.get(next);
                 data.askPrices[i] = bucket.getPrice();
                 data.askVolumes[i] = bucket.getTotalVolume();
                 data.askOrders[i] = bucket.getNumOrders();
@@ -806,8 +876,8 @@ public final class OrderBookFastImpl implements IOrderBook {
         // scan hot section only if there are buckets in it
         if (maxBidPrice >= basePrice) {
             int next = priceToIndex(maxBidPrice);
-            while ((next = hotBidBitSet.previousSetBit(next)) != -1) {
-                IOrdersBucket bucket = hotBidBuckets.get(indexToPrice(next));
+            while ((next = hotBidBuckets.previousIndex(next)) != -1) {
+                IOrdersBucket bucket = hotBidBuckets.get(next);
                 data.bidPrices[i] = bucket.getPrice();
                 data.bidVolumes[i] = bucket.getTotalVolume();
                 data.bidOrders[i] = bucket.getNumOrders();
@@ -849,45 +919,30 @@ public final class OrderBookFastImpl implements IOrderBook {
     public void validateInternalState() {
 
         // check price in the bucket is the same as map key
-        hotAskBuckets.forEachKeyValue(this::checkBucketPriceIsTheSame);
-        hotBidBuckets.forEachKeyValue(this::checkBucketPriceIsTheSame);
+        checkHotBucketsPrices(hotAskBuckets);
+        checkHotBucketsPrices(hotBidBuckets);
         farAskBuckets.forEach(this::checkBucketPriceIsTheSame);
         farBidBuckets.forEach(this::checkBucketPriceIsTheSame);
 
         // check there are not same orders in the hot and far areas
-        Set<Long> ordersIdsBH = dumpAllOrdersIds(hotBidBuckets.values());
+        Set<Long> ordersIdsBH = dumpAllOrdersIds(hotBidBuckets.toList());
         Set<Long> ordersIdsBF = dumpAllOrdersIds(farBidBuckets.values());
         checkNoSameOrdersInHotAndFar(ordersIdsBH, ordersIdsBF);
 
-        Set<Long> ordersIdsAH = dumpAllOrdersIds(hotAskBuckets.values());
+        Set<Long> ordersIdsAH = dumpAllOrdersIds(hotAskBuckets.toList());
         Set<Long> ordersIdsAF = dumpAllOrdersIds(farAskBuckets.values());
         checkNoSameOrdersInHotAndFar(ordersIdsAH, ordersIdsAF);
 
-        // check that hot bit sets are matching to corresponding hot bucket keys
-        if (!Arrays.equals(hotAskBitSet.stream().mapToLong(x -> x + basePrice).toArray(), hotAskBuckets.keySet().toSortedArray())) {
-            throw new IllegalStateException("ASK HOT buckets bit set differs from map!");
-        }
-        if (!Arrays.equals(hotBidBitSet.stream().mapToLong(x -> x + basePrice).toArray(), hotBidBuckets.keySet().toSortedArray())) {
-            throw new IllegalStateException("BID HOT buckets bit set differs from map!");
-        }
+        // check that hot bit sets are matching to corresponding hot buckets (prices are within range by construction)
+        hotAskBuckets.validate();
+        hotBidBuckets.validate();
 
-        // check buckets within ranges
-        if (!hotAskBuckets.isEmpty()) {
-            if (hotAskBuckets.keySet().max() >= basePrice + hotPricesRange) {
-                throw new IllegalStateException("Hot ask bucket price exceeds the hotPricesRange range!");
-            }
-            if (hotAskBuckets.keySet().min() != minAskPrice) {
-                throw new IllegalStateException("incorrect minAskPrice! (expected inside hot area)");
-            }
+        if (!hotAskBuckets.isEmpty() && indexToPrice(hotAskBuckets.nextIndex(0)) != minAskPrice) {
+            throw new IllegalStateException("incorrect minAskPrice! (expected inside hot area)");
         }
 
-        if (!hotBidBuckets.isEmpty()) {
-            if (hotBidBuckets.keySet().min() < basePrice) {
-                throw new IllegalStateException("Hot bid bucket price is below the basePrice range!");
-            }
-            if (hotBidBuckets.keySet().max() != maxBidPrice) {
-                throw new IllegalStateException("incorrect maxBidPrice! (expected inside hot area)");
-            }
+        if (!hotBidBuckets.isEmpty() && indexToPrice(hotBidBuckets.previousIndex(hotPricesRange - 1)) != maxBidPrice) {
+            throw new IllegalStateException("incorrect maxBidPrice! (expected inside hot area)");
         }
 
         if (!farAskBuckets.isEmpty()) {
@@ -916,8 +971,8 @@ public final class OrderBookFastImpl implements IOrderBook {
         }
 
         // check known orders number is the same as total orders in all buckets TODO compare explicitly
-        int ah = hotAskBuckets.stream().mapToInt(IOrdersBucket::getNumOrders).sum();
-        int bh = hotBidBuckets.stream().mapToInt(IOrdersBucket::getNumOrders).sum();
+        int ah = hotAskBuckets.toList().stream().mapToInt(IOrdersBucket::getNumOrders).sum();
+        int bh = hotBidBuckets.toList().stream().mapToInt(IOrdersBucket::getNumOrders).sum();
         int af = farAskBuckets.values().stream().mapToInt(IOrdersBucket::getNumOrders).sum();
         int bf = farBidBuckets.values().stream().mapToInt(IOrdersBucket::getNumOrders).sum();
         if (idMapToBucket.size() != af + ah + bf + bh) {
@@ -928,8 +983,29 @@ public final class OrderBookFastImpl implements IOrderBook {
         }
 
         // validateInternalState each bucket
-        hotAskBuckets.stream().forEach(IOrdersBucket::validate);
-        hotBidBuckets.stream().forEach(IOrdersBucket::validate);
+        hotAskBuckets.forEach(IOrdersBucket::validate);
+        hotBidBuckets.forEach(IOrdersBucket::validate);
+
+        if (userOrdersIndex != null) {
+            final int[] userOrdersNum = {0};
+            userOrdersIndex.forEachKeyValue((uid, head) -> {
+                if (head.userPrev != null) {
+                    throw new IllegalStateException("user orders head has not-null userPrev reference");
+                }
+                for (Order order = head; order != null; order = order.userNext) {
+                    if (order.uid != uid || getOrderById(order.orderId) != order) {
+                        throw new IllegalStateException("user orders index contains unknown order orderId=" + order.orderId);
+                    }
+                    if (order.userNext != null && order.userNext.userPrev != order) {
+                        throw new IllegalStateException("incorrect userPrev reference");
+                    }
+                    userOrdersNum[0]++;
+                }
+            });
+            if (userOrdersNum[0] != idMapToBucket.size()) {
+                throw new IllegalStateException("user orders index does not contain each order");
+            }
+        }
 
         // TODO validateInternalState - orderid maps
     }
@@ -942,13 +1018,24 @@ public final class OrderBookFastImpl implements IOrderBook {
     @Override
     public List<Order> findUserOrders(final long uid) {
         List<Order> list = new ArrayList<>();
-        Consumer<IOrdersBucket> bucketConsumer = bucket -> bucket.forEachOrder(order -> {
-            if (order.uid == uid) {
+        if (userOrdersIndex != null) {
+            for (Order order = userOrdersIndex.get(uid); order != null; order = order.userNext) {
+                list.add(order);
+            }
+            return list;
+        }
+        return collectOrders(uid);
+    }
+
+    private List<Order> collectOrders(final long uid) {
+        final List<Order> list = new ArrayList<>();
+        final Consumer<IOrdersBucket> bucketConsumer = bucket -> bucket.forEachOrder(order -> {
+            if (uid == ApiMassCancel.ALL_USERS || order.uid == uid) {
                 list.add(order);
             }
         });
-        hotAskBuckets.stream().forEach(bucketConsumer);
-        hotBidBuckets.stream().forEach(bucketConsumer);
+        hotAskBuckets.forEach(bucketConsumer);
+        hotBidBuckets.forEach(bucketConsumer);
         farAskBuckets.values().forEach(bucketConsumer);
         farBidBuckets.values().forEach(bucketConsumer);
         return list;
@@ -963,6 +1050,12 @@ public final class OrderBookFastImpl implements IOrderBook {
         }
     }
 
+    private void checkHotBucketsPrices(HotPriceBuckets hotBuckets) {
+        for (int idx = hotBuckets.nextIndex(0); idx != -1; idx = hotBuckets.nextIndex(idx + 1)) {
+            checkBucketPriceIsTheSame(indexToPrice(idx), hotBuckets.get(idx));
+        }
+    }
+
     private void checkBucketPriceIsTheSame(long p, IOrdersBucket b) {
         if (p != b.getPrice()) {
             throw new IllegalStateException(String.format("Bucket price %d not the same as map key %d", b.getPrice(), p));
@@ -996,17 +1089,18 @@ public final class OrderBookFastImpl implements IOrderBook {
 
     @Override
     public Stream<IOrder> askOrdersStream(final boolean sorted) {
-        // TODO sorted version is slow
-        final Stream<IOrdersBucket> hotStream = sorted ? hotAskBuckets.toSortedList().stream() : hotAskBuckets.stream();
-        return Stream.concat(hotStream, farAskBuckets.values().stream())
+        // hot buckets are always sorted
+        return Stream.concat(hotAskBuckets.toList().stream(), farAskBuckets.values().stream())
                 .flatMap(bucket -> bucket.getAllOrders().stream());
     }
 
     @Override
     public Stream<IOrder> bidOrdersStream(final boolean sorted) {
-        // TODO sorted version is slow
-        final Stream<IOrdersBucket> hotStream = sorted ? hotBidBuckets.toSortedList().reverseThis().stream() : hotBidBuckets.stream();
-        return Stream.concat(hotStream, farBidBuckets.values().stream())
+        final List<IOrdersBucket> hotBids = hotBidBuckets.toList();
+        if (sorted) {
+            Collections.reverse(hotBids);
+        }
+        return Stream.concat(hotBids.stream(), farBidBuckets.values().stream())
                 .flatMap(bucket -> bucket.getAllOrders().stream());
     }
 
@@ -1015,11 +1109,11 @@ public final class OrderBookFastImpl implements IOrderBook {
     @Override
     public int getOrdersNum(OrderAction action) {
         if (action == OrderAction.ASK) {
-            int ah = hotAskBuckets.values().stream().mapToInt(IOrdersBucket::getNumOrders).sum();
+            int ah = hotAskBuckets.toList().stream().mapToInt(IOrdersBucket::getNumOrders).sum();
             int af = farAskBuckets.values().stream().mapToInt(IOrdersBucket::getNumOrders).sum();
             return ah + af;
         } else {
-            int bh = hotBidBuckets.values().stream().mapToInt(IOrdersBucket::getNumOrders).sum();
+            int bh = hotBidBuckets.toList().stream().mapToInt(IOrdersBucket::getNumOrders).sum();
             int bf = farBidBuckets.values().stream().mapToInt(IOrdersBucket::getNumOrders).sum();
             return bh + bf;
         }
@@ -1028,11 +1122,11 @@ public final class OrderBookFastImpl implements IOrderBook {
     @Override
     public long getTotalOrdersVolume(OrderAction action) {
         if (action == OrderAction.ASK) {
-            long ah = hotAskBuckets.values().stream().mapToLong(IOrdersBucket::getTotalVolume).sum();
+            long ah = hotAskBuckets.toList().stream().mapToLong(IOrdersBucket::getTotalVolume).sum();
             long af = farAskBuckets.values().stream().mapToLong(IOrdersBucket::getTotalVolume).sum();
             return ah + af;
         } else {
-            long bh = hotBidBuckets.values().stream().mapToLong(IOrdersBucket::getTotalVolume).sum();
+            long bh = hotBidBuckets.toList().stream().mapToLong(IOrdersBucket::getTotalVolume).sum();
             long bf = farBidBuckets.values().stream().mapToLong(IOrdersBucket::getTotalVolume).sum();
             return bh + bf;
         }
@@ -1040,14 +1134,14 @@ public final class OrderBookFastImpl implements IOrderBook {
 
     private IOrdersBucket[] getBidsAsArray() {
         final IOrdersBucket[] farBids = farBidBuckets.values().toArray(new IOrdersBucket[0]);
-        final IOrdersBucket[] hotBids = hotBidBuckets.toSortedMap(k -> k, v -> v).values().toArray(new IOrdersBucket[hotBidBuckets.size()]);
+        final IOrdersBucket[] hotBids = hotBidBuckets.toList().toArray(new IOrdersBucket[0]);
         ArrayUtils.reverse(hotBids);
         return ObjectArrays.concat(hotBids, farBids, IOrdersBucket.class);
     }
 
     private IOrdersBucket[] getAsksAsArray() {
         final IOrdersBucket[] farAsks = farAskBuckets.values().toArray(new IOrdersBucket[0]);
-        final IOrdersBucket[] hotAsks = hotAskBuckets.toSortedMap(k -> k, v -> v).values().toArray(new IOrdersBucket[hotAskBuckets.size()]);
+        final IOrdersBucket[] hotAsks = hotAskBuckets.toList().toArray(new IOrdersBucket[0]);
         return ObjectArrays.concat(hotAsks, farAsks, IOrdersBucket.class);
     }
 
@@ -1056,12 +1150,10 @@ public final class OrderBookFastImpl implements IOrderBook {
         bytes.writeByte(getImplementationType().getCode());
         symbolSpec.writeMarshallable(bytes);
         bytes.writeInt(hotPricesRange);
+        bytes.writeBoolean(userOrdersIndex != null);
 
-        SerializationUtils.marshallBitSet(hotAskBitSet, bytes);
-        SerializationUtils.marshallBitSet(hotBidBitSet, bytes);
-
-        SerializationUtils.marshallLongHashMap(hotAskBuckets, bytes);
-        SerializationUtils.marshallLongHashMap(hotBidBuckets, bytes);
+        SerializationUtils.marshallLongHashMap(hotAskBuckets.toPriceMap(basePrice), bytes);
+        SerializationUtils.marshallLongHashMap(hotBidBuckets.toPriceMap(basePrice), bytes);
 
         bytes.writeLong(minAskPrice);
         bytes.writeLong(maxBidPrice);
@@ -16,6 +16,7 @@
 package exchange.core2.core.orderbook;
 
 import exchange.core2.core.common.*;
+import exchange.core2.core.common.api.ApiMassCancel;
 import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommand;
 import exchange.core2.core.utils.SerializationUtils;
@@ -205,7 +206,19 @@ public final class OrderBookNaiveImpl implements IOrderBook {
         }
 
         // now can remove it
-        idMap.remove(orderId);
+        removeOrder(order);
+
+        // send cancel event
+        eventsHelper.sendCancelEvent(cmd, order);
+
+        // fill action fields (for events handling)
+        cmd.action = order.getAction();
+
+        return CommandResultCode.SUCCESS;
+    }
+
+    private void removeOrder(final Order order) {
+        idMap.remove(order.orderId);
 
         NavigableMap<Long, IOrdersBucket> buckets = getBucketsByAction(order.action);
         long price = order.price;
@@ -216,18 +229,20 @@ public final class OrderBookNaiveImpl implements IOrderBook {
         }
 
         // remove order and whole bucket if its empty
-        ordersBucket.remove(orderId, cmd.uid);
+        ordersBucket.remove(order.orderId, order.uid);
         if (ordersBucket.getTotalVolume() == 0) {
             buckets.remove(price);
         }
+    }
 
-        // send cancel event
-        eventsHelper.sendCancelEvent(cmd, order);
-
-        // fill action fields (for events handling)
-        cmd.action = order.getAction();
-
-        return CommandResultCode.SUCCESS;
+    @Override
+    public int cancelOrders(final long uid, final OrderCommand cmd) {
+        final List<Order> orders = uid == ApiMassCancel.ALL_USERS ? new ArrayList<>(idMap.values()) : findUserOrders(uid);
+        orders.forEach(order -> {
+            removeOrder(order);
+            eventsHelper.sendMassCancelEvent(cmd, order, symbolSpec.symbolId);
+        });
+        return orders.size();
     }
 
     @Override
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import exchange.core2.core.art.LongObjConsumer;
+
+/**
+ * Open-addressing order id index: linear probing over parallel keys/values arrays,
+ * Fibonacci hashing (sequential ids are spread evenly; high half is folded in first, so ids built as
+ * (prefix &lt;&lt; 32) + counter do not cluster), backward shift deletion (no tombstones).
+ * <p>
+ * putIfAbsent checks duplicate and inserts in a single probe sequence. Capacity is doubled when load factor exceeds 0.5,
+ * never shrinks (order book size is fluctuating).
+ * <p>
+ * Null values are not supported (free slot marker). Not thread safe.
+ */
+public final class OrderIdHashIndex<V> implements IOrderIdIndex<V> {
+
+    private static final long FIBONACCI_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private long[] keys;
+    private Object[] values;
+
+    private int mask;
+    private int shift;
+    private int resizeThreshold;
+
+    private int size = 0;
+
+    public OrderIdHashIndex(final int initialCapacity) {
+        allocate(Integer.highestOneBit(Math.max(8, initialCapacity) * 2 - 1) * 2);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final long orderId) {
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        int idx = slot(orderId);
+        Object value;
+        while ((value = values[idx]) != null) {
+            if (keys[idx] == orderId) {
+                return (V) value;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(final long orderId, final V order) {
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        int idx = slot(orderId);
+        Object value;
+        while ((value = values[idx]) != null) {
+            if (keys[idx] == orderId) {
+                return (V) value;
+            }
+            idx = (idx + 1) & mask;
+        }
+
+        keys[idx] = orderId;
+        values[idx] = order;
+        if (++size > resizeThreshold) {
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    @Override
+    public void remove(final long orderId) {
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        int idx = slot(orderId);
+        while (values[idx] != null) {
+            if (keys[idx] == orderId) {
+                removeAt(idx);
+                return;
+            }
+            idx = (idx + 1) & mask;
+        }
+    }
+
+    private void removeAt(int free) {
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+
+        // shifting back following entries of the cluster, if free slot is between their home slot and current slot
+        int idx = (free + 1) & mask;
+        while (values[idx] != null) {
+            final int home = slot(keys[idx]);
+            if (((idx - home) & mask) >= ((idx - free) & mask)) {
+                keys[free] = keys[idx];
+                values[free] = values[idx];
+                free = idx;
+            }
+            idx = (idx + 1) & mask;
+        }
+        values[free] = null;
+        size--;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(final LongObjConsumer<V> consumer) {
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        for (int i = 0; i < values.length; i++) {
+            final Object value = values[i];
+            if (value != null) {
+                consumer.accept(keys[i], (V) value);
+            }
+        }
+    }
+
+    int capacity() {
+        return keys.length;
+    }
+
+    private int slot(final long orderId) {
+        return (int) (((orderId ^ (orderId >>> 32)) * FIBONACCI_MULTIPLIER) >>> shift);
+    }
+
+    private void rehash(final int newCapacity) {
+        final long[] oldKeys = this.keys;
+        final Object[] oldValues = this.values;
+        allocate(newCapacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            final Object value = oldValues[i];
+            if (value != null) {
+                int idx = slot(oldKeys[i]);
+                while (values[idx] != null) {
+                    idx = (idx + 1) & mask;
+                }
+                keys[idx] = oldKeys[i];
+                values[idx] = value;
+            }
+        }
+    }
+
+    private void allocate(final int capacity) {
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+        this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        this.resizeThreshold = capacity / 2;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.processors.journalling.ISerializationProcessor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes {@link CopyOnWriteSnapshot} in background thread (one per engine shard).
+ * All methods except constructor are called by engine (owner) thread.
+ * Only one snapshot can be in progress, new snapshot request waits until previous one is written.
+ * Outcome of recent snapshots can be queried from any thread using {@link #getResult(long)}.
+ */
+@Slf4j
+public final class AsyncSnapshotProcessor {
+
+    private final ISerializationProcessor serializationProcessor;
+    private final ExecutorService executor;
+
+    private static final int RESULTS_HISTORY_SIZE = 64;
+
+    private CopyOnWriteSnapshot activeSnapshot = null;
+    private CompletableFuture<Boolean> activeFuture = null;
+
+    // snapshotId -> write outcome, last RESULTS_HISTORY_SIZE snapshots (accessed by any thread)
+    private final Map<Long, CompletableFuture<Boolean>> results = new LinkedHashMap<Long, CompletableFuture<Boolean>>() {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, CompletableFuture<Boolean>> eldest) {
+            return size() > RESULTS_HISTORY_SIZE;
+        }
+    };
+
+    public AsyncSnapshotProcessor(final ISerializationProcessor serializationProcessor, final String name) {
+        this.serializationProcessor = serializationProcessor;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "snapshot-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start writing snapshot in background
+     *
+     * @param snapshotId - snapshot id
+     * @param type       - module type
+     * @param instanceId - shard id
+     * @param snapshot   - prepared snapshot (header, record references, trailer)
+     */
+    public void start(final long snapshotId,
+                      final ISerializationProcessor.SerializedModuleType type,
+                      final int instanceId,
+                      final CopyOnWriteSnapshot snapshot) {
+
+        awaitCompletion();
+
+        activeSnapshot = snapshot;
+        activeFuture = CompletableFuture.supplyAsync(() -> {
+            final long t = System.currentTimeMillis();
+            try {
+                final boolean isSuccess = serializationProcessor.storeData(snapshotId, type, instanceId, snapshot);
+                if (isSuccess) {
+                    log.debug("Snapshot {} {}:{} written in {}ms", snapshotId, type, instanceId, System.currentTimeMillis() - t);
+                } else {
+                    log.error("Failed to write snapshot {} {}:{}", snapshotId, type, instanceId);
+                }
+                return isSuccess;
+            } catch (final Exception ex) {
+                log.error("Failed to write snapshot {} {}:{}", snapshotId, type, instanceId, ex);
+                return false;
+            } finally {
+                snapshot.markCompleted();
+            }
+        }, executor);
+
+        synchronized (results) {
+            results.put(snapshotId, activeFuture);
+        }
+    }
+
+    /**
+     * Can be called by any thread
+     *
+     * @param snapshotId - snapshot id
+     * @return future completed with true when snapshot is written, false if write failed; null if snapshot is unknown (not started or too old)
+     */
+    public CompletableFuture<Boolean> getResult(final long snapshotId) {
+        synchronized (results) {
+            return results.get(snapshotId);
+        }
+    }
+
+    /**
+     * Must be called before modifying or removing record
+     *
+     * @param key - symbol id or uid
+     */
+    public void beforeUpdate(final long key) {
+        final CopyOnWriteSnapshot snapshot = activeSnapshot;
+        if (snapshot != null) {
+            if (snapshot.isCompleted()) {
+                activeSnapshot = null;
+            } else {
+                snapshot.beforeUpdate(key);
+            }
+        }
+    }
+
+    /**
+     * Complete active snapshot (if any) - remaining records are copied by owner thread
+     *
+     * @return false if last snapshot was not written
+     */
+    public boolean awaitCompletion() {
+        if (activeFuture == null) {
+            return true;
+        }
+        if (activeSnapshot != null && !activeSnapshot.isCompleted()) {
+            activeSnapshot.copyAll();
+        }
+        final boolean isSuccess = activeFuture.join();
+        activeSnapshot = null;
+        activeFuture = null;
+        return isSuccess;
+    }
+
+    /**
+     * Called after engine thread is stopped
+     */
+    public void shutdown() {
+        awaitCompletion();
+        executor.shutdown();
+    }
+}
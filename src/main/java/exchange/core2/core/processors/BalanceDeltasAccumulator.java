@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.UserProfile;
+import org.eclipse.collections.impl.map.mutable.primitive.IntLongHashMap;
+import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
+
+import java.util.ArrayDeque;
+
+/**
+ * Accumulates account balance changes and fees of trades settlement (R2),
+ * so that every user profile is resolved and every account is updated only once.
+ * <p>
+ * Balance changes are commutative, so the result is exactly the same as applying every trade event separately.
+ * Pending changes must be applied before any operation reading balances (R1 stage, reports, snapshots).
+ * <p>
+ * Not thread safe, owned by risk engine thread.
+ */
+final class BalanceDeltasAccumulator {
+
+    // uid -> (currency -> amount)
+    private final LongObjectHashMap<IntLongHashMap> userDeltas = new LongObjectHashMap<>();
+
+    // currency -> amount
+    private final IntLongHashMap feeDeltas = new IntLongHashMap();
+
+    // reusing currency maps
+    private final ArrayDeque<IntLongHashMap> pool = new ArrayDeque<>();
+
+    private boolean empty = true;
+
+    void addToBalance(final long uid, final int currency, final long amount) {
+        IntLongHashMap deltas = userDeltas.get(uid);
+        if (deltas == null) {
+            deltas = pool.isEmpty() ? new IntLongHashMap() : pool.poll();
+            userDeltas.put(uid, deltas);
+        }
+        deltas.addToValue(currency, amount);
+        empty = false;
+    }
+
+    void addFee(final int currency, final long amount) {
+        feeDeltas.addToValue(currency, amount);
+        empty = false;
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Apply all pending changes. Profiles of counterparties are created (as suspended) if not found.
+     * Balance changes are also added to accounts totals (currency -> sum of all accounts).
+     */
+    void apply(final UserProfileService userProfileService, final IntLongHashMap fees, final IntLongHashMap accountsTotals) {
+        userDeltas.forEachKeyValue((uid, deltas) -> {
+            final UserProfile userProfile = userProfileService.getUserProfileOrAddSuspended(uid);
+            deltas.forEachKeyValue((currency, amount) -> {
+                userProfile.accounts.addToValue(currency, amount);
+                accountsTotals.addToValue(currency, amount);
+            });
+            deltas.clear();
+            pool.add(deltas);
+        });
+        userDeltas.clear();
+
+        feeDeltas.forEachKeyValue(fees::addToValue);
+        feeDeltas.clear();
+
+        empty = true;
+    }
+
+    void reset() {
+        userDeltas.forEachValue(deltas -> {
+            deltas.clear();
+            pool.add(deltas);
+        });
+        userDeltas.clear();
+        feeDeltas.clear();
+        empty = true;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.BytesOut;
+import net.openhft.chronicle.bytes.WriteBytesMarshallable;
+import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Point-in-time view of engine state, serialized by background thread while owner thread keeps processing commands.
+ * <p>
+ * Small parts of the state (header and trailer) are serialized by owner thread when snapshot is created.
+ * Top-level records (order books, user profiles) are only referenced. Owner thread must call {@link #beforeUpdate(long)}
+ * before modifying or removing a record, so the record is serialized in its original state first (copy-on-write).
+ * Records that were not touched are serialized by background thread directly into the output.
+ * <p>
+ * Output format is the same as synchronous serialization: header, records map (int size, then key + record), trailer.
+ */
+public final class CopyOnWriteSnapshot implements WriteBytesMarshallable {
+
+    private static final int PENDING = 0;
+    private static final int IN_PROGRESS = 1;
+    private static final int DONE = 2;
+
+    private final Bytes<ByteBuffer> header = Bytes.elasticHeapByteBuffer(256);
+    private final Bytes<ByteBuffer> trailer = Bytes.elasticHeapByteBuffer(256);
+
+    // if false - keys are written as int (symbol id)
+    private final boolean longKeys;
+
+    private final long[] keys;
+    private final WriteBytesMarshallable[] records;
+    private final byte[][] copies;
+    private final AtomicIntegerArray states;
+    private final LongIntHashMap keyToIndex;
+    private int size = 0;
+
+    // owner thread buffer for copy-on-write serialization
+    private final Bytes<ByteBuffer> ownerBuffer = Bytes.elasticHeapByteBuffer(1024);
+
+    private volatile boolean completed = false;
+
+    public CopyOnWriteSnapshot(final int capacity, final boolean longKeys) {
+        this.longKeys = longKeys;
+        this.keys = new long[capacity];
+        this.records = new WriteBytesMarshallable[capacity];
+        this.copies = new byte[capacity][];
+        this.states = new AtomicIntegerArray(capacity);
+        this.keyToIndex = new LongIntHashMap(capacity);
+    }
+
+    public BytesOut getHeader() {
+        return header;
+    }
+
+    public BytesOut getTrailer() {
+        return trailer;
+    }
+
+    /**
+     * Add record reference (owner thread, at snapshot creation)
+     */
+    public void add(final long key, final WriteBytesMarshallable record) {
+        keys[size] = key;
+        records[size] = record;
+        keyToIndex.put(key, size);
+        size++;
+    }
+
+    /**
+     * Must be called by owner thread before modifying or removing record.
+     * Records created after snapshot are not affected.
+     */
+    public void beforeUpdate(final long key) {
+        final int idx = keyToIndex.getIfAbsent(key, -1);
+        if (idx != -1 && states.get(idx) != DONE) {
+            copyRecord(idx);
+        }
+    }
+
+    /**
+     * Serialize all remaining records by owner thread (used when snapshot must be completed without delay)
+     */
+    public void copyAll() {
+        for (int i = 0; i < size; i++) {
+            if (states.get(i) != DONE) {
+                copyRecord(i);
+            }
+        }
+    }
+
+    private void copyRecord(final int idx) {
+        if (states.compareAndSet(idx, PENDING, IN_PROGRESS)) {
+            ownerBuffer.clear();
+            records[idx].writeMarshallable(ownerBuffer);
+            final byte[] copy = new byte[(int) ownerBuffer.readRemaining()];
+            ownerBuffer.read(copy);
+            copies[idx] = copy;
+            states.set(idx, DONE);
+        } else {
+            // background thread is writing this record right now - very short wait
+            while (states.get(idx) != DONE) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Background thread - writes snapshot into storage
+     */
+    @Override
+    public void writeMarshallable(final BytesOut bytes) {
+
+        bytes.write(header, header.readPosition(), header.readRemaining());
+
+        bytes.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            if (longKeys) {
+                bytes.writeLong(keys[i]);
+            } else {
+                bytes.writeInt((int) keys[i]);
+            }
+
+            if (states.compareAndSet(i, PENDING, IN_PROGRESS)) {
+                // record was not modified since snapshot creation
+                records[i].writeMarshallable(bytes);
+                states.set(i, DONE);
+            } else {
+                while (states.get(i) != DONE) {
+                    Thread.yield();
+                }
+                bytes.write(copies[i]);
+                copies[i] = null;
+            }
+            records[i] = null;
+        }
+
+        bytes.write(trailer, trailer.readPosition(), trailer.readRemaining());
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    void markCompleted() {
+        completed = true;
+    }
+}
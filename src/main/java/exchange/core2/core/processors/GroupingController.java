@@ -0,0 +1,184 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import lombok.Getter;
+
+/**
+ * Controls events group size and duration used by {@link GroupingProcessor}.
+ * <p>
+ * In adaptive mode values are re-evaluated once per interval from observed arrival rate and downstream lag
+ * (number of commands published by G but not yet released by R2):
+ * <ul>
+ * <li>downstream is behind by more than two groups - groups are too small to amortize R2 cycle, limit and duration are doubled;</li>
+ * <li>group would not fill within duration at current rate - limit and duration are halved, so R2 is triggered sooner;</li>
+ * <li>group fills faster than duration - limit is doubled, duration is doubled towards maximum.</li>
+ * </ul>
+ * All values are kept within configured bounds. Non-adaptive controller keeps fixed values.
+ * <p>
+ * Only grouping processor thread modifies state, getters can be called from any thread (metrics).
+ */
+public final class GroupingController {
+
+    private static final long ADAPT_INTERVAL_NS = 1_000_000;
+
+    @Getter
+    private final boolean adaptive;
+
+    @Getter
+    private final int msgsInGroupLimitMin;
+    @Getter
+    private final int msgsInGroupLimitMax;
+    @Getter
+    private final long groupMaxDurationNsMin;
+    @Getter
+    private final long groupMaxDurationNsMax;
+
+    // currently chosen values
+    @Getter
+    private volatile int msgsInGroupLimit;
+    @Getter
+    private volatile long groupMaxDurationNs;
+
+    // last observed values
+    @Getter
+    private volatile long arrivalRatePerSec;
+    @Getter
+    private volatile long downstreamLag;
+    @Getter
+    private volatile long adjustmentsCount;
+
+    // nanoTime can have any value (including 0 or negative), so interval start is valid only after first adapt call
+    private boolean started = false;
+    private long intervalStartNs = 0;
+    private long intervalMsgs = 0;
+
+    private GroupingController(final boolean adaptive,
+                               final int msgsInGroupLimitMin,
+                               final int msgsInGroupLimitMax,
+                               final long groupMaxDurationNsMin,
+                               final long groupMaxDurationNsMax) {
+
+        if (msgsInGroupLimitMin < 1 || msgsInGroupLimitMin > msgsInGroupLimitMax) {
+            throw new IllegalArgumentException("Invalid group size bounds [" + msgsInGroupLimitMin + ", " + msgsInGroupLimitMax + "]");
+        }
+        if (groupMaxDurationNsMin < 1 || groupMaxDurationNsMin > groupMaxDurationNsMax) {
+            throw new IllegalArgumentException("Invalid group duration bounds [" + groupMaxDurationNsMin + ", " + groupMaxDurationNsMax + "]");
+        }
+
+        this.adaptive = adaptive;
+        this.msgsInGroupLimitMin = msgsInGroupLimitMin;
+        this.msgsInGroupLimitMax = msgsInGroupLimitMax;
+        this.groupMaxDurationNsMin = groupMaxDurationNsMin;
+        this.groupMaxDurationNsMax = groupMaxDurationNsMax;
+        this.msgsInGroupLimit = msgsInGroupLimitMax;
+        this.groupMaxDurationNs = groupMaxDurationNsMax;
+    }
+
+    public static GroupingController fixed(final int msgsInGroupLimit, final long groupMaxDurationNs) {
+        return new GroupingController(false, msgsInGroupLimit, msgsInGroupLimit, groupMaxDurationNs, groupMaxDurationNs);
+    }
+
+    public static GroupingController adaptive(final int msgsInGroupLimitMin,
+                                              final int msgsInGroupLimitMax,
+                                              final long groupMaxDurationNsMin,
+                                              final long groupMaxDurationNsMax) {
+        return new GroupingController(true, msgsInGroupLimitMin, msgsInGroupLimitMax, groupMaxDurationNsMin, groupMaxDurationNsMax);
+    }
+
+    /**
+     * Account processed batch
+     *
+     * @param msgs - number of messages
+     */
+    void onBatch(final long msgs) {
+        intervalMsgs += msgs;
+    }
+
+    /**
+     * @param nowNs - current time
+     * @return true if adaptation interval is elapsed and lag should be reported via {@link #adapt(long, long)}
+     */
+    boolean isAdaptationDue(final long nowNs) {
+        return adaptive && (!started || nowNs - intervalStartNs >= ADAPT_INTERVAL_NS);
+    }
+
+    /**
+     * Re-evaluate group limit and duration
+     *
+     * @param nowNs - current time
+     * @param lag   - commands published by grouping processor but not yet released by slowest R2
+     */
+    void adapt(final long nowNs, final long lag) {
+
+        // first call - only start measuring
+        if (!started) {
+            started = true;
+            intervalStartNs = nowNs;
+            intervalMsgs = 0;
+            return;
+        }
+
+        final long elapsedNs = nowNs - intervalStartNs;
+        final long msgs = intervalMsgs;
+        intervalStartNs = nowNs;
+        intervalMsgs = 0;
+
+        final int limit = msgsInGroupLimit;
+        final long duration = groupMaxDurationNs;
+
+        // messages expected to arrive within group duration
+        final long expectedInGroup = msgs * duration / elapsedNs;
+
+        int newLimit = limit;
+        long newDuration = duration;
+
+        if (lag > 2L * limit) {
+            newLimit = limit * 2;
+            newDuration = duration * 2;
+        } else if (expectedInGroup < limit / 2) {
+            newLimit = limit / 2;
+            newDuration = duration / 2;
+        } else if (expectedInGroup > limit) {
+            newLimit = limit * 2;
+            newDuration = duration * 2;
+        }
+
+        newLimit = Math.max(msgsInGroupLimitMin, Math.min(msgsInGroupLimitMax, newLimit));
+        newDuration = Math.max(groupMaxDurationNsMin, Math.min(groupMaxDurationNsMax, newDuration));
+
+        arrivalRatePerSec = msgs * 1_000_000_000L / elapsedNs;
+        downstreamLag = lag;
+
+        if (newLimit != limit || newDuration != duration) {
+            msgsInGroupLimit = newLimit;
+            groupMaxDurationNs = newDuration;
+            adjustmentsCount++;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GroupingController{" +
+                "adaptive=" + adaptive +
+                ", limit=" + msgsInGroupLimit + " [" + msgsInGroupLimitMin + "-" + msgsInGroupLimitMax + "]" +
+                ", durationNs=" + groupMaxDurationNs + " [" + groupMaxDurationNsMin + "-" + groupMaxDurationNsMax + "]" +
+                ", rate=" + arrivalRatePerSec +
+                ", lag=" + downstreamLag +
+                ", adjustments=" + adjustmentsCount +
+                '}';
+    }
+}
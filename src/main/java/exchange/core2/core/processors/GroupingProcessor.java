@@ -16,6 +16,7 @@
 package exchange.core2.core.processors;
 
 import com.lmax.disruptor.*;
+import com.lmax.disruptor.util.Util;
 import exchange.core2.core.common.CoreWaitStrategy;
 import exchange.core2.core.common.MatcherTradeEvent;
 import exchange.core2.core.common.cmd.OrderCommand;
@@ -34,8 +35,10 @@ public final class GroupingProcessor implements EventProcessor {
 
     private static final int GROUP_SPIN_LIMIT = 1000;
 
-    private static final int L2_PUBLISH_INTERVAL_NS = 10_000_000;
-    private static final int GROUP_MAX_DURATION_NS = 10_000;
+    // market data publishing epoch length, if not configured
+    public static final long L2_PUBLISH_INTERVAL_NS = 10_000_000;
+    // events group duration, if not configured
+    public static final long GROUP_MAX_DURATION_NS = 10_000;
 
     private final AtomicInteger running = new AtomicInteger(IDLE);
     private final RingBuffer<OrderCommand> ringBuffer;
@@ -45,14 +48,36 @@ public final class GroupingProcessor implements EventProcessor {
 
     private final SharedPool sharedPool;
 
-    private final long msgsInGroupLimit;
+    private final GroupingController groupingController;
+
+    // market data publishing epoch length (max top-of-book updates rate per order book)
+    private final long l2PublishIntervalNs;
+
+    // null if stage latency monitoring is disabled
+    private final StageLatencyMonitor latencyMonitor;
+
+    // risk release (R2) sequences, used for measuring downstream lag in adaptive mode
+    private Sequence[] downstreamSequences = new Sequence[0];
 
     public GroupingProcessor(RingBuffer<OrderCommand> ringBuffer, SequenceBarrier sequenceBarrier, long msgsInGroupLimit, CoreWaitStrategy coreWaitStrategy, SharedPool sharedPool) {
+        this(ringBuffer, sequenceBarrier, GroupingController.fixed((int) msgsInGroupLimit, GROUP_MAX_DURATION_NS), L2_PUBLISH_INTERVAL_NS, coreWaitStrategy, sharedPool, null);
+    }
+
+    public GroupingProcessor(RingBuffer<OrderCommand> ringBuffer, SequenceBarrier sequenceBarrier, GroupingController groupingController, long l2PublishIntervalNs, CoreWaitStrategy coreWaitStrategy, SharedPool sharedPool, StageLatencyMonitor latencyMonitor) {
         this.ringBuffer = ringBuffer;
         this.sequenceBarrier = sequenceBarrier;
         this.waitSpinningHelper = new WaitSpinningHelper(ringBuffer, sequenceBarrier, GROUP_SPIN_LIMIT, coreWaitStrategy);
-        this.msgsInGroupLimit = msgsInGroupLimit;
+        this.groupingController = groupingController;
+        this.l2PublishIntervalNs = l2PublishIntervalNs;
         this.sharedPool = sharedPool;
+        this.latencyMonitor = latencyMonitor;
+    }
+
+    /**
+     * Should be called before start
+     */
+    public void setDownstreamSequences(final Sequence... downstreamSequences) {
+        this.downstreamSequences = downstreamSequences;
     }
 
     @Override
@@ -106,6 +131,9 @@ public final class GroupingProcessor implements EventProcessor {
 
         long groupLastNs = 0;
 
+        long msgsInGroupLimit = groupingController.getMsgsInGroupLimit();
+        long groupMaxDurationNs = groupingController.getGroupMaxDurationNs();
+
         long l2dataLastNs = 0;
         boolean triggerL2DataRequest = false;
 
@@ -121,6 +149,8 @@ public final class GroupingProcessor implements EventProcessor {
                 long availableSequence = waitSpinningHelper.tryWaitFor(nextSequence);
 
                 if (nextSequence <= availableSequence) {
+                    final long batchFirstSequence = nextSequence;
+                    final long batchSize = availableSequence - nextSequence + 1;
                     while (nextSequence <= availableSequence) {
 
                         OrderCommand cmd = ringBuffer.get(nextSequence);
@@ -136,8 +166,9 @@ public final class GroupingProcessor implements EventProcessor {
 
                         cmd.eventsGroup = groupCounter;
 
+                        // market data epoch flag is carried by trading commands only (always journalled and replayed)
                         cmd.serviceFlags = 0;
-                        if (triggerL2DataRequest) {
+                        if (triggerL2DataRequest && isTradingCommand(cmd.command)) {
                             triggerL2DataRequest = false;
                             cmd.serviceFlags = 1;
                         }
@@ -172,7 +203,7 @@ public final class GroupingProcessor implements EventProcessor {
                         }
                         cmd.matcherEvent = null;
 
-                        // TODO collect to shared buffer
+                        // market data carrier stays in the slot (cmd.marketDataCarrier) for reuse
                         cmd.marketData = null;
 
                         if (cmd.command == OrderCommandType.NOP) {
@@ -190,8 +221,34 @@ public final class GroupingProcessor implements EventProcessor {
                         }
 
                     }
+                    final long batchEndNs = System.nanoTime();
+                    if (latencyMonitor != null) {
+                        // batch publishing time is the baseline for J and R1, stamped before publishing
+                        for (long seq = batchFirstSequence; seq <= availableSequence; seq++) {
+                            final OrderCommand cmd = ringBuffer.get(seq);
+                            cmd.groupingNs = batchEndNs;
+                            // including time queued before G picked the command up (commands not published by ExchangeApi are not stamped)
+                            if (cmd.publishingNs != 0) {
+                                latencyMonitor.record(StageLatencyMonitor.Stage.GROUPING, 0, batchEndNs - cmd.publishingNs);
+                                cmd.publishingNs = 0;
+                            }
+                        }
+                    }
                     sequence.set(availableSequence);
-                    groupLastNs = System.nanoTime() + GROUP_MAX_DURATION_NS;
+                    groupLastNs = batchEndNs + groupMaxDurationNs;
+
+                    // also under continuous load
+                    if (batchEndNs > l2dataLastNs) {
+                        l2dataLastNs = batchEndNs + l2PublishIntervalNs;
+                        triggerL2DataRequest = true;
+                    }
+
+                    groupingController.onBatch(batchSize);
+                    if (groupingController.isAdaptationDue(batchEndNs)) {
+                        groupingController.adapt(batchEndNs, availableSequence - Util.getMinimumSequence(downstreamSequences, availableSequence));
+                        msgsInGroupLimit = groupingController.getMsgsInGroupLimit();
+                        groupMaxDurationNs = groupingController.getGroupMaxDurationNs();
+                    }
 
                 } else {
                     final long t = System.nanoTime();
@@ -201,8 +258,14 @@ public final class GroupingProcessor implements EventProcessor {
                         msgsInGroup = 0;
                     }
 
+                    if (groupingController.isAdaptationDue(t)) {
+                        groupingController.adapt(t, sequence.get() - Util.getMinimumSequence(downstreamSequences, sequence.get()));
+                        msgsInGroupLimit = groupingController.getMsgsInGroupLimit();
+                        groupMaxDurationNs = groupingController.getGroupMaxDurationNs();
+                    }
+
                     if (t > l2dataLastNs) {
-                        l2dataLastNs = t + L2_PUBLISH_INTERVAL_NS; // trigger L2 data every 10ms
+                        l2dataLastNs = t + l2PublishIntervalNs; // start next market data epoch (10ms by default)
                         triggerL2DataRequest = true;
                     }
                 }
@@ -218,10 +281,18 @@ public final class GroupingProcessor implements EventProcessor {
         }
     }
 
+    private static boolean isTradingCommand(final OrderCommandType command) {
+        return command == OrderCommandType.PLACE_ORDER
+                || command == OrderCommandType.MOVE_ORDER
+                || command == OrderCommandType.CANCEL_ORDER
+                || command == OrderCommandType.MASS_CANCEL
+                || command == OrderCommandType.QUOTE_REPLACE;
+    }
+
     @Override
     public String toString() {
         return "GroupingProcessor{" +
-                "GL=" + msgsInGroupLimit +
+                "GC=" + groupingController +
                 '}';
     }
 }
\ No newline at end of file
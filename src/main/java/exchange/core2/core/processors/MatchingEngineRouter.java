@@ -16,9 +16,16 @@
 package exchange.core2.core.processors;
 
 import exchange.core2.core.common.CoreSymbolSpecification;
+import exchange.core2.core.common.MatcherEventType;
+import exchange.core2.core.common.MatcherTradeEvent;
 import exchange.core2.core.common.Order;
+import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.OrderType;
+import exchange.core2.core.common.QuoteLevels;
 import exchange.core2.core.common.StateHash;
 import exchange.core2.core.common.SymbolType;
+import exchange.core2.core.common.api.ApiMassCancel;
+import exchange.core2.core.common.api.ApiPersistState;
 import exchange.core2.core.common.api.binary.BatchAddAccountsCommand;
 import exchange.core2.core.common.api.binary.BatchAddSymbolsCommand;
 import exchange.core2.core.common.api.reports.*;
@@ -26,57 +33,143 @@ import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommand;
 import exchange.core2.core.common.cmd.OrderCommandType;
 import exchange.core2.core.orderbook.IOrderBook;
+import exchange.core2.core.orderbook.OrderBookEventsHelper;
 import exchange.core2.core.processors.journalling.ISerializationProcessor;
+import exchange.core2.core.processors.sharding.ExplicitShardMapping;
+import exchange.core2.core.processors.sharding.IShardMapping;
+import exchange.core2.core.processors.sharding.ModuloShardMapping;
 import exchange.core2.core.utils.CoreArithmeticUtils;
 import exchange.core2.core.utils.HashingUtils;
 import exchange.core2.core.utils.SerializationUtils;
 import exchange.core2.core.utils.UnsafeUtils;
+import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import net.openhft.chronicle.bytes.Bytes;
 import net.openhft.chronicle.bytes.BytesOut;
 import net.openhft.chronicle.bytes.WriteBytesMarshallable;
-import org.apache.commons.lang3.tuple.Pair;
+import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
 import org.eclipse.collections.impl.map.mutable.primitive.IntLongHashMap;
 import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
+import org.eclipse.collections.impl.set.mutable.primitive.IntHashSet;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.BiFunction;
 
 @Slf4j
 public final class MatchingEngineRouter implements WriteBytesMarshallable, StateHash {
 
+    // delta snapshot starts with this value instead of shardId
+    private static final int DELTA_SNAPSHOT_MARKER = -1;
+
     // state
     private final BinaryCommandsProcessor binaryCommandsProcessor;
 
     // symbol->OB
     private final IntObjectHashMap<IOrderBook> orderBooks;
 
+    // optional routing table for compact symbol ids, order books with ids outside of it are found through hash map
+    private final IOrderBook[] denseOrderBooks;
+
     private final BiFunction<CoreSymbolSpecification, ObjectsPool, IOrderBook> orderBookFactory;
 
     // local objects pool for order books
     private final ObjectsPool objectsPool;
 
     private final int shardId;
-    private final long shardMask;
+    private final int shardsNum;
+    private final boolean singleShard;
+
+    // replaced when order book is migrated to another shard
+    private IShardMapping shardMapping;
+
+    // shared by all shards of the exchange core
+    private final OrderBookHandover orderBookHandover;
 
     private final ISerializationProcessor serializationProcessor;
 
+    // copy-on-write snapshots writer, null if snapshots are written synchronously
+    private final AsyncSnapshotProcessor asyncSnapshotProcessor;
+
+    // change-driven top-of-book publishing for risk engines
+    private final TopOfBookTracker topOfBookTracker;
+
+    // currency -> amount held by exchange-pair orders of this shard, maintained from matcher events (not serialized, rebuilt on load)
+    private final IntLongHashMap ordersHeldTotals = new IntLongHashMap();
+
+    // level orders of QUOTE_REPLACE command being processed (pooled, not serialized)
+    private final List<OrderCommand> quoteLevels = new ArrayList<>();
+    private final ArrayDeque<OrderCommand> quoteLevelsPool = new ArrayDeque<>();
+
+    // rejection events for levels of failed QUOTE_REPLACE
+    private final OrderBookEventsHelper quoteEventsHelper;
+
+    // last snapshot (written or loaded) and order books modified after it, null if there is no base snapshot
+    private Long lastSnapshotId = null;
+    // async snapshot being written in background
+    private Long pendingSnapshotId = null;
+    private IntHashSet dirtyOrderBooks = null;
+
     public MatchingEngineRouter(final int shardId,
                                 final long numShards,
                                 final ISerializationProcessor serializationProcessor,
                                 final BiFunction<CoreSymbolSpecification, ObjectsPool, IOrderBook> orderBookFactory,
                                 final SharedPool sharedPool,
-                                final Long loadStateId) {
+                                final Long loadStateId,
+                                final boolean asyncSnapshots) {
+        this(shardId, numShards, serializationProcessor, orderBookFactory, sharedPool, loadStateId, asyncSnapshots, 0);
+    }
 
-        if (Long.bitCount(numShards) != 1) {
-            throw new IllegalArgumentException("Invalid number of shards " + numShards + " - must be power of 2");
+    public MatchingEngineRouter(final int shardId,
+                                final long numShards,
+                                final ISerializationProcessor serializationProcessor,
+                                final BiFunction<CoreSymbolSpecification, ObjectsPool, IOrderBook> orderBookFactory,
+                                final SharedPool sharedPool,
+                                final Long loadStateId,
+                                final boolean asyncSnapshots,
+                                final int denseSymbolsLimit) {
+        this(shardId, numShards, serializationProcessor, orderBookFactory, sharedPool, loadStateId, asyncSnapshots, denseSymbolsLimit, null, new OrderBookHandover());
+    }
+
+    /**
+     * @param denseSymbolsLimit - order books with symbol ids in range [0, denseSymbolsLimit) are routed through array,
+     *                          other ids are resolved through hash map (0 - dense routing disabled)
+     * @param shardMapping      - symbol to shard mapping (null - symbol id modulo number of shards),
+     *                          ignored when loading snapshot (persisted mapping is used)
+     * @param orderBookHandover - order books transfer for live migration, must be the same instance for all shards
+     */
+    public MatchingEngineRouter(final int shardId,
+                                final long numShards,
+                                final ISerializationProcessor serializationProcessor,
+                                final BiFunction<CoreSymbolSpecification, ObjectsPool, IOrderBook> orderBookFactory,
+                                final SharedPool sharedPool,
+                                final Long loadStateId,
+                                final boolean asyncSnapshots,
+                                final int denseSymbolsLimit,
+                                final IShardMapping shardMapping,
+                                final OrderBookHandover orderBookHandover) {
+
+        if (numShards <= 0 || numShards > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid number of shards " + numShards);
+        }
+        if (shardMapping != null && shardMapping.getShardsNum() != numShards) {
+            throw new IllegalArgumentException("Shard mapping " + shardMapping + " does not match number of shards " + numShards);
         }
         this.shardId = shardId;
-        this.shardMask = numShards - 1;
+        this.shardsNum = (int) numShards;
+        this.singleShard = numShards == 1;
+        this.orderBookHandover = orderBookHandover;
         this.serializationProcessor = serializationProcessor;
         this.orderBookFactory = orderBookFactory;
+        this.denseOrderBooks = new IOrderBook[Math.max(0, denseSymbolsLimit)];
+        this.asyncSnapshotProcessor = asyncSnapshots ? new AsyncSnapshotProcessor(serializationProcessor, "ME" + shardId) : null;
 
         // initialize object pools
         final HashMap<Integer, Integer> objectsPoolConfig = new HashMap<>();
@@ -87,37 +180,72 @@ public final class MatchingEngineRouter implements WriteBytesMarshallable, State
         objectsPoolConfig.put(ObjectsPool.ART_NODE_48, 1024 * 8);
         objectsPoolConfig.put(ObjectsPool.ART_NODE_256, 1024 * 4);
         this.objectsPool = new ObjectsPool(objectsPoolConfig, sharedPool);
+        this.quoteEventsHelper = new OrderBookEventsHelper(sharedPool::getChain);
 
         if (loadStateId != null) {
-            final Pair<BinaryCommandsProcessor, IntObjectHashMap<IOrderBook>> deserialized = serializationProcessor.loadData(
-                    loadStateId,
-                    ISerializationProcessor.SerializedModuleType.MATCHING_ENGINE_ROUTER,
-                    shardId,
-                    bytesIn -> {
-                        if (shardId != bytesIn.readInt()) {
-                            throw new IllegalStateException("wrong shardId");
-                        }
-                        if (shardMask != bytesIn.readLong()) {
-                            throw new IllegalStateException("wrong shardMask");
-                        }
-                        final BinaryCommandsProcessor bcp = new BinaryCommandsProcessor(this::handleBinaryMessage, sharedPool, bytesIn, shardId + 1024);
-                        final IntObjectHashMap<IOrderBook> ob = SerializationUtils.readIntHashMap(bytesIn, bytes -> IOrderBook.create(bytes, objectsPool));
-                        return Pair.of(bcp, ob);
-                    });
-
-            this.binaryCommandsProcessor = deserialized.getLeft();
-            this.orderBooks = deserialized.getRight();
+            final State state = loadState(loadStateId, sharedPool, (int) numShards);
+
+            this.binaryCommandsProcessor = state.binaryCommandsProcessor;
+            this.orderBooks = state.orderBooks;
+            this.topOfBookTracker = state.topOfBookTracker;
+            this.shardMapping = state.shardMapping;
+            this.orderBooks.forEachKeyValue(this::putDenseOrderBook);
+            this.orderBooks.forEach(ob -> updateOrdersHeldTotals(ob, 1));
+            lastSnapshotId = loadStateId;
+            startDirtyTracking();
 
         } else {
             this.binaryCommandsProcessor = new BinaryCommandsProcessor(this::handleBinaryMessage, sharedPool, shardId + 1024);
             this.orderBooks = new IntObjectHashMap<>();
+            this.topOfBookTracker = new TopOfBookTracker();
+            this.shardMapping = shardMapping != null ? shardMapping : new ModuloShardMapping((int) numShards);
         }
     }
 
+    /**
+     * Load full snapshot, or delta snapshot applied on top of its base snapshot (recursively)
+     */
+    private State loadState(final long snapshotId, final SharedPool sharedPool, final int numShards) {
+        return serializationProcessor.loadData(
+                snapshotId,
+                ISerializationProcessor.SerializedModuleType.MATCHING_ENGINE_ROUTER,
+                shardId,
+                bytesIn -> {
+                    int firstValue = bytesIn.readInt();
+                    IntObjectHashMap<IOrderBook> baseOrderBooks = null;
+                    if (firstValue == DELTA_SNAPSHOT_MARKER) {
+                        final long baseSnapshotId = bytesIn.readLong();
+                        baseOrderBooks = loadState(baseSnapshotId, sharedPool, numShards).orderBooks;
+                        firstValue = bytesIn.readInt();
+                    }
+                    if (shardId != firstValue) {
+                        throw new IllegalStateException("wrong shardId");
+                    }
+                    final IShardMapping shardMapping = IShardMapping.create(bytesIn);
+                    if (shardMapping.getShardsNum() != numShards) {
+                        throw new IllegalStateException("wrong number of shards: " + shardMapping);
+                    }
+                    final BinaryCommandsProcessor bcp = new BinaryCommandsProcessor(this::handleBinaryMessage, sharedPool, bytesIn, shardId + 1024);
+                    final IntObjectHashMap<IOrderBook> ob = SerializationUtils.readIntHashMap(bytesIn, bytes -> IOrderBook.create(bytes, objectsPool));
+                    final TopOfBookTracker tracker = new TopOfBookTracker(bytesIn);
+                    if (baseOrderBooks != null) {
+                        // modified order books replace base ones
+                        baseOrderBooks.putAll(ob);
+                        return new State(bcp, baseOrderBooks, tracker, shardMapping);
+                    }
+                    return new State(bcp, ob, tracker, shardMapping);
+                });
+    }
+
     public void processOrder(OrderCommand cmd) {
 
         final OrderCommandType command = cmd.command;
 
+        // market data publishing epoch (set by grouping processor)
+        if ((cmd.serviceFlags & 1) != 0) {
+            topOfBookTracker.nextEpoch();
+        }
+
         if (command == OrderCommandType.MOVE_ORDER || command == OrderCommandType.CANCEL_ORDER || command == OrderCommandType.ORDER_BOOK_REQUEST || command == OrderCommandType.PLACE_ORDER) {
             // process specific symbol group only
             if (symbolForThisHandler(cmd.symbol)) {
@@ -132,16 +260,58 @@ public final class MatchingEngineRouter implements WriteBytesMarshallable, State
 
         } else if (command == OrderCommandType.RESET) {
             // process all symbols groups, only processor 0 writes result
+            if (asyncSnapshotProcessor != null) {
+                asyncSnapshotProcessor.awaitCompletion();
+            }
+            // next snapshot must be full
+            lastSnapshotId = null;
+            pendingSnapshotId = null;
+            dirtyOrderBooks = null;
             orderBooks.clear();
+            Arrays.fill(denseOrderBooks, null);
+            ordersHeldTotals.clear();
+            topOfBookTracker.reset();
             binaryCommandsProcessor.reset();
             if (shardId == 0) {
                 cmd.resultCode = CommandResultCode.SUCCESS;
             }
 
         } else if (command == OrderCommandType.PERSIST_STATE_MATCHING) {
-            final boolean isSuccess = serializationProcessor.storeData(cmd.orderId, ISerializationProcessor.SerializedModuleType.MATCHING_ENGINE_ROUTER, shardId, this);
+            // SNAPSHOT_DELTA price requests delta snapshot (only order books modified since last snapshot)
+            final boolean isSuccess;
+            if (asyncSnapshotProcessor != null) {
+                completePendingSnapshot();
+                final boolean deltaRequested = cmd.price == ApiPersistState.SNAPSHOT_DELTA && lastSnapshotId != null;
+                // only marking snapshot point here, order books are written in background
+                asyncSnapshotProcessor.start(cmd.orderId, ISerializationProcessor.SerializedModuleType.MATCHING_ENGINE_ROUTER, shardId, createSnapshot(deltaRequested));
+                // becomes base for delta snapshots only after it is written
+                pendingSnapshotId = cmd.orderId;
+                startDirtyTracking();
+                isSuccess = true;
+            } else {
+                final boolean deltaRequested = cmd.price == ApiPersistState.SNAPSHOT_DELTA && lastSnapshotId != null;
+                isSuccess = deltaRequested
+                        ? serializationProcessor.storeData(cmd.orderId, ISerializationProcessor.SerializedModuleType.MATCHING_ENGINE_ROUTER, shardId, createSnapshot(true))
+                        : serializationProcessor.storeData(cmd.orderId, ISerializationProcessor.SerializedModuleType.MATCHING_ENGINE_ROUTER, shardId, this);
+                if (isSuccess) {
+                    lastSnapshotId = cmd.orderId;
+                    startDirtyTracking();
+                }
+            }
             // Send ACCEPTED because this is a first command in series. Risk engine is second - so it will return SUCCESS
             UnsafeUtils.setResultVolatile(cmd, isSuccess, CommandResultCode.ACCEPTED, CommandResultCode.STATE_PERSIST_MATCHING_ENGINE_FAILED);
+
+        } else if (command == OrderCommandType.MIGRATE_ORDER_BOOK) {
+            // processed by all shards at the same sequence: source hands order book over, target takes it, all switch routing
+            migrateOrderBook(cmd);
+
+        } else if (command == OrderCommandType.MASS_CANCEL) {
+            massCancel(cmd);
+
+        } else if (command == OrderCommandType.QUOTE_REPLACE) {
+            if (symbolForThisHandler(cmd.symbol)) {
+                quoteReplace(cmd);
+            }
         }
 
     }
@@ -196,29 +366,90 @@ public final class MatchingEngineRouter implements WriteBytesMarshallable, State
     }
 
     private Optional<TotalCurrencyBalanceReportResult> reportGlobalBalance() {
+        // totals are maintained incrementally, no need to iterate over orders
+        return Optional.of(TotalCurrencyBalanceReportResult.ofOrderBalances(new IntLongHashMap(ordersHeldTotals)));
+    }
 
-        final IntLongHashMap currencyBalance = new IntLongHashMap();
-
-        orderBooks.stream()
-                .filter(ob -> ob.getSymbolSpec().type == SymbolType.CURRENCY_EXCHANGE_PAIR)
-                .forEach(ob -> {
-                    final CoreSymbolSpecification spec = ob.getSymbolSpec();
+    /**
+     * Add (sign=1) or remove (sign=-1) amounts held by all orders of the order book (exchange pairs only).
+     * Full scan, used only when order book appears or disappears (snapshot loading, migration).
+     */
+    private void updateOrdersHeldTotals(final IOrderBook orderBook, final long sign) {
+        final CoreSymbolSpecification spec = orderBook.getSymbolSpec();
+        if (spec.type == SymbolType.CURRENCY_EXCHANGE_PAIR) {
+            ordersHeldTotals.addToValue(
+                    spec.getBaseCurrency(),
+                    sign * orderBook.askOrdersStream(false).mapToLong(ord -> CoreArithmeticUtils.calculateAmountAsk(ord.getSize() - ord.getFilled(), spec)).sum());
+            ordersHeldTotals.addToValue(
+                    spec.getQuoteCurrency(),
+                    sign * orderBook.bidOrdersStream(false).mapToLong(ord -> CoreArithmeticUtils.calculateAmountBidTakerFee(ord.getSize() - ord.getFilled(), ord.getReserveBidPrice(), spec)).sum());
+        }
+    }
 
-                    currencyBalance.addToValue(
-                            spec.getBaseCurrency(),
-                            ob.askOrdersStream(false).mapToLong(ord -> CoreArithmeticUtils.calculateAmountAsk(ord.getSize() - ord.getFilled(), spec)).sum());
+    /**
+     * Apply change of amounts held by exchange-pair orders after processing command.
+     * New order is counted with full size, then every trade reduces both matched orders,
+     * rejection and cancel reduce active order only.
+     */
+    private void updateOrdersHeldTotals(final OrderCommand cmd, final CoreSymbolSpecification spec, final boolean newOrder) {
+        final boolean activeBid = cmd.action == OrderAction.BID;
+        long baseDiff = 0;
+        long quoteDiff = 0;
+
+        if (newOrder) {
+            if (activeBid) {
+                quoteDiff += CoreArithmeticUtils.calculateAmountBidTakerFee(cmd.size, cmd.reserveBidPrice, spec);
+            } else {
+                baseDiff += CoreArithmeticUtils.calculateAmountAsk(cmd.size, spec);
+            }
+        }
 
-                    currencyBalance.addToValue(
-                            spec.getQuoteCurrency(),
-                            ob.bidOrdersStream(false).mapToLong(ord -> CoreArithmeticUtils.calculateAmountBidTakerFee(ord.getSize() - ord.getFilled(), ord.getReserveBidPrice(), spec)).sum());
-                });
+        for (MatcherTradeEvent ev = cmd.matcherEvent; ev != null; ev = ev.nextEvent) {
+            if (ev.eventType == MatcherEventType.TRADE) {
+                baseDiff -= CoreArithmeticUtils.calculateAmountAsk(ev.size, spec);
+                quoteDiff -= CoreArithmeticUtils.calculateAmountBidTakerFee(ev.size, ev.bidderHoldPrice, spec);
+            } else if (ev.eventType == MatcherEventType.REJECTION || ev.eventType == MatcherEventType.CANCEL) {
+                if (activeBid) {
+                    quoteDiff -= CoreArithmeticUtils.calculateAmountBidTakerFee(ev.size, ev.bidderHoldPrice, spec);
+                } else {
+                    baseDiff -= CoreArithmeticUtils.calculateAmountAsk(ev.size, spec);
+                }
+            }
+        }
 
-        return Optional.of(TotalCurrencyBalanceReportResult.ofOrderBalances(currencyBalance));
+        if (baseDiff != 0) {
+            ordersHeldTotals.addToValue(spec.baseCurrency, baseDiff);
+        }
+        if (quoteDiff != 0) {
+            ordersHeldTotals.addToValue(spec.quoteCurrency, quoteDiff);
+        }
     }
 
+    /**
+     * Apply change of amounts held by exchange-pair orders for events having action of the order (MASS_CANCEL, QUOTE_REPLACE)
+     *
+     * @param firstEvent - first new event (new events are prepended)
+     * @param stopEvent  - first event which was attached before (excluded)
+     */
+    private void updateOrdersHeldTotals(final MatcherTradeEvent firstEvent, final MatcherTradeEvent stopEvent, final CoreSymbolSpecification spec) {
+        long baseDiff = 0;
+        long quoteDiff = 0;
+        for (MatcherTradeEvent ev = firstEvent; ev != stopEvent; ev = ev.nextEvent) {
+            if (ev.eventType == MatcherEventType.TRADE) {
+                baseDiff -= CoreArithmeticUtils.calculateAmountAsk(ev.size, spec);
+                quoteDiff -= CoreArithmeticUtils.calculateAmountBidTakerFee(ev.size, ev.bidderHoldPrice, spec);
+            } else if (ev.action == OrderAction.BID) {
+                quoteDiff -= CoreArithmeticUtils.calculateAmountBidTakerFee(ev.size, ev.bidderHoldPrice, spec);
+            } else {
+                baseDiff -= CoreArithmeticUtils.calculateAmountAsk(ev.size, spec);
+            }
+        }
+        ordersHeldTotals.addToValue(spec.baseCurrency, baseDiff);
+        ordersHeldTotals.addToValue(spec.quoteCurrency, quoteDiff);
+    }
 
-    private boolean symbolForThisHandler(final long symbol) {
-        return (shardMask == 0) || ((symbol & shardMask) == shardId);
+    public boolean symbolForThisHandler(final long symbol) {
+        return singleShard || shardMapping.shardFor(symbol) == shardId;
     }
 
 
@@ -230,35 +461,350 @@ public final class MatchingEngineRouter implements WriteBytesMarshallable, State
         if (orderBooks.get(symbolId) != null) {
             return CommandResultCode.MATCHING_ORDER_BOOK_ALREADY_EXISTS;
         } else {
-            orderBooks.put(symbolId, orderBookFactory.apply(symbolSpecification, objectsPool));
+            final IOrderBook orderBook = orderBookFactory.apply(symbolSpecification, objectsPool);
+            orderBooks.put(symbolId, orderBook);
+            putDenseOrderBook(symbolId, orderBook);
+            if (dirtyOrderBooks != null) {
+                dirtyOrderBooks.add(symbolId);
+            }
             return CommandResultCode.SUCCESS;
         }
     }
 
+    /**
+     * Move order book to target shard (cmd.size), all following commands for this symbol are processed by target shard.
+     * Source shard keeps empty order book (as all other shards do for symbols they don't own).
+     */
+    private void migrateOrderBook(final OrderCommand cmd) {
+
+        final int symbol = cmd.symbol;
+        final long targetShard = cmd.size;
+        final IOrderBook orderBook = orderBooks.get(symbol);
+
+        // all shards are making the same decision
+        if (orderBook == null || targetShard < 0 || targetShard >= shardsNum || shardMapping.shardFor(symbol) == targetShard) {
+            if (shardId == 0) {
+                cmd.resultCode = orderBook == null
+                        ? CommandResultCode.MATCHING_INVALID_ORDER_BOOK_ID
+                        : CommandResultCode.MATCHING_INVALID_TARGET_SHARD;
+            }
+            return;
+        }
+
+        final CoreSymbolSpecification spec = orderBook.getSymbolSpec();
+
+        if (symbolForThisHandler(symbol)) {
+            // source shard
+            final Bytes<ByteBuffer> bytes = Bytes.elasticHeapByteBuffer(1024);
+            orderBook.writeMarshallable(bytes);
+            orderBookHandover.put(symbol, (int) targetShard, bytes);
+            updateOrdersHeldTotals(orderBook, -1);
+            replaceOrderBook(symbol, orderBookFactory.apply(spec, objectsPool));
+            topOfBookTracker.forget(symbol);
+
+        } else if (shardId == targetShard) {
+            final IOrderBook migratedOrderBook = IOrderBook.create(orderBookHandover.take(symbol, (int) targetShard), objectsPool);
+            replaceOrderBook(symbol, migratedOrderBook);
+            updateOrdersHeldTotals(migratedOrderBook, 1);
+            cmd.resultCode = CommandResultCode.SUCCESS;
+        }
+
+        // routing is changed by all shards
+        final ExplicitShardMapping explicitMapping = (shardMapping instanceof ExplicitShardMapping)
+                ? (ExplicitShardMapping) shardMapping
+                : new ExplicitShardMapping(new IntIntHashMap(), shardMapping);
+        shardMapping = explicitMapping.withAssignment(symbol, (int) targetShard);
+    }
+
+    /**
+     * Cancel all orders of the user (or of all users) in one order book or in all order books of this shard.
+     * Mass cancel of all order books is published separately for every shard, cmd.size is target shard.
+     */
+    private void massCancel(final OrderCommand cmd) {
+
+        if (cmd.symbol != ApiMassCancel.ALL_SYMBOLS) {
+            if (symbolForThisHandler(cmd.symbol)) {
+                final IOrderBook orderBook = getOrderBook(cmd.symbol);
+                if (orderBook == null) {
+                    cmd.resultCode = CommandResultCode.MATCHING_INVALID_ORDER_BOOK_ID;
+                } else {
+                    if (!cancelOrders(orderBook, cmd, false)) {
+                        topOfBookTracker.pollPending(orderBooks, cmd);
+                    }
+                    cmd.resultCode = CommandResultCode.SUCCESS;
+                }
+            }
+
+        } else if (cmd.size == shardId) {
+            boolean marketDataAttached = false;
+            for (final IOrderBook orderBook : orderBooks) {
+                if (symbolForThisHandler(orderBook.getSymbolSpec().symbolId)) {
+                    marketDataAttached |= cancelOrders(orderBook, cmd, marketDataAttached);
+                }
+            }
+            if (!marketDataAttached) {
+                topOfBookTracker.pollPending(orderBooks, cmd);
+            }
+            cmd.resultCode = CommandResultCode.SUCCESS;
+
+        } else if (shardId == 0 && (cmd.size < 0 || cmd.size >= shardsNum)) {
+            cmd.resultCode = CommandResultCode.MATCHING_INVALID_TARGET_SHARD;
+        }
+    }
+
+    /**
+     * @param marketDataAttached - command already carries market data of another order book
+     * @return true if market data was attached
+     */
+    private boolean cancelOrders(final IOrderBook orderBook, final OrderCommand cmd, final boolean marketDataAttached) {
+
+        // books without orders of the user are not touched (not becoming dirty for delta snapshot)
+        if (!orderBook.hasOrders(cmd.uid)) {
+            return false;
+        }
+
+        final CoreSymbolSpecification spec = orderBook.getSymbolSpec();
+        final int symbol = spec.symbolId;
+        beforeOrderBookUpdate(symbol);
+
+        final MatcherTradeEvent prevEvents = cmd.matcherEvent;
+        orderBook.cancelOrders(cmd.uid, cmd);
+
+        if (spec.type == SymbolType.CURRENCY_EXCHANGE_PAIR) {
+            updateOrdersHeldTotals(cmd.matcherEvent, prevEvents, spec);
+        }
+
+        if (marketDataAttached) {
+            topOfBookTracker.markPending(symbol);
+            return false;
+        } else {
+            return topOfBookTracker.onOrderBookUpdated(symbol, orderBook, cmd);
+        }
+    }
+
+    /**
+     * Whole ladder of QUOTE_REPLACE is carried by the command (cmd.quoteLevels), all orders of the user are replaced atomically.
+     * Risk engine holds amounts for all levels together, so if replace is not applied, every level is rejected.
+     */
+    private void quoteReplace(final OrderCommand cmd) {
+
+        if (cmd.resultCode != CommandResultCode.VALID_FOR_MATCHING_ENGINE) {
+            // rejected by risk engine - nothing is held
+            return;
+        }
+
+        final QuoteLevels levels = cmd.quoteLevels;
+        for (int i = 0; i < levels.size; i++) {
+            final OrderCommand level = quoteLevelsPool.isEmpty() ? new OrderCommand() : quoteLevelsPool.pollLast();
+            level.command = OrderCommandType.PLACE_ORDER;
+            level.orderId = levels.orderIds[i];
+            level.price = levels.prices[i];
+            level.reserveBidPrice = levels.reservePrices[i];
+            level.size = levels.sizes[i];
+            level.action = levels.actions[i];
+            level.orderType = OrderType.GTC;
+            level.symbol = cmd.symbol;
+            level.uid = cmd.uid;
+            level.timestamp = cmd.timestamp;
+            level.resultCode = CommandResultCode.VALID_FOR_MATCHING_ENGINE;
+            quoteLevels.add(level);
+        }
+
+        final IOrderBook orderBook = getOrderBook(cmd.symbol);
+        if (orderBook == null) {
+            cmd.resultCode = CommandResultCode.MATCHING_INVALID_ORDER_BOOK_ID;
+        } else if (!isQuoteCreditCovered(orderBook, cmd.uid, levels)) {
+            cmd.resultCode = CommandResultCode.RISK_NSF;
+        } else {
+            beforeOrderBookUpdate(cmd.symbol);
+            cmd.resultCode = orderBook.replaceOrders(cmd.uid, quoteLevels, cmd);
+        }
+
+        final boolean replaced = cmd.resultCode == CommandResultCode.SUCCESS;
+        if (!replaced) {
+            // releasing amounts held by risk engine for all levels
+            for (final OrderCommand rejected : quoteLevels) {
+                quoteEventsHelper.attachRejectEvent(rejected, rejected.size);
+                OrderBookEventsHelper.transferEvents(rejected, cmd, cmd.symbol);
+            }
+        }
+
+        if (orderBook != null) {
+            final CoreSymbolSpecification spec = orderBook.getSymbolSpec();
+            if (spec.type == SymbolType.CURRENCY_EXCHANGE_PAIR) {
+                // amounts of all levels were held by risk engine, all events are released from them
+                ordersHeldTotals.addToValue(spec.quoteCurrency, levels.bidsHold);
+                ordersHeldTotals.addToValue(spec.baseCurrency, levels.asksHold);
+                updateOrdersHeldTotals(cmd.matcherEvent, null, spec);
+            }
+        }
+
+        if (!replaced || !topOfBookTracker.onOrderBookUpdated(cmd.symbol, orderBook, cmd)) {
+            topOfBookTracker.pollPending(orderBooks, cmd);
+        }
+
+        clearQuoteLevels();
+    }
+
+    /**
+     * Part of new levels amount not covered by free funds (credit given by risk engine) must be released by replaced orders.
+     * Risk engine checks credit against tracked holds of quote orders, but they could be filled after the check
+     * (in the same events group), so actual holds are verified. Order book is searched only if credit was given.
+     */
+    private static boolean isQuoteCreditCovered(final IOrderBook orderBook, final long uid, final QuoteLevels levels) {
+        if (levels.bidsCredit == 0 && levels.asksCredit == 0) {
+            return true;
+        }
+        final CoreSymbolSpecification spec = orderBook.getSymbolSpec();
+        long bidsHeld = 0;
+        long asksHeld = 0;
+        for (final Order order : orderBook.findUserOrders(uid)) {
+            final long remainingSize = order.size - order.filled;
+            if (order.action == OrderAction.BID) {
+                bidsHeld += CoreArithmeticUtils.calculateAmountBidTakerFee(remainingSize, order.reserveBidPrice, spec);
+            } else {
+                asksHeld += CoreArithmeticUtils.calculateAmountAsk(remainingSize, spec);
+            }
+        }
+        return bidsHeld >= levels.bidsCredit && asksHeld >= levels.asksCredit;
+    }
+
+    private void clearQuoteLevels() {
+        for (final OrderCommand level : quoteLevels) {
+            level.matcherEvent = null;
+            quoteLevelsPool.addLast(level);
+        }
+        quoteLevels.clear();
+    }
+
+    private void replaceOrderBook(final int symbol, final IOrderBook orderBook) {
+        beforeOrderBookUpdate(symbol);
+        orderBooks.put(symbol, orderBook);
+        putDenseOrderBook(symbol, orderBook);
+    }
+
+    private void putDenseOrderBook(final int symbolId, final IOrderBook orderBook) {
+        if (symbolId < denseOrderBooks.length && symbolId >= 0) {
+            denseOrderBooks[symbolId] = orderBook;
+        }
+    }
+
+    private IOrderBook getOrderBook(final int symbolId) {
+        return (symbolId < denseOrderBooks.length && symbolId >= 0)
+                ? denseOrderBooks[symbolId]
+                : orderBooks.get(symbolId);
+    }
+
     private void processMatchingCommand(final OrderCommand cmd) {
 
-        final IOrderBook orderBook = orderBooks.get(cmd.symbol);
+        final IOrderBook orderBook = getOrderBook(cmd.symbol);
         if (orderBook == null) {
             cmd.resultCode = CommandResultCode.MATCHING_INVALID_ORDER_BOOK_ID;
         } else {
+            if (cmd.command != OrderCommandType.ORDER_BOOK_REQUEST) {
+                beforeOrderBookUpdate(cmd.symbol);
+            }
+            final boolean newOrder = cmd.command == OrderCommandType.PLACE_ORDER && cmd.resultCode == CommandResultCode.VALID_FOR_MATCHING_ENGINE;
             cmd.resultCode = IOrderBook.processCommand(orderBook, cmd);
 
+            final CoreSymbolSpecification spec = orderBook.getSymbolSpec();
+            if (spec.type == SymbolType.CURRENCY_EXCHANGE_PAIR && cmd.command != OrderCommandType.ORDER_BOOK_REQUEST) {
+                updateOrdersHeldTotals(cmd, spec, newOrder);
+            }
+
             // posting market data for risk processor makes sense only if command execution is successful, otherwise it will be ignored (possible garbage from previous cycle)
+            // only changed top-of-book is published (rate limited per order book), or pending change of another order book of this shard
             // TODO don't need for EXCHANGE mode order books?
-            // TODO doing this for many order books simultaneously can introduce hiccups
-            if ((cmd.serviceFlags & 1) != 0 && cmd.command != OrderCommandType.ORDER_BOOK_REQUEST && cmd.resultCode == CommandResultCode.SUCCESS) {
-                cmd.marketData = orderBook.getL2MarketDataSnapshot(8);
+            if (cmd.command != OrderCommandType.ORDER_BOOK_REQUEST && cmd.resultCode == CommandResultCode.SUCCESS) {
+                if (!topOfBookTracker.onOrderBookUpdated(cmd.symbol, orderBook, cmd)) {
+                    topOfBookTracker.pollPending(orderBooks, cmd);
+                }
             }
         }
     }
 
     @Override
     public void writeMarshallable(BytesOut bytes) {
-        bytes.writeInt(shardId).writeLong(shardMask);
+        bytes.writeInt(shardId);
+        shardMapping.writeMarshallable(bytes);
         binaryCommandsProcessor.writeMarshallable(bytes);
 
         // write orderBooks
         SerializationUtils.marshallIntHashMap(orderBooks, bytes);
+
+        topOfBookTracker.writeMarshallable(bytes);
+    }
+
+    private void beforeOrderBookUpdate(final int symbol) {
+        if (asyncSnapshotProcessor != null) {
+            asyncSnapshotProcessor.beforeUpdate(symbol);
+        }
+        if (dirtyOrderBooks != null) {
+            dirtyOrderBooks.add(symbol);
+        }
+    }
+
+    private void startDirtyTracking() {
+        if (dirtyOrderBooks == null) {
+            dirtyOrderBooks = new IntHashSet();
+        } else {
+            dirtyOrderBooks.clear();
+        }
+    }
+
+    /**
+     * Waits for background snapshot (if any), written snapshot becomes base for delta snapshots.
+     * Failed snapshot can not be used as base - next snapshot will be full.
+     */
+    private void completePendingSnapshot() {
+        final boolean isWritten = asyncSnapshotProcessor.awaitCompletion();
+        if (pendingSnapshotId != null) {
+            lastSnapshotId = isWritten ? pendingSnapshotId : null;
+            pendingSnapshotId = null;
+        }
+    }
+
+    /**
+     * @param snapshotId - snapshot id
+     * @return outcome of background snapshot write, or null if snapshot is unknown or async snapshots are disabled
+     */
+    public CompletableFuture<Boolean> getSnapshotResult(final long snapshotId) {
+        return asyncSnapshotProcessor != null ? asyncSnapshotProcessor.getResult(snapshotId) : null;
+    }
+
+    /**
+     * Full snapshot has the same format as writeMarshallable.
+     * Delta snapshot: marker, base snapshot id, then full snapshot format containing modified order books only.
+     */
+    private CopyOnWriteSnapshot createSnapshot(final boolean delta) {
+        final CopyOnWriteSnapshot snapshot = new CopyOnWriteSnapshot(delta ? dirtyOrderBooks.size() : orderBooks.size(), false);
+        final BytesOut header = snapshot.getHeader();
+        if (delta) {
+            header.writeInt(DELTA_SNAPSHOT_MARKER).writeLong(lastSnapshotId);
+        }
+        header.writeInt(shardId);
+        shardMapping.writeMarshallable(header);
+        binaryCommandsProcessor.writeMarshallable(header);
+        if (delta) {
+            dirtyOrderBooks.forEach(symbol -> snapshot.add(symbol, orderBooks.get(symbol)));
+        } else {
+            orderBooks.forEachKeyValue(snapshot::add);
+        }
+        topOfBookTracker.writeMarshallable(snapshot.getTrailer());
+        return snapshot;
+    }
+
+    public List<ObjectsPool.Statistics> getObjectsPoolStatistics() {
+        return objectsPool.getStatistics();
+    }
+
+    /**
+     * Waits until pending snapshot is written (if any). Called after processing thread is stopped.
+     */
+    public void shutdownSnapshots() {
+        if (asyncSnapshotProcessor != null) {
+            asyncSnapshotProcessor.shutdown();
+        }
     }
 
     @Override
@@ -266,8 +812,16 @@ public final class MatchingEngineRouter implements WriteBytesMarshallable, State
 //        log.debug("HASH ME{} : HashingUtils.stateHash(orderBooks)={}", shardId, HashingUtils.stateHash(orderBooks));
         return Objects.hash(
                 shardId,
-                shardMask,
+                shardMapping.stateHash(),
                 binaryCommandsProcessor.stateHash(),
                 HashingUtils.stateHash(orderBooks));
     }
+
+    @AllArgsConstructor
+    private static class State {
+        private final BinaryCommandsProcessor binaryCommandsProcessor;
+        private final IntObjectHashMap<IOrderBook> orderBooks;
+        private final TopOfBookTracker topOfBookTracker;
+        private final IShardMapping shardMapping;
+    }
 }
@@ -15,10 +15,14 @@
  */
 package exchange.core2.core.processors;
 
+import lombok.AllArgsConstructor;
 import lombok.Getter;
+import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -35,6 +39,7 @@ public final class ObjectsPool {
     public static final int ART_NODE_48 = 10;
     public static final int ART_NODE_256 = 11;
     public static final int SYMBOL_POSITION_RECORD = 12;
+    public static final int USER_PROFILE = 13;
 
     private final ArrayStack[] pools;
 
@@ -69,6 +74,7 @@ public final class ObjectsPool {
 
         if (obj == null) {
 //            log.debug("MISS {}", type);
+            pools[type].misses++;
             return supplier.get();
         } else {
 //            log.debug("HIT {} (count={})", type, pools[type].count);
@@ -81,6 +87,7 @@ public final class ObjectsPool {
 
         if (obj == null) {
 //            log.debug("MISS {}", type);
+            pools[type].misses++;
             return constructor.apply(this);
         } else {
 //            log.debug("HIT {} (count={})", type, pools[type].count);
@@ -93,10 +100,41 @@ public final class ObjectsPool {
         pools[type].add(object);
     }
 
+    /**
+     * Usage statistics of all configured pools, for sizing pools.
+     * Counters are updated by owner thread without synchronization (values can be slightly stale if called from another thread).
+     */
+    public List<Statistics> getStatistics() {
+        final List<Statistics> statistics = new ArrayList<>();
+        for (int type = 0; type < pools.length; type++) {
+            final ArrayStack pool = pools[type];
+            if (pool != null) {
+                statistics.add(new Statistics(type, pool.objects.length, pool.count, pool.hits, pool.misses, pool.discarded));
+            }
+        }
+        return statistics;
+    }
+
+    @AllArgsConstructor
+    @Getter
+    @ToString
+    public static final class Statistics {
+        private final int type;
+        private final int capacity;
+        private final int available;
+        private final long hits; // object taken from pool
+        private final long misses; // pool was empty - new object created
+        private final long discarded; // pool was full - returned object left for GC
+    }
+
     private final static class ArrayStack {
         private int count;
         private Object[] objects;
 
+        private long hits = 0;
+        private long misses = 0;
+        private long discarded = 0;
+
         ArrayStack(int fixedSize) {
             this.objects = new Object[fixedSize];
             this.count = 0;
@@ -106,6 +144,8 @@ public final class ObjectsPool {
             if (count != objects.length) {
                 objects[count] = element;
                 count++;
+            } else {
+                discarded++;
             }
         }
 
@@ -114,6 +154,7 @@ public final class ObjectsPool {
                 count--;
                 Object object = objects[count];
                 objects[count] = null;
+                hits++;
                 return object;
             }
             return null;
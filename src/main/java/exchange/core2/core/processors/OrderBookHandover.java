@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.BytesIn;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Transfers serialized order books between matching engine shards (live migration).
+ * <p>
+ * All shards are processing migration command at the same sequence:
+ * source shard puts order book state, target shard waits until it is available.
+ * Source shard never waits for target shard, so this can not deadlock (also during journal replay, where shards are processed in parallel).
+ * <p>
+ * Single instance is shared by all matching engine shards of the exchange core.
+ */
+public final class OrderBookHandover {
+
+    private static final int SPIN_LIMIT = 10_000;
+
+    // (symbol, target shard) -> serialized order book
+    // only current owner can put order book for symbol, and target takes it before it can migrate the same symbol further
+    private final ConcurrentHashMap<Long, Bytes<ByteBuffer>> pending = new ConcurrentHashMap<>();
+
+    public void put(final int symbol, final int targetShard, final Bytes<ByteBuffer> orderBookBytes) {
+        if (pending.put(key(symbol, targetShard), orderBookBytes) != null) {
+            throw new IllegalStateException("Order book " + symbol + " was not taken by shard " + targetShard);
+        }
+    }
+
+    /**
+     * Blocks until order book is put by source shard
+     */
+    public BytesIn take(final int symbol, final int targetShard) {
+        final Long key = key(symbol, targetShard);
+        int spin = 0;
+        Bytes<ByteBuffer> bytes;
+        while ((bytes = pending.remove(key)) == null) {
+            if (++spin > SPIN_LIMIT) {
+                LockSupport.parkNanos(1000);
+            }
+        }
+        return bytes;
+    }
+
+    private static Long key(final int symbol, final int targetShard) {
+        return ((long) symbol << 32) | targetShard;
+    }
+}
@@ -16,12 +16,16 @@
 package exchange.core2.core.processors;
 
 import exchange.core2.core.common.*;
+import exchange.core2.core.common.api.ApiPersistState;
 import exchange.core2.core.common.api.binary.BatchAddAccountsCommand;
 import exchange.core2.core.common.api.binary.BatchAddSymbolsCommand;
 import exchange.core2.core.common.api.reports.*;
 import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.common.cmd.OrderCommandType;
 import exchange.core2.core.processors.journalling.ISerializationProcessor;
+import exchange.core2.core.processors.sharding.IShardMapping;
+import exchange.core2.core.processors.sharding.ModuloShardMapping;
 import exchange.core2.core.utils.CoreArithmeticUtils;
 import exchange.core2.core.utils.HashingUtils;
 import exchange.core2.core.utils.SerializationUtils;
@@ -36,10 +40,16 @@ import net.openhft.chronicle.bytes.BytesOut;
 import net.openhft.chronicle.bytes.WriteBytesMarshallable;
 import org.eclipse.collections.impl.map.mutable.primitive.IntLongHashMap;
 import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
+import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
+import org.eclipse.collections.impl.set.mutable.UnifiedSet;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Stateful risk engine
@@ -47,6 +57,9 @@ import java.util.Optional;
 @Slf4j
 public final class RiskEngine implements WriteBytesMarshallable, StateHash {
 
+    // delta snapshot starts with this value instead of shardId
+    private static final int DELTA_SNAPSHOT_MARKER = -1;
+
     // state
     private final SymbolSpecificationProvider symbolSpecificationProvider;
     private final UserProfileService userProfileService;
@@ -57,27 +70,94 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
     private final IntLongHashMap suspends;
     private final ObjectsPool objectsPool;
 
+    // optional dense cache of symbol specifications for compact symbol ids (empty array if disabled)
+    private final CoreSymbolSpecification[] denseSymbolSpecs;
+
+    // exchange trades settlement changes, applied once per events group (after R2 stage of the group)
+    private final BalanceDeltasAccumulator pendingSettlements = new BalanceDeltasAccumulator();
+
+    // symbol -> futures positions of this shard (for refreshing cached free margin when last price changes)
+    private final IntObjectHashMap<UnifiedSet<SymbolPositionRecord>> symbolPositions = new IntObjectHashMap<>();
+
+    // totals for global balance report, maintained on every balance or position change (not serialized, rebuilt on load)
+    // currency -> sum of all accounts balances
+    private final IntLongHashMap accountsTotals = new IntLongHashMap();
+    // symbol -> sums of all positions
+    private final IntObjectHashMap<SymbolPositionsTotals> positionsTotals = new IntObjectHashMap<>();
+
+    // order command for checking levels of quote replace one by one (margin symbols)
+    private final OrderCommand quoteLevelCmd = new OrderCommand();
+
+    // rejected orders counters (not serialized, not affected by reset)
+    private final RiskRejectionsTelemetry rejectionsTelemetry;
+
     // configuration
     private final int shardId;
-    private final long shardMask;
+    private final IShardMapping shardMapping;
+    private final boolean singleShard;
 
     private final ISerializationProcessor serializationProcessor;
 
+    // copy-on-write snapshots writer, null if snapshots are written synchronously
+    private final AsyncSnapshotProcessor asyncSnapshotProcessor;
+
+    // last snapshot (written or loaded), null if there is no base for delta snapshot
+    private Long lastSnapshotId = null;
+    // async snapshot being written in background
+    private Long pendingSnapshotId = null;
+
+    public RiskEngine(final int shardId,
+                      final long numShards,
+                      final ISerializationProcessor serializationProcessor,
+                      final SharedPool sharedPool,
+                      final Long loadStateId,
+                      final boolean asyncSnapshots) {
+        this(shardId, numShards, serializationProcessor, sharedPool, loadStateId, asyncSnapshots, 0);
+    }
+
     public RiskEngine(final int shardId,
                       final long numShards,
                       final ISerializationProcessor serializationProcessor,
                       final SharedPool sharedPool,
-                      final Long loadStateId) {
-        if (Long.bitCount(numShards) != 1) {
-            throw new IllegalArgumentException("Invalid number of shards " + numShards + " - must be power of 2");
+                      final Long loadStateId,
+                      final boolean asyncSnapshots,
+                      final int denseSymbolsLimit) {
+        this(shardId, numShards, serializationProcessor, sharedPool, loadStateId, asyncSnapshots, denseSymbolsLimit, null,
+                RiskRejectionsTelemetry.DEFAULT_DETAILS_LOG_INTERVAL_NS);
+    }
+
+    /**
+     * @param denseSymbolsLimit       - symbol specifications with ids in range [0, denseSymbolsLimit) are cached in array,
+     *                                other ids are resolved through hash map (0 - dense cache disabled)
+     * @param shardMapping            - uid to shard mapping (null - uid modulo number of shards),
+     *                                ignored when loading snapshot (persisted mapping is used)
+     * @param rejectionsLogIntervalNs - minimal interval between logged rejection details,
+     *                                0 - log every rejection, negative - never log details
+     */
+    public RiskEngine(final int shardId,
+                      final long numShards,
+                      final ISerializationProcessor serializationProcessor,
+                      final SharedPool sharedPool,
+                      final Long loadStateId,
+                      final boolean asyncSnapshots,
+                      final int denseSymbolsLimit,
+                      final IShardMapping shardMapping,
+                      final long rejectionsLogIntervalNs) {
+        if (numShards <= 0 || numShards > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid number of shards " + numShards);
+        }
+        if (shardMapping != null && shardMapping.getShardsNum() != numShards) {
+            throw new IllegalArgumentException("Shard mapping " + shardMapping + " does not match number of shards " + numShards);
         }
         this.shardId = shardId;
-        this.shardMask = numShards - 1;
         this.serializationProcessor = serializationProcessor;
+        this.rejectionsTelemetry = new RiskRejectionsTelemetry("RE" + shardId, rejectionsLogIntervalNs);
+        this.denseSymbolSpecs = new CoreSymbolSpecification[Math.max(0, denseSymbolsLimit)];
 
         // initialize object pools
         final HashMap<Integer, Integer> objectsPoolConfig = new HashMap<>();
         objectsPoolConfig.put(ObjectsPool.SYMBOL_POSITION_RECORD, 1024 * 256);
+        objectsPoolConfig.put(ObjectsPool.USER_PROFILE, 1024 * 256);
         this.objectsPool = new ObjectsPool(objectsPoolConfig, sharedPool);
 
         if (loadStateId == null) {
@@ -88,37 +168,11 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
             this.fees = new IntLongHashMap();
             this.adjustments = new IntLongHashMap();
             this.suspends = new IntLongHashMap();
+            this.shardMapping = shardMapping != null ? shardMapping : new ModuloShardMapping((int) numShards);
 
         } else {
             // TODO refactor, change to creator (simpler init)
-            final State state = serializationProcessor.loadData(
-                    loadStateId,
-                    ISerializationProcessor.SerializedModuleType.RISK_ENGINE,
-                    shardId,
-                    bytesIn -> {
-                        if (shardId != bytesIn.readInt()) {
-                            throw new IllegalStateException("wrong shardId");
-                        }
-                        if (shardMask != bytesIn.readLong()) {
-                            throw new IllegalStateException("wrong shardMask");
-                        }
-                        final SymbolSpecificationProvider symbolSpecificationProvider = new SymbolSpecificationProvider(bytesIn);
-                        final UserProfileService userProfileService = new UserProfileService(bytesIn);
-                        final BinaryCommandsProcessor binaryCommandsProcessor = new BinaryCommandsProcessor(this::handleBinaryMessage, sharedPool, bytesIn, shardId);
-                        final IntObjectHashMap<LastPriceCacheRecord> lastPriceCache = SerializationUtils.readIntHashMap(bytesIn, LastPriceCacheRecord::new);
-                        final IntLongHashMap fees = SerializationUtils.readIntLongHashMap(bytesIn);
-                        final IntLongHashMap adjustments = SerializationUtils.readIntLongHashMap(bytesIn);
-                        final IntLongHashMap suspends = SerializationUtils.readIntLongHashMap(bytesIn);
-
-                        return new State(
-                                symbolSpecificationProvider,
-                                userProfileService,
-                                binaryCommandsProcessor,
-                                lastPriceCache,
-                                fees,
-                                adjustments,
-                                suspends);
-                    });
+            final State state = loadState(loadStateId, sharedPool, (int) numShards);
 
             this.symbolSpecificationProvider = state.symbolSpecificationProvider;
             this.userProfileService = state.userProfileService;
@@ -127,7 +181,73 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
             this.fees = state.fees;
             this.adjustments = state.adjustments;
             this.suspends = state.suspends;
+            this.shardMapping = state.shardMapping;
+            this.lastSnapshotId = loadStateId;
+            this.userProfileService.startDirtyTracking();
+            rebuildFreeMarginCache();
+            rebuildBalanceTotals();
         }
+
+        // suspended profiles are recycled
+        this.userProfileService.setObjectsPool(objectsPool);
+
+        if (asyncSnapshots) {
+            this.asyncSnapshotProcessor = new AsyncSnapshotProcessor(serializationProcessor, "RE" + shardId);
+            this.userProfileService.setSnapshotProcessor(asyncSnapshotProcessor);
+        } else {
+            this.asyncSnapshotProcessor = null;
+        }
+
+        this.singleShard = numShards == 1;
+    }
+
+    /**
+     * Load full snapshot, or delta snapshot applied on top of its base snapshot (recursively)
+     */
+    private State loadState(final long snapshotId, final SharedPool sharedPool, final int numShards) {
+        return serializationProcessor.loadData(
+                snapshotId,
+                ISerializationProcessor.SerializedModuleType.RISK_ENGINE,
+                shardId,
+                bytesIn -> {
+                    int firstValue = bytesIn.readInt();
+                    State baseState = null;
+                    if (firstValue == DELTA_SNAPSHOT_MARKER) {
+                        final long baseSnapshotId = bytesIn.readLong();
+                        baseState = loadState(baseSnapshotId, sharedPool, numShards);
+                        firstValue = bytesIn.readInt();
+                    }
+                    if (shardId != firstValue) {
+                        throw new IllegalStateException("wrong shardId");
+                    }
+                    final IShardMapping shardMapping = IShardMapping.create(bytesIn);
+                    if (shardMapping.getShardsNum() != numShards) {
+                        throw new IllegalStateException("wrong number of shards: " + shardMapping);
+                    }
+                    final SymbolSpecificationProvider symbolSpecificationProvider = new SymbolSpecificationProvider(bytesIn);
+                    final UserProfileService userProfileService;
+                    if (baseState != null) {
+                        userProfileService = baseState.userProfileService;
+                        userProfileService.applyDelta(bytesIn);
+                    } else {
+                        userProfileService = new UserProfileService(bytesIn);
+                    }
+                    final BinaryCommandsProcessor binaryCommandsProcessor = new BinaryCommandsProcessor(this::handleBinaryMessage, sharedPool, bytesIn, shardId);
+                    final IntObjectHashMap<LastPriceCacheRecord> lastPriceCache = SerializationUtils.readIntHashMap(bytesIn, LastPriceCacheRecord::new);
+                    final IntLongHashMap fees = SerializationUtils.readIntLongHashMap(bytesIn);
+                    final IntLongHashMap adjustments = SerializationUtils.readIntLongHashMap(bytesIn);
+                    final IntLongHashMap suspends = SerializationUtils.readIntLongHashMap(bytesIn);
+
+                    return new State(
+                            symbolSpecificationProvider,
+                            userProfileService,
+                            binaryCommandsProcessor,
+                            lastPriceCache,
+                            fees,
+                            adjustments,
+                            suspends,
+                            shardMapping);
+                });
     }
 
     @ToString
@@ -181,9 +301,14 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
      * @param cmd - command
      */
     public boolean preProcessCommand(final OrderCommand cmd) {
+
+        // normally already applied at the end of previous events group
+        applyPendingSettlements();
+
         switch (cmd.command) {
             case MOVE_ORDER:
             case CANCEL_ORDER:
+            case MASS_CANCEL:
             case ORDER_BOOK_REQUEST:
                 return false;
 
@@ -193,6 +318,12 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
                 }
                 return false;
 
+            case QUOTE_REPLACE:
+                if (uidForThisHandler(cmd.uid)) {
+                    cmd.resultCode = quoteReplaceRiskCheck(cmd);
+                }
+                return false;
+
             case ADD_USER:
                 if (uidForThisHandler(cmd.uid)) {
                     cmd.resultCode = userProfileService.addEmptyUserProfile(cmd.uid)
@@ -239,6 +370,12 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
                 }
                 return false;
 
+            case MIGRATE_ORDER_BOOK:
+                if (shardId == 0) {
+                    cmd.resultCode = CommandResultCode.VALID_FOR_MATCHING_ENGINE;
+                }
+                return false;
+
             case PERSIST_STATE_MATCHING:
                 if (shardId == 0) {
                     cmd.resultCode = CommandResultCode.VALID_FOR_MATCHING_ENGINE;
@@ -246,8 +383,28 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
                 return true;// true = publish sequence before finishing processing whole batch
 
             case PERSIST_STATE_RISK:
-                final boolean isSuccess = serializationProcessor.storeData(cmd.orderId, ISerializationProcessor.SerializedModuleType.RISK_ENGINE, shardId, this);
-                UnsafeUtils.setResultVolatile(cmd, isSuccess, CommandResultCode.SUCCESS, CommandResultCode.STATE_PERSIST_RISK_ENGINE_FAILED);
+                // SNAPSHOT_DELTA price requests delta snapshot (only user profiles modified since last snapshot)
+                if (asyncSnapshotProcessor != null) {
+                    completePendingSnapshot();
+                    final boolean deltaRequested = cmd.price == ApiPersistState.SNAPSHOT_DELTA && lastSnapshotId != null;
+                    // only marking snapshot point here, user profiles are written in background
+                    asyncSnapshotProcessor.start(cmd.orderId, ISerializationProcessor.SerializedModuleType.RISK_ENGINE, shardId, createSnapshot(deltaRequested));
+                    // becomes base for delta snapshots only after it is written
+                    pendingSnapshotId = cmd.orderId;
+                    userProfileService.startDirtyTracking();
+                    // outcome is available through ExchangeCore.getSnapshotResult
+                    UnsafeUtils.setResultVolatile(cmd, true, CommandResultCode.STATE_PERSIST_STARTED, CommandResultCode.STATE_PERSIST_RISK_ENGINE_FAILED);
+                } else {
+                    final boolean deltaRequested = cmd.price == ApiPersistState.SNAPSHOT_DELTA && lastSnapshotId != null;
+                    final boolean isSuccess = deltaRequested
+                            ? serializationProcessor.storeData(cmd.orderId, ISerializationProcessor.SerializedModuleType.RISK_ENGINE, shardId, createSnapshot(true))
+                            : serializationProcessor.storeData(cmd.orderId, ISerializationProcessor.SerializedModuleType.RISK_ENGINE, shardId, this);
+                    if (isSuccess) {
+                        lastSnapshotId = cmd.orderId;
+                        userProfileService.startDirtyTracking();
+                    }
+                    UnsafeUtils.setResultVolatile(cmd, isSuccess, CommandResultCode.SUCCESS, CommandResultCode.STATE_PERSIST_RISK_ENGINE_FAILED);
+                }
                 return false;
         }
         return false;
@@ -257,6 +414,7 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
     private CommandResultCode adjustBalance(long uid, int currency, long amountDiff, long fundingTransactionId, BalanceAdjustmentType adjustmentType) {
         final CommandResultCode res = userProfileService.balanceAdjustment(uid, currency, amountDiff, fundingTransactionId);
         if (res == CommandResultCode.SUCCESS) {
+            accountsTotals.addToValue(currency, amountDiff);
             switch (adjustmentType) {
                 case ADJUSTMENT: // adjust total adjustments amount
                     adjustments.addToValue(currency, -amountDiff);
@@ -321,7 +479,7 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
 
     private Optional<SingleUserReportResult> reportSingleUser(final SingleUserReportQuery query) {
         if (uidForThisHandler(query.getUid())) {
-            final UserProfile userProfile = userProfileService.getUserProfile(query.getUid());
+            final UserProfile userProfile = userProfileService.findUserProfile(query.getUid());
             return Optional.of(new SingleUserReportResult(
                     userProfile,
                     null,
@@ -333,28 +491,24 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
 
     private Optional<TotalCurrencyBalanceReportResult> reportGlobalBalance() {
 
-        // prepare fast price cache for profit estimation with some price (exact value is not important, except ask==bid condition)
-        final IntObjectHashMap<LastPriceCacheRecord> dummyLastPriceCache = new IntObjectHashMap<>();
-        lastPriceCache.forEachKeyValue((s, r) -> dummyLastPriceCache.put(s, r.averagingRecord()));
-
-        final IntLongHashMap currencyBalance = new IntLongHashMap();
+        // totals are maintained incrementally, no need to iterate over user profiles
+        final IntLongHashMap currencyBalance = new IntLongHashMap(accountsTotals);
 
         final IntLongHashMap symbolOpenInterestLong = new IntLongHashMap();
         final IntLongHashMap symbolOpenInterestShort = new IntLongHashMap();
 
-        userProfileService.getUserProfiles().forEach(userProfile -> {
-            userProfile.accounts.forEachKeyValue(currencyBalance::addToValue);
-            userProfile.positions.forEachKeyValue((symbolId, positionRecord) -> {
-                final CoreSymbolSpecification spec = symbolSpecificationProvider.getSymbolSpecification(symbolId);
-                final LastPriceCacheRecord avgPrice = dummyLastPriceCache.getIfAbsentPut(symbolId, LastPriceCacheRecord.dummy);
-                currencyBalance.addToValue(positionRecord.currency, positionRecord.estimateProfit(spec, avgPrice));
-
-                if (positionRecord.direction == PositionDirection.LONG) {
-                    symbolOpenInterestLong.addToValue(symbolId, positionRecord.openVolume);
-                } else if (positionRecord.direction == PositionDirection.SHORT) {
-                    symbolOpenInterestShort.addToValue(symbolId, positionRecord.openVolume);
-                }
-            });
+        positionsTotals.forEachKeyValue((symbolId, totals) -> {
+            // profit estimation with some price (exact value is not important, except ask==bid condition)
+            final LastPriceCacheRecord lastPrice = lastPriceCache.get(symbolId);
+            final LastPriceCacheRecord avgPrice = lastPrice != null ? lastPrice.averagingRecord() : LastPriceCacheRecord.dummy;
+            currencyBalance.addToValue(totals.currency, totals.estimateProfit(getSymbolSpecification(symbolId), avgPrice));
+
+            if (totals.longVolume != 0) {
+                symbolOpenInterestLong.addToValue(symbolId, totals.longVolume);
+            }
+            if (totals.shortVolume != 0) {
+                symbolOpenInterestShort.addToValue(symbolId, totals.shortVolume);
+            }
         });
 
         return Optional.of(
@@ -368,35 +522,193 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
                         symbolOpenInterestShort));
     }
 
-    private boolean uidForThisHandler(final long uid) {
-        return (shardMask == 0) || ((uid & shardMask) == shardId);
+    private CoreSymbolSpecification getSymbolSpecification(final int symbol) {
+        if (symbol < denseSymbolSpecs.length && symbol >= 0) {
+            final CoreSymbolSpecification spec = denseSymbolSpecs[symbol];
+            if (spec != null) {
+                return spec;
+            }
+            // specification can not be changed after registration (until reset), so caching it on first access
+            return denseSymbolSpecs[symbol] = symbolSpecificationProvider.getSymbolSpecification(symbol);
+        }
+        return symbolSpecificationProvider.getSymbolSpecification(symbol);
+    }
+
+    public boolean uidForThisHandler(final long uid) {
+        return singleShard || shardMapping.shardFor(uid) == shardId;
     }
 
     private CommandResultCode placeOrderRiskCheck(final OrderCommand cmd) {
 
-        final UserProfile userProfile = userProfileService.getUserProfile(cmd.uid);
+        // profile is marked as modified only when order passes validation
+        final UserProfile userProfile = userProfileService.findUserProfile(cmd.uid);
         if (userProfile == null) {
             cmd.resultCode = CommandResultCode.AUTH_INVALID_USER;
-            log.warn("User profile {} not found", cmd.uid);
+            if (rejectionsTelemetry.onRejection(RiskRejectionsTelemetry.Reason.INVALID_USER, cmd, getSymbolSpecification(cmd.symbol) != null)) {
+                log.warn("User profile {} not found (suppressed {})", cmd.uid, rejectionsTelemetry.takeSuppressedDetails());
+            }
             return CommandResultCode.AUTH_INVALID_USER;
         }
 
-        final CoreSymbolSpecification spec = symbolSpecificationProvider.getSymbolSpecification(cmd.symbol);
+        final CoreSymbolSpecification spec = getSymbolSpecification(cmd.symbol);
         if (spec == null) {
-            log.warn("Symbol {} not found", cmd.symbol);
+            if (rejectionsTelemetry.onRejection(RiskRejectionsTelemetry.Reason.INVALID_SYMBOL, cmd, false)) {
+                log.warn("Symbol {} not found (suppressed {})", cmd.symbol, rejectionsTelemetry.takeSuppressedDetails());
+            }
             return CommandResultCode.INVALID_SYMBOL;
         }
 
-        // check if account has enough funds
+        if (spec.type == SymbolType.CURRENCY_EXCHANGE_PAIR && cmd.action == OrderAction.BID && cmd.reserveBidPrice < cmd.price) {
+            if (rejectionsTelemetry.onRejection(RiskRejectionsTelemetry.Reason.INVALID_RESERVE_BID_PRICE, cmd, true)) {
+                log.warn("{} reserveBidPrice={} less than price={} (suppressed {})",
+                        cmd.orderId, cmd.reserveBidPrice, cmd.price, rejectionsTelemetry.takeSuppressedDetails());
+            }
+            return CommandResultCode.RISK_NSF;
+        }
+
+        // check if account has enough funds (position record can be created even if rejected)
+        userProfileService.beforeUpdate(cmd.uid);
         if (!placeOrder(cmd, userProfile, spec)) {
-            log.warn("{} NSF uid={}: Can not place {}", cmd.orderId, userProfile.uid, cmd);
-            log.warn("{} accounts:{}", cmd.orderId, userProfile.accounts);
+            if (rejectionsTelemetry.onRejection(RiskRejectionsTelemetry.Reason.NSF, cmd, true)) {
+                log.warn("{} NSF uid={}: Can not place {} accounts:{} (suppressed {})",
+                        cmd.orderId, userProfile.uid, cmd, userProfile.accounts, rejectionsTelemetry.takeSuppressedDetails());
+            }
             return CommandResultCode.RISK_NSF;
         }
 
         return CommandResultCode.VALID_FOR_MATCHING_ENGINE;
     }
 
+    /**
+     * All levels of quote replace are checked together (all or nothing).
+     * For exchange pairs net change is checked: new levels can reuse amounts held by current quote orders of the user
+     * in the same order book (tracked per symbol, released when matching engine cancels replaced orders).
+     * Full amounts of new levels are held immediately, so balance can be negative (by credit) until replaced orders are cancelled,
+     * matching engine verifies that replaced orders still hold the credit, otherwise rejects all levels.
+     */
+    private CommandResultCode quoteReplaceRiskCheck(final OrderCommand cmd) {
+
+        final UserProfile userProfile = userProfileService.findUserProfile(cmd.uid);
+        if (userProfile == null) {
+            if (rejectionsTelemetry.onRejection(RiskRejectionsTelemetry.Reason.INVALID_USER, cmd, getSymbolSpecification(cmd.symbol) != null)) {
+                log.warn("User profile {} not found (suppressed {})", cmd.uid, rejectionsTelemetry.takeSuppressedDetails());
+            }
+            return CommandResultCode.AUTH_INVALID_USER;
+        }
+
+        final CoreSymbolSpecification spec = getSymbolSpecification(cmd.symbol);
+        if (spec == null) {
+            if (rejectionsTelemetry.onRejection(RiskRejectionsTelemetry.Reason.INVALID_SYMBOL, cmd, false)) {
+                log.warn("Symbol {} not found (suppressed {})", cmd.symbol, rejectionsTelemetry.takeSuppressedDetails());
+            }
+            return CommandResultCode.INVALID_SYMBOL;
+        }
+
+        final QuoteLevels levels = cmd.quoteLevels;
+
+        if (spec.type != SymbolType.CURRENCY_EXCHANGE_PAIR) {
+            userProfileService.beforeUpdate(cmd.uid);
+            if (!placeMarginQuoteLevels(cmd, userProfile, spec)) {
+                if (rejectionsTelemetry.onRejection(RiskRejectionsTelemetry.Reason.NSF, cmd, true)) {
+                    log.warn("NSF uid={}: Can not replace quote {} accounts:{} (suppressed {})",
+                            userProfile.uid, cmd, userProfile.accounts, rejectionsTelemetry.takeSuppressedDetails());
+                }
+                return CommandResultCode.RISK_NSF;
+            }
+            return CommandResultCode.VALID_FOR_MATCHING_ENGINE;
+        }
+
+        long bidsHold = 0;
+        long asksHold = 0;
+        for (int i = 0; i < levels.size; i++) {
+            if (levels.actions[i] == OrderAction.BID) {
+                if (levels.reservePrices[i] < levels.prices[i]) {
+                    if (rejectionsTelemetry.onRejection(RiskRejectionsTelemetry.Reason.INVALID_RESERVE_BID_PRICE, cmd, true)) {
+                        log.warn("{} reserveBidPrice={} less than price={} (suppressed {})",
+                                levels.orderIds[i], levels.reservePrices[i], levels.prices[i], rejectionsTelemetry.takeSuppressedDetails());
+                    }
+                    return CommandResultCode.RISK_NSF;
+                }
+                bidsHold += CoreArithmeticUtils.calculateAmountBidTakerFee(levels.sizes[i], levels.reservePrices[i], spec);
+            } else {
+                asksHold += CoreArithmeticUtils.calculateAmountAsk(levels.sizes[i], spec);
+            }
+        }
+
+        // part of new levels amount not covered by free funds, must be released by replaced quote orders
+        final long bidsCredit = Math.max(0L, bidsHold - freeAmount(userProfile, spec.quoteCurrency));
+        final long asksCredit = Math.max(0L, asksHold - freeAmount(userProfile, spec.baseCurrency));
+
+        if (bidsCredit > userProfile.getQuoteHold(cmd.symbol, OrderAction.BID)
+                || asksCredit > userProfile.getQuoteHold(cmd.symbol, OrderAction.ASK)) {
+            if (rejectionsTelemetry.onRejection(RiskRejectionsTelemetry.Reason.NSF, cmd, true)) {
+                log.warn("NSF uid={}: Can not replace quote {} accounts:{} (suppressed {})",
+                        userProfile.uid, cmd, userProfile.accounts, rejectionsTelemetry.takeSuppressedDetails());
+            }
+            return CommandResultCode.RISK_NSF;
+        }
+
+        userProfileService.beforeUpdate(cmd.uid);
+        holdAmount(userProfile, spec.quoteCurrency, bidsHold);
+        holdAmount(userProfile, spec.baseCurrency, asksHold);
+
+        levels.bidsHold = bidsHold;
+        levels.asksHold = asksHold;
+        levels.bidsCredit = bidsCredit;
+        levels.asksCredit = asksCredit;
+
+        return CommandResultCode.VALID_FOR_MATCHING_ENGINE;
+    }
+
+    private static long freeAmount(final UserProfile userProfile, final int currency) {
+        return userProfile.accounts.get(currency) + (userProfile.hasPositions() ? userProfile.futuresFreeMargin.get(currency) : 0L);
+    }
+
+    private void holdAmount(final UserProfile userProfile, final int currency, final long amount) {
+        if (amount != 0) {
+            userProfile.accounts.addToValue(currency, -amount);
+            accountsTotals.addToValue(currency, -amount);
+        }
+    }
+
+    /**
+     * Levels of margin symbol are checked one by one as new orders (no netting with replaced orders).
+     * If any level is rejected, previous levels are released.
+     */
+    private boolean placeMarginQuoteLevels(final OrderCommand cmd,
+                                           final UserProfile userProfile,
+                                           final CoreSymbolSpecification spec) {
+
+        final QuoteLevels levels = cmd.quoteLevels;
+        final OrderCommand level = quoteLevelCmd;
+        level.uid = cmd.uid;
+        level.symbol = cmd.symbol;
+
+        for (int i = 0; i < levels.size; i++) {
+            level.orderId = levels.orderIds[i];
+            level.price = levels.prices[i];
+            level.reserveBidPrice = levels.reservePrices[i];
+            level.size = levels.sizes[i];
+            level.action = levels.actions[i];
+
+            if (!placeOrder(level, userProfile, spec)) {
+                if (i != 0) {
+                    // position record is not removed while previous levels are held
+                    final SymbolPositionRecord position = userProfile.getPositionRecordOrThrowEx(spec.symbolId);
+                    for (int j = 0; j < i; j++) {
+                        position.pendingRelease(levels.actions[j], levels.sizes[j]);
+                    }
+                    if (position.isEmpty()) {
+                        removePositionRecord(position, userProfile);
+                    } else {
+                        updateFreeMargin(userProfile, position, spec);
+                    }
+                }
+                return false;
+            }
+        }
+        return true;
+    }
 
     private boolean placeOrder(final OrderCommand cmd,
                                final UserProfile userProfile,
@@ -413,12 +725,14 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
             if (position == null) {
                 position = objectsPool.get(ObjectsPool.SYMBOL_POSITION_RECORD, SymbolPositionRecord::new);
                 position.initialize(userProfile.uid, spec.symbolId, spec.quoteCurrency);
-                userProfile.positions.put(spec.symbolId, position);
+                userProfile.addPositionRecord(position);
+                symbolPositions.getIfAbsentPut(spec.symbolId, UnifiedSet::new).add(position);
             }
 
             final boolean canPlaceOrder = canPlaceMarginOrder(cmd, userProfile, spec, position);
             if (canPlaceOrder) {
                 position.pendingHold(cmd.action, cmd.size);
+                updateFreeMargin(userProfile, position, spec);
                 return true;
             } else {
                 // try to cleanup position if refusing to place
@@ -440,23 +754,8 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
 
         final int currency = (cmd.action == OrderAction.BID) ? spec.quoteCurrency : spec.baseCurrency;
 
-        // futures positions check for this currency
-        long freeFuturesMargin = 0L;
-        for (final SymbolPositionRecord position : userProfile.positions) {
-            if (position.currency == currency) {
-                final int recSymbol = position.symbol;
-                final CoreSymbolSpecification spec2 = symbolSpecificationProvider.getSymbolSpecification(recSymbol);
-                // add P&L subtract margin
-                freeFuturesMargin += position.estimateProfit(spec2, lastPriceCache.get(recSymbol));
-                freeFuturesMargin -= position.calculateRequiredMarginForFutures(spec2);
-            }
-        }
-
-        if (cmd.action == OrderAction.BID && cmd.reserveBidPrice < cmd.price) {
-            // TODO refactor
-            log.warn("reserveBidPrice={} less than price={}", cmd.reserveBidPrice, cmd.price);
-            return false;
-        }
+        // futures positions check for this currency (P&L minus margin, maintained incrementally), no lookup for exchange-only users
+        final long freeFuturesMargin = userProfile.hasPositions() ? userProfile.futuresFreeMargin.get(currency) : 0L;
 
         final long orderAmount = CoreArithmeticUtils.calculateHoldAmount(cmd.action, cmd.size, cmd.action == OrderAction.BID ? cmd.reserveBidPrice : cmd.price, spec);
 
@@ -470,7 +769,9 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
 
         final boolean canPlace = newBalance + freeFuturesMargin >= 0;
 
-        if (!canPlace) {
+        if (canPlace) {
+            accountsTotals.addToValue(currency, -orderAmount);
+        } else {
             // revert balance change
             userProfile.accounts.addToValue(currency, orderAmount);
 //            log.warn("orderAmount={} > userProfile.accounts.get({})={}", orderAmount, currency, userProfile.accounts.get(currency));
@@ -501,22 +802,10 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
 
         // extra margin is required
 
-        final int symbol = cmd.symbol;
-        // calculate free margin for all positions same currency
-        long freeMargin = 0L;
-        for (final SymbolPositionRecord positionRecord : userProfile.positions) {
-            final int recSymbol = positionRecord.symbol;
-            if (recSymbol != symbol) {
-                if (positionRecord.currency == spec.quoteCurrency) {
-                    final CoreSymbolSpecification spec2 = symbolSpecificationProvider.getSymbolSpecification(recSymbol);
-                    // add P&L subtract margin
-                    freeMargin += positionRecord.estimateProfit(spec2, lastPriceCache.get(recSymbol));
-                    freeMargin -= positionRecord.calculateRequiredMarginForFutures(spec2);
-                }
-            } else {
-                freeMargin = position.estimateProfit(spec, lastPriceCache.get(spec.symbolId));
-            }
-        }
+        // free margin of all other positions same currency (P&L minus margin), plus P&L of this symbol position
+        final long freeMargin = userProfile.futuresFreeMargin.get(position.currency)
+                - position.freeMargin
+                + position.estimateProfit(spec, lastPriceCache.get(spec.symbolId));
 
 //        log.debug("newMargin={} <= account({})={} + free {}",
 //                newRequiredMarginForSymbol, position.currency, userProfile.accounts.get(position.currency), freeMargin);
@@ -525,6 +814,17 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
         return newRequiredMarginForSymbol <= userProfile.accounts.get(position.currency) + freeMargin;
     }
 
+    /**
+     * Apply exchange trades settlement accumulated by risk release handler (R2).
+     * Called after R2 stage of every events group, so balances and fees are settled for reports and snapshots
+     * even if no more commands are coming.
+     */
+    public void applyPendingSettlements() {
+        if (!pendingSettlements.isEmpty()) {
+            pendingSettlements.apply(userProfileService, fees, accountsTotals);
+        }
+    }
+
     public boolean handlerRiskRelease(final OrderCommand cmd) {
 
         final int symbol = cmd.symbol;
@@ -532,45 +832,87 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
         final L2MarketData marketData = cmd.marketData;
         MatcherTradeEvent mte = cmd.matcherEvent;
 
+        if (cmd.command == OrderCommandType.QUOTE_REPLACE && cmd.resultCode == CommandResultCode.SUCCESS && uidForThisHandler(cmd.uid)) {
+            // replaced orders are not tracked anymore, holds of new levels are reduced by their trades (events below)
+            userProfileService.getUserProfileOrAddSuspended(cmd.uid).setQuoteHolds(symbol, cmd.quoteLevels.bidsHold, cmd.quoteLevels.asksHold);
+        }
+
         // skip events processing if no events (or if contains BINARY EVENT)
         if (marketData == null && (mte == null || mte.eventType == MatcherEventType.BINARY_EVENT)) {
             return false;
         }
 
-        final CoreSymbolSpecification spec = symbolSpecificationProvider.getSymbolSpecification(symbol);
-        if (spec == null) {
-            throw new IllegalStateException("Symbol not found: " + symbol);
-        }
+        if (mte != null && cmd.command == OrderCommandType.MASS_CANCEL) {
+            handleMassCancelEvents(mte);
+
+        } else if (mte != null && mte.eventType != MatcherEventType.BINARY_EVENT) {
+
+            final CoreSymbolSpecification spec = getSymbolSpecification(symbol);
+            if (spec == null) {
+                throw new IllegalStateException("Symbol not found: " + symbol);
+            }
 
-        if (mte != null && mte.eventType != MatcherEventType.BINARY_EVENT) {
             // at least one event to process, resolving primary/taker user profile
             final UserProfile takerUp = uidForThisHandler(cmd.uid) ? userProfileService.getUserProfileOrAddSuspended(cmd.uid) : null;
             // TODO processing order is reversed
+            // quote replace events have action of the order (levels and cancelled orders of the taker)
+            final boolean eventsHaveAction = cmd.command == OrderCommandType.QUOTE_REPLACE;
             if (spec.type == SymbolType.CURRENCY_EXCHANGE_PAIR) {
                 do {
-                    handleMatcherEventExchange(mte, spec, cmd.action, takerUp);
+                    handleMatcherEventExchange(mte, spec, eventsHaveAction ? mte.action : cmd.action, takerUp, !eventsHaveAction);
                     mte = mte.nextEvent;
                 } while (mte != null);
             } else {
                 // for margin-mode symbols also resolve position record
                 final SymbolPositionRecord takerSpr = (takerUp != null) ? takerUp.getPositionRecordOrThrowEx(symbol) : null;
                 do {
-                    handleMatcherEventMargin(mte, spec, cmd.action, takerUp, takerSpr);
+                    handleMatcherEventMargin(mte, spec, eventsHaveAction ? mte.action : cmd.action, takerUp, takerSpr);
                     mte = mte.nextEvent;
                 } while (mte != null);
             }
         }
 
-        // Process marked data
+        // Process marked data (can be published for another order book of the same matching engine shard)
         if (marketData != null) {
-            final RiskEngine.LastPriceCacheRecord record = lastPriceCache.getIfAbsentPut(symbol, RiskEngine.LastPriceCacheRecord::new);
-            record.askPrice = (marketData.askSize != 0) ? marketData.askPrices[0] : Long.MAX_VALUE;
-            record.bidPrice = (marketData.bidSize != 0) ? marketData.bidPrices[0] : 0;
+            final RiskEngine.LastPriceCacheRecord record = lastPriceCache.getIfAbsentPut(marketData.symbol, RiskEngine.LastPriceCacheRecord::new);
+            final long askPrice = (marketData.askSize != 0) ? marketData.askPrices[0] : Long.MAX_VALUE;
+            final long bidPrice = (marketData.bidSize != 0) ? marketData.bidPrices[0] : 0;
+            if (record.askPrice != askPrice || record.bidPrice != bidPrice) {
+                record.askPrice = askPrice;
+                record.bidPrice = bidPrice;
+                onLastPriceChanged(marketData.symbol);
+            }
         }
 
         return false;
     }
 
+    /**
+     * Mass cancel events can belong to different users and order books, so every event carries owner, symbol and action
+     */
+    private void handleMassCancelEvents(MatcherTradeEvent ev) {
+        UserProfile userProfile = null;
+        do {
+            final long uid = ev.matchedOrderUid;
+            if (uidForThisHandler(uid)) {
+                // events of the same user are usually grouped
+                if (userProfile == null || userProfile.uid != uid) {
+                    userProfile = userProfileService.getUserProfileOrAddSuspended(uid);
+                }
+                final CoreSymbolSpecification spec = getSymbolSpecification(ev.symbol);
+                if (spec == null) {
+                    throw new IllegalStateException("Symbol not found: " + ev.symbol);
+                }
+                if (spec.type == SymbolType.CURRENCY_EXCHANGE_PAIR) {
+                    handleMatcherEventExchange(ev, spec, ev.action, userProfile, true);
+                } else {
+                    handleMatcherEventMargin(ev, spec, ev.action, userProfile, userProfile.getPositionRecordOrThrowEx(ev.symbol));
+                }
+            }
+            ev = ev.nextEvent;
+        } while (ev != null);
+    }
+
     private void handleMatcherEventMargin(final MatcherTradeEvent ev,
                                           final CoreSymbolSpecification spec,
                                           final OrderAction takerAction,
@@ -579,9 +921,10 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
         if (takerUp != null) {
             if (ev.eventType == MatcherEventType.TRADE) {
                 // update taker's position
-                final long sizeOpen = takerSpr.updatePositionForMarginTrade(takerAction, ev.size, ev.price);
+                final long sizeOpen = updatePositionForMarginTrade(takerSpr, takerAction, ev);
                 final long fee = spec.takerFee * sizeOpen;
                 takerUp.accounts.addToValue(spec.quoteCurrency, -fee);
+                accountsTotals.addToValue(spec.quoteCurrency, -fee);
                 fees.addToValue(spec.quoteCurrency, fee);
             } else if (ev.eventType == MatcherEventType.REJECTION || ev.eventType == MatcherEventType.CANCEL) {
                 // for cancel/rejection only one party is involved
@@ -590,6 +933,8 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
 
             if (takerSpr.isEmpty()) {
                 removePositionRecord(takerSpr, takerUp);
+            } else {
+                updateFreeMargin(takerUp, takerSpr, spec);
             }
         }
 
@@ -597,30 +942,37 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
             // update maker's position
             final UserProfile maker = userProfileService.getUserProfileOrAddSuspended(ev.matchedOrderUid);
             final SymbolPositionRecord makerSpr = maker.getPositionRecordOrThrowEx(spec.symbolId);
-            long sizeOpen = makerSpr.updatePositionForMarginTrade(takerAction.opposite(), ev.size, ev.price);
+            long sizeOpen = updatePositionForMarginTrade(makerSpr, takerAction.opposite(), ev);
             final long fee = spec.makerFee * sizeOpen;
             maker.accounts.addToValue(spec.quoteCurrency, -fee);
+            accountsTotals.addToValue(spec.quoteCurrency, -fee);
             fees.addToValue(spec.quoteCurrency, fee);
             if (makerSpr.isEmpty()) {
                 removePositionRecord(makerSpr, maker);
+            } else {
+                updateFreeMargin(maker, makerSpr, spec);
             }
         }
 
     }
 
 
+    /**
+     * @param cancelReleasesQuoteHold - false for quote replace events (cancelled orders are replaced, levels are rejected together)
+     */
     private void handleMatcherEventExchange(final MatcherTradeEvent ev,
                                             final CoreSymbolSpecification spec,
                                             final OrderAction takerAction,
-                                            final UserProfile takerUp) {
+                                            final UserProfile takerUp,
+                                            final boolean cancelReleasesQuoteHold) {
         if (takerUp != null) {
             if (ev.eventType == MatcherEventType.TRADE) {
-                // TODO group by user profile ??
 
-                // perform account-to-account transfers
+                // perform account-to-account transfers (grouped by user profile)
 
 //                log.debug("Processing release for taker");
-                processExchangeHoldRelease(ev, spec, true, takerAction, takerUp);
+                processExchangeHoldRelease(ev, spec, true, takerAction, takerUp.uid);
+                releaseQuoteHold(takerUp, ev, spec, takerAction);
 
 
             } else if (ev.eventType == MatcherEventType.REJECTION || ev.eventType == MatcherEventType.CANCEL) {
@@ -632,6 +984,10 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
                 final long amountForRelease = CoreArithmeticUtils.calculateHoldAmount(takerAction, ev.size, ev.bidderHoldPrice, spec);
 
                 takerUp.accounts.addToValue(currency, amountForRelease);
+                accountsTotals.addToValue(currency, amountForRelease);
+                if (cancelReleasesQuoteHold) {
+                    releaseQuoteHold(takerUp, ev, spec, takerAction);
+                }
 
 //                log.debug("REJ/CAN ASK: uid={} amountToRelease = {}  ACC:{}",
 //                        ev.activeOrderUid, amountForRelease, userProfileService.getUserProfile(ev.activeOrderUid).accounts);
@@ -641,7 +997,25 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
 
         if (ev.eventType == MatcherEventType.TRADE && uidForThisHandler(ev.matchedOrderUid)) {
             //                log.debug("Processing release for maker");
-            processExchangeHoldRelease(ev, spec, false, takerAction, takerUp);
+            processExchangeHoldRelease(ev, spec, false, takerAction, ev.matchedOrderUid);
+            // maker profile is not touched unless it has quote orders
+            final UserProfile maker = userProfileService.findUserProfile(ev.matchedOrderUid);
+            if (maker != null && maker.hasQuoteHolds()) {
+                userProfileService.beforeUpdate(maker.uid);
+                releaseQuoteHold(maker, ev, spec, takerAction.opposite());
+            }
+        }
+    }
+
+    /**
+     * Amount released by order of the user reduces tracked quote hold (order can be a quote order or any other order)
+     */
+    private static void releaseQuoteHold(final UserProfile userProfile,
+                                         final MatcherTradeEvent ev,
+                                         final CoreSymbolSpecification spec,
+                                         final OrderAction action) {
+        if (userProfile.hasQuoteHolds()) {
+            userProfile.releaseQuoteHold(spec.symbolId, action, CoreArithmeticUtils.calculateHoldAmount(action, ev.size, ev.bidderHoldPrice, spec));
         }
     }
 
@@ -649,19 +1023,18 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
                                             CoreSymbolSpecification spec,
                                             boolean isTaker,
                                             final OrderAction takerAction,
-                                            final UserProfile takerUp) {
+                                            final long uid) {
         final long size = ev.size;
-        final UserProfile up = isTaker ? takerUp : userProfileService.getUserProfileOrAddSuspended(ev.matchedOrderUid);
 
         final long feeForSize = (isTaker ? spec.takerFee : spec.makerFee) * size;
-        fees.addToValue(spec.quoteCurrency, feeForSize);
+        pendingSettlements.addFee(spec.quoteCurrency, feeForSize);
 
         final boolean isSelling = takerAction == OrderAction.BID ^ isTaker;
         if (isSelling) {
 
             // selling
             final long obtainedAmountInQuoteCurrency = CoreArithmeticUtils.calculateAmountBid(size, ev.price, spec);
-            up.accounts.addToValue(spec.quoteCurrency, obtainedAmountInQuoteCurrency - feeForSize);
+            pendingSettlements.addToBalance(uid, spec.quoteCurrency, obtainedAmountInQuoteCurrency - feeForSize);
 //            log.debug("{} sells - getting {} -fee:{} (in quote cur={}) size={} ACCOUNTS:{}", up.uid, obtainedAmountInQuoteCurrency, feeForSize, spec.quoteCurrency, size, userProfileService.getUserProfile(uid).accounts);
         } else {
 
@@ -670,10 +1043,10 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
 
             // buying, use bidderHoldPrice to calculate released amount based on price difference
             final long amountDiffToReleaseInQuoteCurrency = CoreArithmeticUtils.calculateAmountBidReleaseCorr(size, ev.bidderHoldPrice - ev.price, spec, isTaker);
-            up.accounts.addToValue(spec.quoteCurrency, amountDiffToReleaseInQuoteCurrency);
+            pendingSettlements.addToBalance(uid, spec.quoteCurrency, amountDiffToReleaseInQuoteCurrency);
 
             final long obtainedAmountInBaseCurrency = CoreArithmeticUtils.calculateAmountAsk(size, spec);
-            up.accounts.addToValue(spec.baseCurrency, obtainedAmountInBaseCurrency);
+            pendingSettlements.addToBalance(uid, spec.baseCurrency, obtainedAmountInBaseCurrency);
 
 //            log.debug("{} buys - amountDiffToReleaseInQuoteCurrency={} ({}-{}) (in quote cur={})",
 //                    up.uid, amountDiffToReleaseInQuoteCurrency, ev.bidderHoldPrice, ev.price, spec.quoteCurrency);
@@ -682,16 +1055,145 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
         }
     }
 
+    private long updatePositionForMarginTrade(final SymbolPositionRecord position, final OrderAction action, final MatcherTradeEvent ev) {
+        SymbolPositionsTotals totals = positionsTotals.get(position.symbol);
+        if (totals == null) {
+            totals = new SymbolPositionsTotals(position.currency);
+            positionsTotals.put(position.symbol, totals);
+        }
+        totals.remove(position);
+        final long sizeOpen = position.updatePositionForMarginTrade(action, ev.size, ev.price);
+        totals.add(position);
+        return sizeOpen;
+    }
+
     private void removePositionRecord(SymbolPositionRecord record, UserProfile userProfile) {
+        // realized profit is moving from position to account
+        final SymbolPositionsTotals totals = positionsTotals.get(record.symbol);
+        if (totals != null) {
+            totals.remove(record);
+        }
+        accountsTotals.addToValue(record.currency, record.profit);
         userProfile.accounts.addToValue(record.currency, record.profit);
+        userProfile.futuresFreeMargin.addToValue(record.currency, -record.freeMargin);
         userProfile.positions.removeKey(record.symbol);
+        symbolPositions.get(record.symbol).remove(record);
         objectsPool.put(ObjectsPool.SYMBOL_POSITION_RECORD, record);
     }
 
+    /**
+     * Recalculate cached free margin of the position (P&L minus required margin) and apply difference to user aggregate.
+     * Must be called after any position change.
+     */
+    private void updateFreeMargin(final UserProfile userProfile,
+                                  final SymbolPositionRecord position,
+                                  final CoreSymbolSpecification spec) {
+        final long freeMargin = position.estimateProfit(spec, lastPriceCache.get(position.symbol))
+                - position.calculateRequiredMarginForFutures(spec);
+        userProfile.futuresFreeMargin.addToValue(position.currency, freeMargin - position.freeMargin);
+        position.freeMargin = freeMargin;
+    }
+
+    private void onLastPriceChanged(final int symbol) {
+        final UnifiedSet<SymbolPositionRecord> positions = symbolPositions.get(symbol);
+        if (positions != null && !positions.isEmpty()) {
+            final CoreSymbolSpecification spec = getSymbolSpecification(symbol);
+            // not using getUserProfile - cached values are not part of the snapshot
+            final LongObjectHashMap<UserProfile> userProfiles = userProfileService.getUserProfiles();
+            positions.forEach(position -> updateFreeMargin(userProfiles.get(position.uid), position, spec));
+        }
+    }
+
+    /**
+     * Account balance (used by tests), 0 if user or account does not exist
+     */
+    long getBalance(final long uid, final int currency) {
+        final UserProfile userProfile = userProfileService.findUserProfile(uid);
+        return userProfile == null ? 0 : userProfile.accounts.get(currency);
+    }
+
+    /**
+     * Total collected fees (used by tests)
+     */
+    long getFees(final int currency) {
+        return fees.get(currency);
+    }
+
+    /**
+     * Compare cached free margin with full recalculation (slow, used by tests)
+     *
+     * @throws IllegalStateException if cached values are inconsistent
+     */
+    void validateFreeMarginCache() {
+        final IntLongHashMap symbolPositionsCount = new IntLongHashMap();
+        userProfileService.getUserProfiles().forEach(userProfile -> {
+            final IntLongHashMap expected = new IntLongHashMap();
+            userProfile.positions.forEach(position -> {
+                final CoreSymbolSpecification spec = getSymbolSpecification(position.symbol);
+                final long freeMargin = position.estimateProfit(spec, lastPriceCache.get(position.symbol))
+                        - position.calculateRequiredMarginForFutures(spec);
+                if (position.freeMargin != freeMargin) {
+                    throw new IllegalStateException("uid " + userProfile.uid + " symbol " + position.symbol
+                            + ": cached free margin " + position.freeMargin + ", calculated " + freeMargin);
+                }
+                final UnifiedSet<SymbolPositionRecord> positions = symbolPositions.get(position.symbol);
+                if (positions == null || !positions.contains(position)) {
+                    throw new IllegalStateException("uid " + userProfile.uid + " symbol " + position.symbol + ": position is not tracked");
+                }
+                symbolPositionsCount.addToValue(position.symbol, 1);
+                expected.addToValue(position.currency, freeMargin);
+            });
+            expected.forEachKeyValue((currency, freeMargin) -> {
+                if (userProfile.futuresFreeMargin.get(currency) != freeMargin) {
+                    throw new IllegalStateException("uid " + userProfile.uid + " currency " + currency
+                            + ": cached free margin " + userProfile.futuresFreeMargin.get(currency) + ", calculated " + freeMargin);
+                }
+            });
+            userProfile.futuresFreeMargin.forEachKeyValue((currency, freeMargin) -> {
+                if (freeMargin != expected.get(currency)) {
+                    throw new IllegalStateException("uid " + userProfile.uid + " currency " + currency
+                            + ": cached free margin " + freeMargin + ", calculated " + expected.get(currency));
+                }
+            });
+        });
+        symbolPositions.forEachKeyValue((symbol, positions) -> {
+            if (positions.size() != symbolPositionsCount.get(symbol)) {
+                throw new IllegalStateException("symbol " + symbol + ": " + positions.size() + " positions tracked, "
+                        + symbolPositionsCount.get(symbol) + " expected");
+            }
+        });
+    }
+
+    private void rebuildFreeMarginCache() {
+        symbolPositions.clear();
+        userProfileService.getUserProfiles().forEach(userProfile -> {
+            if (!userProfile.hasPositions()) {
+                return;
+            }
+            userProfile.futuresFreeMargin.clear();
+            userProfile.positions.forEach(position -> {
+                position.freeMargin = 0;
+                symbolPositions.getIfAbsentPut(position.symbol, UnifiedSet::new).add(position);
+                updateFreeMargin(userProfile, position, getSymbolSpecification(position.symbol));
+            });
+        });
+    }
+
+    private void rebuildBalanceTotals() {
+        accountsTotals.clear();
+        positionsTotals.clear();
+        userProfileService.getUserProfiles().forEach(userProfile -> {
+            userProfile.accounts.forEachKeyValue(accountsTotals::addToValue);
+            userProfile.positions.forEach(position ->
+                    positionsTotals.getIfAbsentPut(position.symbol, () -> new SymbolPositionsTotals(position.currency)).add(position));
+        });
+    }
+
     @Override
     public void writeMarshallable(BytesOut bytes) {
 
-        bytes.writeInt(shardId).writeLong(shardMask);
+        bytes.writeInt(shardId);
+        shardMapping.writeMarshallable(bytes);
 
         symbolSpecificationProvider.writeMarshallable(bytes);
         userProfileService.writeMarshallable(bytes);
@@ -702,9 +1204,99 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
         SerializationUtils.marshallIntLongHashMap(suspends, bytes);
     }
 
+    /**
+     * Full snapshot has the same format as writeMarshallable.
+     * Delta snapshot: marker, base snapshot id, then full snapshot format,
+     * where user profiles contain only modified profiles followed by the set of removed uids.
+     */
+    private CopyOnWriteSnapshot createSnapshot(final boolean delta) {
+        final LongObjectHashMap<UserProfile> userProfiles = userProfileService.getUserProfiles();
+        final LongHashSet dirtyProfiles = userProfileService.getDirtyProfiles();
+        final CopyOnWriteSnapshot snapshot = new CopyOnWriteSnapshot(delta ? dirtyProfiles.size() : userProfiles.size(), true);
+
+        final BytesOut header = snapshot.getHeader();
+        if (delta) {
+            header.writeInt(DELTA_SNAPSHOT_MARKER).writeLong(lastSnapshotId);
+        }
+        header.writeInt(shardId);
+        shardMapping.writeMarshallable(header);
+        symbolSpecificationProvider.writeMarshallable(header);
+
+        final BytesOut trailer = snapshot.getTrailer();
+        if (delta) {
+            final LongHashSet removedProfiles = new LongHashSet();
+            dirtyProfiles.forEach(uid -> {
+                final UserProfile userProfile = userProfiles.get(uid);
+                if (userProfile != null) {
+                    snapshot.add(uid, userProfile);
+                } else {
+                    removedProfiles.add(uid);
+                }
+            });
+            SerializationUtils.marshallLongHashSet(removedProfiles, trailer);
+        } else {
+            userProfiles.forEachKeyValue(snapshot::add);
+        }
+
+        binaryCommandsProcessor.writeMarshallable(trailer);
+        SerializationUtils.marshallIntHashMap(lastPriceCache, trailer);
+        SerializationUtils.marshallIntLongHashMap(fees, trailer);
+        SerializationUtils.marshallIntLongHashMap(adjustments, trailer);
+        SerializationUtils.marshallIntLongHashMap(suspends, trailer);
+        return snapshot;
+    }
+
+    public List<ObjectsPool.Statistics> getObjectsPoolStatistics() {
+        return objectsPool.getStatistics();
+    }
+
+    public RiskRejectionsTelemetry getRejectionsTelemetry() {
+        return rejectionsTelemetry;
+    }
+
+    /**
+     * Waits until pending snapshot is written (if any). Called after processing thread is stopped.
+     */
+    public void shutdownSnapshots() {
+        if (asyncSnapshotProcessor != null) {
+            asyncSnapshotProcessor.shutdown();
+        }
+    }
+
+    /**
+     * Waits for background snapshot (if any), written snapshot becomes base for delta snapshots.
+     * Failed snapshot can not be used as base - next snapshot will be full.
+     */
+    private void completePendingSnapshot() {
+        final boolean isWritten = asyncSnapshotProcessor.awaitCompletion();
+        if (pendingSnapshotId != null) {
+            lastSnapshotId = isWritten ? pendingSnapshotId : null;
+            pendingSnapshotId = null;
+        }
+    }
+
+    /**
+     * @param snapshotId - snapshot id
+     * @return outcome of background snapshot write, or null if snapshot is unknown or async snapshots are disabled
+     */
+    public CompletableFuture<Boolean> getSnapshotResult(final long snapshotId) {
+        return asyncSnapshotProcessor != null ? asyncSnapshotProcessor.getResult(snapshotId) : null;
+    }
+
     public void reset() {
+        if (asyncSnapshotProcessor != null) {
+            asyncSnapshotProcessor.awaitCompletion();
+        }
+        // next snapshot must be full
+        lastSnapshotId = null;
+        pendingSnapshotId = null;
+        pendingSettlements.reset();
         userProfileService.reset();
+        symbolPositions.clear();
+        accountsTotals.clear();
+        positionsTotals.clear();
         symbolSpecificationProvider.reset();
+        Arrays.fill(denseSymbolSpecs, null);
         binaryCommandsProcessor.reset();
         lastPriceCache.clear();
         fees.clear();
@@ -717,7 +1309,7 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
 
         return Objects.hash(
                 shardId,
-                shardMask,
+                shardMapping.stateHash(),
                 symbolSpecificationProvider.stateHash(),
                 userProfileService.stateHash(),
                 binaryCommandsProcessor.stateHash(),
@@ -726,7 +1318,7 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
                 adjustments.hashCode(),
                 suspends.hashCode());
 
-        //log.debug("HASH RE{}/{} hash={} -- ssp={} ups={} bcp={} lpc={}", shardId, shardMask, hash, symbolSpecificationProvider.stateHash(), userProfileService.stateHash(), binaryCommandsProcessor.stateHash(), lastPriceCache.hashCode());
+        //log.debug("HASH RE{}/{} hash={} -- ssp={} ups={} bcp={} lpc={}", shardId, shardMapping, hash, symbolSpecificationProvider.stateHash(), userProfileService.stateHash(), binaryCommandsProcessor.stateHash(), lastPriceCache.hashCode());
     }
 
     @AllArgsConstructor
@@ -739,5 +1331,6 @@ public final class RiskEngine implements WriteBytesMarshallable, StateHash {
         private final IntLongHashMap fees;
         private final IntLongHashMap adjustments;
         private final IntLongHashMap suspends;
+        private final IShardMapping shardMapping;
     }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.cmd.OrderCommand;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of orders rejected by risk engine (per reason and per registered symbol), replacing logging of every rejection.
+ * <p>
+ * Counters are written only by risk engine thread (lazySet, no CAS), can be read from any thread without locking.
+ * Rejections for unknown symbols are counted only in totals, so arbitrary symbol ids can not grow per-symbol counters.
+ * Details of rejections are logged at most once per configured interval, reporting how many were suppressed.
+ */
+@Slf4j
+public final class RiskRejectionsTelemetry {
+
+    public static final long DEFAULT_DETAILS_LOG_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+
+    public enum Reason {
+        INVALID_USER,
+        INVALID_SYMBOL,
+        INVALID_RESERVE_BID_PRICE,
+        NSF
+    }
+
+    private static final Reason[] REASONS = Reason.values();
+
+    @Getter
+    private final String name;
+
+    // minimal interval between details log records, 0 - log every rejection, negative - never log details
+    @Getter
+    private final long detailsLogIntervalNs;
+
+    private final AtomicLongArray totals = new AtomicLongArray(REASONS.length);
+
+    // symbol -> counters, accessed only by risk engine thread (avoids boxing symbol on every rejection)
+    private final IntObjectHashMap<AtomicLongArray> ownerCounters = new IntObjectHashMap<>();
+
+    // same counters published for readers
+    private final Map<Integer, AtomicLongArray> symbolCounters = new ConcurrentHashMap<>();
+
+    private long lastDetailsLogNs;
+    private long suppressedDetails = 0;
+    private boolean detailsLogged = false;
+
+    /**
+     * @param detailsLogIntervalNs - minimal interval between details log records,
+     *                             0 - log every rejection, negative - never log details
+     */
+    public RiskRejectionsTelemetry(final String name, final long detailsLogIntervalNs) {
+        this.name = name;
+        this.detailsLogIntervalNs = detailsLogIntervalNs;
+    }
+
+    /**
+     * Count rejection (risk engine thread only).
+     *
+     * @param symbolRegistered - true if command symbol is known to risk engine (only then counted per symbol)
+     * @return true if details of this rejection should be logged
+     */
+    boolean onRejection(final Reason reason, final OrderCommand cmd, final boolean symbolRegistered) {
+
+        final int idx = reason.ordinal();
+        totals.lazySet(idx, totals.get(idx) + 1);
+
+        if (symbolRegistered) {
+            AtomicLongArray counters = ownerCounters.get(cmd.symbol);
+            if (counters == null) {
+                counters = new AtomicLongArray(REASONS.length);
+                ownerCounters.put(cmd.symbol, counters);
+                symbolCounters.put(cmd.symbol, counters);
+            }
+            counters.lazySet(idx, counters.get(idx) + 1);
+        }
+
+        final long interval = detailsLogIntervalNs;
+        if (interval < 0) {
+            return false;
+        } else if (interval == 0) {
+            return true;
+        }
+
+        final long now = System.nanoTime();
+        if (!detailsLogged || now - lastDetailsLogNs >= interval) {
+            detailsLogged = true;
+            lastDetailsLogNs = now;
+            return true;
+        } else {
+            suppressedDetails++;
+            return false;
+        }
+    }
+
+    /**
+     * @return number of rejections not logged since previous details log record (resets counter)
+     */
+    long takeSuppressedDetails() {
+        final long suppressed = suppressedDetails;
+        suppressedDetails = 0;
+        return suppressed;
+    }
+
+    public long getTotal(final Reason reason) {
+        return totals.get(reason.ordinal());
+    }
+
+    public long getCount(final int symbol, final Reason reason) {
+        final AtomicLongArray counters = symbolCounters.get(symbol);
+        return counters == null ? 0L : counters.get(reason.ordinal());
+    }
+
+    /**
+     * @return copy of counters: symbol -> (reason -> count), only non-zero counts
+     */
+    public Map<Integer, Map<Reason, Long>> getCountsBySymbol() {
+        final Map<Integer, Map<Reason, Long>> result = new TreeMap<>();
+        symbolCounters.forEach((symbol, counters) -> result.put(symbol, toMap(counters)));
+        return result;
+    }
+
+    /**
+     * @return copy of totals: reason -> count, only non-zero counts
+     */
+    public Map<Reason, Long> getTotals() {
+        return toMap(totals);
+    }
+
+    private static Map<Reason, Long> toMap(final AtomicLongArray counters) {
+        final Map<Reason, Long> map = new TreeMap<>();
+        for (final Reason reason : REASONS) {
+            final long count = counters.get(reason.ordinal());
+            if (count != 0) {
+                map.put(reason, count);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return name + " rejections: " + getTotals();
+    }
+}
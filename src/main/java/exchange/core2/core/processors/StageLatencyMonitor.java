@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.LifecycleAware;
+import com.lmax.disruptor.Sequence;
+import com.lmax.disruptor.SequenceReportingEventHandler;
+import exchange.core2.core.common.cmd.OrderCommand;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.SingleWriterRecorder;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Optional per-stage latency instrumentation of the pipeline.
+ * <p>
+ * Each stage stamps completion time (System.nanoTime) into the command slot and records
+ * time elapsed since completion of the preceding stage:
+ * <ul>
+ * <li>GROUPING - since ExchangeApi published the command until G publishes it, including time queued before G</li>
+ * <li>JOURNALLING, RISK_HOLD - since G published the batch (G stamps publishing time into every command of the batch)</li>
+ * <li>MATCHING - since R1</li>
+ * <li>RISK_RELEASE - since ME</li>
+ * <li>RESULTS - since ME and J (whichever is later)</li>
+ * </ul>
+ * Every command is recorded once per stage - by the shard owning its uid (R1, R2) or symbol (ME).
+ * Commands published bypassing ExchangeApi (e.g. shutdown signal) are not recorded by G.
+ * Each recorder has single writer (stage thread), histograms can be pulled by any thread.
+ */
+public final class StageLatencyMonitor {
+
+    public enum Stage {
+        GROUPING,
+        JOURNALLING,
+        RISK_HOLD,
+        MATCHING,
+        RISK_RELEASE,
+        RESULTS
+    }
+
+    private static final long HIGHEST_TRACKABLE_VALUE_NS = 10_000_000_000L;
+    private static final int NUMBER_OF_SIGNIFICANT_DIGITS = 2;
+
+    private final SingleWriterRecorder[][] recorders;
+
+    public StageLatencyMonitor(final int matchingEnginesNum, final int riskEnginesNum) {
+        recorders = new SingleWriterRecorder[Stage.values().length][];
+        for (final Stage stage : Stage.values()) {
+            final int shards = (stage == Stage.MATCHING) ? matchingEnginesNum
+                    : (stage == Stage.RISK_HOLD || stage == Stage.RISK_RELEASE) ? riskEnginesNum
+                    : 1;
+            final SingleWriterRecorder[] stageRecorders = new SingleWriterRecorder[shards];
+            for (int i = 0; i < shards; i++) {
+                stageRecorders[i] = new SingleWriterRecorder(HIGHEST_TRACKABLE_VALUE_NS, NUMBER_OF_SIGNIFICANT_DIGITS);
+            }
+            recorders[stage.ordinal()] = stageRecorders;
+        }
+    }
+
+    public void record(final Stage stage, final int shard, final long latencyNs) {
+        recorders[stage.ordinal()][shard].recordValue(Math.min(Math.max(latencyNs, 0), HIGHEST_TRACKABLE_VALUE_NS));
+    }
+
+    public int getShardsNum(final Stage stage) {
+        return recorders[stage.ordinal()].length;
+    }
+
+    /**
+     * Get histogram of values recorded since previous call (for given stage and shard)
+     */
+    public synchronized Histogram getIntervalHistogram(final Stage stage, final int shard) {
+        return recorders[stage.ordinal()][shard].getIntervalHistogram();
+    }
+
+    /**
+     * Get histograms of values recorded since previous call (per stage, per shard)
+     */
+    public synchronized Map<Stage, Histogram[]> getIntervalHistograms() {
+        final Map<Stage, Histogram[]> result = new EnumMap<>(Stage.class);
+        for (final Stage stage : Stage.values()) {
+            final SingleWriterRecorder[] stageRecorders = recorders[stage.ordinal()];
+            final Histogram[] histograms = new Histogram[stageRecorders.length];
+            for (int i = 0; i < stageRecorders.length; i++) {
+                histograms[i] = stageRecorders[i].getIntervalHistogram();
+            }
+            result.put(stage, histograms);
+        }
+        return result;
+    }
+
+    /**
+     * Reset all recorders (e.g. after warmup)
+     */
+    public synchronized void reset() {
+        for (final SingleWriterRecorder[] stageRecorders : recorders) {
+            for (final SingleWriterRecorder recorder : stageRecorders) {
+                recorder.reset();
+            }
+        }
+    }
+
+    // stage handlers wrappers, used only when monitoring is enabled
+
+    public SimpleEventHandler riskHold(final RiskEngine riskEngine, final int shard) {
+        return cmd -> {
+            final boolean res = riskEngine.preProcessCommand(cmd);
+            if (riskEngine.uidForThisHandler(cmd.uid)) {
+                final long t = System.nanoTime();
+                record(Stage.RISK_HOLD, shard, t - cmd.groupingNs);
+                cmd.riskHoldNs = t;
+            }
+            return res;
+        };
+    }
+
+    public void matching(final MatchingEngineRouter matchingEngine, final int shard, final OrderCommand cmd) {
+        matchingEngine.processOrder(cmd);
+        if (matchingEngine.symbolForThisHandler(cmd.symbol)) {
+            final long t = System.nanoTime();
+            record(Stage.MATCHING, shard, t - cmd.riskHoldNs);
+            cmd.matchingNs = t;
+        }
+    }
+
+    public SimpleEventHandler riskRelease(final RiskEngine riskEngine, final int shard) {
+        return cmd -> {
+            final boolean res = riskEngine.handlerRiskRelease(cmd);
+            if (riskEngine.uidForThisHandler(cmd.uid)) {
+                record(Stage.RISK_RELEASE, shard, System.nanoTime() - cmd.matchingNs);
+            }
+            return res;
+        };
+    }
+
+    public EventHandler<OrderCommand> journalling(final EventHandler<OrderCommand> journallingHandler) {
+        return new JournallingHandlerWrapper(journallingHandler);
+    }
+
+    public void results(final OrderCommand cmd, final boolean journalling) {
+        final long prev = journalling ? Math.max(cmd.matchingNs, cmd.journallingNs) : cmd.matchingNs;
+        record(Stage.RESULTS, 0, System.nanoTime() - prev);
+    }
+
+    private final class JournallingHandlerWrapper implements SequenceReportingEventHandler<OrderCommand>, LifecycleAware {
+
+        private final EventHandler<OrderCommand> delegate;
+
+        private JournallingHandlerWrapper(final EventHandler<OrderCommand> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void onEvent(final OrderCommand cmd, final long seq, final boolean endOfBatch) throws Exception {
+            delegate.onEvent(cmd, seq, endOfBatch);
+            final long t = System.nanoTime();
+            record(Stage.JOURNALLING, 0, t - cmd.groupingNs);
+            cmd.journallingNs = t;
+        }
+
+        @Override
+        public void setSequenceCallback(final Sequence sequenceCallback) {
+            if (delegate instanceof SequenceReportingEventHandler) {
+                ((SequenceReportingEventHandler<OrderCommand>) delegate).setSequenceCallback(sequenceCallback);
+            }
+        }
+
+        @Override
+        public void onStart() {
+            if (delegate instanceof LifecycleAware) {
+                ((LifecycleAware) delegate).onStart();
+            }
+        }
+
+        @Override
+        public void onShutdown() {
+            if (delegate instanceof LifecycleAware) {
+                ((LifecycleAware) delegate).onShutdown();
+            }
+        }
+    }
+}
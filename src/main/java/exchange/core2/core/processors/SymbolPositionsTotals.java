@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.CoreSymbolSpecification;
+import exchange.core2.core.common.PositionDirection;
+import exchange.core2.core.common.SymbolPositionRecord;
+
+/**
+ * Sums of all margin positions of one symbol (within risk engine shard), maintained incrementally.
+ * <p>
+ * Profit estimation is linear in position fields, so estimating the aggregate gives exactly the same result
+ * as estimating every position separately (used by total balance report).
+ * <p>
+ * Not thread safe, owned by risk engine thread.
+ */
+final class SymbolPositionsTotals {
+
+    final int currency;
+
+    long profit = 0;
+
+    long longVolume = 0;
+    long longOpenPriceSum = 0;
+
+    long shortVolume = 0;
+    long shortOpenPriceSum = 0;
+
+    SymbolPositionsTotals(final int currency) {
+        this.currency = currency;
+    }
+
+    void add(final SymbolPositionRecord position) {
+        update(position, 1);
+    }
+
+    void remove(final SymbolPositionRecord position) {
+        update(position, -1);
+    }
+
+    private void update(final SymbolPositionRecord position, final long sign) {
+        profit += sign * position.profit;
+        if (position.direction == PositionDirection.LONG) {
+            longVolume += sign * position.openVolume;
+            longOpenPriceSum += sign * position.openPriceSum;
+        } else if (position.direction == PositionDirection.SHORT) {
+            shortVolume += sign * position.openVolume;
+            shortOpenPriceSum += sign * position.openPriceSum;
+        }
+    }
+
+    /**
+     * Same as sum of SymbolPositionRecord.estimateProfit for all positions of the symbol
+     */
+    long estimateProfit(final CoreSymbolSpecification spec, final RiskEngine.LastPriceCacheRecord lastPriceCacheRecord) {
+        final long longProfit = (lastPriceCacheRecord != null && lastPriceCacheRecord.bidPrice != 0)
+                ? (longVolume * lastPriceCacheRecord.bidPrice - longOpenPriceSum)
+                : spec.marginBuy * longVolume; // unknown price - no liquidity - require extra margin
+        final long shortProfit = (lastPriceCacheRecord != null && lastPriceCacheRecord.askPrice != Long.MAX_VALUE)
+                ? (shortOpenPriceSum - shortVolume * lastPriceCacheRecord.askPrice)
+                : spec.marginSell * shortVolume; // unknown price - no liquidity - require extra margin
+        return profit + longProfit + shortProfit;
+    }
+}
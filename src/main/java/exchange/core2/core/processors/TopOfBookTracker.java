@@ -0,0 +1,223 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.L2MarketData;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.orderbook.IOrderBook;
+import exchange.core2.core.utils.SerializationUtils;
+import net.openhft.chronicle.bytes.BytesIn;
+import net.openhft.chronicle.bytes.BytesOut;
+import net.openhft.chronicle.bytes.WriteBytesMarshallable;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
+
+/**
+ * Change-driven top-of-book publishing for risk engine last price cache (one instance per matching engine shard).
+ * <p>
+ * Market data is published only when best ask or best bid price of an order book has changed since last publishing,
+ * and not more than once per publishing epoch for each order book. Epochs are switched by service flag,
+ * which is set by grouping processor once per publishing interval and journalled, so journal replay is deterministic.
+ * Changes suppressed by the rate limit are queued and published as soon as next epoch starts
+ * (attached to a successful command of the same matching engine shard).
+ */
+public final class TopOfBookTracker implements WriteBytesMarshallable {
+
+    private final IntObjectHashMap<Record> records;
+
+    // symbols with changed but not yet published top-of-book, in order of changes
+    private final IntArrayList pendingQueue;
+
+    private long epoch;
+
+    // reused for reading current best prices
+    private final L2MarketData topOfBook = new L2MarketData(1, 1);
+
+    public TopOfBookTracker() {
+        this.records = new IntObjectHashMap<>();
+        this.pendingQueue = new IntArrayList();
+        this.epoch = 0;
+    }
+
+    public TopOfBookTracker(final BytesIn bytes) {
+        this.epoch = bytes.readLong();
+        this.records = SerializationUtils.readIntHashMap(bytes, Record::new);
+        this.pendingQueue = IntArrayList.newListWith(SerializationUtils.readIntArray(bytes));
+    }
+
+    public void nextEpoch() {
+        epoch++;
+    }
+
+    /**
+     * Must be called after successful command modified order book
+     *
+     * @param cmd - command to attach top-of-book market data to
+     * @return true if market data was attached
+     */
+    public boolean onOrderBookUpdated(final int symbol, final IOrderBook orderBook, final OrderCommand cmd) {
+
+        orderBook.fillAsks(1, topOfBook);
+        orderBook.fillBids(1, topOfBook);
+        final long askPrice = topOfBook.askSize != 0 ? topOfBook.askPrices[0] : Long.MAX_VALUE;
+        final long bidPrice = topOfBook.bidSize != 0 ? topOfBook.bidPrices[0] : 0;
+
+        Record record = records.get(symbol);
+        if (record == null) {
+            record = new Record();
+            records.put(symbol, record);
+        } else if (record.askPrice == askPrice && record.bidPrice == bidPrice) {
+            // not changed (or changed back) since last publishing
+            record.pending = false;
+            return false;
+        } else if (record.epoch == epoch) {
+            // already published in this epoch
+            if (!record.pending) {
+                record.pending = true;
+                pendingQueue.add(symbol);
+            }
+            return false;
+        }
+
+        publish(symbol, record, askPrice, bidPrice, cmd);
+        return true;
+    }
+
+    /**
+     * Publish pending top-of-book change, if rate limit allows
+     *
+     * @param orderBooks - order books of this shard
+     * @param cmd        - command to attach top-of-book market data to
+     * @return true if market data was attached
+     */
+    public boolean pollPending(final IntObjectHashMap<IOrderBook> orderBooks, final OrderCommand cmd) {
+
+        while (!pendingQueue.isEmpty()) {
+
+            final int symbol = pendingQueue.get(0);
+            final Record record = records.get(symbol);
+
+            if (record != null && record.pending && record.epoch == epoch) {
+                // next ones were published not earlier than this one
+                return false;
+            }
+
+            pendingQueue.removeAtIndex(0);
+
+            final IOrderBook orderBook = orderBooks.get(symbol);
+            if (record != null && record.pending && orderBook != null) {
+                orderBook.fillAsks(1, topOfBook);
+                orderBook.fillBids(1, topOfBook);
+                final long askPrice = topOfBook.askSize != 0 ? topOfBook.askPrices[0] : Long.MAX_VALUE;
+                final long bidPrice = topOfBook.bidSize != 0 ? topOfBook.bidPrices[0] : 0;
+                publish(symbol, record, askPrice, bidPrice, cmd);
+                return true;
+            }
+            if (record != null) {
+                record.pending = false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queue top-of-book change for publishing with one of next commands
+     * (used when command modified more than one order book and can carry market data of one order book only)
+     */
+    public void markPending(final int symbol) {
+        Record record = records.get(symbol);
+        if (record == null) {
+            record = new Record();
+            records.put(symbol, record);
+        }
+        if (!record.pending) {
+            record.pending = true;
+            pendingQueue.add(symbol);
+        }
+    }
+
+    /**
+     * Stop tracking order book (migrated to another shard), pending change is dropped
+     */
+    public void forget(final int symbol) {
+        records.remove(symbol);
+    }
+
+    private void publish(final int symbol,
+                         final Record record,
+                         final long askPrice,
+                         final long bidPrice,
+                         final OrderCommand cmd) {
+        record.askPrice = askPrice;
+        record.bidPrice = bidPrice;
+        record.epoch = epoch;
+        record.pending = false;
+
+        // copy best levels into command's market data carrier
+        final L2MarketData marketData = cmd.attachMarketData(1, 1);
+        marketData.askSize = topOfBook.askSize;
+        marketData.bidSize = topOfBook.bidSize;
+        marketData.askPrices[0] = topOfBook.askPrices[0];
+        marketData.askVolumes[0] = topOfBook.askVolumes[0];
+        marketData.askOrders[0] = topOfBook.askOrders[0];
+        marketData.bidPrices[0] = topOfBook.bidPrices[0];
+        marketData.bidVolumes[0] = topOfBook.bidVolumes[0];
+        marketData.bidOrders[0] = topOfBook.bidOrders[0];
+        marketData.symbol = symbol;
+    }
+
+    public void reset() {
+        records.clear();
+        pendingQueue.clear();
+        epoch = 0;
+    }
+
+    @Override
+    public void writeMarshallable(final BytesOut bytes) {
+        bytes.writeLong(epoch);
+        SerializationUtils.marshallIntHashMap(records, bytes);
+        SerializationUtils.marshallIntArray(pendingQueue.toArray(), bytes);
+    }
+
+    private static final class Record implements WriteBytesMarshallable {
+
+        // last published values
+        private long askPrice;
+        private long bidPrice;
+        private long epoch;
+
+        private boolean pending = false;
+
+        private Record() {
+            this.epoch = -1;
+        }
+
+        private Record(final BytesIn bytes) {
+            this.askPrice = bytes.readLong();
+            this.bidPrice = bytes.readLong();
+            this.epoch = bytes.readLong();
+            this.pending = bytes.readBoolean();
+        }
+
+        @Override
+        public void writeMarshallable(final BytesOut bytes) {
+            bytes.writeLong(askPrice);
+            bytes.writeLong(bidPrice);
+            bytes.writeLong(epoch);
+            bytes.writeBoolean(pending);
+        }
+    }
+}
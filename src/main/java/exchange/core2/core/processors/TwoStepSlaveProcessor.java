@@ -33,6 +33,7 @@ public final class TwoStepSlaveProcessor implements EventProcessor {
     private final SequenceBarrier sequenceBarrier;
     private final WaitSpinningHelper waitSpinningHelper;
     private final SimpleEventHandler eventHandler;
+    private final Runnable groupEndHandler;
     private final Sequence sequence = new Sequence(Sequencer.INITIAL_CURSOR_VALUE);
     private final ExceptionHandler<? super OrderCommand> exceptionHandler;
     private long nextSequence = -1;
@@ -40,11 +41,13 @@ public final class TwoStepSlaveProcessor implements EventProcessor {
     public TwoStepSlaveProcessor(final RingBuffer<OrderCommand> ringBuffer,
                                  final SequenceBarrier sequenceBarrier,
                                  final SimpleEventHandler eventHandler,
+                                 final Runnable groupEndHandler,
                                  final ExceptionHandler<? super OrderCommand> exceptionHandler) {
         this.dataProvider = ringBuffer;
         this.sequenceBarrier = sequenceBarrier;
         this.waitSpinningHelper = new WaitSpinningHelper(ringBuffer, sequenceBarrier, 0, CoreWaitStrategy.NO_WAIT);
         this.eventHandler = eventHandler;
+        this.groupEndHandler = groupEndHandler;
         this.exceptionHandler = exceptionHandler;
     }
 
@@ -95,6 +98,7 @@ public final class TwoStepSlaveProcessor implements EventProcessor {
 
                 // exit if finished processing entire group (up to specified sequence)
                 if (nextSequence == processUpToSequence) {
+                    groupEndHandler.run();
                     sequence.set(nextSequence - 1);
                     return;
                 }
@@ -26,8 +26,10 @@ import net.openhft.chronicle.bytes.BytesIn;
 import net.openhft.chronicle.bytes.BytesOut;
 import net.openhft.chronicle.bytes.WriteBytesMarshallable;
 import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
 
 import java.util.Objects;
+import java.util.function.Supplier;
 
 /**
  * Stateful (!) User profile service
@@ -43,6 +45,16 @@ public final class UserProfileService implements WriteBytesMarshallable, StateHa
     @Getter
     private final LongObjectHashMap<UserProfile> userProfiles;
 
+    // optional copy-on-write snapshots support
+    private AsyncSnapshotProcessor snapshotProcessor = null;
+
+    // optional recycling of suspended profiles
+    private ObjectsPool objectsPool = null;
+
+    // profiles modified (or removed) since last snapshot, null if not tracking
+    @Getter
+    private LongHashSet dirtyProfiles = null;
+
     public UserProfileService() {
         this.userProfiles = new LongObjectHashMap<>(1024);
     }
@@ -51,18 +63,88 @@ public final class UserProfileService implements WriteBytesMarshallable, StateHa
         this.userProfiles = SerializationUtils.readLongHashMap(bytes, UserProfile::new);
     }
 
+    void setSnapshotProcessor(final AsyncSnapshotProcessor snapshotProcessor) {
+        this.snapshotProcessor = snapshotProcessor;
+    }
+
+    void setObjectsPool(final ObjectsPool objectsPool) {
+        this.objectsPool = objectsPool;
+    }
+
+    private UserProfile newUserProfile(final long uid, final boolean suspended) {
+        if (objectsPool == null) {
+            return new UserProfile(uid, suspended);
+        }
+        final UserProfile userProfile = objectsPool.get(ObjectsPool.USER_PROFILE, (Supplier<UserProfile>) () -> new UserProfile(0L, false));
+        userProfile.initialize(uid, suspended);
+        return userProfile;
+    }
+
+    /**
+     * Start tracking modified profiles from scratch (after snapshot is taken or loaded)
+     */
+    void startDirtyTracking() {
+        if (dirtyProfiles == null) {
+            dirtyProfiles = new LongHashSet();
+        } else {
+            dirtyProfiles.clear();
+        }
+    }
+
+    /**
+     * Apply delta snapshot: modified profiles, then removed profiles
+     */
+    void applyDelta(final BytesIn bytes) {
+        userProfiles.putAll(SerializationUtils.readLongHashMap(bytes, UserProfile::new));
+        SerializationUtils.readLongHashSet(bytes).forEach(userProfiles::remove);
+    }
+
     /**
-     * Find user profile
+     * Must be called before modifying profile found by {@link #findUserProfile(long)}
+     * (profile is copied first if snapshot is in progress, and marked as modified for delta snapshot)
+     *
+     * @param uid
+     */
+    void beforeUpdate(final long uid) {
+        if (snapshotProcessor != null) {
+            snapshotProcessor.beforeUpdate(uid);
+        }
+        if (dirtyProfiles != null) {
+            dirtyProfiles.add(uid);
+        }
+    }
+
+    /**
+     * Find user profile.
+     * Returned profile can be modified, so it is copied first if snapshot is in progress.
      *
      * @param uid
      * @return
      */
     public UserProfile getUserProfile(long uid) {
+        beforeUpdate(uid);
+        return userProfiles.get(uid);
+    }
+
+    /**
+     * Find user profile for reading only (reports, rejected commands).
+     * Profile is not copied or marked as modified, so it must not be modified without calling beforeUpdate first.
+     *
+     * @param uid
+     * @return
+     */
+    public UserProfile findUserProfile(long uid) {
         return userProfiles.get(uid);
     }
 
     public UserProfile getUserProfileOrAddSuspended(long uid) {
-        return userProfiles.getIfAbsentPut(uid, () -> new UserProfile(uid, true));
+        beforeUpdate(uid);
+        UserProfile userProfile = userProfiles.get(uid);
+        if (userProfile == null) {
+            userProfile = newUserProfile(uid, true);
+            userProfiles.put(uid, userProfile);
+        }
+        return userProfile;
     }
 
 
@@ -115,7 +197,8 @@ public final class UserProfileService implements WriteBytesMarshallable, StateHa
      */
     public boolean addEmptyUserProfile(long uid) {
         if (userProfiles.get(uid) == null) {
-            userProfiles.put(uid, new UserProfile(uid, false));
+            beforeUpdate(uid);
+            userProfiles.put(uid, newUserProfile(uid, false));
             return true;
         } else {
             log.debug("Can not add user, already exists: {}", uid);
@@ -135,7 +218,7 @@ public final class UserProfileService implements WriteBytesMarshallable, StateHa
      * @return result code
      */
     public CommandResultCode suspendUserProfile(long uid) {
-        final UserProfile userProfile = userProfiles.get(uid);
+        final UserProfile userProfile = getUserProfile(uid);
         if (userProfile == null) {
             return CommandResultCode.USER_MGMT_USER_NOT_FOUND;
 
@@ -151,17 +234,20 @@ public final class UserProfileService implements WriteBytesMarshallable, StateHa
         } else {
             log.debug("Suspended user profile: {}", userProfile);
             userProfiles.remove(uid);
-            // TODO pool UserProfile objects
+            // profile was already copied by snapshot (if any) in getUserProfile, can be reused
+            if (objectsPool != null && !userProfile.hasPositions()) {
+                objectsPool.put(ObjectsPool.USER_PROFILE, userProfile);
+            }
             return CommandResultCode.SUCCESS;
         }
     }
 
     public CommandResultCode resumeUserProfile(long uid) {
-        final UserProfile userProfile = userProfiles.get(uid);
+        final UserProfile userProfile = getUserProfile(uid);
         if (userProfile == null) {
             // create new empty user profile
             // account balance adjustments should be applied later
-            userProfiles.put(uid, new UserProfile(uid, false));
+            userProfiles.put(uid, newUserProfile(uid, false));
             return CommandResultCode.SUCCESS;
         } else if (!userProfile.suspended) {
             // attempt to resume non-suspended account (or resume twice)
@@ -178,6 +264,7 @@ public final class UserProfileService implements WriteBytesMarshallable, StateHa
      * Reset module - for testing only
      */
     public void reset() {
+        dirtyProfiles = null;
         userProfiles.clear();
     }
 
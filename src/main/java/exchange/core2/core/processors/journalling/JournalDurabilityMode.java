@@ -0,0 +1,29 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors.journalling;
+
+public enum JournalDurabilityMode {
+
+    // journal is not written, commands are released immediately (baseline for benchmarks)
+    NONE,
+
+    // commands are written into memory-mapped segments, OS flushes pages lazily
+    // survives process crash, but not OS crash or power loss
+    PAGE_CACHE,
+
+    // memory-mapped segments are forced to disk once per events group, group is released to results stage after that
+    FSYNC_PER_GROUP
+}
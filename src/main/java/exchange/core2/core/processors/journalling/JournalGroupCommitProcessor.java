@@ -0,0 +1,195 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors.journalling;
+
+import com.lmax.disruptor.*;
+import exchange.core2.core.common.CoreWaitStrategy;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.processors.GroupingController;
+import exchange.core2.core.processors.StageLatencyMonitor;
+import exchange.core2.core.processors.WaitSpinningHelper;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Journalling stage (J) processor, group commit.
+ * <p>
+ * Unlike BatchEventProcessor, sequence is not published at the end of each batch.
+ * Journal is committed and sequence is published only when events group is complete:
+ * <ul>
+ * <li>first command of the next group is received, or</li>
+ * <li>no commands received within current group duration (group is closed by GroupingProcessor timer).</li>
+ * </ul>
+ * Without fsync (NONE, PAGE_CACHE modes) commit is free, so sequence is published at the end of each batch.
+ * <p>
+ * Append or commit failure is fatal: processor stops, and commands after the last committed sequence are never released.
+ */
+@Slf4j
+public final class JournalGroupCommitProcessor implements EventProcessor {
+    private static final int IDLE = 0;
+    private static final int HALTED = IDLE + 1;
+    private static final int RUNNING = HALTED + 1;
+
+    private static final int COMMIT_SPIN_LIMIT = 1000;
+
+    private final AtomicInteger running = new AtomicInteger(IDLE);
+    private final RingBuffer<OrderCommand> ringBuffer;
+    private final SequenceBarrier sequenceBarrier;
+    private final WaitSpinningHelper waitSpinningHelper;
+    private final Sequence sequence = new Sequence(Sequencer.INITIAL_CURSOR_VALUE);
+
+    private final MappedJournallingProcessor journal;
+    private final GroupingController groupingController;
+    private final ExceptionHandler<? super OrderCommand> exceptionHandler;
+
+    // null if stage latency monitoring is disabled
+    private final StageLatencyMonitor latencyMonitor;
+
+    public JournalGroupCommitProcessor(final RingBuffer<OrderCommand> ringBuffer,
+                                       final SequenceBarrier sequenceBarrier,
+                                       final MappedJournallingProcessor journal,
+                                       final GroupingController groupingController,
+                                       final CoreWaitStrategy coreWaitStrategy,
+                                       final ExceptionHandler<? super OrderCommand> exceptionHandler,
+                                       final StageLatencyMonitor latencyMonitor) {
+        this.ringBuffer = ringBuffer;
+        this.sequenceBarrier = sequenceBarrier;
+        this.waitSpinningHelper = new WaitSpinningHelper(ringBuffer, sequenceBarrier, COMMIT_SPIN_LIMIT, coreWaitStrategy);
+        this.journal = journal;
+        this.groupingController = groupingController;
+        this.exceptionHandler = exceptionHandler;
+        this.latencyMonitor = latencyMonitor;
+    }
+
+    @Override
+    public Sequence getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public void halt() {
+        running.set(HALTED);
+        sequenceBarrier.alert();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running.get() != IDLE;
+    }
+
+    /**
+     * It is ok to have another thread rerun this method after a halt().
+     *
+     * @throws IllegalStateException if this object instance is already running in a thread
+     */
+    @Override
+    public void run() {
+        if (running.compareAndSet(IDLE, RUNNING)) {
+            sequenceBarrier.clearAlert();
+            journal.onStart();
+            try {
+                if (running.get() == RUNNING) {
+                    processEvents();
+                }
+            } finally {
+                journal.onShutdown();
+                running.set(IDLE);
+            }
+        } else {
+            if (running.get() == RUNNING) {
+                throw new IllegalStateException("Thread is already running (J)");
+            }
+        }
+    }
+
+    private void processEvents() {
+        long nextSequence = sequence.get() + 1L;
+
+        final boolean groupCommit = journal.getDurabilityMode() == JournalDurabilityMode.FSYNC_PER_GROUP;
+
+        long currentGroup = -1;
+        long commitDeadlineNs = 0;
+
+        while (true) {
+            OrderCommand cmd = null;
+            try {
+                final long availableSequence = waitSpinningHelper.tryWaitFor(nextSequence);
+
+                if (nextSequence <= availableSequence) {
+                    while (nextSequence <= availableSequence) {
+                        cmd = ringBuffer.get(nextSequence);
+
+                        if (cmd.eventsGroup != currentGroup) {
+                            // previous group is complete - make it durable and release it to the results stage
+                            commit(nextSequence - 1);
+                            currentGroup = cmd.eventsGroup;
+                        }
+
+                        journal.append(cmd, nextSequence);
+                        nextSequence++;
+                    }
+
+                    if (groupCommit) {
+                        commitDeadlineNs = System.nanoTime() + groupingController.getGroupMaxDurationNs();
+                    } else {
+                        commit(availableSequence);
+                    }
+
+                } else if (nextSequence - 1 > sequence.get() && System.nanoTime() > commitDeadlineNs) {
+                    // no more commands within group duration - group is closed
+                    commit(nextSequence - 1);
+                }
+
+            } catch (final AlertException ex) {
+                if (running.get() != RUNNING) {
+                    break;
+                }
+            } catch (final Throwable ex) {
+                // fatal - records appended since last commit are not durable, and failed command is not journalled,
+                // so sequence stays at the last committed one and processing stops (commands are never skipped)
+                running.set(HALTED);
+                exceptionHandler.handleEventException(ex, nextSequence, cmd);
+                break;
+            }
+        }
+    }
+
+    private void commit(final long upToSequence) {
+        final long fromSequence = sequence.get() + 1;
+        if (upToSequence < fromSequence) {
+            return;
+        }
+
+        journal.commit();
+
+        if (latencyMonitor != null) {
+            final long t = System.nanoTime();
+            for (long seq = fromSequence; seq <= upToSequence; seq++) {
+                final OrderCommand cmd = ringBuffer.get(seq);
+                latencyMonitor.record(StageLatencyMonitor.Stage.JOURNALLING, 0, t - cmd.groupingNs);
+                cmd.journallingNs = t;
+            }
+        }
+
+        sequence.set(upToSequence);
+    }
+
+    @Override
+    public String toString() {
+        return "JournalGroupCommitProcessor{" + journal + '}';
+    }
+}
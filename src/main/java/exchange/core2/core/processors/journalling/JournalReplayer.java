@@ -0,0 +1,310 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors.journalling;
+
+import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.OrderType;
+import exchange.core2.core.common.QuoteLevels;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.common.cmd.OrderCommandType;
+import exchange.core2.core.processors.MatchingEngineRouter;
+import exchange.core2.core.processors.RiskEngine;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static exchange.core2.core.processors.journalling.MappedJournallingProcessor.*;
+
+/**
+ * Replays journal tail (written by {@link MappedJournallingProcessor}) directly into matching engines and risk engines,
+ * bypassing ring buffer, grouping processor and results handlers.
+ * <p>
+ * Each engine shard is replayed by its own thread. Original events groups are respected:
+ * R1 of a group is executed by every risk engine shard, then group is matched by every matching engine shard,
+ * then R2 is executed. Shards are synchronized only at group boundaries.
+ */
+@Slf4j
+public final class JournalReplayer {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int SPIN_LIMIT = 1000;
+
+    private final String folder;
+    private final String exchangeId;
+
+    public JournalReplayer(final String folder, final String exchangeId) {
+        this.folder = folder;
+        this.exchangeId = exchangeId;
+    }
+
+    /**
+     * Replay journal records following snapshot marker.
+     *
+     * @param snapshotId      - snapshot id (loadStateId), if null - entire journal is replayed
+     * @param matchingEngines - matching engine shards (already restored from snapshot)
+     * @param riskEngines     - risk engine shards (already restored from snapshot)
+     * @param executor        - executor with at least (matching engines + risk engines) threads
+     * @return number of replayed commands
+     */
+    public long replay(final Long snapshotId,
+                       final List<MatchingEngineRouter> matchingEngines,
+                       final List<RiskEngine> riskEngines,
+                       final ExecutorService executor) {
+
+        final List<MappedByteBuffer> segments = mapSegments();
+
+        // find position right after snapshot marker (last one, if snapshot id was reused)
+        int startSegment = 0;
+        int startPosition = 0;
+        if (snapshotId != null) {
+            boolean found = false;
+            for (int i = 0; i < segments.size(); i++) {
+                final MappedByteBuffer segment = segments.get(i);
+                for (int pos = 0; pos + RECORD_SIZE <= segment.limit() && segment.get(pos + OFFSET_COMMAND) != 0; pos += recordsNum(segment, pos) * RECORD_SIZE) {
+                    if (segment.get(pos + OFFSET_COMMAND) == OrderCommandType.PERSIST_STATE_RISK.getCode()
+                            && segment.getLong(pos + OFFSET_ORDER_ID) == snapshotId) {
+                        startSegment = i;
+                        startPosition = pos + RECORD_SIZE;
+                        found = true;
+                    }
+                }
+            }
+            if (!found) {
+                throw new IllegalStateException("Snapshot " + snapshotId + " marker not found in journal " + exchangeId);
+            }
+        }
+
+        log.info("Replaying journal {} from segment {} position {} ...", exchangeId, startSegment, startPosition);
+
+        final long t = System.nanoTime();
+        long totalCommands = 0;
+
+        OrderCommand[] chunk = createCommands(CHUNK_SIZE);
+        int[] groupEnds = new int[CHUNK_SIZE];
+        int size = 0;
+        int groupsNum = 0;
+        long lastGroup = Long.MIN_VALUE;
+
+        for (int i = startSegment; i < segments.size(); i++) {
+            final MappedByteBuffer segment = segments.get(i);
+            for (int pos = (i == startSegment) ? startPosition : 0;
+                 pos + RECORD_SIZE <= segment.limit() && segment.get(pos + OFFSET_COMMAND) != 0;
+                 pos += recordsNum(segment, pos) * RECORD_SIZE) {
+
+                final byte commandCode = segment.get(pos + OFFSET_COMMAND);
+                if (commandCode == OrderCommandType.PERSIST_STATE_MATCHING.getCode()
+                        || commandCode == OrderCommandType.PERSIST_STATE_RISK.getCode()) {
+                    // not creating snapshots again
+                    continue;
+                }
+
+                final long eventsGroup = segment.getLong(pos + OFFSET_EVENTS_GROUP);
+                if (eventsGroup != lastGroup && size != 0) {
+                    groupEnds[groupsNum++] = size;
+
+                    if (size >= CHUNK_SIZE) {
+                        replayChunk(chunk, groupEnds, groupsNum, matchingEngines, riskEngines, executor);
+                        totalCommands += size;
+                        size = 0;
+                        groupsNum = 0;
+                    }
+                }
+                lastGroup = eventsGroup;
+
+                if (size == chunk.length) {
+                    // very big group - can not split it
+                    chunk = Arrays.copyOf(chunk, chunk.length * 2);
+                    for (int j = size; j < chunk.length; j++) {
+                        chunk[j] = new OrderCommand();
+                    }
+                    groupEnds = Arrays.copyOf(groupEnds, groupEnds.length * 2);
+                }
+
+                readRecord(segment, pos, chunk[size++]);
+            }
+        }
+
+        if (size != 0) {
+            groupEnds[groupsNum++] = size;
+            replayChunk(chunk, groupEnds, groupsNum, matchingEngines, riskEngines, executor);
+            totalCommands += size;
+        }
+
+        final long durationNs = System.nanoTime() - t;
+        final float perfMt = durationNs == 0 ? 0 : (float) totalCommands * 1000.0f / (float) durationNs;
+        log.info("Replayed {} commands in {}ms ({} MT/s)", totalCommands, durationNs / 1_000_000, String.format("%.3f", perfMt));
+
+        return totalCommands;
+    }
+
+    private void replayChunk(final OrderCommand[] cmds,
+                             final int[] groupEnds,
+                             final int groupsNum,
+                             final List<MatchingEngineRouter> matchingEngines,
+                             final List<RiskEngine> riskEngines,
+                             final ExecutorService executor) {
+
+        // number of fully processed groups per shard
+        final AtomicIntegerArray riskPreProcessed = new AtomicIntegerArray(riskEngines.size());
+        final AtomicIntegerArray matched = new AtomicIntegerArray(matchingEngines.size());
+
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        for (int shard = 0; shard < riskEngines.size(); shard++) {
+            final RiskEngine riskEngine = riskEngines.get(shard);
+            final int shardId = shard;
+            futures.add(CompletableFuture.runAsync(() -> {
+                int from = 0;
+                for (int g = 0; g < groupsNum; g++) {
+                    final int to = groupEnds[g];
+                    for (int i = from; i < to; i++) {
+                        riskEngine.preProcessCommand(cmds[i]);
+                    }
+                    riskPreProcessed.lazySet(shardId, g + 1);
+
+                    awaitAll(matched, g + 1);
+                    for (int i = from; i < to; i++) {
+                        riskEngine.handlerRiskRelease(cmds[i]);
+                    }
+                    riskEngine.applyPendingSettlements();
+                    from = to;
+                }
+            }, executor));
+        }
+
+        for (int shard = 0; shard < matchingEngines.size(); shard++) {
+            final MatchingEngineRouter matchingEngine = matchingEngines.get(shard);
+            final int shardId = shard;
+            futures.add(CompletableFuture.runAsync(() -> {
+                int from = 0;
+                for (int g = 0; g < groupsNum; g++) {
+                    final int to = groupEnds[g];
+                    awaitAll(riskPreProcessed, g + 1);
+                    for (int i = from; i < to; i++) {
+                        matchingEngine.processOrder(cmds[i]);
+                    }
+                    matched.lazySet(shardId, g + 1);
+                    from = to;
+                }
+            }, executor));
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    }
+
+    private static void awaitAll(final AtomicIntegerArray progress, final int target) {
+        int spin = 0;
+        for (int i = 0; i < progress.length(); i++) {
+            while (progress.get(i) < target) {
+                if (++spin > SPIN_LIMIT) {
+                    Thread.yield();
+                }
+            }
+        }
+    }
+
+    private static void readRecord(final MappedByteBuffer segment, final int pos, final OrderCommand cmd) {
+        cmd.command = OrderCommandType.of(segment.get(pos + OFFSET_COMMAND));
+        final byte actionCode = segment.get(pos + OFFSET_ACTION);
+        cmd.action = actionCode == NULL_ENUM_CODE ? null : OrderAction.of(actionCode);
+        final byte orderTypeCode = segment.get(pos + OFFSET_ORDER_TYPE);
+        cmd.orderType = orderTypeCode == NULL_ENUM_CODE ? null : OrderType.of(orderTypeCode);
+        cmd.symbol = segment.getInt(pos + OFFSET_SYMBOL);
+        cmd.timestamp = segment.getLong(pos + OFFSET_TIMESTAMP);
+        cmd.uid = segment.getLong(pos + OFFSET_UID);
+        cmd.orderId = segment.getLong(pos + OFFSET_ORDER_ID);
+        cmd.price = segment.getLong(pos + OFFSET_PRICE);
+        cmd.reserveBidPrice = segment.getLong(pos + OFFSET_RESERVE_BID_PRICE);
+        cmd.size = segment.getLong(pos + OFFSET_SIZE);
+        cmd.userCookie = segment.getInt(pos + OFFSET_USER_COOKIE);
+        cmd.eventsGroup = segment.getLong(pos + OFFSET_EVENTS_GROUP);
+        cmd.serviceFlags = segment.getInt(pos + OFFSET_SERVICE_FLAGS);
+
+        if (cmd.command == OrderCommandType.QUOTE_REPLACE) {
+            readQuoteLevels(segment, pos, cmd);
+        }
+
+        cmd.resultCode = CommandResultCode.NEW;
+        cmd.matcherEvent = null;
+        cmd.marketData = null;
+    }
+
+    /**
+     * Quote replace record (levels number in size field) is followed by level records
+     */
+    private static void readQuoteLevels(final MappedByteBuffer segment, final int pos, final OrderCommand cmd) {
+        final int levelsNum = (int) cmd.size;
+        if (cmd.quoteLevels == null) {
+            cmd.quoteLevels = new QuoteLevels(levelsNum);
+        }
+        final QuoteLevels levels = cmd.quoteLevels;
+        levels.clear(levelsNum);
+        for (int i = 0; i < levelsNum; i++) {
+            final int levelPos = pos + (i + 1) * RECORD_SIZE;
+            levels.add(
+                    segment.getLong(levelPos + OFFSET_ORDER_ID),
+                    segment.getLong(levelPos + OFFSET_PRICE),
+                    segment.getLong(levelPos + OFFSET_SIZE),
+                    OrderAction.of(segment.get(levelPos + OFFSET_ACTION)),
+                    segment.getLong(levelPos + OFFSET_RESERVE_BID_PRICE));
+        }
+        cmd.size = 0;
+    }
+
+    /**
+     * @return number of records of the command (quote replace record is followed by level records)
+     */
+    private static int recordsNum(final MappedByteBuffer segment, final int pos) {
+        return segment.get(pos + OFFSET_COMMAND) == OrderCommandType.QUOTE_REPLACE.getCode()
+                ? 1 + (int) segment.getLong(pos + OFFSET_SIZE)
+                : 1;
+    }
+
+    private List<MappedByteBuffer> mapSegments() {
+        final List<MappedByteBuffer> segments = new ArrayList<>();
+        for (int idx = 0; ; idx++) {
+            final Path path = resolveSegmentPath(folder, exchangeId, idx);
+            if (!Files.exists(path)) {
+                return segments;
+            }
+            try (final RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+                segments.add(file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+            } catch (final IOException ex) {
+                throw new IllegalStateException("Can not read journal segment " + path, ex);
+            }
+        }
+    }
+
+    private static OrderCommand[] createCommands(final int size) {
+        final OrderCommand[] cmds = new OrderCommand[size];
+        for (int i = 0; i < size; i++) {
+            cmds[i] = new OrderCommand();
+        }
+        return cmds;
+    }
+}
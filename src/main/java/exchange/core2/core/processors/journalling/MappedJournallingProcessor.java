@@ -0,0 +1,293 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors.journalling;
+
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.LifecycleAware;
+import exchange.core2.core.common.QuoteLevels;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.common.cmd.OrderCommandType;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.agrona.IoUtil;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Journalling processor (J) writing every state-changing command into pre-allocated memory-mapped segment files.
+ * <p>
+ * Durability is aligned to events groups produced by GroupingProcessor:
+ * ExchangeCore runs this journal by {@link JournalGroupCommitProcessor}, which calls {@link #commit()}
+ * once per group and only then releases group sequence to the results stage (E).
+ * If used as plain EventHandler, records are written, but nothing is forced to disk.
+ * <p>
+ * Record layout is fixed-size, zero command code marks end of written data in the segment.
+ * Events group and service flags are recorded as well,
+ * so that {@link JournalReplayer} can reproduce exactly the same R1/ME/R2 interleaving and market data updates.
+ * Only fields supplied by producers are recorded - J runs in parallel with ME, which fills order action for cancel/move.
+ * Quote replace record (levels number in size field) is followed by one record per level, written in the same segment.
+ * <p>
+ * Segment is unmapped explicitly after switching to the next one, so at most two segments (current and prepared) are mapped.
+ */
+@Slf4j
+public final class MappedJournallingProcessor implements EventHandler<OrderCommand>, LifecycleAware {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024;
+
+    static final int RECORD_SIZE = 80;
+
+    static final int OFFSET_COMMAND = 0;
+    static final int OFFSET_ACTION = 1;
+    static final int OFFSET_ORDER_TYPE = 2;
+    static final int OFFSET_SYMBOL = 4;
+    static final int OFFSET_SEQ = 8;
+    static final int OFFSET_TIMESTAMP = 16;
+    static final int OFFSET_UID = 24;
+    static final int OFFSET_ORDER_ID = 32;
+    static final int OFFSET_PRICE = 40;
+    static final int OFFSET_RESERVE_BID_PRICE = 48;
+    static final int OFFSET_SIZE = 56;
+    static final int OFFSET_USER_COOKIE = 64;
+    static final int OFFSET_SERVICE_FLAGS = 68;
+    static final int OFFSET_EVENTS_GROUP = 72;
+
+    static final byte NULL_ENUM_CODE = -1;
+
+    private static final int PAGE_SIZE = 4096;
+
+    private final String folder;
+    private final String exchangeId;
+    private final long segmentSize;
+
+    @Getter
+    private final JournalDurabilityMode durabilityMode;
+
+    // prepares next segment in background, so rolling does not stall pipeline
+    private final ExecutorService segmentsAllocator;
+    private CompletableFuture<MappedByteBuffer> nextSegmentFuture;
+
+    private MappedByteBuffer segment;
+    @Getter
+    private int segmentIndex;
+
+    // records written since last commit
+    private boolean pendingRecords = false;
+
+    // number of segment forces (metrics)
+    @Getter
+    private long forcesCount = 0;
+
+    public MappedJournallingProcessor(final String folder,
+                                      final String exchangeId,
+                                      final long segmentSize,
+                                      final JournalDurabilityMode durabilityMode) {
+
+        if (segmentSize > Integer.MAX_VALUE || segmentSize < RECORD_SIZE) {
+            throw new IllegalArgumentException("Invalid segment size " + segmentSize);
+        }
+
+        this.folder = folder;
+        this.exchangeId = exchangeId;
+        this.segmentSize = segmentSize;
+        this.durabilityMode = durabilityMode;
+
+        this.segmentsAllocator = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "journal-allocator-" + exchangeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (durabilityMode != JournalDurabilityMode.NONE) {
+            // never overwrite existing segments, continue with the next free index
+            int idx = 0;
+            while (Files.exists(resolveSegmentPath(folder, exchangeId, idx))) {
+                idx++;
+            }
+            final int nextIndex = idx + 1;
+            this.segmentIndex = idx;
+            this.segment = allocateSegment(idx);
+            this.nextSegmentFuture = CompletableFuture.supplyAsync(() -> allocateSegment(nextIndex), segmentsAllocator);
+            log.info("Journalling into {} (segment {}), mode={}", folder, idx, durabilityMode);
+        }
+    }
+
+    public MappedJournallingProcessor(final String folder, final String exchangeId, final JournalDurabilityMode durabilityMode) {
+        this(folder, exchangeId, DEFAULT_SEGMENT_SIZE, durabilityMode);
+    }
+
+    public static Path resolveSegmentPath(final String folder, final String exchangeId, final int segmentIndex) {
+        return Paths.get(folder, String.format("%s_journal_%04d.ecj", exchangeId, segmentIndex));
+    }
+
+    @Override
+    public void onEvent(final OrderCommand cmd, final long seq, final boolean endOfBatch) {
+        append(cmd, seq);
+    }
+
+    /**
+     * Write command record (if command changes state), record becomes durable after {@link #commit()}
+     */
+    public void append(final OrderCommand cmd, final long seq) {
+
+        if (durabilityMode == JournalDurabilityMode.NONE) {
+            return;
+        }
+
+        final OrderCommandType command = cmd.command;
+        if (command != OrderCommandType.ORDER_BOOK_REQUEST
+                && command != OrderCommandType.NOP
+                && command != OrderCommandType.SHUTDOWN_SIGNAL) {
+
+            final int recordsSize = (command == OrderCommandType.QUOTE_REPLACE) ? (1 + cmd.quoteLevels.size) * RECORD_SIZE : RECORD_SIZE;
+            if (segment.remaining() < recordsSize) {
+                if (recordsSize > segmentSize) {
+                    throw new IllegalStateException("Command records size " + recordsSize + " exceeds segment size " + segmentSize);
+                }
+                rollSegment();
+            }
+            writeRecord(cmd, seq);
+            pendingRecords = true;
+        }
+    }
+
+    /**
+     * Make records written since previous commit durable (according to durability mode)
+     */
+    public void commit() {
+        if (pendingRecords) {
+            if (durabilityMode == JournalDurabilityMode.FSYNC_PER_GROUP) {
+                segment.force();
+                forcesCount++;
+            }
+            pendingRecords = false;
+        }
+    }
+
+    private void writeRecord(final OrderCommand cmd, final long seq) {
+
+        final int pos = segment.position();
+
+        // action of cancel/move commands is filled by ME concurrently with J - recording only producer-supplied action
+        final boolean producerAction = cmd.command == OrderCommandType.PLACE_ORDER;
+        segment.put(pos + OFFSET_ACTION, producerAction && cmd.action != null ? cmd.action.getCode() : NULL_ENUM_CODE);
+        segment.put(pos + OFFSET_ORDER_TYPE, cmd.orderType != null ? cmd.orderType.getCode() : NULL_ENUM_CODE);
+        segment.putInt(pos + OFFSET_SYMBOL, cmd.symbol);
+        segment.putLong(pos + OFFSET_SEQ, seq);
+        segment.putLong(pos + OFFSET_TIMESTAMP, cmd.timestamp);
+        segment.putLong(pos + OFFSET_UID, cmd.uid);
+        segment.putLong(pos + OFFSET_ORDER_ID, cmd.orderId);
+        segment.putLong(pos + OFFSET_PRICE, cmd.price);
+        segment.putLong(pos + OFFSET_RESERVE_BID_PRICE, cmd.reserveBidPrice);
+        segment.putInt(pos + OFFSET_USER_COOKIE, cmd.userCookie);
+        segment.putInt(pos + OFFSET_SERVICE_FLAGS, cmd.serviceFlags);
+        segment.putLong(pos + OFFSET_EVENTS_GROUP, cmd.eventsGroup);
+
+        int recordsNum = 1;
+        if (cmd.command == OrderCommandType.QUOTE_REPLACE) {
+            final QuoteLevels levels = cmd.quoteLevels;
+            segment.putLong(pos + OFFSET_SIZE, levels.size);
+            for (int i = 0; i < levels.size; i++) {
+                final int levelPos = pos + (i + 1) * RECORD_SIZE;
+                segment.put(levelPos + OFFSET_ACTION, levels.actions[i].getCode());
+                segment.putLong(levelPos + OFFSET_ORDER_ID, levels.orderIds[i]);
+                segment.putLong(levelPos + OFFSET_PRICE, levels.prices[i]);
+                segment.putLong(levelPos + OFFSET_RESERVE_BID_PRICE, levels.reservePrices[i]);
+                segment.putLong(levelPos + OFFSET_SIZE, levels.sizes[i]);
+                segment.put(levelPos + OFFSET_COMMAND, OrderCommandType.QUOTE_REPLACE.getCode());
+            }
+            recordsNum += levels.size;
+        } else {
+            segment.putLong(pos + OFFSET_SIZE, cmd.size);
+        }
+
+        // command code is written last (after level records) - non-zero code means record is complete
+        segment.put(pos + OFFSET_COMMAND, cmd.command.getCode());
+
+        segment.position(pos + recordsNum * RECORD_SIZE);
+    }
+
+    private void rollSegment() {
+
+        // current segment must be durable before switching
+        if (durabilityMode == JournalDurabilityMode.FSYNC_PER_GROUP) {
+            segment.force();
+            forcesCount++;
+        }
+
+        // release address space immediately instead of waiting for GC (dirty pages stay in page cache)
+        IoUtil.unmap(segment);
+
+        segment = nextSegmentFuture.join();
+        segmentIndex++;
+
+        final int nextIndex = segmentIndex + 1;
+        nextSegmentFuture = CompletableFuture.supplyAsync(() -> allocateSegment(nextIndex), segmentsAllocator);
+
+        log.debug("Journal switched to segment {}", segmentIndex);
+    }
+
+    private MappedByteBuffer allocateSegment(final int index) {
+        final Path path = resolveSegmentPath(folder, exchangeId, index);
+        try (final RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(segmentSize);
+            final MappedByteBuffer mappedBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+
+            // touch every page so the journalling thread does not take page faults
+            for (int i = 0; i < segmentSize; i += PAGE_SIZE) {
+                mappedBuffer.put(i, (byte) 0);
+            }
+            return mappedBuffer;
+
+        } catch (final IOException ex) {
+            throw new IllegalStateException("Can not allocate journal segment " + path, ex);
+        }
+    }
+
+    @Override
+    public void onStart() {
+    }
+
+    @Override
+    public void onShutdown() {
+        if (segment != null) {
+            segment.force();
+            IoUtil.unmap(segment);
+            segment = null;
+            // prepared segment stays empty, replayer stops at zero command code
+            IoUtil.unmap(nextSegmentFuture.join());
+        }
+        segmentsAllocator.shutdown();
+        log.info("Journal closed at segment {}", segmentIndex);
+    }
+
+    @Override
+    public String toString() {
+        return "MappedJournallingProcessor{" +
+                "folder='" + folder + '\'' +
+                ", exchangeId='" + exchangeId + '\'' +
+                ", mode=" + durabilityMode +
+                '}';
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors.sharding;
+
+import exchange.core2.core.utils.SerializationUtils;
+import lombok.Getter;
+import net.openhft.chronicle.bytes.BytesIn;
+import net.openhft.chronicle.bytes.BytesOut;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Hash-based mapping: key is hashed into one of power-of-2 number of buckets, every bucket is assigned to a shard.
+ * Weighted factory assigns number of buckets proportional to shard weight
+ * (for example, less users for risk engine shards sharing cores with other processors).
+ */
+public final class BucketShardMapping implements IShardMapping {
+
+    @Getter
+    private final int shardsNum;
+
+    private final int[] bucketToShard;
+    private final int bucketsMask;
+
+    public BucketShardMapping(final int shardsNum, final int[] bucketToShard) {
+        if (Integer.bitCount(bucketToShard.length) != 1) {
+            throw new IllegalArgumentException("Invalid number of buckets " + bucketToShard.length + " - must be power of 2");
+        }
+        for (final int shard : bucketToShard) {
+            if (shard < 0 || shard >= shardsNum) {
+                throw new IllegalArgumentException("Invalid shard " + shard + " for " + shardsNum + " shards");
+            }
+        }
+        this.shardsNum = shardsNum;
+        this.bucketToShard = bucketToShard.clone();
+        this.bucketsMask = bucketToShard.length - 1;
+    }
+
+    public BucketShardMapping(final BytesIn bytes) {
+        this(bytes.readInt(), SerializationUtils.readIntArray(bytes));
+    }
+
+    /**
+     * Distribute buckets proportionally to weights (interleaved, so that neighbour buckets are going to different shards)
+     *
+     * @param weights    - relative weight of every shard
+     * @param bucketsNum - number of buckets (power of 2), should be much bigger than number of shards
+     * @return mapping
+     */
+    public static BucketShardMapping weighted(final int[] weights, final int bucketsNum) {
+        final long totalWeight = Arrays.stream(weights).asLongStream().sum();
+        if (totalWeight <= 0 || Arrays.stream(weights).anyMatch(w -> w < 0)) {
+            throw new IllegalArgumentException("Invalid weights " + Arrays.toString(weights));
+        }
+
+        // smooth weighted round-robin
+        final long[] current = new long[weights.length];
+        final int[] bucketToShard = new int[bucketsNum];
+        for (int bucket = 0; bucket < bucketsNum; bucket++) {
+            int best = 0;
+            for (int shard = 0; shard < weights.length; shard++) {
+                current[shard] += weights[shard];
+                if (current[shard] > current[best]) {
+                    best = shard;
+                }
+            }
+            current[best] -= totalWeight;
+            bucketToShard[bucket] = best;
+        }
+        return new BucketShardMapping(weights.length, bucketToShard);
+    }
+
+    @Override
+    public int shardFor(final long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return bucketToShard[(int) h & bucketsMask];
+    }
+
+    @Override
+    public ShardMappingType getMappingType() {
+        return ShardMappingType.BUCKETS;
+    }
+
+    @Override
+    public void writeMarshallable(final BytesOut bytes) {
+        bytes.writeByte(getMappingType().getCode());
+        bytes.writeInt(shardsNum);
+        SerializationUtils.marshallIntArray(bucketToShard, bytes);
+    }
+
+    @Override
+    public int stateHash() {
+        return Objects.hash(getMappingType(), shardsNum, Arrays.hashCode(bucketToShard));
+    }
+
+    @Override
+    public String toString() {
+        return "BucketShardMapping{shards=" + shardsNum + ", buckets=" + bucketToShard.length + '}';
+    }
+}
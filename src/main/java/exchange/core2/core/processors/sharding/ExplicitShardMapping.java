@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors.sharding;
+
+import exchange.core2.core.utils.SerializationUtils;
+import net.openhft.chronicle.bytes.BytesIn;
+import net.openhft.chronicle.bytes.BytesOut;
+import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
+
+import java.util.Objects;
+
+/**
+ * Explicit assignment of keys (symbols) to shards, for example to isolate hot symbols on dedicated matching engines.
+ * Keys without assignment are routed by fallback mapping.
+ */
+public final class ExplicitShardMapping implements IShardMapping {
+
+    private final IntIntHashMap assignments;
+    private final IShardMapping fallback;
+
+    public ExplicitShardMapping(final IntIntHashMap assignments, final IShardMapping fallback) {
+        final int shardsNum = fallback.getShardsNum();
+        assignments.forEachValue(shard -> {
+            if (shard < 0 || shard >= shardsNum) {
+                throw new IllegalArgumentException("Invalid shard " + shard + " for " + shardsNum + " shards");
+            }
+        });
+        this.assignments = new IntIntHashMap(assignments);
+        this.fallback = fallback;
+    }
+
+    public ExplicitShardMapping(final BytesIn bytes) {
+        this(SerializationUtils.readIntIntHashMap(bytes), IShardMapping.create(bytes));
+    }
+
+    /**
+     * @return new mapping with one more (or changed) assignment
+     */
+    public ExplicitShardMapping withAssignment(final int key, final int shard) {
+        final IntIntHashMap newAssignments = new IntIntHashMap(assignments);
+        newAssignments.put(key, shard);
+        return new ExplicitShardMapping(newAssignments, fallback);
+    }
+
+    @Override
+    public int getShardsNum() {
+        return fallback.getShardsNum();
+    }
+
+    @Override
+    public int shardFor(final long key) {
+        if (key >= Integer.MIN_VALUE && key <= Integer.MAX_VALUE) {
+            final int shard = assignments.getIfAbsent((int) key, -1);
+            if (shard != -1) {
+                return shard;
+            }
+        }
+        return fallback.shardFor(key);
+    }
+
+    @Override
+    public ShardMappingType getMappingType() {
+        return ShardMappingType.EXPLICIT;
+    }
+
+    @Override
+    public void writeMarshallable(final BytesOut bytes) {
+        bytes.writeByte(getMappingType().getCode());
+        SerializationUtils.marshallIntIntHashMap(assignments, bytes);
+        fallback.writeMarshallable(bytes);
+    }
+
+    @Override
+    public int stateHash() {
+        return Objects.hash(getMappingType(), assignments.hashCode(), fallback.stateHash());
+    }
+
+    @Override
+    public String toString() {
+        return "ExplicitShardMapping{assignments=" + assignments.size() + ", fallback=" + fallback + '}';
+    }
+}
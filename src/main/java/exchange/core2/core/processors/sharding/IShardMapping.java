@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors.sharding;
+
+import exchange.core2.core.common.StateHash;
+import lombok.Getter;
+import net.openhft.chronicle.bytes.BytesIn;
+import net.openhft.chronicle.bytes.WriteBytesMarshallable;
+
+/**
+ * Maps routing key (uid for risk engines, symbol id for matching engines) to engine shard.
+ * Mapping is persisted in engine snapshots, so restored engines keep routing the same way.
+ * <p>
+ * Implementations must be immutable - every engine shard is using the same mapping instance.
+ */
+public interface IShardMapping extends WriteBytesMarshallable, StateHash {
+
+    /**
+     * @return total number of shards
+     */
+    int getShardsNum();
+
+    /**
+     * @param key - uid or symbol id
+     * @return shard id in range [0, shardsNum)
+     */
+    int shardFor(long key);
+
+    ShardMappingType getMappingType();
+
+    static IShardMapping create(final BytesIn bytes) {
+        switch (ShardMappingType.of(bytes.readByte())) {
+            case MODULO:
+                return new ModuloShardMapping(bytes);
+            case BUCKETS:
+                return new BucketShardMapping(bytes);
+            case RANGES:
+                return new RangeShardMapping(bytes);
+            case EXPLICIT:
+                return new ExplicitShardMapping(bytes);
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    @Getter
+    enum ShardMappingType {
+        MODULO(0),
+        BUCKETS(1),
+        RANGES(2),
+        EXPLICIT(3);
+
+        private byte code;
+
+        ShardMappingType(int code) {
+            this.code = (byte) code;
+        }
+
+        public static ShardMappingType of(byte code) {
+            switch (code) {
+                case 0:
+                    return MODULO;
+                case 1:
+                    return BUCKETS;
+                case 2:
+                    return RANGES;
+                case 3:
+                    return EXPLICIT;
+                default:
+                    throw new IllegalArgumentException("unknown ShardMappingType:" + code);
+            }
+        }
+    }
+}
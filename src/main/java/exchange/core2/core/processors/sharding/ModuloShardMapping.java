@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors.sharding;
+
+import lombok.Getter;
+import net.openhft.chronicle.bytes.BytesIn;
+import net.openhft.chronicle.bytes.BytesOut;
+
+import java.util.Objects;
+
+/**
+ * Default mapping: key modulo number of shards (any number of shards).
+ * For power of 2 number of shards it is the same as original mask-based routing.
+ */
+public final class ModuloShardMapping implements IShardMapping {
+
+    @Getter
+    private final int shardsNum;
+
+    // fast path for power of 2
+    private final long mask;
+
+    public ModuloShardMapping(final int shardsNum) {
+        if (shardsNum <= 0) {
+            throw new IllegalArgumentException("Invalid number of shards " + shardsNum);
+        }
+        this.shardsNum = shardsNum;
+        this.mask = Integer.bitCount(shardsNum) == 1 ? shardsNum - 1 : -1;
+    }
+
+    public ModuloShardMapping(final BytesIn bytes) {
+        this(bytes.readInt());
+    }
+
+    @Override
+    public int shardFor(final long key) {
+        return mask != -1 ? (int) (key & mask) : (int) Math.floorMod(key, (long) shardsNum);
+    }
+
+    @Override
+    public ShardMappingType getMappingType() {
+        return ShardMappingType.MODULO;
+    }
+
+    @Override
+    public void writeMarshallable(final BytesOut bytes) {
+        bytes.writeByte(getMappingType().getCode());
+        bytes.writeInt(shardsNum);
+    }
+
+    @Override
+    public int stateHash() {
+        return Objects.hash(getMappingType(), shardsNum);
+    }
+
+    @Override
+    public String toString() {
+        return "ModuloShardMapping{" + shardsNum + '}';
+    }
+}
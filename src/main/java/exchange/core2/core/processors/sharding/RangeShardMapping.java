@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors.sharding;
+
+import exchange.core2.core.utils.SerializationUtils;
+import lombok.Getter;
+import net.openhft.chronicle.bytes.BytesIn;
+import net.openhft.chronicle.bytes.BytesOut;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Range-based mapping: shard i owns keys in range [lowerBounds[i], lowerBounds[i+1]).
+ * Keys below first bound belong to shard 0.
+ */
+public final class RangeShardMapping implements IShardMapping {
+
+    private final long[] lowerBounds;
+
+    public RangeShardMapping(final long[] lowerBounds) {
+        if (lowerBounds.length == 0) {
+            throw new IllegalArgumentException("No ranges specified");
+        }
+        for (int i = 1; i < lowerBounds.length; i++) {
+            if (lowerBounds[i] <= lowerBounds[i - 1]) {
+                throw new IllegalArgumentException("Ranges lower bounds must be increasing: " + Arrays.toString(lowerBounds));
+            }
+        }
+        this.lowerBounds = lowerBounds.clone();
+    }
+
+    public RangeShardMapping(final BytesIn bytes) {
+        this(SerializationUtils.readLongArray(bytes));
+    }
+
+    @Override
+    public int getShardsNum() {
+        return lowerBounds.length;
+    }
+
+    @Override
+    public int shardFor(final long key) {
+        final int idx = Arrays.binarySearch(lowerBounds, key);
+        return idx >= 0 ? idx : Math.max(0, -idx - 2);
+    }
+
+    @Override
+    public ShardMappingType getMappingType() {
+        return ShardMappingType.RANGES;
+    }
+
+    @Override
+    public void writeMarshallable(final BytesOut bytes) {
+        bytes.writeByte(getMappingType().getCode());
+        SerializationUtils.marshallLongArray(lowerBounds, bytes);
+    }
+
+    @Override
+    public int stateHash() {
+        return Objects.hash(getMappingType(), Arrays.hashCode(lowerBounds));
+    }
+
+    @Override
+    public String toString() {
+        return "RangeShardMapping{" + Arrays.toString(lowerBounds) + '}';
+    }
+}
@@ -18,8 +18,10 @@ package exchange.core2.core.utils;
 import net.openhft.chronicle.bytes.*;
 import net.openhft.chronicle.wire.Wire;
 import net.openhft.chronicle.wire.WireType;
+import org.eclipse.collections.api.map.primitive.MutableIntIntMap;
 import org.eclipse.collections.api.map.primitive.MutableIntLongMap;
 import org.eclipse.collections.api.map.primitive.MutableLongIntMap;
+import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
 import org.eclipse.collections.impl.map.mutable.primitive.IntLongHashMap;
 import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
 import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
@@ -130,6 +132,22 @@ public class SerializationUtils {
         return array;
     }
 
+    public static void marshallIntArray(final int[] ints, final BytesOut bytes) {
+        bytes.writeInt(ints.length);
+        for (int word : ints) {
+            bytes.writeInt(word);
+        }
+    }
+
+    public static int[] readIntArray(final BytesIn bytes) {
+        final int length = bytes.readInt();
+        final int[] array = new int[length];
+        for (int i = 0; i < length; i++) {
+            array[i] = bytes.readInt();
+        }
+        return array;
+    }
+
     public static void marshallLongIntHashMap(final MutableLongIntMap hashMap, final BytesOut bytes) {
 
         bytes.writeInt(hashMap.size());
@@ -174,6 +192,28 @@ public class SerializationUtils {
     }
 
 
+    public static void marshallIntIntHashMap(final MutableIntIntMap hashMap, final BytesOut bytes) {
+
+        bytes.writeInt(hashMap.size());
+
+        hashMap.forEachKeyValue((k, v) -> {
+            bytes.writeInt(k);
+            bytes.writeInt(v);
+        });
+    }
+
+    public static IntIntHashMap readIntIntHashMap(final BytesIn bytes) {
+        int length = bytes.readInt();
+        final IntIntHashMap hashMap = new IntIntHashMap(length);
+        for (int i = 0; i < length; i++) {
+            int k = bytes.readInt();
+            int v = bytes.readInt();
+            hashMap.put(k, v);
+        }
+        return hashMap;
+    }
+
+
     public static void marshallLongHashSet(final LongHashSet set, final BytesOut bytes) {
         bytes.writeInt(set.size());
         set.forEach(bytes::writeLong);
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.benchmarks;
+
+import exchange.core2.core.orderbook.ArtOrderIdIndex;
+import exchange.core2.core.orderbook.IOrderIdIndex;
+import exchange.core2.core.orderbook.OrderBookDirectImpl;
+import exchange.core2.core.orderbook.OrderIdHashIndex;
+import exchange.core2.core.processors.ObjectsPool;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OrderBookDirectImpl order id index: adaptive radix tree (default) vs open-addressing hash table (hashOrderIdIndex option).
+ * Every operation is the same as for placing a GTC order (duplicate check + insert), moving an order (lookup)
+ * and cancelling the oldest order (remove), so number of live orders stays constant.
+ * <p>
+ * Order id patterns: SEQUENTIAL - single global counter, PER_USER - interleaved counters of 64 users
+ * (user id in high bits), RANDOM - random 63-bit ids.
+ * <p>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=exchange.core2.benchmarks.OrderIdIndexBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OrderIdIndexBenchmark {
+
+    private static final int OPERATIONS = 1024;
+    private static final int USERS = 64;
+
+    @Param({"1000", "100000"})
+    public int ordersNum;
+
+    @Param({"SEQUENTIAL", "PER_USER", "RANDOM"})
+    public String idsPattern;
+
+    private IOrderIdIndex<OrderBookDirectImpl.DirectOrder> artIndex;
+    private IOrderIdIndex<OrderBookDirectImpl.DirectOrder> hashIndex;
+
+    // ids in order of placing, cyclic (id is placed again only after it was cancelled)
+    private long[] orderIds;
+    private int position;
+
+    private final OrderBookDirectImpl.DirectOrder order = new OrderBookDirectImpl.DirectOrder();
+
+    @Setup
+    public void setup() {
+        final Random rand = new Random(1L);
+        orderIds = new long[ordersNum * 4];
+        final long[] userCounters = new long[USERS];
+        for (int i = 0; i < orderIds.length; i++) {
+            switch (idsPattern) {
+                case "SEQUENTIAL":
+                    orderIds[i] = 1_000_000L + i;
+                    break;
+                case "PER_USER":
+                    final int user = rand.nextInt(USERS);
+                    orderIds[i] = ((long) user << 40) + userCounters[user]++;
+                    break;
+                case "RANDOM":
+                    orderIds[i] = rand.nextLong() & Long.MAX_VALUE;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown ids pattern " + idsPattern);
+            }
+        }
+
+        artIndex = new ArtOrderIdIndex<>(ObjectsPool.createDefaultTestPool());
+        hashIndex = new OrderIdHashIndex<>(256);
+        for (int i = 0; i < ordersNum; i++) {
+            artIndex.putIfAbsent(orderIds[i], order);
+            hashIndex.putIfAbsent(orderIds[i], order);
+        }
+        position = 0;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public void artIndex(final Blackhole bh) {
+        placeMoveCancel(artIndex, bh);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public void hashIndex(final Blackhole bh) {
+        placeMoveCancel(hashIndex, bh);
+    }
+
+    private void placeMoveCancel(final IOrderIdIndex<OrderBookDirectImpl.DirectOrder> index, final Blackhole bh) {
+        final long[] ids = orderIds;
+        int pos = position;
+        for (int i = 0; i < OPERATIONS; i++) {
+            bh.consume(index.putIfAbsent(ids[(pos + ordersNum) % ids.length], order));
+            bh.consume(index.get(ids[(pos + (ordersNum >> 1)) % ids.length]));
+            index.remove(ids[pos]);
+            pos = (pos + 1) % ids.length;
+        }
+        position = pos;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(OrderIdIndexBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.benchmarks;
+
+import exchange.core2.core.common.CoreSymbolSpecification;
+import exchange.core2.core.common.SymbolType;
+import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Symbol specification / order book lookup: hash map (default) vs dense array (denseSymbolsLimit option).
+ * Lookups follow the same code path as RiskEngine.getSymbolSpecification and MatchingEngineRouter.getOrderBook.
+ * <p>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=exchange.core2.benchmarks.SymbolLookupBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SymbolLookupBenchmark {
+
+    private static final int LOOKUPS = 1024;
+
+    @Param({"100", "10000", "100000"})
+    public int symbolsNum;
+
+    private IntObjectHashMap<CoreSymbolSpecification> hashMap;
+    private CoreSymbolSpecification[] denseArray;
+
+    private int[] symbols;
+
+    @Setup
+    public void setup() {
+        hashMap = new IntObjectHashMap<>();
+        denseArray = new CoreSymbolSpecification[symbolsNum];
+        for (int i = 0; i < symbolsNum; i++) {
+            final CoreSymbolSpecification spec = CoreSymbolSpecification.builder()
+                    .symbolId(i)
+                    .type(SymbolType.FUTURES_CONTRACT)
+                    .baseCurrency(0)
+                    .quoteCurrency(840)
+                    .baseScaleK(1)
+                    .quoteScaleK(1)
+                    .marginBuy(100 + i)
+                    .marginSell(110 + i)
+                    .build();
+            hashMap.put(i, spec);
+            denseArray[i] = spec;
+        }
+
+        final Random rand = new Random(1L);
+        symbols = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            symbols[i] = rand.nextInt(symbolsNum);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void hashMapLookup(final Blackhole bh) {
+        for (final int symbol : symbols) {
+            bh.consume(hashMap.get(symbol).marginBuy);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void denseArrayLookup(final Blackhole bh) {
+        for (final int symbol : symbols) {
+            final CoreSymbolSpecification spec = (symbol < denseArray.length && symbol >= 0)
+                    ? denseArray[symbol]
+                    : hashMap.get(symbol);
+            bh.consume(spec.marginBuy);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(SymbolLookupBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core;
+
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.YieldingWaitStrategy;
+import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.OrderType;
+import exchange.core2.core.common.QuoteLevels;
+import exchange.core2.core.common.api.*;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.common.cmd.OrderCommandType;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static exchange.core2.core.common.cmd.OrderCommandType.*;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Commands published into ring buffer without processing pipeline (sequences are inspected directly).
+ */
+public class ExchangeApiTest {
+
+    private static final int RING_BUFFER_SIZE = 64;
+    private static final int MATCHING_ENGINES_NUM = 2;
+
+    private RingBuffer<OrderCommand> ringBuffer;
+    private ExchangeApi api;
+
+    @Before
+    public void before() {
+        ringBuffer = RingBuffer.createMultiProducer(OrderCommand::new, RING_BUFFER_SIZE, new YieldingWaitStrategy());
+        api = new ExchangeApi(ringBuffer, MATCHING_ENGINES_NUM);
+    }
+
+    @Test
+    public void shouldPreserveOrderOfMixedSingleAndMultiSequenceCommands() {
+
+        final List<ApiCommand> cmds = Arrays.asList(
+                placeOrder(1),
+                placeOrder(2),
+                ApiPersistState.builder().dumpId(100).build(),
+                ApiCancelOrder.builder().id(1).uid(1).symbol(5).build(),
+                ApiMassCancel.builder().uid(1).symbol(ApiMassCancel.ALL_SYMBOLS).build(),
+                ApiMoveOrder.builder().id(2).newPrice(1001).uid(1).symbol(5).build(),
+                ApiMassCancel.builder().uid(1).symbol(5).build(),
+                ApiQuoteReplace.builder().uid(1).symbol(5).levels(Arrays.asList(
+                        new ApiQuoteReplace.Level(10, 990, 1, OrderAction.BID, 990),
+                        new ApiQuoteReplace.Level(11, 1010, 1, OrderAction.ASK, 0))).build(),
+                placeOrder(3));
+
+        final List<CompletableFuture<CommandResultCode>> futures = api.submitCommandsAsync(cmds);
+
+        assertThat(publishedCommands(), is(Arrays.asList(
+                PLACE_ORDER,
+                PLACE_ORDER,
+                PERSIST_STATE_MATCHING, PERSIST_STATE_RISK,
+                CANCEL_ORDER,
+                MASS_CANCEL, MASS_CANCEL,
+                MOVE_ORDER,
+                MASS_CANCEL,
+                QUOTE_REPLACE,
+                PLACE_ORDER)));
+
+        assertThat(ringBuffer.get(0).orderId, is(1L));
+        assertThat(ringBuffer.get(1).orderId, is(2L));
+        assertThat(ringBuffer.get(7).orderId, is(2L));
+        assertThat(ringBuffer.get(10).orderId, is(3L));
+
+        // whole ladder in one sequence
+        final QuoteLevels levels = ringBuffer.get(9).quoteLevels;
+        assertThat(levels.size, is(2));
+        assertThat(levels.orderIds[1], is(11L));
+        assertThat(levels.actions[1], is(OrderAction.ASK));
+
+        // one future per command, completed by the last sequence of the command
+        assertThat(futures.size(), is(cmds.size()));
+        processResults(0, 10);
+        final long[] lastSequences = {0, 1, 3, 4, 6, 7, 8, 9, 10};
+        for (int i = 0; i < futures.size(); i++) {
+            assertThat(futures.get(i).join(), is(resultCodeOf(lastSequences[i])));
+        }
+    }
+
+    @Test
+    public void shouldNotPublishAnythingIfAnyCommandIsUnsupported() {
+
+        final List<ApiCommand> cmds = Arrays.asList(
+                placeOrder(1),
+                ApiPersistState.builder().dumpId(100).build(),
+                new ApiCommand() {
+                },
+                placeOrder(2));
+
+        try {
+            api.submitCommandsAsync(cmds);
+            fail("unsupported command accepted");
+        } catch (final IllegalArgumentException ex) {
+            // expected
+        }
+        assertThat(ringBuffer.getCursor(), is(-1L));
+    }
+
+    @Test
+    public void shouldNotPublishAnythingIfQuoteReplaceIsInvalid() {
+
+        final List<ApiCommand> cmds = Arrays.asList(
+                placeOrder(1),
+                ApiQuoteReplace.builder().uid(1).symbol(5).levels(new ArrayList<>()).build());
+
+        try {
+            api.submitCommands(cmds);
+            fail("empty quote replace accepted");
+        } catch (final IllegalArgumentException ex) {
+            // expected
+        }
+        assertThat(ringBuffer.getCursor(), is(-1L));
+    }
+
+    @Test
+    public void shouldCompletePromisesAfterRingWrapsSeveralTimes() {
+
+        final int batchSize = 16;
+        final int batches = 3 * RING_BUFFER_SIZE / batchSize + 1;
+
+        for (int batch = 0; batch < batches; batch++) {
+            final long fromSeq = ringBuffer.getCursor() + 1;
+            final List<CompletableFuture<CommandResultCode>> futures = new ArrayList<>(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                switch (i % 3) {
+                    case 0:
+                        futures.add(api.placeNewOrderAsync(0, 1000, 1000, 1, OrderAction.BID, OrderType.GTC, 5, 1, fromSeq + i));
+                        break;
+                    case 1:
+                        futures.add(api.moveOrderAsync(1001, fromSeq + i - 1, 5, 1));
+                        break;
+                    default:
+                        futures.add(api.cancelOrderAsync(fromSeq + i - 2, 5, 1));
+                }
+            }
+            // results are not available until results handler processes the sequences
+            futures.forEach(future -> assertThat(future.isDone(), is(false)));
+
+            processResults(fromSeq, fromSeq + batchSize - 1);
+            for (int i = 0; i < batchSize; i++) {
+                assertThat(futures.get(i).getNow(null), is(resultCodeOf(fromSeq + i)));
+            }
+        }
+        assertThat(ringBuffer.getCursor(), is((long) batches * batchSize - 1));
+    }
+
+    @Test
+    public void shouldSkipSlotsWithoutCallback() {
+
+        final int[] callbacks = new int[RING_BUFFER_SIZE];
+
+        // first round - callback registered for every slot
+        for (int i = 0; i < RING_BUFFER_SIZE; i++) {
+            final int idx = i;
+            api.cancelOrder(i, 5, 1, cmd -> callbacks[idx]++);
+        }
+        processResults(0, RING_BUFFER_SIZE - 1);
+
+        // next rounds - only even slots have callbacks, odd slots are submitted without callbacks
+        for (int round = 1; round <= 2; round++) {
+            for (int i = 0; i < RING_BUFFER_SIZE; i++) {
+                final int idx = i;
+                if (i % 2 == 0) {
+                    api.cancelOrder(i, 5, 1, cmd -> callbacks[idx]++);
+                } else {
+                    api.submitCommand(ApiCancelOrder.builder().id(i).uid(1).symbol(5).build());
+                }
+            }
+            final long fromSeq = (long) round * RING_BUFFER_SIZE;
+            processResults(fromSeq, fromSeq + RING_BUFFER_SIZE - 1);
+        }
+
+        // callbacks of the first round were not invoked again for slots without callback
+        for (int i = 0; i < RING_BUFFER_SIZE; i++) {
+            assertThat(callbacks[i], is(i % 2 == 0 ? 3 : 1));
+        }
+    }
+
+    @Test
+    public void shouldStampPublishingTimeOnlyIfEnabled() {
+
+        api.submitCommand(placeOrder(1));
+        api.submitCommands(Arrays.asList(placeOrder(2), ApiPersistState.builder().dumpId(100).build()));
+        for (long seq = 0; seq <= ringBuffer.getCursor(); seq++) {
+            assertThat(ringBuffer.get(seq).publishingNs, is(0L));
+        }
+
+        final ExchangeApi stampingApi = new ExchangeApi(ringBuffer, MATCHING_ENGINES_NUM, true);
+        final long fromSeq = ringBuffer.getCursor() + 1;
+        final long t = System.nanoTime();
+        stampingApi.submitCommand(placeOrder(3));
+        stampingApi.submitCommands(Arrays.asList(placeOrder(4), ApiPersistState.builder().dumpId(101).build()));
+        stampingApi.cancelOrder(3, 5, 1, cmd -> {
+        });
+        assertThat(ringBuffer.getCursor(), is(fromSeq + 4));
+        for (long seq = fromSeq; seq <= ringBuffer.getCursor(); seq++) {
+            assertThat(ringBuffer.get(seq).publishingNs >= t, is(true));
+        }
+    }
+
+    private static ApiPlaceOrder placeOrder(final long orderId) {
+        return ApiPlaceOrder.builder().id(orderId).uid(1).symbol(5).price(1000).size(1).action(OrderAction.BID).orderType(OrderType.GTC).build();
+    }
+
+    private List<OrderCommandType> publishedCommands() {
+        final List<OrderCommandType> commands = new ArrayList<>();
+        for (long seq = 0; seq <= ringBuffer.getCursor(); seq++) {
+            commands.add(ringBuffer.get(seq).command);
+        }
+        return commands;
+    }
+
+    // imitates results handler, every sequence gets distinct result code
+    private void processResults(final long fromSeq, final long toSeq) {
+        for (long seq = fromSeq; seq <= toSeq; seq++) {
+            final OrderCommand cmd = ringBuffer.get(seq);
+            cmd.resultCode = resultCodeOf(seq);
+            api.processResult(seq, cmd);
+        }
+    }
+
+    private static CommandResultCode resultCodeOf(final long seq) {
+        final CommandResultCode[] codes = CommandResultCode.values();
+        return codes[(int) (seq % codes.length)];
+    }
+}
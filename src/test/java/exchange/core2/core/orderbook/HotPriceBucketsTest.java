@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+
+public class HotPriceBucketsTest {
+
+    private static final int WIDTH = 1024;
+
+    @Test
+    public void shouldPerformBasicOperations() {
+        final HotPriceBuckets hot = new HotPriceBuckets(WIDTH);
+        assertThat(hot.nextIndex(0), is(-1));
+        assertThat(hot.previousIndex(WIDTH - 1), is(-1));
+
+        final IOrdersBucket b5 = bucket(5);
+        final IOrdersBucket b700 = bucket(700);
+        hot.put(5, b5);
+        hot.put(700, b700);
+        assertThat(hot.size(), is(2));
+        assertSame(b5, hot.get(5));
+        assertThat(hot.nextIndex(0), is(5));
+        assertThat(hot.nextIndex(6), is(700));
+        assertThat(hot.nextIndex(701), is(-1));
+        assertThat(hot.nextIndex(WIDTH), is(-1));
+        assertThat(hot.previousIndex(Integer.MAX_VALUE), is(700));
+        assertThat(hot.previousIndex(699), is(5));
+        assertThat(hot.previousIndex(4), is(-1));
+
+        // base price increased by 128: 5 is dropped, 700 becomes 572
+        hot.shiftDown(128);
+        assertThat(hot.size(), is(1));
+        assertNull(hot.get(5));
+        assertSame(b700, hot.get(572));
+        assertThat(hot.nextIndex(0), is(572));
+
+        // base price decreased by 512: 572 is dropped (would be 1084)
+        hot.shiftUp(512);
+        assertThat(hot.size(), is(0));
+        assertThat(hot.nextIndex(0), is(-1));
+        hot.validate();
+
+        // last index after ring offset was rotated
+        hot.put(WIDTH - 1, b5);
+        assertThat(hot.previousIndex(WIDTH - 1), is(WIDTH - 1));
+        assertSame(b5, hot.remove(WIDTH - 1));
+        assertThat(hot.isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldMatchReferenceMap() {
+        final Random rand = new Random(1L);
+        final HotPriceBuckets hot = new HotPriceBuckets(WIDTH);
+        final TreeMap<Long, IOrdersBucket> reference = new TreeMap<>();
+        long basePrice = 100_000;
+
+        for (int i = 0; i < 100_000; i++) {
+            final int op = rand.nextInt(100);
+            if (op < 50) {
+                final int idx = rand.nextInt(WIDTH);
+                final IOrdersBucket bucket = bucket(basePrice + idx);
+                hot.put(idx, bucket);
+                reference.put(basePrice + idx, bucket);
+            } else if (op < 90) {
+                final int idx = rand.nextInt(WIDTH);
+                assertThat(hot.remove(idx), is(reference.remove(basePrice + idx)));
+            } else {
+                // shift by up to 1.5 widths, aligned by 64
+                final int shift = (1 + rand.nextInt(WIDTH * 3 / 2 / 64)) * 64;
+                if (rand.nextBoolean()) {
+                    hot.shiftDown(shift);
+                    basePrice += shift;
+                } else {
+                    hot.shiftUp(shift);
+                    basePrice -= shift;
+                }
+                reference.headMap(basePrice).clear();
+                reference.tailMap(basePrice + WIDTH).clear();
+            }
+
+            final int idx = rand.nextInt(WIDTH);
+            final Long next = reference.ceilingKey(basePrice + idx);
+            final Long prev = reference.floorKey(basePrice + idx);
+            assertThat(hot.nextIndex(idx), is(next == null ? -1 : (int) (next - basePrice)));
+            assertThat(hot.previousIndex(idx), is(prev == null ? -1 : (int) (prev - basePrice)));
+            assertThat(hot.size(), is(reference.size()));
+
+            if (i % 1000 == 0) {
+                hot.validate();
+                assertThat(hot.toList(), is(new ArrayList<>(reference.values())));
+                for (Map.Entry<Long, IOrdersBucket> entry : reference.entrySet()) {
+                    assertSame(entry.getValue(), hot.get((int) (entry.getKey() - basePrice)));
+                }
+                assertThat(hot.toPriceMap(basePrice).size(), is(reference.size()));
+            }
+        }
+    }
+
+    private static IOrdersBucket bucket(final long price) {
+        final IOrdersBucket bucket = new OrdersBucketFastImpl();
+        bucket.setPrice(price);
+        return bucket;
+    }
+}
@@ -18,6 +18,8 @@ package exchange.core2.core.orderbook;
 import exchange.core2.core.common.L2MarketData;
 import exchange.core2.core.common.MatcherEventType;
 import exchange.core2.core.common.MatcherTradeEvent;
+import exchange.core2.core.common.Order;
+import exchange.core2.core.common.api.ApiMassCancel;
 import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommand;
 import exchange.core2.tests.util.L2MarketDataHelper;
@@ -29,7 +31,9 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import static exchange.core2.core.common.OrderAction.ASK;
 import static exchange.core2.core.common.OrderAction.BID;
@@ -306,6 +310,111 @@ public abstract class OrderBookBaseTest {
         assertThat(events.size(), is(0));
     }
 
+    @Test
+    public void shouldFindUserOrders() {
+        assertThat(userOrderIds(UID_1), is(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L, 11L, 12L, 13L)));
+        assertThat(userOrderIds(UID_2), is(Collections.emptyList()));
+
+        // matches orders 2 and 3, remaining part is placed
+        processAndValidate(OrderCommand.newOrder(GTC, 101, UID_2, 81599, 81600, 100, BID), SUCCESS);
+        processAndValidate(OrderCommand.cancel(5, UID_1), SUCCESS);
+        assertThat(userOrderIds(UID_1), is(Arrays.asList(1L, 4L, 6L, 7L, 8L, 9L, 10L, 11L, 12L, 13L)));
+        assertThat(userOrderIds(UID_2), is(Collections.singletonList(101L)));
+        assertThat(orderBook.findUserOrders(UID_2).get(0).getFilled(), is(75L));
+
+        // fully matched after move
+        processAndValidate(OrderCommand.update(101, UID_2, 81600), SUCCESS);
+        assertThat(userOrderIds(UID_2), is(Collections.emptyList()));
+        final Order order = orderBook.findUserOrders(UID_1).stream().filter(o -> o.orderId == 1L).findFirst().orElseThrow(IllegalStateException::new);
+        assertThat(order.getFilled(), is(25L));
+    }
+
+    @Test
+    public void shouldCancelUserOrders() {
+        processAndValidate(OrderCommand.newOrder(GTC, 101, UID_2, 81700, 0, 5, ASK), SUCCESS);
+        processAndValidate(OrderCommand.newOrder(GTC, 102, UID_2, 81500, 82000, 7, BID), SUCCESS);
+        assertTrue(orderBook.hasOrders(UID_2));
+
+        final int symbol = orderBook.getSymbolSpec().symbolId;
+        final OrderCommand cmd = OrderCommand.massCancel(UID_2, symbol);
+        assertThat(orderBook.cancelOrders(UID_2, cmd), is(2));
+        orderBook.validateInternalState();
+        assertFalse(orderBook.hasOrders(UID_2));
+        assertThat(userOrderIds(UID_1).size(), is(13));
+        assertEquals(expectedState.build(), orderBook.getL2MarketDataSnapshot(25));
+
+        final List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.stream().map(ev -> ev.matchedOrderId).sorted().collect(Collectors.toList()), is(Arrays.asList(101L, 102L)));
+        events.forEach(ev -> {
+            assertThat(ev.eventType, is(MatcherEventType.CANCEL));
+            assertThat(ev.matchedOrderUid, is((long) UID_2));
+            assertThat(ev.symbol, is(symbol));
+        });
+        final MatcherTradeEvent bidCancel = events.stream().filter(ev -> ev.matchedOrderId == 102L).findFirst().orElseThrow(IllegalStateException::new);
+        assertThat(bidCancel.action, is(BID));
+        assertThat(bidCancel.size, is(7L));
+        assertThat(bidCancel.bidderHoldPrice, is(82000L));
+
+        // all users
+        final long totalVolume = Arrays.stream(orderBook.getL2MarketDataSnapshot(Integer.MAX_VALUE).askVolumes).sum()
+                + Arrays.stream(orderBook.getL2MarketDataSnapshot(Integer.MAX_VALUE).bidVolumes).sum();
+        final OrderCommand cmdAll = OrderCommand.massCancel(ApiMassCancel.ALL_USERS, symbol);
+        assertTrue(orderBook.hasOrders(ApiMassCancel.ALL_USERS));
+        assertThat(orderBook.cancelOrders(ApiMassCancel.ALL_USERS, cmdAll), is(13));
+        orderBook.validateInternalState();
+        assertFalse(orderBook.hasOrders(ApiMassCancel.ALL_USERS));
+        assertThat(userOrderIds(UID_1), is(Collections.emptyList()));
+        assertThat(cmdAll.extractEvents().stream().mapToLong(ev -> ev.size).sum(), is(totalVolume));
+    }
+
+    @Test
+    public void shouldReplaceUserOrders() {
+        processAndValidate(OrderCommand.newOrder(GTC, 101, UID_2, 81700, 0, 5, ASK), SUCCESS);
+        processAndValidate(OrderCommand.newOrder(GTC, 102, UID_2, 81500, 82000, 7, BID), SUCCESS);
+
+        final int symbol = orderBook.getSymbolSpec().symbolId;
+
+        // order id of other user's order can not be used, order book is not changed
+        OrderCommand cmd = OrderCommand.newOrder(GTC, 105, UID_2, 81800, 0, 3, ASK);
+        CommandResultCode resultCode = orderBook.replaceOrders(UID_2, Arrays.asList(
+                OrderCommand.newOrder(GTC, 105, UID_2, 81800, 0, 3, ASK),
+                OrderCommand.newOrder(GTC, 1, UID_2, 81590, 82000, 4, BID)), cmd);
+        assertThat(resultCode, is(CommandResultCode.MATCHING_DUPLICATE_ORDER_ID));
+        assertNull(cmd.matcherEvent);
+        assertThat(userOrderIds(UID_2), is(Arrays.asList(101L, 102L)));
+
+        // rejected by risk check
+        final OrderCommand nsfLevel = OrderCommand.newOrder(GTC, 106, UID_2, 81800, 0, 3, ASK);
+        nsfLevel.resultCode = CommandResultCode.RISK_NSF;
+        resultCode = orderBook.replaceOrders(UID_2, Arrays.asList(OrderCommand.newOrder(GTC, 105, UID_2, 81800, 0, 3, ASK), nsfLevel), cmd);
+        assertThat(resultCode, is(CommandResultCode.RISK_NSF));
+        assertThat(userOrderIds(UID_2), is(Arrays.asList(101L, 102L)));
+
+        // own order id can be reused, crossing level is matched (orders 2 and 3)
+        resultCode = orderBook.replaceOrders(UID_2, Arrays.asList(
+                OrderCommand.newOrder(GTC, 103, UID_2, 81800, 0, 3, ASK),
+                OrderCommand.newOrder(GTC, 102, UID_2, 81590, 82000, 4, BID),
+                OrderCommand.newOrder(GTC, 104, UID_2, 81600, 82000, 60, BID)), cmd);
+        assertThat(resultCode, is(SUCCESS));
+        orderBook.validateInternalState();
+        assertThat(userOrderIds(UID_2), is(Arrays.asList(102L, 103L)));
+        assertThat(orderBook.getOrderById(102L).getPrice(), is(81590L));
+
+        final List<MatcherTradeEvent> events = cmd.extractEvents();
+        events.forEach(ev -> assertThat(ev.symbol, is(symbol)));
+        assertThat(events.stream().filter(ev -> ev.eventType == MatcherEventType.CANCEL).map(ev -> ev.matchedOrderId).sorted().collect(Collectors.toList()),
+                is(Arrays.asList(101L, 102L)));
+        final List<MatcherTradeEvent> trades = events.stream().filter(ev -> ev.eventType == MatcherEventType.TRADE).collect(Collectors.toList());
+        assertThat(trades.size(), is(2));
+        trades.forEach(ev -> assertThat(ev.action, is(BID)));
+        checkEventTrade(trades.get(0), 2L, 81599, 50L);
+        checkEventTrade(trades.get(1), 3L, 81599, 10L);
+    }
+
+    private List<Long> userOrderIds(long uid) {
+        return orderBook.findUserOrders(uid).stream().map(Order::getOrderId).sorted().collect(Collectors.toList());
+    }
+
     // ------------------------ MATCHING TESTS -----------------------
 
     @Test
@@ -16,13 +16,18 @@
 package exchange.core2.core.orderbook;
 
 import exchange.core2.core.common.L2MarketData;
+import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommand;
 import exchange.core2.core.processors.ObjectsPool;
 import exchange.core2.tests.util.TestConstants;
+import exchange.core2.tests.util.TestOrdersGenerator;
 import lombok.extern.slf4j.Slf4j;
+import net.openhft.chronicle.bytes.Bytes;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static exchange.core2.core.common.OrderAction.ASK;
@@ -31,6 +36,7 @@ import static exchange.core2.core.common.OrderType.GTC;
 import static exchange.core2.core.common.cmd.CommandResultCode.SUCCESS;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 
 @Slf4j
@@ -166,4 +172,48 @@ public class OrderBookFastImplTest extends OrderBookBaseTest {
         assertThat(snapshot.askSize, is(0));
     }
 
+
+    @Test
+    public void shouldRebalanceHotPricesRangeRepeatedly() {
+        // moving by small steps - re-balancing shifts part of the hot range
+        checkPriceSweeps(400);
+        // jumping over the hot range - re-balancing replaces the whole hot range
+        checkPriceSweeps(3);
+    }
+
+    /**
+     * Moves price across default hot prices range back and forth, compares with reference order book
+     */
+    private void checkPriceSweeps(final int stepsPerSweep) {
+        final int hotPricesRange = OrderBookFastImpl.DEFAULT_HOT_WIDTH;
+        final IOrderBook fastOrderBook = new OrderBookFastImpl(hotPricesRange, TestConstants.SYMBOLSPEC_EUR_USD, ObjectsPool.createDefaultTestPool());
+        final IOrderBook orderBookRef = new OrderBookNaiveImpl(TestConstants.SYMBOLSPEC_EUR_USD);
+
+        final List<OrderCommand> commands = TestOrdersGenerator.generatePriceSweepCommands(10, hotPricesRange * 3, stepsPerSweep, 1000, 100, 1437822);
+
+        int i = 0;
+        for (OrderCommand cmd : commands) {
+            cmd.resultCode = CommandResultCode.VALID_FOR_MATCHING_ENGINE;
+            final CommandResultCode resultCode = IOrderBook.processCommand(fastOrderBook, cmd);
+
+            cmd.resultCode = CommandResultCode.VALID_FOR_MATCHING_ENGINE;
+            assertThat(resultCode, is(IOrderBook.processCommand(orderBookRef, cmd)));
+            assertEquals(orderBookRef.stateHash(), fastOrderBook.stateHash());
+
+            if (++i % 256 == 0) {
+                fastOrderBook.validateInternalState();
+            }
+        }
+
+        fastOrderBook.validateInternalState();
+        assertEquals(orderBookRef.getL2MarketDataSnapshot(Integer.MAX_VALUE), fastOrderBook.getL2MarketDataSnapshot(Integer.MAX_VALUE));
+
+        // hot section is restored from snapshot
+        final Bytes<ByteBuffer> bytes = Bytes.elasticHeapByteBuffer(1024);
+        fastOrderBook.writeMarshallable(bytes);
+        final IOrderBook restored = IOrderBook.create(bytes, ObjectsPool.createDefaultTestPool());
+        restored.validateInternalState();
+        assertThat(restored.stateHash(), is(fastOrderBook.stateHash()));
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import exchange.core2.core.processors.ObjectsPool;
+import exchange.core2.tests.util.TestConstants;
+import net.openhft.chronicle.bytes.Bytes;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.Supplier;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Order book implementations with optional indexes (per-user orders index, open-addressing order id index)
+ * must pass all common order book tests and keep indexes consistent after restoring from snapshot.
+ */
+@RunWith(Parameterized.class)
+public class OrderBookIndexesTest extends OrderBookBaseTest {
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> orderBooks() {
+        return Arrays.asList(
+                orderBook("Direct with user orders index",
+                        () -> new OrderBookDirectImpl(TestConstants.SYMBOLSPEC_EUR_USD, ObjectsPool.createDefaultTestPool(), true)),
+                orderBook("Direct with hash order id index",
+                        () -> new OrderBookDirectImpl(TestConstants.SYMBOLSPEC_EUR_USD, ObjectsPool.createDefaultTestPool(), false, true)),
+                orderBook("Direct with both indexes",
+                        () -> new OrderBookDirectImpl(TestConstants.SYMBOLSPEC_EUR_USD, ObjectsPool.createDefaultTestPool(), true, true)),
+                orderBook("Fast with user orders index",
+                        () -> new OrderBookFastImpl(1024, TestConstants.SYMBOLSPEC_EUR_USD, ObjectsPool.createDefaultTestPool(), true)));
+    }
+
+    private final Supplier<IOrderBook> orderBookFactory;
+
+    public OrderBookIndexesTest(final String name, final Supplier<IOrderBook> orderBookFactory) {
+        this.orderBookFactory = orderBookFactory;
+    }
+
+    @Override
+    protected IOrderBook createNewOrderBook() {
+        return orderBookFactory.get();
+    }
+
+    @Test
+    public void shouldRestoreIndexes() {
+        final Bytes<ByteBuffer> bytes = Bytes.elasticHeapByteBuffer(1024);
+        orderBook.writeMarshallable(bytes);
+        final IOrderBook restored = IOrderBook.create(bytes, ObjectsPool.createDefaultTestPool());
+
+        restored.validateInternalState();
+        assertThat(restored.stateHash(), is(orderBook.stateHash()));
+        assertThat(restored.getOrderById(1L).getPrice(), is(81600L));
+        assertThat(restored.findUserOrders(UID_1).size(), is(13));
+        assertThat(restored.findUserOrders(UID_2).isEmpty(), is(true));
+    }
+
+    private static Object[] orderBook(final String name, final Supplier<IOrderBook> factory) {
+        return new Object[]{name, factory};
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.orderbook;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+public class OrderIdHashIndexTest {
+
+    @Test
+    public void shouldPerformBasicOperations() {
+        final OrderIdHashIndex<String> index = new OrderIdHashIndex<>(4);
+        assertNull(index.get(1));
+
+        assertNull(index.putIfAbsent(1, "one"));
+        assertNull(index.putIfAbsent(-5, "minus five"));
+        assertNull(index.putIfAbsent(Long.MAX_VALUE, "max"));
+        assertThat(index.putIfAbsent(1, "another one"), is("one"));
+
+        assertThat(index.size(), is(3));
+        assertThat(index.get(1), is("one"));
+        assertThat(index.get(-5), is("minus five"));
+        assertThat(index.get(Long.MAX_VALUE), is("max"));
+
+        index.remove(1);
+        index.remove(2);
+        assertNull(index.get(1));
+        assertThat(index.size(), is(2));
+        assertNull(index.putIfAbsent(1, "another one"));
+        assertThat(index.get(1), is("another one"));
+    }
+
+    @Test
+    public void shouldGrow() {
+        final OrderIdHashIndex<Long> index = new OrderIdHashIndex<>(8);
+        for (long i = 0; i < 10_000; i++) {
+            assertNull(index.putIfAbsent(i, i));
+        }
+        assertThat(index.size(), is(10_000));
+        assertThat(index.capacity() >= 20_000, is(true));
+        for (long i = 0; i < 10_000; i++) {
+            assertThat(index.get(i), is(i));
+        }
+    }
+
+    @Test
+    public void shouldMatchReferenceMapSequentialIds() {
+        compareWithReferenceMap(new Random(1L), 0);
+    }
+
+    @Test
+    public void shouldMatchReferenceMapPerUserIds() {
+        compareWithReferenceMap(new Random(2L), 1);
+    }
+
+    @Test
+    public void shouldMatchReferenceMapRandomIds() {
+        compareWithReferenceMap(new Random(3L), 2);
+    }
+
+    /**
+     * Random place/cancel sequence, removals are shifting clusters back - all remaining keys must be reachable
+     */
+    private void compareWithReferenceMap(final Random rand, final int idsPattern) {
+        final OrderIdHashIndex<Long> index = new OrderIdHashIndex<>(16);
+        final Map<Long, Long> reference = new HashMap<>();
+        final List<Long> live = new ArrayList<>();
+        final long[] userCounters = new long[16];
+        long sequence = 0;
+
+        for (int i = 0; i < 200_000; i++) {
+            if (live.isEmpty() || rand.nextInt(100) < 52) {
+                final long orderId;
+                if (idsPattern == 0) {
+                    orderId = sequence++;
+                } else if (idsPattern == 1) {
+                    final int user = rand.nextInt(userCounters.length);
+                    orderId = ((long) user << 40) + userCounters[user]++;
+                } else {
+                    orderId = rand.nextLong();
+                }
+                final Long expected = reference.putIfAbsent(orderId, (long) i);
+                assertThat(index.putIfAbsent(orderId, (long) i), is(expected));
+                if (expected == null) {
+                    live.add(orderId);
+                }
+            } else {
+                final int idx = rand.nextInt(live.size());
+                final long orderId = live.get(idx);
+                live.set(idx, live.get(live.size() - 1));
+                live.remove(live.size() - 1);
+                reference.remove(orderId);
+                index.remove(orderId);
+                assertNull(index.get(orderId));
+            }
+
+            if (i % 10_000 == 0) {
+                assertThat(index.size(), is(reference.size()));
+                reference.forEach((k, v) -> assertThat(index.get(k), is(v)));
+                final Map<Long, Long> iterated = new HashMap<>();
+                index.forEach(iterated::put);
+                assertThat(iterated, is(reference));
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.api.ApiPersistState;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.common.cmd.OrderCommandType;
+import exchange.core2.core.processors.journalling.ISerializationProcessor;
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.WriteBytesMarshallable;
+import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Async snapshot outcome is known only after background write is completed:
+ * engine reports STATE_PERSIST_STARTED, outcome is queried separately,
+ * and failed snapshot is never used as a base for delta snapshot.
+ */
+public class AsyncSnapshotProcessorTest {
+
+    private static final int DELTA_SNAPSHOT_MARKER = -1;
+
+    private ISerializationProcessor serializationProcessor;
+
+    // snapshotId -> first int of written snapshot (delta marker or shard id)
+    private final LongIntHashMap writtenHeaders = new LongIntHashMap();
+    private final LongHashSet failingSnapshots = new LongHashSet();
+
+    @Before
+    public void before() {
+        serializationProcessor = mock(ISerializationProcessor.class);
+        when(serializationProcessor.storeData(anyLong(), any(), anyInt(), any())).thenAnswer(invocation -> {
+            final long snapshotId = invocation.getArgument(0);
+            final WriteBytesMarshallable obj = invocation.getArgument(3);
+            final Bytes<ByteBuffer> bytes = Bytes.elasticHeapByteBuffer(256);
+            obj.writeMarshallable(bytes);
+            synchronized (writtenHeaders) {
+                writtenHeaders.put(snapshotId, bytes.readInt());
+            }
+            return !failingSnapshots.contains(snapshotId);
+        });
+    }
+
+    @Test
+    public void shouldReportOutcomeOfEachSnapshot() {
+        final AsyncSnapshotProcessor processor = new AsyncSnapshotProcessor(serializationProcessor, "test");
+        failingSnapshots.add(1L);
+
+        processor.start(1L, ISerializationProcessor.SerializedModuleType.RISK_ENGINE, 0, emptySnapshot());
+        assertThat(processor.getResult(1L).join(), is(false));
+
+        processor.start(2L, ISerializationProcessor.SerializedModuleType.RISK_ENGINE, 0, emptySnapshot());
+        assertThat(processor.getResult(2L).join(), is(true));
+
+        // previous outcome is still available
+        assertThat(processor.getResult(1L).join(), is(false));
+        assertThat(processor.getResult(3L), nullValue());
+
+        processor.shutdown();
+    }
+
+    @Test
+    public void shouldNotUseFailedSnapshotAsDeltaBase() {
+        final RiskEngine riskEngine = new RiskEngine(0, 1, serializationProcessor, new SharedPool(64, 16, 1), null, true);
+        failingSnapshots.add(1L);
+
+        // write is not completed yet - engine can only report that snapshot is started
+        assertThat(persist(riskEngine, 1L, false), is(CommandResultCode.STATE_PERSIST_STARTED));
+        assertThat(riskEngine.getSnapshotResult(1L).join(), is(false));
+
+        // delta is requested, but base snapshot 1 was not written - full snapshot
+        assertThat(persist(riskEngine, 2L, true), is(CommandResultCode.STATE_PERSIST_STARTED));
+        assertThat(riskEngine.getSnapshotResult(2L).join(), is(true));
+        assertThat(writtenHeader(2L) == DELTA_SNAPSHOT_MARKER, is(false));
+
+        // snapshot 2 is written - can be used as delta base
+        assertThat(persist(riskEngine, 3L, true), is(CommandResultCode.STATE_PERSIST_STARTED));
+        assertThat(riskEngine.getSnapshotResult(3L).join(), is(true));
+        assertThat(writtenHeader(3L), is(DELTA_SNAPSHOT_MARKER));
+
+        riskEngine.shutdownSnapshots();
+    }
+
+    private static CommandResultCode persist(final RiskEngine riskEngine, final long snapshotId, final boolean delta) {
+        final OrderCommand cmd = new OrderCommand();
+        cmd.command = OrderCommandType.PERSIST_STATE_RISK;
+        cmd.orderId = snapshotId;
+        cmd.price = delta ? ApiPersistState.SNAPSHOT_DELTA : ApiPersistState.SNAPSHOT_FULL;
+        cmd.resultCode = CommandResultCode.NEW;
+        riskEngine.preProcessCommand(cmd);
+        return cmd.resultCode;
+    }
+
+    private int writtenHeader(final long snapshotId) {
+        synchronized (writtenHeaders) {
+            return writtenHeaders.getOrThrow(snapshotId);
+        }
+    }
+
+    private static CopyOnWriteSnapshot emptySnapshot() {
+        final CopyOnWriteSnapshot snapshot = new CopyOnWriteSnapshot(0, true);
+        snapshot.getHeader().writeInt(0);
+        return snapshot;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.UserProfile;
+import org.eclipse.collections.impl.map.mutable.primitive.IntLongHashMap;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class BalanceDeltasAccumulatorTest {
+
+    private static final int[] CURRENCIES = {840, 978, 3762};
+
+    /**
+     * Accumulated changes applied once per group must give the same balances, totals and fees
+     * as applying every settlement event separately.
+     */
+    @Test
+    public void shouldMatchPerEventApplication() {
+
+        final UserProfileService expectedProfiles = new UserProfileService();
+        final IntLongHashMap expectedFees = new IntLongHashMap();
+        final IntLongHashMap expectedTotals = new IntLongHashMap();
+
+        final UserProfileService profiles = new UserProfileService();
+        final IntLongHashMap fees = new IntLongHashMap();
+        final IntLongHashMap totals = new IntLongHashMap();
+
+        final BalanceDeltasAccumulator accumulator = new BalanceDeltasAccumulator();
+
+        final Random random = new Random(1L);
+        for (long uid = 1; uid <= 50; uid += 2) {
+            expectedProfiles.addEmptyUserProfile(uid);
+            profiles.addEmptyUserProfile(uid);
+        }
+
+        for (int group = 0; group < 1000; group++) {
+            final int events = random.nextInt(40);
+            for (int i = 0; i < events; i++) {
+                // even uids are unknown counterparties, created as suspended profiles
+                final long uid = 1 + random.nextInt(60);
+                final int currency = CURRENCIES[random.nextInt(CURRENCIES.length)];
+                final long amount = random.nextInt(2_000_000) - 1_000_000;
+                final long fee = random.nextInt(100);
+
+                expectedProfiles.getUserProfileOrAddSuspended(uid).accounts.addToValue(currency, amount);
+                expectedTotals.addToValue(currency, amount);
+                expectedFees.addToValue(currency, fee);
+
+                accumulator.addToBalance(uid, currency, amount);
+                accumulator.addFee(currency, fee);
+            }
+
+            assertThat(accumulator.isEmpty(), is(events == 0));
+            accumulator.apply(profiles, fees, totals);
+            assertThat(accumulator.isEmpty(), is(true));
+
+            assertThat(fees, is(expectedFees));
+            assertThat(totals, is(expectedTotals));
+        }
+
+        assertThat(profiles.getUserProfiles().size(), is(expectedProfiles.getUserProfiles().size()));
+        expectedProfiles.getUserProfiles().forEachValue(expected -> {
+            final UserProfile profile = profiles.getUserProfile(expected.uid);
+            assertThat(profile.accounts, is(expected.accounts));
+            assertThat(profile.suspended, is(expected.suspended));
+        });
+        assertThat(profiles.stateHash(), is(expectedProfiles.stateHash()));
+    }
+
+    @Test
+    public void shouldDiscardPendingChangesOnReset() {
+        final UserProfileService profiles = new UserProfileService();
+        final IntLongHashMap fees = new IntLongHashMap();
+        final IntLongHashMap totals = new IntLongHashMap();
+        final BalanceDeltasAccumulator accumulator = new BalanceDeltasAccumulator();
+
+        accumulator.addToBalance(1L, 840, 100L);
+        accumulator.addFee(840, 5L);
+        accumulator.reset();
+        assertThat(accumulator.isEmpty(), is(true));
+
+        accumulator.addToBalance(2L, 978, 7L);
+        accumulator.apply(profiles, fees, totals);
+
+        assertThat(profiles.getUserProfile(1L) == null, is(true));
+        assertThat(profiles.getUserProfile(2L).accounts.get(978), is(7L));
+        assertThat(fees.isEmpty(), is(true));
+        assertThat(totals.get(978), is(7L));
+        assertThat(totals.containsKey(840), is(false));
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.UserProfile;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.orderbook.IOrderBook;
+import exchange.core2.core.orderbook.OrderBookNaiveImpl;
+import exchange.core2.tests.util.TestConstants;
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.BytesIn;
+import net.openhft.chronicle.bytes.BytesOut;
+import net.openhft.chronicle.bytes.WriteBytesMarshallable;
+import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
+import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
+import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static exchange.core2.core.common.OrderAction.ASK;
+import static exchange.core2.core.common.OrderAction.BID;
+import static exchange.core2.core.common.OrderType.GTC;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Records are modified by owner thread while background thread is writing the snapshot.
+ * Background writer is blocked by the gate record in the middle of the records list,
+ * so records before the gate are written directly, and records after the gate are copied by owner thread.
+ * Restored state must match the state at snapshot creation.
+ */
+public class CopyOnWriteSnapshotTest {
+
+    private static final long GATE_KEY = 50;
+
+    @Test(timeout = 10_000)
+    public void shouldWriteUserProfilesStateAtSnapshotCreation() throws Exception {
+
+        final UserProfileService service = new UserProfileService();
+        for (long uid = 1; uid <= 100; uid++) {
+            if (uid != GATE_KEY) {
+                assertThat(service.addEmptyUserProfile(uid), is(true));
+                assertThat(service.balanceAdjustment(uid, TestConstants.CURRENECY_USD, uid * 1000L, 1L), is(CommandResultCode.SUCCESS));
+            }
+        }
+
+        final LongIntHashMap expectedHashes = new LongIntHashMap();
+        service.getUserProfiles().forEachKeyValue((uid, profile) -> expectedHashes.put(uid, profile.stateHash()));
+
+        final GateRecord gate = new GateRecord();
+        final CopyOnWriteSnapshot snapshot = new CopyOnWriteSnapshot(100, true);
+        snapshot.getHeader().writeInt(123);
+        for (long uid = 1; uid <= 100; uid++) {
+            snapshot.add(uid, uid == GATE_KEY ? gate : service.getUserProfile(uid));
+        }
+        snapshot.getTrailer().writeLong(456L);
+
+        final CompletableFuture<Bytes<ByteBuffer>> future = writeInBackground(snapshot, gate);
+
+        // every profile is modified: 1..49 are already written, 51..100 are still pending
+        for (long uid = 1; uid <= 100; uid++) {
+            if (uid != GATE_KEY) {
+                snapshot.beforeUpdate(uid);
+                assertThat(service.balanceAdjustment(uid, TestConstants.CURRENECY_USD, 7L, 2L), is(CommandResultCode.SUCCESS));
+                assertThat(service.getUserProfile(uid).stateHash(), not(expectedHashes.get(uid)));
+            }
+        }
+        // removed profile
+        snapshot.beforeUpdate(100L);
+        assertThat(service.balanceAdjustment(100L, TestConstants.CURRENECY_USD, -100_007L, 3L), is(CommandResultCode.SUCCESS));
+        assertThat(service.suspendUserProfile(100L), is(CommandResultCode.SUCCESS));
+
+        gate.release();
+        final Bytes<ByteBuffer> bytes = future.get();
+
+        assertThat(bytes.readInt(), is(123));
+        final int size = bytes.readInt();
+        assertThat(size, is(100));
+        for (int i = 0; i < size; i++) {
+            final long uid = bytes.readLong();
+            if (uid != GATE_KEY) {
+                final UserProfile restored = new UserProfile(bytes);
+                assertThat(restored.uid, is(uid));
+                assertThat(restored.accounts.get(TestConstants.CURRENECY_USD), is(uid * 1000L));
+                assertThat(restored.stateHash(), is(expectedHashes.get(uid)));
+            }
+        }
+        assertThat(bytes.readLong(), is(456L));
+        assertThat(bytes.readRemaining(), is(0L));
+    }
+
+    @Test(timeout = 10_000)
+    public void shouldWriteOrderBooksStateAtSnapshotCreation() throws Exception {
+
+        final IntObjectHashMap<IOrderBook> orderBooks = new IntObjectHashMap<>();
+        final IntIntHashMap expectedHashes = new IntIntHashMap();
+        for (int symbol = 1; symbol <= 100; symbol++) {
+            if (symbol != GATE_KEY) {
+                final IOrderBook orderBook = new OrderBookNaiveImpl(TestConstants.SYMBOLSPEC_EUR_USD);
+                placeOrder(orderBook, OrderCommand.newOrder(GTC, 1, 1, 1000 + symbol, 0, 10, ASK));
+                placeOrder(orderBook, OrderCommand.newOrder(GTC, 2, 2, 900 + symbol, 900 + symbol, 20, BID));
+                orderBooks.put(symbol, orderBook);
+                expectedHashes.put(symbol, orderBook.stateHash());
+            }
+        }
+
+        final GateRecord gate = new GateRecord();
+        final CopyOnWriteSnapshot snapshot = new CopyOnWriteSnapshot(100, false);
+        for (int symbol = 1; symbol <= 100; symbol++) {
+            snapshot.add(symbol, symbol == GATE_KEY ? gate : orderBooks.get(symbol));
+        }
+
+        final CompletableFuture<Bytes<ByteBuffer>> future = writeInBackground(snapshot, gate);
+
+        for (int symbol = 1; symbol <= 100; symbol++) {
+            if (symbol != GATE_KEY) {
+                final IOrderBook orderBook = orderBooks.get(symbol);
+                snapshot.beforeUpdate(symbol);
+                // partial match, new order and cancel
+                placeOrder(orderBook, OrderCommand.newOrder(GTC, 3, 3, 1000 + symbol, 1000 + symbol, 4, BID));
+                placeOrder(orderBook, OrderCommand.newOrder(GTC, 4, 3, 1100 + symbol, 0, 5, ASK));
+                assertThat(IOrderBook.processCommand(orderBook, OrderCommand.cancel(2, 2)), is(CommandResultCode.SUCCESS));
+                assertThat(orderBook.stateHash(), not(expectedHashes.get(symbol)));
+            }
+        }
+
+        gate.release();
+        final Bytes<ByteBuffer> bytes = future.get();
+
+        final int size = bytes.readInt();
+        assertThat(size, is(100));
+        for (int i = 0; i < size; i++) {
+            final int symbol = bytes.readInt();
+            if (symbol != GATE_KEY) {
+                final IOrderBook restored = IOrderBook.create(bytes, null);
+                assertThat(restored.stateHash(), is(expectedHashes.get(symbol)));
+            }
+        }
+        assertThat(bytes.readRemaining(), is(0L));
+    }
+
+    @Test(timeout = 10_000)
+    public void shouldCopyAllPendingRecordsOnDemand() throws Exception {
+
+        final UserProfileService service = new UserProfileService();
+        final CopyOnWriteSnapshot snapshot = new CopyOnWriteSnapshot(10, true);
+        final LongIntHashMap expectedHashes = new LongIntHashMap();
+        for (long uid = 1; uid <= 10; uid++) {
+            service.addEmptyUserProfile(uid);
+            service.balanceAdjustment(uid, TestConstants.CURRENECY_EUR, 10L, 1L);
+            expectedHashes.put(uid, service.getUserProfile(uid).stateHash());
+            snapshot.add(uid, service.getUserProfile(uid));
+        }
+
+        // owner thread completes snapshot before background thread started
+        snapshot.copyAll();
+        for (long uid = 1; uid <= 10; uid++) {
+            snapshot.beforeUpdate(uid);
+            service.balanceAdjustment(uid, TestConstants.CURRENECY_EUR, 5L, 2L);
+        }
+
+        final Bytes<ByteBuffer> bytes = Bytes.elasticHeapByteBuffer(1024);
+        snapshot.writeMarshallable(bytes);
+
+        assertThat(bytes.readInt(), is(10));
+        for (int i = 0; i < 10; i++) {
+            final long uid = bytes.readLong();
+            assertThat(new UserProfile(bytes).stateHash(), is(expectedHashes.get(uid)));
+        }
+    }
+
+    private static CompletableFuture<Bytes<ByteBuffer>> writeInBackground(final CopyOnWriteSnapshot snapshot,
+                                                                        final GateRecord gate) throws InterruptedException {
+        final CompletableFuture<Bytes<ByteBuffer>> future = CompletableFuture.supplyAsync(() -> {
+            final Bytes<ByteBuffer> bytes = Bytes.elasticHeapByteBuffer(1024);
+            snapshot.writeMarshallable(bytes);
+            return bytes;
+        });
+        gate.awaitEntered();
+        return future;
+    }
+
+    private static void placeOrder(final IOrderBook orderBook, final OrderCommand cmd) {
+        assertThat(IOrderBook.processCommand(orderBook, cmd), is(CommandResultCode.SUCCESS));
+        cmd.matcherEvent = null;
+    }
+
+    /**
+     * Blocks background writer until owner thread has modified the records.
+     * Writes nothing, so it is skipped when reading the snapshot.
+     */
+    private static final class GateRecord implements WriteBytesMarshallable {
+
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        @Override
+        public void writeMarshallable(final BytesOut bytes) {
+            entered.countDown();
+            try {
+                released.await();
+            } catch (final InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        void awaitEntered() throws InterruptedException {
+            if (!entered.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Snapshot writer did not start");
+            }
+        }
+
+        void release() {
+            released.countDown();
+        }
+    }
+}
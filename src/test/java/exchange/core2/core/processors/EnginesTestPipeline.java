@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import com.lmax.disruptor.RingBuffer;
+import exchange.core2.core.ExchangeApi;
+import exchange.core2.core.common.CoreSymbolSpecification;
+import exchange.core2.core.common.api.*;
+import exchange.core2.core.common.api.binary.BatchAddSymbolsCommand;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.orderbook.OrderBookDirectImpl;
+import exchange.core2.core.processors.journalling.DiskSerializationProcessor;
+import exchange.core2.core.processors.journalling.ISerializationProcessor;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single shard risk engine and matching engine, processing commands synchronously in the calling thread:
+ * R1, ME and R2 handlers are called one after another for every published sequence (one command per group),
+ * or stage by stage for the whole group (see {@link #submitGroup(List)}).
+ * Commands are published through {@link ExchangeApi}, so processors see the same commands as in exchange core.
+ */
+final class EnginesTestPipeline {
+
+    private final ISerializationProcessor serializationProcessor = new DiskSerializationProcessor("./dumps");
+    private final SharedPool sharedPool = new SharedPool(64, 16, 1);
+
+    private final RingBuffer<OrderCommand> ringBuffer = RingBuffer.createSingleProducer(OrderCommand::new, 1024);
+
+    @Getter
+    private final ExchangeApi api = new ExchangeApi(ringBuffer, 1);
+
+    @Getter
+    private RiskEngine riskEngine;
+    @Getter
+    private MatchingEngineRouter matchingEngine;
+
+    private long processedSeq = -1;
+    private long transactionId = 1;
+
+    EnginesTestPipeline() {
+        this.riskEngine = new RiskEngine(0, 1, serializationProcessor, sharedPool, null, false);
+        this.matchingEngine = new MatchingEngineRouter(0, 1, serializationProcessor, OrderBookDirectImpl::new, sharedPool, null, false);
+    }
+
+    void addSymbols(final List<CoreSymbolSpecification> symbols) {
+        final OrderCommand cmd = submit(ApiBinaryDataCommand.builder().transferId(1).data(new BatchAddSymbolsCommand(symbols)).build());
+        if (cmd.resultCode != CommandResultCode.SUCCESS) {
+            throw new IllegalStateException("Can not add symbols: " + cmd.resultCode);
+        }
+    }
+
+    void addUser(final long uid, final int currency, final long amount) {
+        submitSuccessfully(ApiAddUser.builder().uid(uid).build());
+        adjustBalance(uid, currency, amount);
+    }
+
+    void adjustBalance(final long uid, final int currency, final long amount) {
+        submitSuccessfully(ApiAdjustUserBalance.builder().uid(uid).currency(currency).amount(amount).transactionId(transactionId++).build());
+    }
+
+    OrderCommand submitSuccessfully(final ApiCommand apiCommand) {
+        final OrderCommand cmd = submit(apiCommand);
+        if (cmd.resultCode != CommandResultCode.SUCCESS) {
+            throw new IllegalStateException(apiCommand + " failed: " + cmd.resultCode);
+        }
+        return cmd;
+    }
+
+    /**
+     * Publish command and process all its sequences
+     *
+     * @return copy of last processed command (result code, trade events, market data)
+     */
+    OrderCommand submit(final ApiCommand apiCommand) {
+        api.submitCommand(apiCommand);
+        OrderCommand last = null;
+        final long cursor = ringBuffer.getCursor();
+        while (processedSeq < cursor) {
+            final OrderCommand cmd = ringBuffer.get(++processedSeq);
+            // grouping processor: every command starts new market data publishing epoch
+            cmd.matcherEvent = null;
+            cmd.marketData = null;
+            cmd.eventsGroup = processedSeq;
+            cmd.serviceFlags = 1;
+            riskEngine.preProcessCommand(cmd);
+            matchingEngine.processOrder(cmd);
+            riskEngine.handlerRiskRelease(cmd);
+            riskEngine.applyPendingSettlements();
+            last = cmd;
+        }
+        if (last == null) {
+            throw new IllegalStateException("Nothing published for " + apiCommand);
+        }
+        return last.copy();
+    }
+
+    /**
+     * Publish commands as single events group: R1 stage for all commands, then ME stage, then R2 stage,
+     * same as risk engine and matching engine processors do for every group.
+     *
+     * @return copies of processed commands (result codes, trade events, market data)
+     */
+    List<OrderCommand> submitGroup(final List<ApiCommand> apiCommands) {
+        apiCommands.forEach(api::submitCommand);
+        final long from = processedSeq + 1;
+        final long to = ringBuffer.getCursor();
+        for (long seq = from; seq <= to; seq++) {
+            final OrderCommand cmd = ringBuffer.get(seq);
+            cmd.matcherEvent = null;
+            cmd.marketData = null;
+            cmd.eventsGroup = from;
+            cmd.serviceFlags = 1;
+            riskEngine.preProcessCommand(cmd);
+        }
+        for (long seq = from; seq <= to; seq++) {
+            matchingEngine.processOrder(ringBuffer.get(seq));
+        }
+        final List<OrderCommand> result = new ArrayList<>();
+        for (long seq = from; seq <= to; seq++) {
+            final OrderCommand cmd = ringBuffer.get(seq);
+            riskEngine.handlerRiskRelease(cmd);
+            result.add(cmd.copy());
+        }
+        riskEngine.applyPendingSettlements();
+        processedSeq = to;
+        return result;
+    }
+
+    /**
+     * Persist both engines state, then replace engines with instances loaded from the snapshot
+     */
+    void persistAndReload(final long stateId) {
+        final OrderCommand cmd = submit(ApiPersistState.builder().dumpId(stateId).build());
+        if (cmd.resultCode != CommandResultCode.SUCCESS) {
+            throw new IllegalStateException("Can not persist state: " + cmd.resultCode);
+        }
+        this.riskEngine = new RiskEngine(0, 1, serializationProcessor, sharedPool, stateId, false);
+        this.matchingEngine = new MatchingEngineRouter(0, 1, serializationProcessor, OrderBookDirectImpl::new, sharedPool, stateId, false);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class GroupingControllerTest {
+
+    private static final long INTERVAL_NS = 1_000_000;
+
+    private GroupingController controller;
+    private long nowNs;
+
+    @Before
+    public void before() {
+        controller = GroupingController.adaptive(16, 1024, 1_000, 10_000);
+        nowNs = INTERVAL_NS;
+        // first call only starts measuring
+        controller.adapt(nowNs, 0);
+        assertState(1024, 10_000);
+    }
+
+    @Test
+    public void shouldHalveWhenGroupWouldNotFill() {
+        // 1000 msgs/ms -> 10 msgs expected within 10us, less than 1024/2
+        adapt(1000, 0);
+        assertState(512, 5_000);
+        assertThat(controller.getArrivalRatePerSec(), is(1_000_000L));
+        assertThat(controller.getAdjustmentsCount(), is(1L));
+    }
+
+    @Test
+    public void shouldDoubleWhenGroupFillsFaster() {
+        adapt(0, 0);
+        assertState(512, 5_000);
+
+        // 120000 msgs/ms -> 600 msgs expected within 5us, more than 512
+        adapt(120_000, 0);
+        assertState(1024, 10_000);
+        assertThat(controller.getAdjustmentsCount(), is(2L));
+    }
+
+    @Test
+    public void shouldDoubleWhenDownstreamLagExceedsTwoGroups() {
+        adapt(0, 0);
+        assertState(512, 5_000);
+
+        // 60000 msgs/ms -> 300 msgs expected within 5us, in range [256, 512] - lag is not exceeded
+        adapt(60_000, 2 * 512);
+        assertState(512, 5_000);
+
+        // same rate, but downstream is behind by more than two groups
+        adapt(60_000, 2 * 512 + 1);
+        assertState(1024, 10_000);
+        assertThat(controller.getDownstreamLag(), is(1025L));
+    }
+
+    @Test
+    public void shouldPreferLagOverLowRate() {
+        adapt(0, 2 * 1024 + 1);
+        assertState(1024, 10_000);
+        assertThat(controller.getAdjustmentsCount(), is(0L));
+
+        adapt(0, 0);
+        adapt(0, 2 * 512 + 1);
+        assertState(1024, 10_000);
+    }
+
+    @Test
+    public void shouldKeepValuesWithinBounds() {
+        // limit keeps halving to minimum, duration is clamped earlier
+        adapt(0, 0);
+        assertState(512, 5_000);
+        adapt(0, 0);
+        assertState(256, 2_500);
+        adapt(0, 0);
+        assertState(128, 1_250);
+        adapt(0, 0);
+        assertState(64, 1_000);
+        adapt(0, 0);
+        adapt(0, 0);
+        assertState(16, 1_000);
+        final long adjustments = controller.getAdjustmentsCount();
+        adapt(0, 0);
+        assertState(16, 1_000);
+        assertThat(controller.getAdjustmentsCount(), is(adjustments));
+
+        // doubling up to maximum
+        for (int i = 0; i < 10; i++) {
+            adapt(100_000_000, 1_000_000);
+        }
+        assertState(1024, 10_000);
+        assertThat(controller.getAdjustmentsCount(), is(adjustments + 6));
+    }
+
+    @Test
+    public void shouldAdaptOnlyAfterInterval() {
+        assertThat(controller.isAdaptationDue(nowNs + INTERVAL_NS - 1), is(false));
+        assertThat(controller.isAdaptationDue(nowNs + INTERVAL_NS), is(true));
+    }
+
+    @Test
+    public void shouldAdaptWithZeroOrNegativeNanoTime() {
+        for (final long startNs : new long[]{0L, -5 * INTERVAL_NS, Long.MIN_VALUE + 1}) {
+            final GroupingController c = GroupingController.adaptive(16, 1024, 1_000, 10_000);
+            // not started yet - first call is due at any time
+            assertThat(c.isAdaptationDue(startNs), is(true));
+            c.adapt(startNs, 0);
+            assertThat(c.isAdaptationDue(startNs + INTERVAL_NS - 1), is(false));
+            assertThat(c.isAdaptationDue(startNs + INTERVAL_NS), is(true));
+
+            c.onBatch(0);
+            c.adapt(startNs + INTERVAL_NS, 0);
+            assertThat(c.getMsgsInGroupLimit(), is(512));
+            assertThat(c.getGroupMaxDurationNs(), is(5_000L));
+        }
+    }
+
+    @Test
+    public void fixedControllerShouldNotAdapt() {
+        final GroupingController fixed = GroupingController.fixed(256, 10_000);
+        assertThat(fixed.isAdaptive(), is(false));
+        assertThat(fixed.isAdaptationDue(Long.MAX_VALUE), is(false));
+        assertThat(fixed.getMsgsInGroupLimit(), is(256));
+        assertThat(fixed.getGroupMaxDurationNs(), is(10_000L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidLimitBounds() {
+        GroupingController.adaptive(1024, 16, 1_000, 10_000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidDurationBounds() {
+        GroupingController.adaptive(16, 1024, 0, 10_000);
+    }
+
+    private void adapt(final long msgs, final long lag) {
+        controller.onBatch(msgs);
+        nowNs += INTERVAL_NS;
+        controller.adapt(nowNs, lag);
+    }
+
+    private void assertState(final int limit, final long durationNs) {
+        assertThat(controller.getMsgsInGroupLimit(), is(limit));
+        assertThat(controller.getGroupMaxDurationNs(), is(durationNs));
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.CoreSymbolSpecification;
+import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.OrderType;
+import exchange.core2.core.common.SymbolType;
+import exchange.core2.core.common.api.ApiCancelOrder;
+import exchange.core2.core.common.api.ApiMoveOrder;
+import exchange.core2.core.common.api.ApiPlaceOrder;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.tests.util.TestConstants;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static exchange.core2.core.common.OrderAction.ASK;
+import static exchange.core2.core.common.OrderAction.BID;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Cached futures free margin (per position and per user currency) must be equal to full recalculation
+ * after every command, including trades, cancels, last price changes and snapshot reload.
+ */
+public class RiskEngineFreeMarginTest {
+
+    private static final int FUT_1 = 1;
+    private static final int FUT_2 = 2;
+    private static final int FUT_3 = 3;
+    private static final int EXCHANGE = 4;
+
+    private static final long UID_1 = 101;
+    private static final long UID_2 = 102;
+
+    private EnginesTestPipeline pipeline;
+
+    private long orderId = 1;
+
+    @Before
+    public void before() {
+        pipeline = new EnginesTestPipeline();
+        pipeline.addSymbols(Arrays.asList(
+                futures(FUT_1, TestConstants.CURRENECY_USD),
+                futures(FUT_2, TestConstants.CURRENECY_USD),
+                futures(FUT_3, TestConstants.CURRENECY_EUR),
+                CoreSymbolSpecification.builder()
+                        .symbolId(EXCHANGE)
+                        .type(SymbolType.CURRENCY_EXCHANGE_PAIR)
+                        .baseCurrency(TestConstants.CURRENECY_EUR)
+                        .quoteCurrency(TestConstants.CURRENECY_USD)
+                        .baseScaleK(1)
+                        .quoteScaleK(1)
+                        .build()));
+    }
+
+    /**
+     * Margin order is covered by account balance plus free margin of all other positions in the same currency,
+     * plus P&L of the position for this symbol.
+     */
+    @Test
+    public void shouldCountFreeMarginOfOtherPositions() {
+        pipeline.addUser(UID_1, TestConstants.CURRENECY_USD, 600);
+        pipeline.addUser(UID_2, TestConstants.CURRENECY_USD, 1_000_000);
+
+        // UID_1 opens long position 5@1000, margin 500
+        placeOrder(UID_2, FUT_1, ASK, 1000, 5, CommandResultCode.SUCCESS);
+        placeOrder(UID_1, FUT_1, BID, 1000, 5, CommandResultCode.SUCCESS);
+        validate();
+
+        // best bid 1200: P&L is 5*1200-5000=1000, free margin of FUT_1 position is 1000-500=500
+        final long bidOrderId = placeOrder(UID_2, FUT_1, BID, 1200, 1, CommandResultCode.SUCCESS);
+        validate();
+
+        // required 11*100 = 1100 = 600 (balance) + 500 (FUT_1) + 0 (FUT_2 P&L)
+        final long order = placeOrder(UID_1, FUT_2, BID, 900, 11, CommandResultCode.SUCCESS);
+        validate();
+        pipeline.submitSuccessfully(ApiCancelOrder.builder().id(order).uid(UID_1).symbol(FUT_2).build());
+        validate();
+        placeOrder(UID_1, FUT_2, BID, 900, 12, CommandResultCode.RISK_NSF);
+        validate();
+
+        // price move: best bid 1100, FUT_1 free margin is 5*1100-5000-500=0
+        pipeline.submitSuccessfully(ApiMoveOrder.builder().id(bidOrderId).uid(UID_2).symbol(FUT_1).newPrice(1100).build());
+        validate();
+        placeOrder(UID_1, FUT_2, BID, 900, 7, CommandResultCode.RISK_NSF);
+        placeOrder(UID_1, FUT_2, BID, 900, 6, CommandResultCode.SUCCESS);
+        validate();
+
+        // free margin is available for exchange orders in the same currency, but not more
+        placeOrder(UID_1, EXCHANGE, BID, 1, 1, CommandResultCode.RISK_NSF);
+
+        pipeline.persistAndReload(1L);
+        validate();
+        placeOrder(UID_1, FUT_2, BID, 900, 1, CommandResultCode.RISK_NSF);
+    }
+
+    @Test
+    public void shouldKeepCachedFreeMarginConsistent() {
+
+        final Random random = new Random(1L);
+        final int usersNum = 20;
+        for (long uid = 1; uid <= usersNum; uid++) {
+            pipeline.addUser(uid, TestConstants.CURRENECY_USD, 5_000 + random.nextInt(50_000));
+            pipeline.adjustBalance(uid, TestConstants.CURRENECY_EUR, 5_000 + random.nextInt(50_000));
+        }
+
+        final int[] symbols = {FUT_1, FUT_2, FUT_3, EXCHANGE};
+        final List<long[]> activeOrders = new ArrayList<>();
+        int successful = 0;
+
+        for (int i = 0; i < 20_000; i++) {
+            final int op = random.nextInt(10);
+            if (op < 6 || activeOrders.isEmpty()) {
+                final long uid = 1 + random.nextInt(usersNum);
+                final int symbol = symbols[random.nextInt(symbols.length)];
+                final long price = 950 + random.nextInt(100);
+                final OrderAction action = random.nextBoolean() ? BID : ASK;
+                final OrderCommand cmd = pipeline.submit(ApiPlaceOrder.builder()
+                        .id(orderId++).uid(uid).symbol(symbol).action(action)
+                        .orderType(random.nextInt(5) == 0 ? OrderType.IOC : OrderType.GTC)
+                        .price(symbol == EXCHANGE ? price / 100 : price)
+                        .reservePrice(symbol == EXCHANGE ? price / 100 + 1 : price)
+                        .size(1 + random.nextInt(10))
+                        .build());
+                if (cmd.resultCode == CommandResultCode.SUCCESS) {
+                    successful++;
+                    activeOrders.add(new long[]{cmd.orderId, uid, symbol});
+                }
+            } else if (op < 8) {
+                final long[] order = activeOrders.remove(random.nextInt(activeOrders.size()));
+                pipeline.submit(ApiCancelOrder.builder().id(order[0]).uid(order[1]).symbol((int) order[2]).build());
+            } else {
+                final long[] order = activeOrders.get(random.nextInt(activeOrders.size()));
+                final long price = 950 + random.nextInt(100);
+                pipeline.submit(ApiMoveOrder.builder().id(order[0]).uid(order[1]).symbol((int) order[2]).newPrice(order[2] == EXCHANGE ? price / 100 : price).build());
+            }
+
+            validate();
+
+            if (i % 5000 == 4999) {
+                pipeline.persistAndReload(1000L + i);
+                validate();
+            }
+        }
+
+        assertThat(successful > 5000, is(true));
+    }
+
+    private long placeOrder(final long uid, final int symbol, final OrderAction action, final long price, final long size, final CommandResultCode expectedResult) {
+        final long id = orderId++;
+        final OrderCommand cmd = pipeline.submit(ApiPlaceOrder.builder()
+                .id(id).uid(uid).symbol(symbol).action(action).orderType(OrderType.GTC)
+                .price(price).reservePrice(price).size(size)
+                .build());
+        assertThat(cmd.resultCode, is(expectedResult));
+        return id;
+    }
+
+    private void validate() {
+        pipeline.getRiskEngine().validateFreeMarginCache();
+    }
+
+    private static CoreSymbolSpecification futures(final int symbolId, final int quoteCurrency) {
+        return CoreSymbolSpecification.builder()
+                .symbolId(symbolId)
+                .type(SymbolType.FUTURES_CONTRACT)
+                .baseCurrency(TestConstants.CURRENECY_XBT)
+                .quoteCurrency(quoteCurrency)
+                .baseScaleK(1)
+                .quoteScaleK(1)
+                .marginBuy(100)
+                .marginSell(100)
+                .build();
+    }
+}
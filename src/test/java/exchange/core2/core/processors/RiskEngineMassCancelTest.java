@@ -0,0 +1,257 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.CoreSymbolSpecification;
+import exchange.core2.core.common.MatcherEventType;
+import exchange.core2.core.common.MatcherTradeEvent;
+import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.OrderType;
+import exchange.core2.core.common.SymbolType;
+import exchange.core2.core.common.api.ApiCancelOrder;
+import exchange.core2.core.common.api.ApiMassCancel;
+import exchange.core2.core.common.api.ApiPlaceOrder;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.tests.util.TestConstants;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import static exchange.core2.core.common.OrderAction.ASK;
+import static exchange.core2.core.common.OrderAction.BID;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Mass cancel must release risk holds of every cancelled order (exchange pairs and margin positions),
+ * leaving the same risk engine state as cancelling the same orders one by one.
+ */
+public class RiskEngineMassCancelTest {
+
+    private static final int EUR = TestConstants.CURRENECY_EUR;
+    private static final int USD = TestConstants.CURRENECY_USD;
+    private static final int XBT = TestConstants.CURRENECY_XBT;
+
+    private static final int EUR_USD = 1;
+    private static final int XBT_USD = 2;
+    private static final int FUT_USD = 3;
+
+    private static final int[] SYMBOLS = {EUR_USD, XBT_USD, FUT_USD};
+    private static final int[] CURRENCIES = {EUR, USD, XBT};
+
+    // never trades: bids far below and asks far above other orders
+    private static final long UID_PASSIVE = 99;
+
+    private static final int USERS_NUM = 10;
+
+    private EnginesTestPipeline massCancelled;
+    private EnginesTestPipeline cancelledOneByOne;
+
+    // orderId, uid, symbol
+    private final List<long[]> activeOrders = new ArrayList<>();
+
+    private long orderId = 1;
+
+    @Before
+    public void before() {
+        massCancelled = createPipeline();
+        cancelledOneByOne = createPipeline();
+
+        final Random random = new Random(1L);
+        for (EnginesTestPipeline pipeline : Arrays.asList(massCancelled, cancelledOneByOne)) {
+            pipeline.addUser(UID_PASSIVE, EUR, 1_000);
+            pipeline.adjustBalance(UID_PASSIVE, USD, 1_000_000);
+            pipeline.adjustBalance(UID_PASSIVE, XBT, 1_000);
+            for (long uid = 1; uid <= USERS_NUM; uid++) {
+                pipeline.addUser(uid, EUR, 1_000_000);
+                pipeline.adjustBalance(uid, USD, 100_000_000);
+                pipeline.adjustBalance(uid, XBT, 1_000_000);
+            }
+        }
+
+        for (int i = 0; i < 3_000; i++) {
+            final long uid = 1 + random.nextInt(USERS_NUM);
+            final int symbol = SYMBOLS[random.nextInt(SYMBOLS.length)];
+            final OrderAction action = random.nextBoolean() ? BID : ASK;
+            final OrderType orderType = random.nextInt(5) == 0 ? OrderType.IOC : OrderType.GTC;
+            placeOrder(uid, symbol, action, 990 + random.nextInt(20), 1 + random.nextInt(20), orderType);
+        }
+
+        for (int symbol : SYMBOLS) {
+            placeOrder(UID_PASSIVE, symbol, BID, 100, 5, OrderType.GTC);
+            placeOrder(UID_PASSIVE, symbol, ASK, 5_000, 5, OrderType.GTC);
+        }
+    }
+
+    @Test
+    public void shouldReleaseHoldsOfCancelledOrders() {
+
+        // one user, one order book
+        massCancel(3, EUR_USD, order -> order[1] == 3 && order[2] == EUR_USD);
+
+        // one user, all order books
+        massCancel(5, ApiMassCancel.ALL_SYMBOLS, order -> order[1] == 5);
+
+        // all users, margin order book
+        massCancel(ApiMassCancel.ALL_USERS, FUT_USD, order -> order[2] == FUT_USD);
+
+        // everything else
+        massCancel(ApiMassCancel.ALL_USERS, ApiMassCancel.ALL_SYMBOLS, order -> true);
+
+        // passive user gets all funds back
+        final RiskEngine riskEngine = massCancelled.getRiskEngine();
+        assertThat(riskEngine.getBalance(UID_PASSIVE, EUR), is(1_000L));
+        assertThat(riskEngine.getBalance(UID_PASSIVE, USD), is(1_000_000L));
+        assertThat(riskEngine.getBalance(UID_PASSIVE, XBT), is(1_000L));
+
+        // nothing left to cancel
+        final OrderCommand cmd = massCancelled.submit(ApiMassCancel.builder().uid(ApiMassCancel.ALL_USERS).symbol(ApiMassCancel.ALL_SYMBOLS).build());
+        assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+        assertThat(cmd.extractEvents().isEmpty(), is(true));
+        assertThat(riskEngine.stateHash(), is(cancelledOneByOne.getRiskEngine().stateHash()));
+    }
+
+    @Test
+    public void shouldKeepStateAfterReload() {
+        massCancel(ApiMassCancel.ALL_USERS, EUR_USD, order -> order[2] == EUR_USD);
+
+        massCancelled.persistAndReload(1L);
+        cancelledOneByOne.persistAndReload(2L);
+
+        massCancel(ApiMassCancel.ALL_USERS, ApiMassCancel.ALL_SYMBOLS, order -> true);
+    }
+
+    /**
+     * Mass cancel in one pipeline, cancel matching orders one by one in another, then compare states
+     */
+    private void massCancel(final long uid, final int symbol, final Predicate<long[]> cancelledFilter) {
+
+        final OrderCommand cmd = massCancelled.submit(ApiMassCancel.builder().uid(uid).symbol(symbol).build());
+        assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+
+        int cancelledOrders = 0;
+        for (int i = activeOrders.size() - 1; i >= 0; i--) {
+            final long[] order = activeOrders.get(i);
+            if (cancelledFilter.test(order)) {
+                activeOrders.remove(i);
+                final OrderCommand res = cancelledOneByOne.submit(ApiCancelOrder.builder().id(order[0]).uid(order[1]).symbol((int) order[2]).build());
+                if (res.resultCode == CommandResultCode.SUCCESS) {
+                    cancelledOrders++;
+                }
+            }
+        }
+
+        final List<MatcherTradeEvent> events = cmd.extractEvents();
+        assertThat(events.size(), is(cancelledOrders));
+        for (MatcherTradeEvent event : events) {
+            assertThat(event.eventType, is(MatcherEventType.CANCEL));
+            if (uid != ApiMassCancel.ALL_USERS) {
+                assertThat(event.matchedOrderUid, is(uid));
+            }
+            if (symbol != ApiMassCancel.ALL_SYMBOLS) {
+                assertThat(event.symbol, is(symbol));
+            }
+        }
+
+        publishPendingMarketData();
+        assertSameState();
+    }
+
+    /**
+     * Mass cancel of all order books publishes top-of-book changes of other order books with following commands,
+     * rejected IOC orders deliver them to risk engine (last price cache) without changing balances
+     */
+    private void publishPendingMarketData() {
+        for (int symbol : SYMBOLS) {
+            final ApiPlaceOrder order = ApiPlaceOrder.builder()
+                    .id(orderId++).uid(UID_PASSIVE).symbol(symbol).action(BID).orderType(OrderType.IOC)
+                    .price(1).reservePrice(1).size(1)
+                    .build();
+            assertThat(massCancelled.submit(order).resultCode, is(CommandResultCode.SUCCESS));
+            assertThat(cancelledOneByOne.submit(order).resultCode, is(CommandResultCode.SUCCESS));
+        }
+    }
+
+    private void assertSameState() {
+        final RiskEngine riskEngine = massCancelled.getRiskEngine();
+        final RiskEngine expectedRiskEngine = cancelledOneByOne.getRiskEngine();
+        riskEngine.validateFreeMarginCache();
+        for (long uid = 1; uid <= USERS_NUM; uid++) {
+            for (int currency : CURRENCIES) {
+                assertThat(riskEngine.getBalance(uid, currency), is(expectedRiskEngine.getBalance(uid, currency)));
+            }
+        }
+        for (int currency : CURRENCIES) {
+            assertThat(riskEngine.getBalance(UID_PASSIVE, currency), is(expectedRiskEngine.getBalance(UID_PASSIVE, currency)));
+        }
+        assertThat(riskEngine.stateHash(), is(expectedRiskEngine.stateHash()));
+        assertThat(massCancelled.getMatchingEngine().stateHash(), is(cancelledOneByOne.getMatchingEngine().stateHash()));
+    }
+
+    private void placeOrder(final long uid, final int symbol, final OrderAction action,
+                            final long price, final long size, final OrderType orderType) {
+        final long id = orderId++;
+        final ApiPlaceOrder order = ApiPlaceOrder.builder()
+                .id(id).uid(uid).symbol(symbol).action(action).orderType(orderType)
+                .price(price).reservePrice(action == BID ? price + 10 : price).size(size)
+                .build();
+        final OrderCommand cmd = massCancelled.submit(order);
+        assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+        assertThat(cancelledOneByOne.submit(order).resultCode, is(CommandResultCode.SUCCESS));
+        if (orderType == OrderType.GTC) {
+            activeOrders.add(new long[]{id, uid, symbol});
+        }
+    }
+
+    private static EnginesTestPipeline createPipeline() {
+        final EnginesTestPipeline pipeline = new EnginesTestPipeline();
+        pipeline.addSymbols(Arrays.asList(
+                exchangePair(EUR_USD, EUR),
+                exchangePair(XBT_USD, XBT),
+                CoreSymbolSpecification.builder()
+                        .symbolId(FUT_USD)
+                        .type(SymbolType.FUTURES_CONTRACT)
+                        .baseCurrency(XBT)
+                        .quoteCurrency(USD)
+                        .baseScaleK(1)
+                        .quoteScaleK(1)
+                        .marginBuy(100)
+                        .marginSell(100)
+                        .takerFee(2)
+                        .makerFee(1)
+                        .build()));
+        return pipeline;
+    }
+
+    private static CoreSymbolSpecification exchangePair(final int symbolId, final int baseCurrency) {
+        return CoreSymbolSpecification.builder()
+                .symbolId(symbolId)
+                .type(SymbolType.CURRENCY_EXCHANGE_PAIR)
+                .baseCurrency(baseCurrency)
+                .quoteCurrency(USD)
+                .baseScaleK(1)
+                .quoteScaleK(1)
+                .takerFee(2)
+                .makerFee(1)
+                .build();
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.CoreSymbolSpecification;
+import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.OrderType;
+import exchange.core2.core.common.SymbolType;
+import exchange.core2.core.common.api.ApiCancelOrder;
+import exchange.core2.core.common.api.ApiPlaceOrder;
+import exchange.core2.core.common.api.ApiQuoteReplace;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.tests.util.TestConstants;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static exchange.core2.core.common.OrderAction.ASK;
+import static exchange.core2.core.common.OrderAction.BID;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Quote replace is checked by risk engine as a whole ladder: amounts held by current quote orders of the user
+ * in the same order book can be reused by new levels, matching engine verifies that they are still held.
+ */
+public class RiskEngineQuoteReplaceTest {
+
+    private static final int EUR = TestConstants.CURRENECY_EUR;
+    private static final int USD = TestConstants.CURRENECY_USD;
+
+    private static final int EUR_USD = 1;
+    private static final int EUR_USD_FUTURES = 2;
+    private static final long UID = 1;
+    private static final long UID_TAKER = 2;
+
+    // bid hold: size * (price + taker fee)
+    private static final long TAKER_FEE = 2;
+    private static final long MAKER_FEE = 1;
+
+    private EnginesTestPipeline pipeline;
+
+    @Before
+    public void before() {
+        pipeline = new EnginesTestPipeline();
+        pipeline.addSymbols(Arrays.asList(
+                CoreSymbolSpecification.builder()
+                        .symbolId(EUR_USD)
+                        .type(SymbolType.CURRENCY_EXCHANGE_PAIR)
+                        .baseCurrency(EUR)
+                        .quoteCurrency(USD)
+                        .baseScaleK(1)
+                        .quoteScaleK(1)
+                        .takerFee(TAKER_FEE)
+                        .makerFee(MAKER_FEE)
+                        .build(),
+                CoreSymbolSpecification.builder()
+                        .symbolId(EUR_USD_FUTURES)
+                        .type(SymbolType.FUTURES_CONTRACT)
+                        .baseCurrency(EUR)
+                        .quoteCurrency(USD)
+                        .baseScaleK(1)
+                        .quoteScaleK(1)
+                        .marginBuy(2_200)
+                        .marginSell(3_210)
+                        .build()));
+        pipeline.addUser(UID, USD, 10_000);
+        pipeline.adjustBalance(UID, EUR, 100);
+        pipeline.addUser(UID_TAKER, EUR, 100);
+    }
+
+    @Test
+    public void shouldReuseFundsHeldByReplacedQuoteOrders() {
+        // all funds are held by current ladder
+        assertThat(quoteReplace(level(1, BID, 498, 10), level(2, BID, 498, 10), level(3, ASK, 600, 100)), is(CommandResultCode.SUCCESS));
+        assertBalances(0, 0);
+
+        // new ladder is covered by amounts released by replaced orders
+        assertThat(quoteReplace(level(10, BID, 497, 10), level(11, ASK, 601, 100)), is(CommandResultCode.SUCCESS));
+        assertBalances(10_000 - 10 * (497 + TAKER_FEE), 0);
+        assertThat(cancelOrder(1), is(CommandResultCode.MATCHING_UNKNOWN_ORDER_ID));
+
+        // and again, after state is reloaded from snapshot
+        pipeline.persistAndReload(1);
+        assertThat(quoteReplace(level(20, BID, 496, 20), level(21, ASK, 602, 100)), is(CommandResultCode.SUCCESS));
+        assertBalances(10_000 - 20 * (496 + TAKER_FEE), 0);
+    }
+
+    @Test
+    public void shouldNotReuseFundsHeldByPlainOrders() {
+        // all funds are held by orders placed one by one
+        placeOrder(1, BID, 498, 20);
+        placeOrder(2, ASK, 600, 100);
+        assertBalances(0, 0);
+
+        assertThat(quoteReplace(level(10, BID, 497, 10), level(11, ASK, 601, 100)), is(CommandResultCode.RISK_NSF));
+
+        // nothing changed - current orders are still in the order book
+        assertBalances(0, 0);
+        assertThat(cancelOrder(1), is(CommandResultCode.SUCCESS));
+        assertThat(cancelOrder(2), is(CommandResultCode.SUCCESS));
+        assertBalances(10_000, 100);
+    }
+
+    @Test
+    public void shouldReleaseHoldsOfReplacedOrdersAfterReplace() {
+        // half of funds are held by current order
+        placeOrder(1, BID, 498, 10);
+        assertBalances(5_000, 100);
+
+        // levels are covered by free funds
+        assertThat(quoteReplace(level(10, BID, 497, 10), level(11, ASK, 601, 50)), is(CommandResultCode.SUCCESS));
+
+        // funds of replaced order are released, new levels are held
+        assertBalances(10_000 - 10 * (497 + TAKER_FEE), 50);
+        assertThat(cancelOrder(1), is(CommandResultCode.MATCHING_UNKNOWN_ORDER_ID));
+    }
+
+    @Test
+    public void shouldNotReuseFundsOfFilledQuoteOrders() {
+        assertThat(quoteReplace(level(1, BID, 498, 20)), is(CommandResultCode.SUCCESS));
+        assertBalances(0, 100);
+
+        // ladder is filled by another user, maker fee is lower than held taker fee
+        pipeline.submitSuccessfully(sellMarket(20));
+        assertBalances(20 * (TAKER_FEE - MAKER_FEE), 120);
+
+        assertThat(quoteReplace(level(10, BID, 497, 10)), is(CommandResultCode.RISK_NSF));
+        assertBalances(20 * (TAKER_FEE - MAKER_FEE), 120);
+    }
+
+    @Test
+    public void shouldRejectReplaceIfQuoteOrdersAreFilledInTheSameGroup() {
+        assertThat(quoteReplace(level(1, BID, 498, 20)), is(CommandResultCode.SUCCESS));
+        assertBalances(0, 100);
+
+        // risk engine checks replace before ladder is filled, matching engine finds nothing to release
+        final List<OrderCommand> results = pipeline.submitGroup(Arrays.asList(
+                sellMarket(20),
+                ApiQuoteReplace.builder().uid(UID).symbol(EUR_USD).levels(Collections.singletonList(level(10, BID, 497, 10))).build()));
+        assertThat(results.get(0).resultCode, is(CommandResultCode.SUCCESS));
+        assertThat(results.get(1).resultCode, is(CommandResultCode.RISK_NSF));
+
+        // new level is released
+        assertBalances(20 * (TAKER_FEE - MAKER_FEE), 120);
+        assertThat(cancelOrder(10), is(CommandResultCode.MATCHING_UNKNOWN_ORDER_ID));
+    }
+
+    @Test
+    public void shouldReleaseAllMarginLevelsIfAnyLevelIsRejected() {
+        // margin for 4 contracts only
+        pipeline.submitSuccessfully(ApiPlaceOrder.builder()
+                .id(1).uid(UID).symbol(EUR_USD_FUTURES).action(BID).orderType(OrderType.GTC).price(1000).size(1)
+                .build());
+
+        final List<ApiQuoteReplace.Level> levels = Arrays.asList(level(10, BID, 990, 2), level(11, BID, 980, 3));
+        assertThat(pipeline.submit(ApiQuoteReplace.builder().uid(UID).symbol(EUR_USD_FUTURES).levels(levels).build()).resultCode,
+                is(CommandResultCode.RISK_NSF));
+
+        // pending hold of the first level is reverted, current order is kept
+        assertThat(pipeline.submit(ApiPlaceOrder.builder()
+                .id(2).uid(UID).symbol(EUR_USD_FUTURES).action(BID).orderType(OrderType.GTC).price(990).size(3)
+                .build()).resultCode, is(CommandResultCode.SUCCESS));
+    }
+
+    private void placeOrder(final long orderId, final OrderAction action, final long price, final long size) {
+        pipeline.submitSuccessfully(ApiPlaceOrder.builder()
+                .id(orderId).uid(UID).symbol(EUR_USD).action(action).orderType(OrderType.GTC)
+                .price(price).reservePrice(price).size(size)
+                .build());
+    }
+
+    private CommandResultCode cancelOrder(final long orderId) {
+        return pipeline.submit(ApiCancelOrder.builder().id(orderId).uid(UID).symbol(EUR_USD).build()).resultCode;
+    }
+
+    private static ApiPlaceOrder sellMarket(final long size) {
+        return ApiPlaceOrder.builder()
+                .id(100).uid(UID_TAKER).symbol(EUR_USD).action(ASK).orderType(OrderType.IOC).price(1).size(size)
+                .build();
+    }
+
+    private CommandResultCode quoteReplace(final ApiQuoteReplace.Level... levels) {
+        return pipeline.submit(ApiQuoteReplace.builder().uid(UID).symbol(EUR_USD).levels(Arrays.asList(levels)).build()).resultCode;
+    }
+
+    private static ApiQuoteReplace.Level level(final long orderId, final OrderAction action, final long price, final long size) {
+        return new ApiQuoteReplace.Level(orderId, price, size, action, price);
+    }
+
+    private void assertBalances(final long usd, final long eur) {
+        assertThat(pipeline.getRiskEngine().getBalance(UID, USD), is(usd));
+        assertThat(pipeline.getRiskEngine().getBalance(UID, EUR), is(eur));
+    }
+}
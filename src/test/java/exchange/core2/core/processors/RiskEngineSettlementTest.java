@@ -0,0 +1,171 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.CoreSymbolSpecification;
+import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.OrderType;
+import exchange.core2.core.common.SymbolType;
+import exchange.core2.core.common.api.ApiCancelOrder;
+import exchange.core2.core.common.api.ApiCommand;
+import exchange.core2.core.common.api.ApiPlaceOrder;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.common.cmd.OrderCommandType;
+import exchange.core2.tests.util.TestConstants;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static exchange.core2.core.common.OrderAction.ASK;
+import static exchange.core2.core.common.OrderAction.BID;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Exchange trades settlement is accumulated during events group and applied at the end of the group (R2 stage).
+ */
+public class RiskEngineSettlementTest {
+
+    private static final int EUR = TestConstants.CURRENECY_EUR;
+    private static final int USD = TestConstants.CURRENECY_USD;
+
+    private static final int EXCHANGE = 1;
+    private static final int EXCHANGE_SCALED = 2;
+
+    private static final long UID_1 = 101;
+    private static final long UID_2 = 102;
+
+    @Test
+    public void shouldSettleTradesAtEndOfGroup() {
+        final EnginesTestPipeline pipeline = createPipeline();
+        pipeline.addUser(UID_1, EUR, 1_000);
+        pipeline.addUser(UID_2, USD, 100_000);
+
+        // maker ask and taker bid in the same group, no commands after the group
+        pipeline.submitGroup(Arrays.asList(
+                placeOrder(1, UID_1, EXCHANGE, ASK, 1000, 10, OrderType.GTC),
+                placeOrder(2, UID_2, EXCHANGE, BID, 1000, 10, OrderType.GTC)));
+
+        final RiskEngine riskEngine = pipeline.getRiskEngine();
+        // maker: sold 10 EUR for 10*1000 USD, maker fee 1 per lot
+        assertThat(riskEngine.getBalance(UID_1, EUR), is(990L));
+        assertThat(riskEngine.getBalance(UID_1, USD), is(10_000L - 10L));
+        // taker: bought 10 EUR for 10*1000 USD, taker fee 2 per lot
+        assertThat(riskEngine.getBalance(UID_2, EUR), is(10L));
+        assertThat(riskEngine.getBalance(UID_2, USD), is(100_000L - 10_000L - 20L));
+        assertThat(riskEngine.getFees(USD), is(30L));
+    }
+
+    /**
+     * Same commands processed in groups of random size and one command per group
+     * must give the same results, balances and fees.
+     */
+    @Test
+    public void shouldMatchPerCommandSettlement() {
+
+        final EnginesTestPipeline grouped = createPipeline();
+        final EnginesTestPipeline single = createPipeline();
+
+        final Random random = new Random(1L);
+        final int usersNum = 30;
+        for (long uid = 1; uid <= usersNum; uid++) {
+            final long eur = 1_000_000 + random.nextInt(1_000_000);
+            final long usd = 100_000_000 + random.nextInt(100_000_000);
+            for (EnginesTestPipeline pipeline : Arrays.asList(grouped, single)) {
+                pipeline.addUser(uid, EUR, eur);
+                pipeline.adjustBalance(uid, USD, usd);
+            }
+        }
+
+        final List<long[]> placedOrders = new ArrayList<>();
+        long orderId = 1;
+        int trades = 0;
+
+        for (int g = 0; g < 2_000; g++) {
+            final List<ApiCommand> group = new ArrayList<>();
+            final int groupSize = 1 + random.nextInt(50);
+            for (int i = 0; i < groupSize; i++) {
+                if (random.nextInt(4) != 0 || placedOrders.isEmpty()) {
+                    final long uid = 1 + random.nextInt(usersNum);
+                    final int symbol = random.nextBoolean() ? EXCHANGE : EXCHANGE_SCALED;
+                    group.add(placeOrder(orderId, uid, symbol, random.nextBoolean() ? BID : ASK,
+                            990 + random.nextInt(20), 1 + random.nextInt(20),
+                            random.nextInt(3) == 0 ? OrderType.IOC : OrderType.GTC));
+                    placedOrders.add(new long[]{orderId++, uid, symbol});
+                } else {
+                    // some orders are already filled or cancelled
+                    final long[] order = placedOrders.remove(random.nextInt(placedOrders.size()));
+                    group.add(ApiCancelOrder.builder().id(order[0]).uid(order[1]).symbol((int) order[2]).build());
+                }
+            }
+
+            final List<OrderCommand> groupedResults = grouped.submitGroup(group);
+            for (int i = 0; i < group.size(); i++) {
+                final OrderCommand expected = single.submit(group.get(i));
+                final OrderCommand cmd = groupedResults.get(i);
+                assertThat(cmd.resultCode, is(expected.resultCode));
+                assertThat(cmd.extractEvents(), is(expected.extractEvents()));
+                if (cmd.command == OrderCommandType.PLACE_ORDER) {
+                    assertThat(cmd.resultCode, is(CommandResultCode.SUCCESS));
+                }
+                trades += cmd.extractEvents().size();
+            }
+
+            assertThat(grouped.getRiskEngine().stateHash(), is(single.getRiskEngine().stateHash()));
+        }
+
+        for (long uid = 1; uid <= usersNum; uid++) {
+            assertThat(grouped.getRiskEngine().getBalance(uid, EUR), is(single.getRiskEngine().getBalance(uid, EUR)));
+            assertThat(grouped.getRiskEngine().getBalance(uid, USD), is(single.getRiskEngine().getBalance(uid, USD)));
+        }
+        assertThat(grouped.getRiskEngine().getFees(USD), is(single.getRiskEngine().getFees(USD)));
+        assertThat(grouped.getRiskEngine().getFees(USD) > 0, is(true));
+        assertThat(trades > 10_000, is(true));
+    }
+
+    private static ApiPlaceOrder placeOrder(final long orderId, final long uid, final int symbol, final OrderAction action,
+                                            final long price, final long size, final OrderType orderType) {
+        return ApiPlaceOrder.builder()
+                .id(orderId).uid(uid).symbol(symbol).action(action).orderType(orderType)
+                .price(price).reservePrice(action == BID ? price + 10 : price).size(size)
+                .build();
+    }
+
+    private static EnginesTestPipeline createPipeline() {
+        final EnginesTestPipeline pipeline = new EnginesTestPipeline();
+        pipeline.addSymbols(Arrays.asList(
+                exchangePair(EXCHANGE, 1, 1),
+                exchangePair(EXCHANGE_SCALED, 10, 3)));
+        return pipeline;
+    }
+
+    private static CoreSymbolSpecification exchangePair(final int symbolId, final long baseScaleK, final long quoteScaleK) {
+        return CoreSymbolSpecification.builder()
+                .symbolId(symbolId)
+                .type(SymbolType.CURRENCY_EXCHANGE_PAIR)
+                .baseCurrency(EUR)
+                .quoteCurrency(USD)
+                .baseScaleK(baseScaleK)
+                .quoteScaleK(quoteScaleK)
+                .takerFee(2)
+                .makerFee(1)
+                .build();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.cmd.OrderCommand;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static exchange.core2.core.processors.RiskRejectionsTelemetry.Reason.INVALID_SYMBOL;
+import static exchange.core2.core.processors.RiskRejectionsTelemetry.Reason.INVALID_USER;
+import static exchange.core2.core.processors.RiskRejectionsTelemetry.Reason.NSF;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class RiskRejectionsTelemetryTest {
+
+    @Test
+    public void shouldCountPerReasonAndSymbol() {
+        final RiskRejectionsTelemetry telemetry = new RiskRejectionsTelemetry("RE0", RiskRejectionsTelemetry.DEFAULT_DETAILS_LOG_INTERVAL_NS);
+
+        for (int i = 0; i < 5; i++) {
+            telemetry.onRejection(NSF, command(100), true);
+        }
+        telemetry.onRejection(NSF, command(200), true);
+        telemetry.onRejection(INVALID_USER, command(200), true);
+
+        assertThat(telemetry.getTotal(NSF), is(6L));
+        assertThat(telemetry.getTotal(INVALID_USER), is(1L));
+        assertThat(telemetry.getCount(100, NSF), is(5L));
+        assertThat(telemetry.getCount(100, INVALID_USER), is(0L));
+        assertThat(telemetry.getCount(200, INVALID_USER), is(1L));
+        assertThat(telemetry.getCount(400, NSF), is(0L));
+        assertThat(telemetry.getCountsBySymbol().size(), is(2));
+        assertThat(telemetry.getTotals().containsKey(INVALID_SYMBOL), is(false));
+    }
+
+    @Test
+    public void shouldCountUnknownSymbolsOnlyInTotals() {
+        final RiskRejectionsTelemetry telemetry = new RiskRejectionsTelemetry("RE0", RiskRejectionsTelemetry.DEFAULT_DETAILS_LOG_INTERVAL_NS);
+
+        for (int symbol = 1_000; symbol < 11_000; symbol++) {
+            telemetry.onRejection(INVALID_SYMBOL, command(symbol), false);
+            telemetry.onRejection(INVALID_USER, command(symbol), false);
+        }
+
+        assertThat(telemetry.getTotal(INVALID_SYMBOL), is(10_000L));
+        assertThat(telemetry.getTotal(INVALID_USER), is(10_000L));
+        assertThat(telemetry.getCount(1_000, INVALID_SYMBOL), is(0L));
+        assertThat(telemetry.getCountsBySymbol().isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldRateLimitDetails() {
+        final RiskRejectionsTelemetry telemetry = new RiskRejectionsTelemetry("RE0", TimeUnit.HOURS.toNanos(1));
+
+        assertThat(telemetry.onRejection(NSF, command(100), true), is(true));
+        assertThat(telemetry.takeSuppressedDetails(), is(0L));
+        for (int i = 0; i < 10; i++) {
+            assertThat(telemetry.onRejection(NSF, command(100), true), is(false));
+        }
+        assertThat(telemetry.takeSuppressedDetails(), is(10L));
+        assertThat(telemetry.getTotal(NSF), is(11L));
+    }
+
+    @Test
+    public void shouldLogEveryOrNoDetails() {
+        final RiskRejectionsTelemetry everyRejection = new RiskRejectionsTelemetry("RE0", 0);
+        final RiskRejectionsTelemetry noDetails = new RiskRejectionsTelemetry("RE1", -1);
+        for (int i = 0; i < 3; i++) {
+            assertThat(everyRejection.onRejection(NSF, command(100), true), is(true));
+            assertThat(noDetails.onRejection(NSF, command(100), true), is(false));
+        }
+        assertThat(everyRejection.takeSuppressedDetails(), is(0L));
+        assertThat(noDetails.getTotal(NSF), is(3L));
+    }
+
+    private static OrderCommand command(final int symbol) {
+        final OrderCommand cmd = new OrderCommand();
+        cmd.symbol = symbol;
+        return cmd;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.*;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class SymbolPositionsTotalsTest {
+
+    private static final CoreSymbolSpecification SPEC = CoreSymbolSpecification.builder()
+            .symbolId(7)
+            .type(SymbolType.FUTURES_CONTRACT)
+            .baseCurrency(0)
+            .quoteCurrency(840)
+            .baseScaleK(1)
+            .quoteScaleK(1)
+            .marginBuy(2200)
+            .marginSell(3100)
+            .build();
+
+    private static final RiskEngine.LastPriceCacheRecord[] PRICES = {
+            null,
+            new RiskEngine.LastPriceCacheRecord(),
+            new RiskEngine.LastPriceCacheRecord(10_050, 10_030),
+            new RiskEngine.LastPriceCacheRecord(10_050, 10_030).averagingRecord(),
+            RiskEngine.LastPriceCacheRecord.dummy};
+
+    @Test
+    public void shouldEstimateSameProfitAsPositions() {
+
+        final Random rand = new Random(1L);
+        final SymbolPositionRecord[] positions = new SymbolPositionRecord[100];
+        final SymbolPositionsTotals totals = new SymbolPositionsTotals(SPEC.quoteCurrency);
+
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = new SymbolPositionRecord();
+            positions[i].initialize(i, SPEC.symbolId, SPEC.quoteCurrency);
+            totals.add(positions[i]);
+        }
+
+        for (int i = 0; i < 100_000; i++) {
+            final SymbolPositionRecord position = positions[rand.nextInt(positions.length)];
+            totals.remove(position);
+            position.updatePositionForMarginTrade(
+                    rand.nextBoolean() ? OrderAction.BID : OrderAction.ASK,
+                    1 + rand.nextInt(50),
+                    9_900 + rand.nextInt(200));
+            totals.add(position);
+
+            if (i % 1000 == 0) {
+                verify(positions, totals);
+            }
+        }
+        verify(positions, totals);
+    }
+
+    private static void verify(final SymbolPositionRecord[] positions, final SymbolPositionsTotals totals) {
+        long longVolume = 0;
+        long shortVolume = 0;
+        for (final SymbolPositionRecord position : positions) {
+            if (position.direction == PositionDirection.LONG) {
+                longVolume += position.openVolume;
+            } else if (position.direction == PositionDirection.SHORT) {
+                shortVolume += position.openVolume;
+            }
+        }
+        assertThat(totals.longVolume, is(longVolume));
+        assertThat(totals.shortVolume, is(shortVolume));
+
+        for (final RiskEngine.LastPriceCacheRecord price : PRICES) {
+            long profit = 0;
+            for (final SymbolPositionRecord position : positions) {
+                profit += position.estimateProfit(SPEC, price);
+            }
+            assertThat(totals.estimateProfit(SPEC, price), is(profit));
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.L2MarketData;
+import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.orderbook.IOrderBook;
+import exchange.core2.core.orderbook.OrderBookNaiveImpl;
+import exchange.core2.tests.util.TestConstants;
+import net.openhft.chronicle.bytes.Bytes;
+import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static exchange.core2.core.common.OrderAction.ASK;
+import static exchange.core2.core.common.OrderAction.BID;
+import static exchange.core2.core.common.OrderType.GTC;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class TopOfBookTrackerTest {
+
+    private static final int SYMBOL_A = 1;
+    private static final int SYMBOL_B = 2;
+
+    private TopOfBookTracker tracker;
+    private IntObjectHashMap<IOrderBook> orderBooks;
+
+    private long orderId = 1;
+
+    @Before
+    public void before() {
+        tracker = new TopOfBookTracker();
+        orderBooks = new IntObjectHashMap<>();
+        orderBooks.put(SYMBOL_A, new OrderBookNaiveImpl(TestConstants.SYMBOLSPEC_EUR_USD));
+        orderBooks.put(SYMBOL_B, new OrderBookNaiveImpl(TestConstants.SYMBOLSPEC_EUR_USD));
+
+        placeOrder(SYMBOL_A, 1000, ASK);
+        placeOrder(SYMBOL_A, 900, BID);
+
+        // first update is always published
+        final OrderCommand cmd = new OrderCommand();
+        assertThat(tracker.onOrderBookUpdated(SYMBOL_A, orderBooks.get(SYMBOL_A), cmd), is(true));
+        assertTopOfBook(cmd, SYMBOL_A, 1000, 900);
+    }
+
+    @Test
+    public void shouldNotPublishUnchangedTopOfBook() {
+        tracker.nextEpoch();
+
+        // order behind best prices
+        placeOrder(SYMBOL_A, 1100, ASK);
+        final OrderCommand cmd = new OrderCommand();
+        assertThat(tracker.onOrderBookUpdated(SYMBOL_A, orderBooks.get(SYMBOL_A), cmd), is(false));
+        assertThat(cmd.marketData, nullValue());
+        assertThat(tracker.pollPending(orderBooks, cmd), is(false));
+        assertThat(cmd.marketData, nullValue());
+    }
+
+    @Test
+    public void shouldPublishOnlyOnceWithinEpoch() {
+        tracker.nextEpoch();
+
+        placeOrder(SYMBOL_A, 990, ASK);
+        final OrderCommand cmd1 = new OrderCommand();
+        assertThat(tracker.onOrderBookUpdated(SYMBOL_A, orderBooks.get(SYMBOL_A), cmd1), is(true));
+        assertTopOfBook(cmd1, SYMBOL_A, 990, 900);
+
+        // second change in the same epoch is suppressed
+        placeOrder(SYMBOL_A, 980, ASK);
+        final OrderCommand cmd2 = new OrderCommand();
+        assertThat(tracker.onOrderBookUpdated(SYMBOL_A, orderBooks.get(SYMBOL_A), cmd2), is(false));
+        assertThat(tracker.pollPending(orderBooks, cmd2), is(false));
+        assertThat(cmd2.marketData, nullValue());
+    }
+
+    @Test
+    public void shouldPublishPendingChangeInNextEpoch() {
+
+        // two changes in the same epoch, only the latest state is published
+        placeOrder(SYMBOL_A, 990, ASK);
+        assertThat(tracker.onOrderBookUpdated(SYMBOL_A, orderBooks.get(SYMBOL_A), new OrderCommand()), is(false));
+        placeOrder(SYMBOL_A, 910, BID);
+        assertThat(tracker.onOrderBookUpdated(SYMBOL_A, orderBooks.get(SYMBOL_A), new OrderCommand()), is(false));
+
+        final OrderCommand cmd = new OrderCommand();
+        assertThat(tracker.pollPending(orderBooks, cmd), is(false));
+
+        tracker.nextEpoch();
+        assertThat(tracker.pollPending(orderBooks, cmd), is(true));
+        assertTopOfBook(cmd, SYMBOL_A, 990, 910);
+
+        // queued once
+        assertThat(tracker.pollPending(orderBooks, new OrderCommand()), is(false));
+    }
+
+    @Test
+    public void shouldDropPendingChangeIfChangedBack() {
+        placeOrder(SYMBOL_A, 990, ASK);
+        final long cancelledOrderId = orderId - 1;
+        assertThat(tracker.onOrderBookUpdated(SYMBOL_A, orderBooks.get(SYMBOL_A), new OrderCommand()), is(false));
+
+        assertThat(IOrderBook.processCommand(orderBooks.get(SYMBOL_A), OrderCommand.cancel(cancelledOrderId, 1)), is(CommandResultCode.SUCCESS));
+        assertThat(tracker.onOrderBookUpdated(SYMBOL_A, orderBooks.get(SYMBOL_A), new OrderCommand()), is(false));
+
+        tracker.nextEpoch();
+        final OrderCommand cmd = new OrderCommand();
+        assertThat(tracker.pollPending(orderBooks, cmd), is(false));
+        assertThat(cmd.marketData, nullValue());
+    }
+
+    @Test
+    public void shouldPublishMarkedSymbolsInOrder() {
+        placeOrder(SYMBOL_B, 2000, ASK);
+        tracker.markPending(SYMBOL_B);
+        placeOrder(SYMBOL_A, 990, ASK);
+        assertThat(tracker.onOrderBookUpdated(SYMBOL_A, orderBooks.get(SYMBOL_A), new OrderCommand()), is(false));
+
+        // first time seen symbol is published in the same epoch
+        final OrderCommand cmd1 = new OrderCommand();
+        assertThat(tracker.pollPending(orderBooks, cmd1), is(true));
+        assertTopOfBook(cmd1, SYMBOL_B, 2000, 0);
+
+        assertThat(tracker.pollPending(orderBooks, new OrderCommand()), is(false));
+
+        tracker.nextEpoch();
+        final OrderCommand cmd2 = new OrderCommand();
+        assertThat(tracker.pollPending(orderBooks, cmd2), is(true));
+        assertTopOfBook(cmd2, SYMBOL_A, 990, 900);
+    }
+
+    @Test
+    public void shouldNotPublishForgottenSymbol() {
+        placeOrder(SYMBOL_A, 990, ASK);
+        assertThat(tracker.onOrderBookUpdated(SYMBOL_A, orderBooks.get(SYMBOL_A), new OrderCommand()), is(false));
+        tracker.forget(SYMBOL_A);
+
+        tracker.nextEpoch();
+        assertThat(tracker.pollPending(orderBooks, new OrderCommand()), is(false));
+    }
+
+    @Test
+    public void shouldRestoreStateFromSerialized() {
+        placeOrder(SYMBOL_A, 990, ASK);
+        assertThat(tracker.onOrderBookUpdated(SYMBOL_A, orderBooks.get(SYMBOL_A), new OrderCommand()), is(false));
+
+        final Bytes<ByteBuffer> bytes = Bytes.elasticHeapByteBuffer(128);
+        tracker.writeMarshallable(bytes);
+        final byte[] serialized = bytes.toByteArray();
+        final TopOfBookTracker restored = new TopOfBookTracker(bytes);
+        assertThat(bytes.readRemaining(), is(0L));
+
+        final Bytes<ByteBuffer> restoredBytes = Bytes.elasticHeapByteBuffer(128);
+        restored.writeMarshallable(restoredBytes);
+        assertThat(restoredBytes.toByteArray(), is(serialized));
+
+        // same epoch - pending change is not published yet, unchanged book is not published
+        assertThat(restored.pollPending(orderBooks, new OrderCommand()), is(false));
+
+        restored.nextEpoch();
+        final OrderCommand cmd = new OrderCommand();
+        assertThat(restored.pollPending(orderBooks, cmd), is(true));
+        assertTopOfBook(cmd, SYMBOL_A, 990, 900);
+        assertThat(restored.onOrderBookUpdated(SYMBOL_A, orderBooks.get(SYMBOL_A), new OrderCommand()), is(false));
+    }
+
+    private void placeOrder(final int symbol, final long price, final OrderAction action) {
+        final OrderCommand cmd = OrderCommand.newOrder(GTC, orderId++, 1, price, price, 1, action);
+        assertThat(IOrderBook.processCommand(orderBooks.get(symbol), cmd), is(CommandResultCode.SUCCESS));
+    }
+
+    private static void assertTopOfBook(final OrderCommand cmd, final int symbol, final long askPrice, final long bidPrice) {
+        final L2MarketData marketData = cmd.marketData;
+        assertThat(marketData.symbol, is(symbol));
+        assertThat(marketData.askSize, is(askPrice != 0 ? 1 : 0));
+        assertThat(marketData.bidSize, is(bidPrice != 0 ? 1 : 0));
+        if (askPrice != 0) {
+            assertThat(marketData.askPrices[0], is(askPrice));
+        }
+        if (bidPrice != 0) {
+            assertThat(marketData.bidPrices[0], is(bidPrice));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors;
+
+import exchange.core2.core.common.UserProfile;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class UserProfileServiceTest {
+
+    @Test
+    public void shouldRecycleSuspendedProfiles() {
+
+        final ObjectsPool objectsPool = new ObjectsPool(Collections.singletonMap(ObjectsPool.USER_PROFILE, 16), new SharedPool(8, 4, 256));
+        final UserProfileService service = new UserProfileService();
+        service.setObjectsPool(objectsPool);
+
+        assertThat(service.addEmptyUserProfile(1L), is(true));
+        assertThat(service.balanceAdjustment(1L, 840, 500L, 1L), is(CommandResultCode.SUCCESS));
+        final UserProfile profile = service.getUserProfile(1L);
+
+        assertThat(service.suspendUserProfile(1L), is(CommandResultCode.USER_MGMT_USER_NOT_SUSPENDABLE_NON_EMPTY_ACCOUNTS));
+        assertThat(service.balanceAdjustment(1L, 840, -500L, 2L), is(CommandResultCode.SUCCESS));
+        assertThat(service.suspendUserProfile(1L), is(CommandResultCode.SUCCESS));
+        assertThat(service.getUserProfile(1L) == null, is(true));
+
+        // another user gets recycled profile in clean state
+        assertThat(service.resumeUserProfile(2L), is(CommandResultCode.SUCCESS));
+        final UserProfile recycled = service.getUserProfile(2L);
+        assertThat(recycled, sameInstance(profile));
+        assertThat(recycled.uid, is(2L));
+        assertThat(recycled.adjustmentsCounter, is(0L));
+        assertThat(recycled.accounts.isEmpty(), is(true));
+        assertThat(recycled.suspended, is(false));
+        assertThat(recycled.hasPositions(), is(false));
+        assertThat(service.balanceAdjustment(2L, 978, 100L, 1L), is(CommandResultCode.SUCCESS));
+
+        // pool is empty now - counterparty profile is created
+        final UserProfile counterparty = service.getUserProfileOrAddSuspended(3L);
+        assertThat(counterparty.uid, is(3L));
+        assertThat(counterparty.suspended, is(true));
+
+        final ObjectsPool.Statistics statistics = objectsPool.getStatistics().get(0);
+        assertThat(statistics.getType(), is(ObjectsPool.USER_PROFILE));
+        assertThat(statistics.getHits(), is(1L));
+        assertThat(statistics.getMisses(), is(2L));
+        assertThat(statistics.getAvailable(), is(0));
+    }
+
+    @Test
+    public void shouldNotMarkProfileModifiedOnReadOnlyLookup() {
+        final UserProfileService service = new UserProfileService();
+        assertThat(service.addEmptyUserProfile(1L), is(true));
+        assertThat(service.addEmptyUserProfile(2L), is(true));
+        service.startDirtyTracking();
+
+        assertThat(service.findUserProfile(1L).uid, is(1L));
+        assertThat(service.findUserProfile(3L) == null, is(true));
+        assertThat(service.getDirtyProfiles().isEmpty(), is(true));
+
+        service.getUserProfile(2L);
+        assertThat(service.getDirtyProfiles().toSortedArray(), is(new long[]{2L}));
+    }
+}
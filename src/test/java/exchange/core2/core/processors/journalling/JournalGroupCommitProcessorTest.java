@@ -0,0 +1,174 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors.journalling;
+
+import com.lmax.disruptor.ExceptionHandler;
+import com.lmax.disruptor.FatalExceptionHandler;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.YieldingWaitStrategy;
+import exchange.core2.core.common.CoreWaitStrategy;
+import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.OrderType;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.common.cmd.OrderCommandType;
+import exchange.core2.core.processors.GroupingController;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class JournalGroupCommitProcessorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RingBuffer<OrderCommand> ringBuffer;
+    private MappedJournallingProcessor journal;
+    private JournalGroupCommitProcessor processor;
+    private Thread thread;
+
+    @After
+    public void after() throws InterruptedException {
+        processor.halt();
+        thread.join();
+    }
+
+    @Test
+    public void shouldReleaseGroupOnlyWhenNextGroupStarts() throws InterruptedException {
+        // group would be closed by timer only after 1 minute
+        start(JournalDurabilityMode.FSYNC_PER_GROUP, 60_000_000_000L);
+
+        publish(0);
+        publish(0);
+        Thread.sleep(50);
+        assertThat(processor.getSequence().get(), is(-1L));
+        assertThat(journal.getForcesCount(), is(0L));
+
+        publish(1);
+        awaitSequence(1);
+        assertThat(journal.getForcesCount(), is(1L));
+
+        Thread.sleep(50);
+        assertThat(processor.getSequence().get(), is(1L));
+
+        publish(2);
+        awaitSequence(2);
+        assertThat(journal.getForcesCount(), is(2L));
+    }
+
+    @Test
+    public void shouldReleaseGroupAfterGroupDuration() throws InterruptedException {
+        start(JournalDurabilityMode.FSYNC_PER_GROUP, 1_000_000L);
+
+        publish(0);
+        publish(0);
+        awaitSequence(1);
+        assertThat(journal.getForcesCount(), is(1L));
+    }
+
+    @Test
+    public void shouldReleaseEachBatchWithoutFsync() throws InterruptedException {
+        start(JournalDurabilityMode.PAGE_CACHE, 60_000_000_000L);
+
+        publish(0);
+        awaitSequence(0);
+        publish(0);
+        awaitSequence(1);
+        assertThat(journal.getForcesCount(), is(0L));
+    }
+
+    @Test
+    public void shouldStopWithoutReleasingUncommittedCommandsOnFailure() throws InterruptedException {
+        final AtomicLong failedSequence = new AtomicLong(-1);
+        start(JournalDurabilityMode.FSYNC_PER_GROUP, 60_000_000_000L, new ExceptionHandler<OrderCommand>() {
+            @Override
+            public void handleEventException(final Throwable ex, final long sequence, final OrderCommand event) {
+                failedSequence.set(sequence);
+            }
+
+            @Override
+            public void handleOnStartException(final Throwable ex) {
+            }
+
+            @Override
+            public void handleOnShutdownException(final Throwable ex) {
+            }
+        });
+
+        publish(0);
+        publish(1);
+        awaitSequence(0);
+
+        // appended, but not committed yet
+        publish(1);
+
+        // record can not be written
+        ringBuffer.publishEvent((cmd, seq) -> {
+            cmd.command = null;
+            cmd.eventsGroup = 1;
+        });
+
+        publish(2);
+        thread.join(5_000);
+
+        assertThat(failedSequence.get(), is(3L));
+        assertThat(processor.isRunning(), is(false));
+        assertThat(processor.getSequence().get(), is(0L));
+        assertThat(journal.getForcesCount(), is(1L));
+    }
+
+    private void start(final JournalDurabilityMode mode, final long groupDurationNs) {
+        start(mode, groupDurationNs, new FatalExceptionHandler());
+    }
+
+    private void start(final JournalDurabilityMode mode, final long groupDurationNs, final ExceptionHandler<? super OrderCommand> exceptionHandler) {
+        ringBuffer = RingBuffer.createMultiProducer(OrderCommand::new, 16, new YieldingWaitStrategy());
+        journal = new MappedJournallingProcessor(folder.getRoot().toString(), "test", 16 * MappedJournallingProcessor.RECORD_SIZE, mode);
+        processor = new JournalGroupCommitProcessor(ringBuffer, ringBuffer.newBarrier(), journal,
+                GroupingController.fixed(8, groupDurationNs), CoreWaitStrategy.YIELDING, exceptionHandler, null);
+        ringBuffer.addGatingSequences(processor.getSequence());
+        thread = new Thread(processor);
+        thread.start();
+    }
+
+    private void publish(final long eventsGroup) {
+        ringBuffer.publishEvent((cmd, seq) -> {
+            cmd.command = OrderCommandType.PLACE_ORDER;
+            cmd.orderId = seq;
+            cmd.uid = 1;
+            cmd.price = 1000;
+            cmd.size = 1;
+            cmd.action = OrderAction.ASK;
+            cmd.orderType = OrderType.GTC;
+            cmd.eventsGroup = eventsGroup;
+        });
+    }
+
+    private void awaitSequence(final long seq) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5_000;
+        while (processor.getSequence().get() < seq) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("sequence " + seq + " was not released, current: " + processor.getSequence().get());
+            }
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors.journalling;
+
+import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.QuoteLevels;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.common.cmd.OrderCommandType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static exchange.core2.core.common.OrderType.GTC;
+import static exchange.core2.core.processors.journalling.MappedJournallingProcessor.*;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class MappedJournallingProcessorTest {
+
+    private static final String EXCHANGE_ID = "test";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ExecutorService executor;
+
+    @Before
+    public void before() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldRollSegmentWhenFull() throws IOException {
+        final MappedJournallingProcessor journal = createJournal(4 * RECORD_SIZE, JournalDurabilityMode.PAGE_CACHE);
+
+        for (int i = 0; i < 10; i++) {
+            journal.append(placeOrder(i, 0), i);
+        }
+        journal.commit();
+        assertThat(journal.getSegmentIndex(), is(2));
+        journal.onShutdown();
+
+        assertThat(readCommandCodes(0), is(new byte[]{1, 1, 1, 1}));
+        assertThat(readCommandCodes(1), is(new byte[]{1, 1, 1, 1}));
+        assertThat(readCommandCodes(2), is(new byte[]{1, 1, 0, 0}));
+        assertThat(readLong(1, RECORD_SIZE + OFFSET_SEQ), is(5L));
+        assertThat(readLong(2, RECORD_SIZE + OFFSET_ORDER_ID), is(9L));
+
+        // new journal instance continues with the next free segment
+        final MappedJournallingProcessor restarted = createJournal(4 * RECORD_SIZE, JournalDurabilityMode.PAGE_CACHE);
+        assertThat(restarted.getSegmentIndex(), is(4));
+        restarted.onShutdown();
+
+        assertThat(replayedCommands(), is(10L));
+    }
+
+    @Test
+    public void shouldNotWriteAnythingInModeNone() throws IOException {
+        final MappedJournallingProcessor journal = createJournal(4 * RECORD_SIZE, JournalDurabilityMode.NONE);
+        journal.append(placeOrder(1, 0), 0);
+        journal.commit();
+        journal.onShutdown();
+
+        assertThat(Files.exists(resolveSegmentPath(folder.getRoot().toString(), EXCHANGE_ID, 0)), is(false));
+        assertThat(journal.getForcesCount(), is(0L));
+    }
+
+    @Test
+    public void shouldNotForceInModePageCache() throws IOException {
+        final MappedJournallingProcessor journal = createJournal(16 * RECORD_SIZE, JournalDurabilityMode.PAGE_CACHE);
+        journal.append(placeOrder(1, 0), 0);
+        journal.commit();
+        journal.append(placeOrder(2, 1), 1);
+        journal.commit();
+        assertThat(journal.getForcesCount(), is(0L));
+        journal.onShutdown();
+
+        assertThat(replayedCommands(), is(2L));
+    }
+
+    @Test
+    public void shouldForceOncePerCommitInModeFsyncPerGroup() throws IOException {
+        final MappedJournallingProcessor journal = createJournal(16 * RECORD_SIZE, JournalDurabilityMode.FSYNC_PER_GROUP);
+
+        journal.append(placeOrder(1, 0), 0);
+        journal.append(placeOrder(2, 0), 1);
+        journal.commit();
+        assertThat(journal.getForcesCount(), is(1L));
+
+        // nothing written - nothing to force
+        journal.commit();
+        assertThat(journal.getForcesCount(), is(1L));
+
+        // not journalled commands
+        final OrderCommand nop = new OrderCommand();
+        nop.command = OrderCommandType.NOP;
+        journal.append(nop, 2);
+        journal.commit();
+        assertThat(journal.getForcesCount(), is(1L));
+
+        journal.append(placeOrder(3, 1), 3);
+        journal.commit();
+        assertThat(journal.getForcesCount(), is(2L));
+        journal.onShutdown();
+
+        assertThat(readCommandCodes(0)[3], is((byte) 0));
+        assertThat(replayedCommands(), is(3L));
+    }
+
+    @Test
+    public void shouldRecordOnlyProducerSuppliedAction() throws IOException {
+        final MappedJournallingProcessor journal = createJournal(16 * RECORD_SIZE, JournalDurabilityMode.PAGE_CACHE);
+
+        journal.append(placeOrder(1, 0), 0);
+
+        // action of cancel command is filled by matching engine concurrently
+        final OrderCommand cancel = OrderCommand.cancel(1, 1);
+        cancel.action = OrderAction.BID;
+        journal.append(cancel, 1);
+        journal.onShutdown();
+
+        assertThat(readByte(0, OFFSET_ACTION), is(OrderAction.BID.getCode()));
+        assertThat(readByte(0, RECORD_SIZE + OFFSET_ACTION), is(NULL_ENUM_CODE));
+    }
+
+    @Test
+    public void shouldWriteQuoteReplaceLevelsIntoTheSameSegment() throws IOException {
+        final MappedJournallingProcessor journal = createJournal(4 * RECORD_SIZE, JournalDurabilityMode.PAGE_CACHE);
+
+        journal.append(placeOrder(1, 0), 0);
+        journal.append(quoteReplace(1), 1);
+        journal.onShutdown();
+
+        // 1 + 2 records do not fit the rest of the first segment
+        final byte quoteReplace = OrderCommandType.QUOTE_REPLACE.getCode();
+        assertThat(readCommandCodes(0), is(new byte[]{1, 0, 0, 0}));
+        assertThat(readCommandCodes(1), is(new byte[]{quoteReplace, quoteReplace, quoteReplace, 0}));
+        assertThat(readLong(1, OFFSET_SIZE), is(2L));
+        assertThat(readByte(1, 2 * RECORD_SIZE + OFFSET_ACTION), is(OrderAction.ASK.getCode()));
+        assertThat(readLong(1, 2 * RECORD_SIZE + OFFSET_ORDER_ID), is(11L));
+
+        // level records are not replayed as commands
+        assertThat(replayedCommands(), is(2L));
+    }
+
+    @Test
+    public void shouldStopReplayAtUnfinishedRecord() throws IOException {
+        final MappedJournallingProcessor journal = createJournal(16 * RECORD_SIZE, JournalDurabilityMode.PAGE_CACHE);
+        for (int i = 0; i < 3; i++) {
+            journal.append(placeOrder(i, 0), i);
+        }
+        journal.onShutdown();
+
+        // crash while writing 4th record: fields are written, command code is not
+        // page with the 5th record reached the disk earlier
+        final Path path = resolveSegmentPath(folder.getRoot().toString(), EXCHANGE_ID, 0);
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(3 * RECORD_SIZE + OFFSET_ORDER_ID);
+            file.writeLong(3);
+            file.seek(4 * RECORD_SIZE + OFFSET_COMMAND);
+            file.writeByte(OrderCommandType.PLACE_ORDER.getCode());
+        }
+
+        assertThat(replayedCommands(), is(3L));
+    }
+
+    private MappedJournallingProcessor createJournal(final long segmentSize, final JournalDurabilityMode mode) {
+        return new MappedJournallingProcessor(folder.getRoot().toString(), EXCHANGE_ID, segmentSize, mode);
+    }
+
+    private long replayedCommands() {
+        return new JournalReplayer(folder.getRoot().toString(), EXCHANGE_ID)
+                .replay(null, Collections.emptyList(), Collections.emptyList(), executor);
+    }
+
+    private byte[] readCommandCodes(final int segmentIndex) throws IOException {
+        final byte[] segment = Files.readAllBytes(resolveSegmentPath(folder.getRoot().toString(), EXCHANGE_ID, segmentIndex));
+        final byte[] codes = new byte[segment.length / RECORD_SIZE];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = segment[i * RECORD_SIZE + OFFSET_COMMAND];
+        }
+        return codes;
+    }
+
+    private byte readByte(final int segmentIndex, final int offset) throws IOException {
+        return Files.readAllBytes(resolveSegmentPath(folder.getRoot().toString(), EXCHANGE_ID, segmentIndex))[offset];
+    }
+
+    private long readLong(final int segmentIndex, final int offset) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(resolveSegmentPath(folder.getRoot().toString(), EXCHANGE_ID, segmentIndex).toFile(), "r")) {
+            file.seek(offset);
+            return file.readLong();
+        }
+    }
+
+    private static OrderCommand quoteReplace(final long eventsGroup) {
+        final OrderCommand cmd = new OrderCommand();
+        cmd.command = OrderCommandType.QUOTE_REPLACE;
+        cmd.orderType = GTC;
+        cmd.uid = 1;
+        cmd.quoteLevels = new QuoteLevels(2);
+        cmd.quoteLevels.add(10, 990, 1, OrderAction.BID, 990);
+        cmd.quoteLevels.add(11, 1010, 1, OrderAction.ASK, 0);
+        cmd.eventsGroup = eventsGroup;
+        return cmd;
+    }
+
+    private static OrderCommand placeOrder(final long orderId, final long eventsGroup) {
+        final OrderCommand cmd = OrderCommand.newOrder(GTC, orderId, 1, 1000, 1000, 1, OrderAction.BID);
+        cmd.eventsGroup = eventsGroup;
+        return cmd;
+    }
+}
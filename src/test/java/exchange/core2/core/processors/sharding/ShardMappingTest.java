@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.core.processors.sharding;
+
+import net.openhft.chronicle.bytes.Bytes;
+import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class ShardMappingTest {
+
+    @Test
+    public void moduloShouldMatchMaskForPowerOfTwo() {
+        final ModuloShardMapping mapping = new ModuloShardMapping(4);
+        final Random rand = new Random(1L);
+        for (int i = 0; i < 100_000; i++) {
+            final long key = rand.nextLong();
+            assertThat(mapping.shardFor(key), is((int) (key & 3)));
+        }
+    }
+
+    @Test
+    public void moduloShouldSupportAnyNumberOfShards() {
+        final ModuloShardMapping mapping = new ModuloShardMapping(3);
+        assertThat(mapping.shardFor(0), is(0));
+        assertThat(mapping.shardFor(5), is(2));
+        assertThat(mapping.shardFor(-1), is(2));
+        assertThat(mapping.shardFor(Long.MIN_VALUE), is((int) Math.floorMod(Long.MIN_VALUE, 3L)));
+    }
+
+    @Test
+    public void weightedBucketsShouldFollowWeights() {
+        final BucketShardMapping mapping = BucketShardMapping.weighted(new int[]{1, 2, 5}, 1024);
+        final int[] counters = new int[3];
+        for (long uid = 0; uid < 800_000; uid++) {
+            counters[mapping.shardFor(uid)]++;
+        }
+        assertThat(Math.round(counters[0] / 10_000f), is(10));
+        assertThat(Math.round(counters[1] / 10_000f), is(20));
+        assertThat(Math.round(counters[2] / 10_000f), is(50));
+    }
+
+    @Test
+    public void rangesShouldCoverAllKeys() {
+        final RangeShardMapping mapping = new RangeShardMapping(new long[]{100, 1000, 5000});
+        assertThat(mapping.getShardsNum(), is(3));
+        assertThat(mapping.shardFor(Long.MIN_VALUE), is(0));
+        assertThat(mapping.shardFor(999), is(0));
+        assertThat(mapping.shardFor(1000), is(1));
+        assertThat(mapping.shardFor(4999), is(1));
+        assertThat(mapping.shardFor(5000), is(2));
+        assertThat(mapping.shardFor(Long.MAX_VALUE), is(2));
+    }
+
+    @Test
+    public void explicitAssignmentShouldOverrideFallback() {
+        final IntIntHashMap assignments = new IntIntHashMap();
+        assignments.put(7, 0);
+        final ExplicitShardMapping mapping = new ExplicitShardMapping(assignments, new ModuloShardMapping(5)).withAssignment(8, 4);
+        assertThat(mapping.getShardsNum(), is(5));
+        assertThat(mapping.shardFor(7), is(0));
+        assertThat(mapping.shardFor(8), is(4));
+        assertThat(mapping.shardFor(9), is(4));
+        assertThat(mapping.shardFor(11), is(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void explicitAssignmentShouldBeValidated() {
+        final IntIntHashMap assignments = new IntIntHashMap();
+        assignments.put(7, 5);
+        new ExplicitShardMapping(assignments, new ModuloShardMapping(5));
+    }
+
+    @Test
+    public void shouldSerializeAllMappings() {
+        final IntIntHashMap assignments = new IntIntHashMap();
+        assignments.put(40000, 2);
+        final IShardMapping[] mappings = {
+                new ModuloShardMapping(6),
+                BucketShardMapping.weighted(new int[]{3, 1, 1}, 256),
+                new RangeShardMapping(new long[]{0, 1_000_000, 2_000_000}),
+                new ExplicitShardMapping(assignments, BucketShardMapping.weighted(new int[]{1, 1, 1}, 64))};
+
+        for (final IShardMapping mapping : mappings) {
+            final Bytes<ByteBuffer> bytes = Bytes.elasticHeapByteBuffer(64);
+            mapping.writeMarshallable(bytes);
+            final IShardMapping restored = IShardMapping.create(bytes);
+            assertThat(restored.getMappingType(), is(mapping.getMappingType()));
+            assertThat(restored.stateHash(), is(mapping.stateHash()));
+            for (long key = 39_990; key < 40_010; key++) {
+                assertThat(restored.shardFor(key), is(mapping.shardFor(key)));
+            }
+        }
+    }
+}
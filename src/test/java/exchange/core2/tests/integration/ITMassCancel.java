@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.tests.integration;
+
+import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.OrderType;
+import exchange.core2.core.common.api.ApiMassCancel;
+import exchange.core2.core.common.api.ApiPlaceOrder;
+import exchange.core2.core.common.api.reports.TotalCurrencyBalanceReportResult;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import exchange.core2.tests.util.ExchangeTestContainer;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.collections.impl.map.mutable.primitive.IntLongHashMap;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static exchange.core2.tests.util.TestConstants.*;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Mass cancel must release risk holds of every cancelled order (exchange and margin order books, all shards)
+ * and keep global balances consistent.
+ */
+@Slf4j
+public final class ITMassCancel {
+
+    @Test(timeout = 10_000)
+    public void shouldReleaseHolds() throws Exception {
+        try (final ExchangeTestContainer container = new ExchangeTestContainer()) {
+            massCancelTestImpl(container);
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void shouldReleaseHoldsSharded() throws Exception {
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(32 * 1024, 2, 2, 1536, null)) {
+            massCancelTestImpl(container);
+        }
+    }
+
+    private void massCancelTestImpl(final ExchangeTestContainer container) throws Exception {
+        container.initBasicSymbols();
+        container.initFeeSymbols();
+        container.initBasicUsers();
+        container.addMoneyToUser(UID_1, CURRENECY_LTC, 1_000_000_000_000L);
+        container.addMoneyToUser(UID_2, CURRENECY_LTC, 1_000_000_000_000L);
+
+        final IntLongHashMap accounts1 = userAccounts(container, UID_1);
+        final IntLongHashMap accounts2 = userAccounts(container, UID_2);
+
+        // resting orders in exchange, exchange with fees and margin order books
+        placeOrder(container, UID_1, 101, SYMBOL_EXCHANGE, OrderAction.BID, 1_000, 1_100, 10, OrderType.GTC);
+        placeOrder(container, UID_1, 102, SYMBOL_EXCHANGE_FEE, OrderAction.BID, 11_400, 11_500, 5, OrderType.GTC);
+        placeOrder(container, UID_1, 103, SYMBOL_MARGIN, OrderAction.BID, 1_500, 1_500, 5, OrderType.GTC);
+        placeOrder(container, UID_1, 104, SYMBOL_MARGIN, OrderAction.ASK, 1_700, 1_700, 3, OrderType.GTC);
+        placeOrder(container, UID_2, 201, SYMBOL_EXCHANGE, OrderAction.ASK, 2_000, 2_000, 10, OrderType.GTC);
+        placeOrder(container, UID_2, 202, SYMBOL_EXCHANGE_FEE, OrderAction.ASK, 12_000, 12_000, 5, OrderType.GTC);
+        placeOrder(container, UID_2, 203, SYMBOL_MARGIN, OrderAction.ASK, 1_600, 1_600, 5, OrderType.GTC);
+
+        // partially fill order 101: 4 lots at 1000
+        placeOrder(container, UID_2, 204, SYMBOL_EXCHANGE, OrderAction.ASK, 1_000, 1_000, 4, OrderType.IOC);
+        final long ethTraded = 4 * SYMBOLSPEC_ETH_XBT.baseScaleK;
+        final long xbtTraded = 4 * 1_000 * SYMBOLSPEC_ETH_XBT.quoteScaleK;
+        accounts1.addToValue(CURRENECY_ETH, ethTraded);
+        accounts1.addToValue(CURRENECY_XBT, -xbtTraded);
+        accounts2.addToValue(CURRENECY_ETH, -ethTraded);
+        accounts2.addToValue(CURRENECY_XBT, xbtTraded);
+
+        // all orders of UID_1 in all order books
+        massCancel(container, UID_1, ApiMassCancel.ALL_SYMBOLS);
+        container.validateUserState(
+                UID_1,
+                profile -> {
+                    assertThat(profile.accounts, is(accounts1));
+                    assertTrue(profile.positions.isEmpty());
+                },
+                orders -> assertTrue(orders.isEmpty()));
+        container.validateUserState(
+                UID_2,
+                profile -> {
+                },
+                orders -> assertThat(orders.keySet(), is(new HashSet<>(Arrays.asList(201L, 202L, 203L)))));
+        checkGlobalBalances(container, false);
+
+        // all users in one order book
+        massCancel(container, ApiMassCancel.ALL_USERS, SYMBOL_EXCHANGE_FEE);
+        container.validateUserState(
+                UID_2,
+                profile -> {
+                },
+                orders -> assertThat(orders.keySet(), is(new HashSet<>(Arrays.asList(201L, 203L)))));
+        checkGlobalBalances(container, false);
+
+        // everything
+        massCancel(container, ApiMassCancel.ALL_USERS, ApiMassCancel.ALL_SYMBOLS);
+        container.validateUserState(
+                UID_2,
+                profile -> {
+                    assertThat(profile.accounts, is(accounts2));
+                    assertTrue(profile.positions.isEmpty());
+                },
+                orders -> assertTrue(orders.isEmpty()));
+        container.validateUserState(UID_1, profile -> assertThat(profile.accounts, is(accounts1)), orders -> assertTrue(orders.isEmpty()));
+        checkGlobalBalances(container, true);
+
+        // nothing left to cancel
+        massCancel(container, UID_2, ApiMassCancel.ALL_SYMBOLS);
+        checkGlobalBalances(container, true);
+    }
+
+    private static IntLongHashMap userAccounts(final ExchangeTestContainer container, final long uid) throws Exception {
+        final IntLongHashMap accounts = new IntLongHashMap();
+        container.validateUserState(uid, profile -> accounts.putAll(profile.accounts), orders -> assertTrue(orders.isEmpty()));
+        return accounts;
+    }
+
+    private static void placeOrder(final ExchangeTestContainer container, final long uid, final long orderId, final int symbol,
+                                   final OrderAction action, final long price, final long reservePrice, final long size,
+                                   final OrderType orderType) throws InterruptedException {
+        container.submitCommandSync(
+                ApiPlaceOrder.builder().uid(uid).id(orderId).symbol(symbol).action(action).orderType(orderType)
+                        .price(price).reservePrice(reservePrice).size(size).build(),
+                CommandResultCode.SUCCESS);
+    }
+
+    private static void massCancel(final ExchangeTestContainer container, final long uid, final int symbol) throws Exception {
+        // completes after the last shard processed its part
+        assertThat(container.getApi().massCancelAsync(uid, symbol).get(), is(CommandResultCode.SUCCESS));
+    }
+
+    private static void checkGlobalBalances(final ExchangeTestContainer container, final boolean noOrders) throws Exception {
+        final TotalCurrencyBalanceReportResult totals = container.totalBalanceReport();
+        assertTrue(totals.isGlobalBalancesAllZero());
+        if (noOrders) {
+            assertTrue(totals.getOrdersBalances().allSatisfy(amount -> amount == 0L));
+        }
+        // no fees collected (no trades in order books with fees)
+        assertTrue(totals.getFees().allSatisfy(amount -> amount == 0L));
+    }
+}
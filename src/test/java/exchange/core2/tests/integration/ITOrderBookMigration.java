@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.tests.integration;
+
+import exchange.core2.core.common.L2MarketData;
+import exchange.core2.core.common.OrderAction;
+import exchange.core2.core.common.api.ApiCancelOrder;
+import exchange.core2.core.common.api.ApiMigrateOrderBook;
+import exchange.core2.core.common.api.ApiPlaceOrder;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import exchange.core2.tests.util.ExchangeTestContainer;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Test;
+
+import static exchange.core2.core.common.OrderType.GTC;
+import static exchange.core2.core.common.OrderType.IOC;
+import static exchange.core2.tests.util.TestConstants.*;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+@Slf4j
+public final class ITOrderBookMigration {
+
+    @Test(timeout = 30_000)
+    public void shouldMigrateOrderBookBetweenShards() throws Exception {
+
+        try (final ExchangeTestContainer container = new ExchangeTestContainer(2 * 1024, 2, 2, 1536, null)) {
+            container.initBasicSymbols();
+            container.initBasicUsers();
+
+            // default mapping - symbol modulo number of shards
+            final int sourceShard = SYMBOL_EXCHANGE % 2;
+            final int targetShard = 1 - sourceShard;
+
+            final ApiPlaceOrder order101 = ApiPlaceOrder.builder().uid(UID_1).id(101L).price(1_000L).size(10L).action(OrderAction.ASK).orderType(GTC).symbol(SYMBOL_EXCHANGE).build();
+            container.submitCommandSync(order101, CommandResultCode.SUCCESS);
+            final L2MarketData snapshot = container.requestCurrentOrderBook(SYMBOL_EXCHANGE);
+
+            container.submitCommandSync(
+                    ApiMigrateOrderBook.builder().symbol(SYMBOL_EXCHANGE).targetShard(targetShard).build(),
+                    CommandResultCode.SUCCESS);
+
+            // same order book served by target shard
+            assertThat(container.requestCurrentOrderBook(SYMBOL_EXCHANGE), is(snapshot));
+
+            // invalid migrations
+            container.submitCommandSync(
+                    ApiMigrateOrderBook.builder().symbol(SYMBOL_EXCHANGE).targetShard(targetShard).build(),
+                    CommandResultCode.MATCHING_INVALID_TARGET_SHARD);
+            container.submitCommandSync(
+                    ApiMigrateOrderBook.builder().symbol(SYMBOL_EXCHANGE).targetShard(2).build(),
+                    CommandResultCode.MATCHING_INVALID_TARGET_SHARD);
+            container.submitCommandSync(
+                    ApiMigrateOrderBook.builder().symbol(SYMBOL_EXCHANGE + 1).targetShard(targetShard).build(),
+                    CommandResultCode.MATCHING_INVALID_ORDER_BOOK_ID);
+
+            // matching continues on target shard
+            final ApiPlaceOrder order201 = ApiPlaceOrder.builder().uid(UID_2).id(201L).price(1_000L).reservePrice(1_000L).size(4L).action(OrderAction.BID).orderType(IOC).symbol(SYMBOL_EXCHANGE).build();
+            container.submitCommandSync(order201, CommandResultCode.SUCCESS);
+
+            container.validateUserState(
+                    UID_1,
+                    userProfile -> assertThat(userProfile.accounts.get(CURRENECY_XBT), is(1_0000_0000L + 4L * 1_000L * SYMBOLSPEC_ETH_XBT.quoteScaleK)),
+                    orders -> assertThat(orders.get(101L).getFilled(), is(4L)));
+
+            // migrate back and cancel remaining order
+            container.submitCommandSync(
+                    ApiMigrateOrderBook.builder().symbol(SYMBOL_EXCHANGE).targetShard(sourceShard).build(),
+                    CommandResultCode.SUCCESS);
+            container.submitCommandSync(
+                    ApiCancelOrder.builder().id(101L).uid(UID_1).symbol(SYMBOL_EXCHANGE).build(),
+                    CommandResultCode.SUCCESS);
+
+            assertTrue(container.totalBalanceReport().isGlobalBalancesAllZero());
+        }
+    }
+}
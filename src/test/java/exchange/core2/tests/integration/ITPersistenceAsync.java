@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.tests.integration;
+
+import exchange.core2.tests.util.ExchangeTestContainer;
+import exchange.core2.tests.util.PersistenceTestsModule;
+import exchange.core2.tests.util.TestConstants;
+import org.junit.Test;
+
+/**
+ * Snapshot is written by background threads (copy-on-write), while user profiles and order books
+ * are already modified by the commands submitted right after persist command.
+ * Exchange restored from the snapshot must have the same state hash as original exchange had at snapshot sequence.
+ */
+public final class ITPersistenceAsync {
+
+    @Test(timeout = 120000L)
+    public void shouldRestoreExchangeStateAtSnapshotSequence() throws Exception {
+        PersistenceTestsModule.persistenceTestImpl(
+                stateId -> new ExchangeTestContainer(2 * 1024, 2, 2, 512, stateId, null, null, true),
+                300_000,
+                10_000,
+                10_000,
+                2,
+                TestConstants.CURRENCIES_EXCHANGE,
+                100,
+                ExchangeTestContainer.AllowedSymbolTypes.CURRENCY_EXCHANGE_PAIR);
+    }
+
+    @Test(timeout = 120000L)
+    public void shouldRestoreMarginStateAtSnapshotSequence() throws Exception {
+        PersistenceTestsModule.persistenceTestImpl(
+                stateId -> new ExchangeTestContainer(2 * 1024, 2, 2, 512, stateId, null, null, true),
+                300_000,
+                10_000,
+                10_000,
+                2,
+                TestConstants.CURRENCIES_FUTURES,
+                100,
+                ExchangeTestContainer.AllowedSymbolTypes.FUTURES_CONTRACT);
+    }
+}
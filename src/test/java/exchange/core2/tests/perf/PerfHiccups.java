@@ -16,11 +16,18 @@
 package exchange.core2.tests.perf;
 
 import exchange.core2.core.ExchangeApi;
+import exchange.core2.core.common.cmd.CommandResultCode;
+import exchange.core2.core.common.cmd.OrderCommand;
+import exchange.core2.core.orderbook.IOrderBook;
+import exchange.core2.core.orderbook.OrderBookFastImpl;
+import exchange.core2.core.processors.ObjectsPool;
 import exchange.core2.tests.util.ExchangeTestContainer;
+import exchange.core2.tests.util.LatencyTools;
 import exchange.core2.tests.util.TestConstants;
 import exchange.core2.tests.util.TestOrdersGenerator;
 import lombok.extern.slf4j.Slf4j;
 import net.openhft.affinity.AffinityLock;
+import org.HdrHistogram.Histogram;
 import org.eclipse.collections.impl.map.mutable.primitive.LongLongHashMap;
 import org.junit.Test;
 import exchange.core2.core.common.api.ApiCommand;
@@ -148,5 +155,53 @@ public final class PerfHiccups {
         }
     }
 
+    /**
+     * Moving price across the default hot prices range of OrderBookFastImpl back and forth (re-balancing HOT/FAR sections).
+     * Order book is called directly, every command latency is recorded.
+     */
+    @Test
+    public void testHiccupsOrderBookRebalancing() {
+
+        final int hotPricesRange = OrderBookFastImpl.DEFAULT_HOT_WIDTH;
+
+        // will print each occurrence if latency>20us
+        final long hiccupThresholdNs = 20_000;
+
+        final List<OrderCommand> commands = TestOrdersGenerator.generatePriceSweepCommands(
+                100,
+                hotPricesRange * 3,
+                2000,
+                1000,
+                1000,
+                920630642);
+
+        try (final AffinityLock cpuLock = AffinityLock.acquireLock()) {
+
+            IntStream.range(0, 50).forEach(iteration -> {
+
+                final IOrderBook orderBook = new OrderBookFastImpl(hotPricesRange, TestConstants.SYMBOLSPEC_EUR_USD, ObjectsPool.createDefaultTestPool());
+                final Histogram histogram = new Histogram(60_000_000_000L, 3);
+                int hiccups = 0;
+
+                for (int i = 0; i < commands.size(); i++) {
+                    final OrderCommand cmd = commands.get(i);
+                    cmd.resultCode = CommandResultCode.VALID_FOR_MATCHING_ENGINE;
+                    cmd.matcherEvent = null;
+
+                    final long startNs = System.nanoTime();
+                    IOrderBook.processCommand(orderBook, cmd);
+                    final long latencyNs = System.nanoTime() - startNs;
+
+                    histogram.recordValue(latencyNs);
+                    if (latencyNs > hiccupThresholdNs) {
+                        hiccups++;
+                        log.debug("command {} (price {}): {}", i, cmd.price, LatencyTools.formatNanos(latencyNs));
+                    }
+                }
+
+                log.info("iteration {}: {} hiccups; {}", iteration, hiccups, LatencyTools.createLatencyReportFast(histogram));
+            });
+        }
+    }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.tests.perf;
+
+import exchange.core2.core.processors.journalling.JournalDurabilityMode;
+import exchange.core2.core.processors.journalling.JournalReplayer;
+import exchange.core2.core.processors.journalling.MappedJournallingProcessor;
+import exchange.core2.tests.util.ExchangeTestContainer;
+import exchange.core2.tests.util.JournalReplayTestsModule;
+import exchange.core2.tests.util.TestConstants;
+import exchange.core2.tests.util.ThroughputTestsModule;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Test;
+
+/**
+ * Same conditions as PerfThroughput#testThroughputExchange, but with journalling stage enabled.
+ * Compare results against PerfThroughput to estimate journalling cost.
+ */
+@Slf4j
+public final class PerfJournalling {
+
+    @Test
+    public void testThroughputJournalDisabled() throws Exception {
+        throughputTestWithJournal(JournalDurabilityMode.NONE);
+    }
+
+    @Test
+    public void testThroughputJournalPageCache() throws Exception {
+        throughputTestWithJournal(JournalDurabilityMode.PAGE_CACHE);
+    }
+
+    @Test
+    public void testThroughputJournalFsyncPerGroup() throws Exception {
+        throughputTestWithJournal(JournalDurabilityMode.FSYNC_PER_GROUP);
+    }
+
+    /**
+     * Recovery test: snapshot is made after pre-fill, then benchmark commands are journalled.
+     * Restored exchange loads snapshot and replays journal tail, final state hash must be the same.
+     */
+    @Test
+    public void testJournalReplay() throws Exception {
+        JournalReplayTestsModule.journalReplayTestImpl(
+                (stateId, exchangeId) -> new ExchangeTestContainer(2 * 1024, 1, 1, 1536, stateId,
+                        new MappedJournallingProcessor("./dumps", exchangeId, 64L * 1024 * 1024, JournalDurabilityMode.PAGE_CACHE),
+                        stateId != null ? new JournalReplayer("./dumps", exchangeId) : null),
+                3_000_000,
+                1000,
+                2000,
+                TestConstants.CURRENCIES_EXCHANGE,
+                1,
+                ExchangeTestContainer.AllowedSymbolTypes.CURRENCY_EXCHANGE_PAIR);
+    }
+
+    @Test
+    public void testJournalReplayMultiSymbol() throws Exception {
+        JournalReplayTestsModule.journalReplayTestImpl(
+                (stateId, exchangeId) -> new ExchangeTestContainer(32 * 1024, 4, 4, 1024, stateId,
+                        new MappedJournallingProcessor("./dumps", exchangeId, JournalDurabilityMode.PAGE_CACHE),
+                        stateId != null ? new JournalReplayer("./dumps", exchangeId) : null),
+                7_500_000,
+                1_000_000,
+                3_300_000,
+                TestConstants.ALL_CURRENCIES,
+                100_000,
+                ExchangeTestContainer.AllowedSymbolTypes.BOTH);
+    }
+
+    private void throughputTestWithJournal(final JournalDurabilityMode mode) throws Exception {
+        final String exchangeId = "perf-" + mode.name().toLowerCase() + "-" + System.currentTimeMillis();
+        ThroughputTestsModule.throughputTestImpl(
+                () -> new ExchangeTestContainer(2 * 1024, 1, 1, 1536, null,
+                        new MappedJournallingProcessor("./dumps", exchangeId, 64L * 1024 * 1024, mode), null),
+                3_000_000,
+                1000,
+                2000,
+                50,
+                TestConstants.CURRENCIES_EXCHANGE,
+                1,
+                ExchangeTestContainer.AllowedSymbolTypes.CURRENCY_EXCHANGE_PAIR);
+    }
+}
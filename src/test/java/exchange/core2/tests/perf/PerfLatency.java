@@ -63,6 +63,57 @@ public final class PerfLatency {
                 20);
     }
 
+    /**
+     * Same as testLatencyExchange, with per-stage latency histograms (G, R1, ME, R2, E) reported for every iteration
+     */
+    @Test
+    public void testLatencyExchangeStages() {
+        latencyTestImpl(() -> new ExchangeTestContainer(2 * 1024, 1, 1, 256, null, null, null, false, true),
+                3_000_000,
+                1_000,
+                2_000,
+                TestConstants.CURRENCIES_EXCHANGE,
+                1,
+                ExchangeTestContainer.AllowedSymbolTypes.CURRENCY_EXCHANGE_PAIR,
+                20);
+    }
+
+    /**
+     * Same as testLatencyExchange, with events group size and duration adapted to load (between 16 and 256 messages, 1-10µs)
+     */
+    @Test
+    public void testLatencyExchangeAdaptiveGrouping() {
+        latencyTestImpl(() -> new ExchangeTestContainer(2 * 1024, 1, 1, 256, null, null, null, false, false,
+                        builder -> builder.adaptiveGrouping(true).msgsInGroupLimitMin(16).groupMaxDurationNsMin(1_000).groupMaxDurationNsMax(10_000)),
+                3_000_000,
+                1_000,
+                2_000,
+                TestConstants.CURRENCIES_EXCHANGE,
+                1,
+                ExchangeTestContainer.AllowedSymbolTypes.CURRENCY_EXCHANGE_PAIR,
+                20);
+    }
+
+    /**
+     * Spot trading latency for many exchange-only users (no margin positions):
+     * - 1M active users (3M currency accounts)
+     * - 100K pending limit-orders
+     * - 1K symbols (exchange mode)
+     * Heap used after loading users is reported (profiles without positions do not allocate positions maps).
+     * 8-threads CPU and 16GiB RAM is required for running this test in 2+2 configuration.
+     */
+    @Test
+    public void testLatencyExchangeManyUsers() {
+        latencyTestImpl(() -> new ExchangeTestContainer(32 * 1024, 2, 2, 256, null),
+                3_000_000,
+                100_000,
+                3_300_000,
+                TestConstants.ALL_CURRENCIES,
+                1_000,
+                ExchangeTestContainer.AllowedSymbolTypes.CURRENCY_EXCHANGE_PAIR,
+                10);
+    }
+
     /**
      * This is medium load latency test for verifying "triple million" capability:
      * - 1M active users (3M currency accounts)
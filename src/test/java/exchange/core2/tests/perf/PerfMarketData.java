@@ -0,0 +1,47 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.tests.perf;
+
+import exchange.core2.tests.util.ExchangeTestContainer;
+import exchange.core2.tests.util.TestConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Test;
+
+import static exchange.core2.tests.util.MarketDataTestsModule.orderBookRequestsAllocationTestImpl;
+
+@Slf4j
+public final class PerfMarketData {
+
+    /**
+     * Allocation rate of L2 market data requests (32 levels), with and without pooled market data carriers
+     * - 100 symbols
+     * - 100K pending limit-orders
+     * - 1M order book requests
+     */
+    @Test
+    public void testOrderBookRequestsAllocation() throws Exception {
+        orderBookRequestsAllocationTestImpl(
+                pooling -> new ExchangeTestContainer(64 * 1024, 1, 1, 1536, null, null, null, false, false, builder -> builder.l2DataPooling(pooling)),
+                1_000_000,
+                32,
+                100_000,
+                10_000,
+                TestConstants.ALL_CURRENCIES,
+                100,
+                ExchangeTestContainer.AllowedSymbolTypes.BOTH,
+                3);
+    }
+}
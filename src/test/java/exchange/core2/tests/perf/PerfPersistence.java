@@ -58,6 +58,39 @@ public final class PerfPersistence {
                 ExchangeTestContainer.AllowedSymbolTypes.CURRENCY_EXCHANGE_PAIR);
     }
 
+    /**
+     * Same as testPersistenceExchange, but snapshot is written by background threads (copy-on-write),
+     * while benchmark commands are already processed by the original exchange.
+     */
+    @Test
+    public void testPersistenceExchangeAsync() throws Exception {
+        PersistenceTestsModule.persistenceTestImpl(
+                stateId -> new ExchangeTestContainer(2 * 1024, 1, 1, 512, stateId, null, null, true),
+                3_000_000,
+                1000,
+                2000,
+                10,
+                TestConstants.CURRENCIES_EXCHANGE,
+                1,
+                ExchangeTestContainer.AllowedSymbolTypes.CURRENCY_EXCHANGE_PAIR);
+    }
+
+    /**
+     * Delta snapshots test - most order books and user profiles are not modified between snapshots.
+     */
+    @Test
+    public void testPersistenceDeltaMultiSymbol() throws Exception {
+        PersistenceTestsModule.deltaPersistenceTestImpl(
+                stateId -> new ExchangeTestContainer(32 * 1024, 4, 4, 1024, stateId),
+                1_000_000,
+                1_000_000,
+                3_300_000,
+                5,
+                TestConstants.ALL_CURRENCIES,
+                100_000,
+                ExchangeTestContainer.AllowedSymbolTypes.BOTH);
+    }
+
     /**
      * This is serialization test for verifying "triple million" capability.
      * This test requires 10+ GiB free disk space, 16+ GiB of RAM and 12-threads CPU
@@ -75,6 +108,19 @@ public final class PerfPersistence {
                 ExchangeTestContainer.AllowedSymbolTypes.BOTH);
     }
 
+    @Test
+    public void testPersistenceMultiSymbolMediumAsync() throws Exception {
+        PersistenceTestsModule.persistenceTestImpl(
+                stateId -> new ExchangeTestContainer(32 * 1024, 4, 4, 1024, stateId, null, null, true),
+                7_500_000,
+                1_000_000,
+                3_300_000,
+                25,
+                TestConstants.ALL_CURRENCIES,
+                100_000,
+                ExchangeTestContainer.AllowedSymbolTypes.BOTH);
+    }
+
     @Test
     public void testPersistenceMultiSymbolLarge() throws Exception {
         PersistenceTestsModule.persistenceTestImpl(
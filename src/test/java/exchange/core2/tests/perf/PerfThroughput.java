@@ -15,12 +15,19 @@
  */
 package exchange.core2.tests.perf;
 
+import exchange.core2.core.ExchangeCore;
+import exchange.core2.core.processors.sharding.BucketShardMapping;
+import exchange.core2.core.processors.sharding.ExplicitShardMapping;
+import exchange.core2.core.processors.sharding.ModuloShardMapping;
 import exchange.core2.tests.util.ExchangeTestContainer;
 import exchange.core2.tests.util.TestConstants;
 import exchange.core2.tests.util.ThroughputTestsModule;
 import lombok.extern.slf4j.Slf4j;
+import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
 import org.junit.Test;
 
+import java.util.function.Consumer;
+
 @Slf4j
 public final class PerfThroughput {
 
@@ -72,6 +79,86 @@ public final class PerfThroughput {
                 ExchangeTestContainer.AllowedSymbolTypes.BOTH);
     }
 
+    /**
+     * Same as testThroughputPeak, but with non power of 2 number of shards (symbol/uid modulo number of shards)
+     */
+    @Test
+    public void testThroughputPeakThreeShards() throws Exception {
+        throughputPeakShardedImpl(3, 3, builder -> {
+        });
+    }
+
+    @Test
+    public void testThroughputPeakFiveShards() throws Exception {
+        throughputPeakShardedImpl(5, 5, builder -> {
+        });
+    }
+
+    /**
+     * Six matching engines with explicit assignment of the first symbols (hot ones) to dedicated shards,
+     * and three risk engines where last shard gets half of users (weighted hash buckets)
+     */
+    @Test
+    public void testThroughputPeakSixShardsWeighted() throws Exception {
+        final IntIntHashMap assignments = new IntIntHashMap();
+        for (int i = 0; i < 6; i++) {
+            assignments.put(TestConstants.SYMBOL_AUTOGENERATED_RANGE_START + i, i);
+        }
+        throughputPeakShardedImpl(6, 3, builder -> builder
+                .matchingShardMapping(new ExplicitShardMapping(assignments, new ModuloShardMapping(6)))
+                .riskShardMapping(BucketShardMapping.weighted(new int[]{1, 1, 2}, 1024)));
+    }
+
+    private static void throughputPeakShardedImpl(final int matchingEnginesNum,
+                                                  final int riskEnginesNum,
+                                                  final Consumer<ExchangeCore.ExchangeCoreBuilder> coreConfigurer) throws Exception {
+        ThroughputTestsModule.throughputTestImpl(
+                () -> new ExchangeTestContainer(64 * 1024, matchingEnginesNum, riskEnginesNum, 2048, null, null, null, false, false, coreConfigurer),
+                3_000_000,
+                10_000,
+                10_000,
+                50,
+                TestConstants.ALL_CURRENCIES,
+                100,
+                ExchangeTestContainer.AllowedSymbolTypes.BOTH);
+    }
+
+    /**
+     * Multiple gateway threads publishing commands one by one (one CAS on MULTI producer sequencer per command)
+     */
+    @Test
+    public void testThroughputMultiGatewayPerCommand() throws Exception {
+        ThroughputTestsModule.multiGatewayThroughputTestImpl(
+                () -> new ExchangeTestContainer(64 * 1024, 4, 2, 2048, null),
+                3_000_000,
+                10_000,
+                10_000,
+                50,
+                TestConstants.ALL_CURRENCIES,
+                100,
+                ExchangeTestContainer.AllowedSymbolTypes.BOTH,
+                4,
+                1);
+    }
+
+    /**
+     * Same as testThroughputMultiGatewayPerCommand, but every gateway publishes 64 commands per batch
+     */
+    @Test
+    public void testThroughputMultiGatewayBatched() throws Exception {
+        ThroughputTestsModule.multiGatewayThroughputTestImpl(
+                () -> new ExchangeTestContainer(64 * 1024, 4, 2, 2048, null),
+                3_000_000,
+                10_000,
+                10_000,
+                50,
+                TestConstants.ALL_CURRENCIES,
+                100,
+                ExchangeTestContainer.AllowedSymbolTypes.BOTH,
+                4,
+                64);
+    }
+
     /**
      * This is medium load throughput test for verifying "triple million" capability:
      * * - 1M active users (3M currency accounts)
@@ -16,6 +16,7 @@
 package exchange.core2.tests.util;
 
 import com.google.common.collect.Lists;
+import com.lmax.disruptor.EventHandler;
 import exchange.core2.core.ExchangeApi;
 import exchange.core2.core.ExchangeCore;
 import exchange.core2.core.common.*;
@@ -27,7 +28,10 @@ import exchange.core2.core.common.cmd.CommandResultCode;
 import exchange.core2.core.common.cmd.OrderCommand;
 import exchange.core2.core.common.cmd.OrderCommandType;
 import exchange.core2.core.orderbook.OrderBookDirectImpl;
+import exchange.core2.core.processors.GroupingController;
+import exchange.core2.core.processors.StageLatencyMonitor;
 import exchange.core2.core.processors.journalling.DiskSerializationProcessor;
+import exchange.core2.core.processors.journalling.JournalReplayer;
 import exchange.core2.core.utils.AffinityThreadFactory;
 import lombok.Getter;
 import lombok.Setter;
@@ -61,6 +65,8 @@ public final class ExchangeTestContainer implements AutoCloseable {
 
 
     private final ExchangeCore exchangeCore;
+    private final boolean asyncSnapshots;
+    private final Map<Long, CompletableFuture<Boolean>> pendingSnapshots = new HashMap<>();
 
     @Getter
     private final ExchangeApi api;
@@ -86,25 +92,82 @@ public final class ExchangeTestContainer implements AutoCloseable {
                                  final int riskEnginesNum,
                                  final int msgsInGroupLimit,
                                  final Long stateId) {
+        this(bufferSize, matchingEnginesNum, riskEnginesNum, msgsInGroupLimit, stateId, null, null);
+    }
+
+    public ExchangeTestContainer(final int bufferSize,
+                                 final int matchingEnginesNum,
+                                 final int riskEnginesNum,
+                                 final int msgsInGroupLimit,
+                                 final Long stateId,
+                                 final EventHandler<OrderCommand> journallingHandler,
+                                 final JournalReplayer journalReplayer) {
+        this(bufferSize, matchingEnginesNum, riskEnginesNum, msgsInGroupLimit, stateId, journallingHandler, journalReplayer, false);
+    }
+
+    public ExchangeTestContainer(final int bufferSize,
+                                 final int matchingEnginesNum,
+                                 final int riskEnginesNum,
+                                 final int msgsInGroupLimit,
+                                 final Long stateId,
+                                 final EventHandler<OrderCommand> journallingHandler,
+                                 final JournalReplayer journalReplayer,
+                                 final boolean asyncSnapshots) {
+        this(bufferSize, matchingEnginesNum, riskEnginesNum, msgsInGroupLimit, stateId, journallingHandler, journalReplayer, asyncSnapshots, false);
+    }
+
+    public ExchangeTestContainer(final int bufferSize,
+                                 final int matchingEnginesNum,
+                                 final int riskEnginesNum,
+                                 final int msgsInGroupLimit,
+                                 final Long stateId,
+                                 final EventHandler<OrderCommand> journallingHandler,
+                                 final JournalReplayer journalReplayer,
+                                 final boolean asyncSnapshots,
+                                 final boolean stageLatencyMonitoring) {
+        this(bufferSize, matchingEnginesNum, riskEnginesNum, msgsInGroupLimit, stateId, journallingHandler, journalReplayer, asyncSnapshots, stageLatencyMonitoring, builder -> {
+        });
+    }
+
+    public ExchangeTestContainer(final int bufferSize,
+                                 final int matchingEnginesNum,
+                                 final int riskEnginesNum,
+                                 final int msgsInGroupLimit,
+                                 final Long stateId,
+                                 final EventHandler<OrderCommand> journallingHandler,
+                                 final JournalReplayer journalReplayer,
+                                 final boolean asyncSnapshots,
+                                 final boolean stageLatencyMonitoring,
+                                 final Consumer<ExchangeCore.ExchangeCoreBuilder> coreConfigurer) {
 
         //log.debug("CREATING exchange container");
 
         this.threadFactory = new AffinityThreadFactory(AffinityThreadFactory.ThreadAffinityMode.THREAD_AFFINITY_ENABLE_PER_LOGICAL_CORE);
 
-        this.exchangeCore = ExchangeCore.builder()
+        final ExchangeCore.ExchangeCoreBuilder coreBuilder = ExchangeCore.builder()
                 .resultsConsumer((cmd, seq) -> consumer.accept(cmd))
                 .serializationProcessor(new DiskSerializationProcessor("./dumps"))
+                .journallingHandler(journallingHandler)
                 .ringBufferSize(bufferSize)
                 .matchingEnginesNum(matchingEnginesNum)
                 .riskEnginesNum(riskEnginesNum)
                 .msgsInGroupLimit(msgsInGroupLimit)
+                .groupMaxDurationNs(10_000)
                 .threadFactory(threadFactory)
                 .waitStrategy(CoreWaitStrategy.BUSY_SPIN)
 //                .orderBookFactory(symbolType -> new OrderBookFastImpl(OrderBookFastImpl.DEFAULT_HOT_WIDTH, symbolType))
                 .orderBookFactory(OrderBookDirectImpl::new)
 //                .orderBookFactory(OrderBookNaiveImpl::new)
                 .loadStateId(stateId) // Loading from persisted state
-                .build();
+                .journalReplayer(journalReplayer) // Replaying journal tail after loading state
+                .asyncSnapshots(asyncSnapshots) // Writing snapshots in background
+                .stageLatencyMonitoring(stageLatencyMonitoring); // Recording per-stage latency histograms
+
+        // additional configuration (e.g. adaptive grouping)
+        coreConfigurer.accept(coreBuilder);
+
+        this.exchangeCore = coreBuilder.build();
+        this.asyncSnapshots = asyncSnapshots;
 
         //log.debug("STARTING exchange container");
         this.exchangeCore.startup();
@@ -121,6 +184,14 @@ public final class ExchangeTestContainer implements AutoCloseable {
 //    }
 
 
+    public GroupingController getGroupingController() {
+        return exchangeCore.getGroupingController();
+    }
+
+    public StageLatencyMonitor getStageLatencyMonitor() {
+        return exchangeCore.getStageLatencyMonitor();
+    }
+
     public void initBasicSymbols() {
 
         addSymbol(TestConstants.SYMBOLSPEC_EUR_USD);
@@ -327,7 +398,7 @@ public final class ExchangeTestContainer implements AutoCloseable {
                     && cmd.command != OrderCommandType.PERSIST_STATE_MATCHING) {
                 throw new IllegalStateException("Unexpected command");
             }
-            if (cmd.resultCode == CommandResultCode.SUCCESS) {
+            if (cmd.resultCode == CommandResultCode.SUCCESS || cmd.resultCode == CommandResultCode.STATE_PERSIST_STARTED) {
                 latch.countDown();
             } else if (cmd.resultCode != CommandResultCode.ACCEPTED) {
                 throw new IllegalStateException("Unexpected result code");
@@ -339,6 +410,11 @@ public final class ExchangeTestContainer implements AutoCloseable {
         } catch (InterruptedException ex) {
             throw new IllegalStateException(ex);
         }
+        // async snapshot is still being written while next commands are processed, outcome is checked on close
+        if (asyncSnapshots && dataCommand instanceof ApiPersistState) {
+            final long snapshotId = ((ApiPersistState) dataCommand).dumpId;
+            pendingSnapshots.put(snapshotId, exchangeCore.getSnapshotResult(snapshotId));
+        }
         consumer = cmd -> {
         };
     }
@@ -491,6 +567,11 @@ public final class ExchangeTestContainer implements AutoCloseable {
     @Override
     public void close() {
         exchangeCore.shutdown();
+        pendingSnapshots.forEach((snapshotId, result) -> {
+            if (!result.join()) {
+                throw new IllegalStateException("Failed to write snapshot " + snapshotId);
+            }
+        });
     }
 
     public enum AllowedSymbolTypes {
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.tests.util;
+
+import exchange.core2.core.ExchangeApi;
+import exchange.core2.core.common.CoreSymbolSpecification;
+import exchange.core2.core.common.api.ApiCommand;
+import exchange.core2.core.common.api.ApiPersistState;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BiFunction;
+
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+@Slf4j
+public class JournalReplayTestsModule {
+
+    public static void journalReplayTestImpl(final BiFunction<Long, String, ExchangeTestContainer> containerFactory,
+                                             final int totalTransactionsNumber,
+                                             final int targetOrderBookOrdersTotal,
+                                             final int numAccounts,
+                                             final Set<Integer> currenciesAllowed,
+                                             final int numSymbols,
+                                             final ExchangeTestContainer.AllowedSymbolTypes allowedSymbolTypes) throws Exception {
+
+        final String exchangeId = "replay-" + System.currentTimeMillis();
+
+        final List<CoreSymbolSpecification> coreSymbolSpecifications = ExchangeTestContainer.generateRandomSymbols(numSymbols, currenciesAllowed, allowedSymbolTypes);
+        final List<BitSet> usersAccounts = UserCurrencyAccountsGenerator.generateUsers(numAccounts, currenciesAllowed);
+
+        final TestOrdersGeneratorConfig genConfig = TestOrdersGeneratorConfig.builder()
+                .coreSymbolSpecifications(coreSymbolSpecifications)
+                .totalTransactionsNumber(totalTransactionsNumber)
+                .usersAccounts(usersAccounts)
+                .targetOrderBookOrdersTotal(targetOrderBookOrdersTotal)
+                .seed(1)
+                .preFillMode(TestOrdersGeneratorConfig.PreFillMode.ORDERS_NUMBER)
+                .build();
+
+        final TestOrdersGenerator.MultiSymbolGenResult genResult = TestOrdersGenerator.generateMultipleSymbols(genConfig);
+
+        final long stateId;
+        final int originalStateHash;
+
+        try (final ExchangeTestContainer container = containerFactory.apply(null, exchangeId)) {
+
+            final ExchangeApi api = container.getApi();
+
+            container.addSymbols(coreSymbolSpecifications);
+            container.userAccountsInit(usersAccounts);
+
+            final List<ApiCommand> apiCommandsFill = genResult.getApiCommandsFill();
+            log.info("Order books pre-fill with {} orders...", apiCommandsFill.size());
+            final CountDownLatch latchFill = new CountDownLatch(apiCommandsFill.size());
+            container.setConsumer(cmd -> latchFill.countDown());
+            apiCommandsFill.forEach(api::submitCommand);
+            latchFill.await();
+
+            log.info("Persisting...");
+            stateId = System.currentTimeMillis() * 1000;
+            container.submitMultiCommandSync(ApiPersistState.builder().dumpId(stateId).build());
+
+            log.info("Journalling {} benchmark commands...", genResult.getApiCommandsBenchmark().size());
+            final List<ApiCommand> apiCommandsBenchmark = genResult.getApiCommandsBenchmark();
+            final CountDownLatch latchBenchmark = new CountDownLatch(apiCommandsBenchmark.size());
+            container.setConsumer(cmd -> latchBenchmark.countDown());
+            apiCommandsBenchmark.forEach(api::submitCommand);
+            latchBenchmark.await();
+
+            originalStateHash = container.requestStateHash();
+            assertTrue(container.totalBalanceReport().isGlobalBalancesAllZero());
+        }
+
+        System.gc();
+        Thread.sleep(200);
+
+        log.info("Creating new exchange from snapshot {} + journal tail...", stateId);
+        final long tLoad = System.currentTimeMillis();
+        try (final ExchangeTestContainer recreatedContainer = containerFactory.apply(stateId, exchangeId)) {
+
+            final int restoredStateHash = recreatedContainer.requestStateHash();
+            log.info("Load+replay+start time: {}s", String.format("%.3f", (System.currentTimeMillis() - tLoad) / 1000.0f));
+
+            assertThat(restoredStateHash, is(originalStateHash));
+            assertTrue(recreatedContainer.totalBalanceReport().isGlobalBalancesAllZero());
+
+            // restored order books should be identical to generator results
+            coreSymbolSpecifications.forEach(symbol -> assertThat(
+                    recreatedContainer.requestCurrentOrderBook(symbol.symbolId),
+                    is(genResult.getGenResults().get(symbol.symbolId).getFinalOrderBookSnapshot())));
+        }
+    }
+}
@@ -22,6 +22,7 @@ import exchange.core2.core.common.OrderType;
 import exchange.core2.core.common.api.ApiCommand;
 import exchange.core2.core.common.api.ApiMoveOrder;
 import exchange.core2.core.common.api.ApiPlaceOrder;
+import exchange.core2.core.processors.StageLatencyMonitor;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.HdrHistogram.Histogram;
@@ -32,6 +33,7 @@ import java.io.FileNotFoundException;
 import java.io.PrintStream;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiFunction;
 import java.util.function.Function;
@@ -81,6 +83,7 @@ public class LatencyTestsModule {
 
             final ExchangeApi api = container.getApi();
             final SingleWriterRecorder hdrRecorder = new SingleWriterRecorder(Integer.MAX_VALUE, 2);
+            final AtomicBoolean heapReported = new AtomicBoolean(false);
 
             // TODO - first run should validate the output (orders are accepted and processed properly)
 
@@ -91,6 +94,10 @@ public class LatencyTestsModule {
                     container.addSymbols(coreSymbolSpecifications);
                     container.userAccountsInit(usersAccounts);
 
+                    if (!heapReported.getAndSet(true)) {
+                        log.info("Heap used after loading {} users: {} MB", usersAccounts.size() - 1, usedHeap() >> 20);
+                    }
+
                     hdrRecorder.reset();
                     final CountDownLatch latchFill = new CountDownLatch(genResult.getApiCommandsFill().size());
                     container.setConsumer(cmd -> latchFill.countDown());
@@ -99,6 +106,11 @@ public class LatencyTestsModule {
 
                     final CountDownLatch latchBenchmark = new CountDownLatch(genResult.getApiCommandsBenchmark().size());
 
+                    final StageLatencyMonitor stageLatencyMonitor = container.getStageLatencyMonitor();
+                    if (stageLatencyMonitor != null) {
+                        stageLatencyMonitor.reset();
+                    }
+
                     container.setConsumer(cmd -> {
                         final long latency = System.nanoTime() - cmd.timestamp;
                         hdrRecorder.recordValue(Math.min(latency, Integer.MAX_VALUE));
@@ -125,6 +137,12 @@ public class LatencyTestsModule {
                     String tag = String.format("%.3f MT/s", perfMt);
                     final Histogram histogram = hdrRecorder.getIntervalHistogram();
                     log.info("{} {}", tag, LatencyTools.createLatencyReportFast(histogram));
+                    if (stageLatencyMonitor != null) {
+                        logStageLatencies(stageLatencyMonitor);
+                    }
+                    if (container.getGroupingController().isAdaptive()) {
+                        log.info("  {}", container.getGroupingController());
+                    }
 
                     // compare orderBook final state just to make sure all commands executed same way
                     // TODO compare events, balances, positions
@@ -164,6 +182,29 @@ public class LatencyTestsModule {
         }
     }
 
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void logStageLatencies(final StageLatencyMonitor stageLatencyMonitor) {
+        stageLatencyMonitor.getIntervalHistograms().forEach((stage, histograms) -> {
+            for (int shard = 0; shard < histograms.length; shard++) {
+                if (histograms[shard].getTotalCount() != 0) {
+                    log.info("  {}[{}] {}", stage, shard, LatencyTools.createLatencyReportFast(histograms[shard]));
+                }
+            }
+        });
+    }
+
     public static void individualLatencyTest(final Supplier<ExchangeTestContainer> containerFactory,
                                              final int totalCommandsNumber,
                                              final int targetOrderBookOrdersTotal,
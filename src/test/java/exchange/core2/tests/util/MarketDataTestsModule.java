@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 Maksim Zheravin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package exchange.core2.tests.util;
+
+import exchange.core2.core.ExchangeApi;
+import exchange.core2.core.common.CoreSymbolSpecification;
+import exchange.core2.core.common.api.ApiCommand;
+import exchange.core2.core.common.api.ApiOrderBookRequest;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+
+@Slf4j
+public class MarketDataTestsModule {
+
+    /**
+     * Compares allocation rate of order book requests processing with and without pooled market data carriers.
+     * Container factory receives L2 data pooling flag.
+     * Allocated bytes are measured for all threads except testing thread (exchange core threads).
+     */
+    public static void orderBookRequestsAllocationTestImpl(final Function<Boolean, ExchangeTestContainer> containerFactory,
+                                                           final int requestsNumber,
+                                                           final int depth,
+                                                           final int targetOrderBookOrdersTotal,
+                                                           final int numAccounts,
+                                                           final Set<Integer> currenciesAllowed,
+                                                           final int numSymbols,
+                                                           final ExchangeTestContainer.AllowedSymbolTypes allowedSymbolTypes,
+                                                           final int iterations) throws Exception {
+
+        final List<CoreSymbolSpecification> coreSymbolSpecifications = ExchangeTestContainer.generateRandomSymbols(numSymbols, currenciesAllowed, allowedSymbolTypes);
+        final List<BitSet> usersAccounts = UserCurrencyAccountsGenerator.generateUsers(numAccounts, currenciesAllowed);
+
+        final TestOrdersGeneratorConfig genConfig = TestOrdersGeneratorConfig.builder()
+                .coreSymbolSpecifications(coreSymbolSpecifications)
+                .totalTransactionsNumber(1000)
+                .usersAccounts(usersAccounts)
+                .targetOrderBookOrdersTotal(targetOrderBookOrdersTotal)
+                .seed(1)
+                .preFillMode(TestOrdersGeneratorConfig.PreFillMode.ORDERS_NUMBER)
+                .build();
+
+        final TestOrdersGenerator.MultiSymbolGenResult genResult = TestOrdersGenerator.generateMultipleSymbols(genConfig);
+
+        // requests are created in advance, so testing thread does not allocate during measurement
+        final List<ApiCommand> requests = IntStream.range(0, requestsNumber)
+                .mapToObj(i -> ApiOrderBookRequest.builder().symbol(coreSymbolSpecifications.get(i % numSymbols).symbolId).size(depth).build())
+                .collect(Collectors.toList());
+
+        for (final boolean pooling : new boolean[]{false, true}) {
+
+            try (final ExchangeTestContainer container = containerFactory.apply(pooling)) {
+
+                final ExchangeApi api = container.getApi();
+
+                container.addSymbols(coreSymbolSpecifications);
+                container.userAccountsInit(usersAccounts);
+
+                final CountDownLatch latchFill = new CountDownLatch(genResult.getApiCommandsFill().size());
+                container.setConsumer(cmd -> latchFill.countDown());
+                genResult.getApiCommandsFill().forEach(api::submitCommand);
+                latchFill.await();
+
+                for (int j = 0; j < iterations; j++) {
+
+                    System.gc();
+                    Thread.sleep(200);
+
+                    final long gcCountBefore = totalGcCount();
+                    final long allocatedBefore = otherThreadsAllocatedBytes();
+                    final long t = System.currentTimeMillis();
+
+                    final CountDownLatch latch = new CountDownLatch(requestsNumber);
+                    container.setConsumer(cmd -> latch.countDown());
+                    requests.forEach(api::submitCommand);
+                    latch.await();
+
+                    final long timeMs = System.currentTimeMillis() - t;
+                    final long allocated = otherThreadsAllocatedBytes() - allocatedBefore;
+                    final long gcCount = totalGcCount() - gcCountBefore;
+
+                    log.info("{}. pooling={}: {} bytes/request, {} MB/s allocation rate, {} GCs, {}ms",
+                            j, pooling, allocated / requestsNumber, timeMs == 0 ? 0 : allocated * 1000 / timeMs / 1024 / 1024, gcCount, timeMs);
+                }
+
+                // market data is still correct
+                container.setConsumer(cmd -> {
+                });
+                coreSymbolSpecifications.forEach(
+                        symbol -> assertEquals(genResult.getGenResults().get(symbol.symbolId).getFinalOrderBookSnapshot(), container.requestCurrentOrderBook(symbol.symbolId)));
+            }
+        }
+    }
+
+    private static long otherThreadsAllocatedBytes() {
+        final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long currentThreadId = Thread.currentThread().getId();
+        final long[] threadIds = Arrays.stream(threadMXBean.getAllThreadIds()).filter(id -> id != currentThreadId).toArray();
+        return Arrays.stream(threadMXBean.getThreadAllocatedBytes(threadIds)).filter(b -> b > 0).sum();
+    }
+
+    private static long totalGcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+}
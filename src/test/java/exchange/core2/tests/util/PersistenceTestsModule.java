@@ -175,6 +175,88 @@ public class PersistenceTestsModule {
 
     }
 
+    /**
+     * Full snapshot is made after pre-fill, then benchmark commands are split into chunks, and delta snapshot is made after each chunk.
+     * Exchange restored from the last delta snapshot (composed with full snapshot and all previous deltas) must have the same state.
+     */
+    public static void deltaPersistenceTestImpl(final Function<Long, ExchangeTestContainer> containerFactory,
+                                                final int totalTransactionsNumber,
+                                                final int targetOrderBookOrdersTotal,
+                                                final int numAccounts,
+                                                final int deltasNumber,
+                                                final Set<Integer> currenciesAllowed,
+                                                final int numSymbols,
+                                                final ExchangeTestContainer.AllowedSymbolTypes allowedSymbolTypes) throws InterruptedException, ExecutionException {
+
+        final List<CoreSymbolSpecification> coreSymbolSpecifications = ExchangeTestContainer.generateRandomSymbols(numSymbols, currenciesAllowed, allowedSymbolTypes);
+        final List<BitSet> usersAccounts = UserCurrencyAccountsGenerator.generateUsers(numAccounts, currenciesAllowed);
+
+        final TestOrdersGeneratorConfig genConfig = TestOrdersGeneratorConfig.builder()
+                .coreSymbolSpecifications(coreSymbolSpecifications)
+                .totalTransactionsNumber(totalTransactionsNumber)
+                .usersAccounts(usersAccounts)
+                .targetOrderBookOrdersTotal(targetOrderBookOrdersTotal)
+                .seed(1)
+                .preFillMode(TestOrdersGeneratorConfig.PreFillMode.ORDERS_NUMBER_PLUS_QUARTER)
+                .build();
+
+        final TestOrdersGenerator.MultiSymbolGenResult genResult = TestOrdersGenerator.generateMultipleSymbols(genConfig);
+
+        long stateId;
+        final long originalStateHash;
+
+        try (final ExchangeTestContainer container = containerFactory.apply(null)) {
+
+            final ExchangeApi api = container.getApi();
+
+            container.addSymbols(coreSymbolSpecifications);
+            container.userAccountsInit(usersAccounts);
+
+            final List<ApiCommand> apiCommandsFill = genResult.getApiCommandsFill();
+            log.info("Order books pre-fill with {} orders...", apiCommandsFill.size());
+            final CountDownLatch latchFill = new CountDownLatch(apiCommandsFill.size());
+            container.setConsumer(cmd -> latchFill.countDown());
+            apiCommandsFill.forEach(api::submitCommand);
+            latchFill.await();
+
+            stateId = System.currentTimeMillis() * 1000;
+            final long tf = System.currentTimeMillis();
+            container.submitMultiCommandSync(ApiPersistState.builder().dumpId(stateId).build());
+            log.info("Full snapshot {} time: {}ms", stateId, System.currentTimeMillis() - tf);
+
+            final List<ApiCommand> apiCommandsBenchmark = genResult.getApiCommandsBenchmark();
+            final int chunkSize = apiCommandsBenchmark.size() / deltasNumber + 1;
+            for (int from = 0; from < apiCommandsBenchmark.size(); from += chunkSize) {
+                final List<ApiCommand> chunk = apiCommandsBenchmark.subList(from, Math.min(from + chunkSize, apiCommandsBenchmark.size()));
+                final CountDownLatch latchChunk = new CountDownLatch(chunk.size());
+                container.setConsumer(cmd -> latchChunk.countDown());
+                chunk.forEach(api::submitCommand);
+                latchChunk.await();
+
+                stateId++;
+                final long td = System.currentTimeMillis();
+                container.submitMultiCommandSync(ApiPersistState.builder().dumpId(stateId).delta(true).build());
+                log.info("Delta snapshot {} time: {}ms", stateId, System.currentTimeMillis() - td);
+            }
+
+            originalStateHash = container.requestStateHash();
+            assertTrue(container.totalBalanceReport().isGlobalBalancesAllZero());
+        }
+
+        System.gc();
+        Thread.sleep(200);
+
+        log.info("Creating new exchange from delta snapshot {}...", stateId);
+        final long tLoad = System.currentTimeMillis();
+        try (final ExchangeTestContainer recreatedContainer = containerFactory.apply(stateId)) {
+
+            final long restoredStateHash = recreatedContainer.requestStateHash();
+            log.info("Load+start time: {}s", String.format("%.3f", (System.currentTimeMillis() - tLoad) / 1000.0f));
+
+            assertThat(restoredStateHash, is(originalStateHash));
+            assertTrue(recreatedContainer.totalBalanceReport().isGlobalBalancesAllZero());
+        }
+    }
 
     private static final Consumer<? super Object> IGNORING_CONSUMER = x -> {
     };
@@ -483,6 +483,55 @@ public final class TestOrdersGenerator {
     }
 
 
+    /**
+     * Generate commands moving the price back and forth between CENTRAL_PRICE and CENTRAL_PRICE + sweepAmplitude
+     * (for checking re-balancing of order book HOT/FAR sections).
+     * Each step places GTC ask and bid around the current price, the oldest order is cancelled when book is full.
+     *
+     * @param sweeps                number of moves from one edge to another
+     * @param sweepAmplitude        price distance between the edges
+     * @param stepsPerSweep         number of steps per sweep (price is moving by sweepAmplitude/stepsPerSweep each step)
+     * @param targetOrderBookOrders number of orders to keep in the order book
+     * @param numUsers              number of users
+     * @param seed                  random seed
+     * @return commands list
+     */
+    public static List<OrderCommand> generatePriceSweepCommands(final int sweeps,
+                                                                final int sweepAmplitude,
+                                                                final int stepsPerSweep,
+                                                                final int targetOrderBookOrders,
+                                                                final int numUsers,
+                                                                final int seed) {
+
+        final Random rand = new Random(seed);
+        final List<OrderCommand> commands = new ArrayList<>();
+        final ArrayDeque<OrderCommand> placedOrders = new ArrayDeque<>();
+        long orderId = 1;
+
+        for (int sweep = 0; sweep < sweeps; sweep++) {
+            for (int step = 0; step < stepsPerSweep; step++) {
+                final long offset = (long) sweepAmplitude * step / stepsPerSweep;
+                final long price = CENTRAL_PRICE + ((sweep & 1) == 0 ? offset : sweepAmplitude - offset);
+
+                final long askPrice = price + 1 + rand.nextInt(32);
+                final long bidPrice = price - 1 - rand.nextInt(32);
+                final OrderCommand ask = OrderCommand.newOrder(OrderType.GTC, orderId++, UID_PLAIN_MAPPER.apply(rand.nextInt(numUsers)), askPrice, 0, 1 + rand.nextInt(8), OrderAction.ASK);
+                final OrderCommand bid = OrderCommand.newOrder(OrderType.GTC, orderId++, UID_PLAIN_MAPPER.apply(rand.nextInt(numUsers)), bidPrice, bidPrice, 1 + rand.nextInt(8), OrderAction.BID);
+                commands.add(ask);
+                commands.add(bid);
+                placedOrders.add(ask);
+                placedOrders.add(bid);
+
+                while (placedOrders.size() > targetOrderBookOrders) {
+                    // can be already matched
+                    final OrderCommand oldest = placedOrders.poll();
+                    commands.add(OrderCommand.cancel(oldest.orderId, (int) oldest.uid));
+                }
+            }
+        }
+        return commands;
+    }
+
     public static List<ApiCommand> convertToApiCommand(List<OrderCommand> commands) {
         return convertToApiCommand(commands, 0, commands.size());
     }
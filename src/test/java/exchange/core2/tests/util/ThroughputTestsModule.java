@@ -17,6 +17,10 @@ package exchange.core2.tests.util;
 
 import exchange.core2.core.ExchangeApi;
 import exchange.core2.core.common.CoreSymbolSpecification;
+import exchange.core2.core.common.api.ApiCancelOrder;
+import exchange.core2.core.common.api.ApiCommand;
+import exchange.core2.core.common.api.ApiMoveOrder;
+import exchange.core2.core.common.api.ApiPlaceOrder;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.ArrayList;
@@ -25,6 +29,9 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Supplier;
 
 import static junit.framework.TestCase.assertTrue;
@@ -110,4 +117,115 @@ public class ThroughputTestsModule {
         }
     }
 
+    /**
+     * Several gateway threads are publishing benchmark commands concurrently (every thread is responsible for its own symbols).
+     * Commands are published one by one (batchSize=1) or in batches using ExchangeApi.submitCommands.
+     * Results are not compared with generator because commands for different symbols are interleaved differently,
+     * only global balances are verified.
+     */
+    public static void multiGatewayThroughputTestImpl(final Supplier<ExchangeTestContainer> containerFactory,
+                                                      final int totalTransactionsNumber,
+                                                      final int targetOrderBookOrdersTotal,
+                                                      final int numAccounts,
+                                                      final int iterations,
+                                                      final Set<Integer> currenciesAllowed,
+                                                      final int numSymbols,
+                                                      final ExchangeTestContainer.AllowedSymbolTypes allowedSymbolTypes,
+                                                      final int gatewayThreads,
+                                                      final int batchSize) throws Exception {
+
+        final List<CoreSymbolSpecification> coreSymbolSpecifications = ExchangeTestContainer.generateRandomSymbols(numSymbols, currenciesAllowed, allowedSymbolTypes);
+
+        final List<BitSet> usersAccounts = UserCurrencyAccountsGenerator.generateUsers(numAccounts, currenciesAllowed);
+
+        final TestOrdersGeneratorConfig genConfig = TestOrdersGeneratorConfig.builder()
+                .coreSymbolSpecifications(coreSymbolSpecifications)
+                .totalTransactionsNumber(totalTransactionsNumber)
+                .usersAccounts(usersAccounts)
+                .targetOrderBookOrdersTotal(targetOrderBookOrdersTotal)
+                .seed(1)
+                .preFillMode(TestOrdersGeneratorConfig.PreFillMode.ORDERS_NUMBER)
+                .build();
+
+        final TestOrdersGenerator.MultiSymbolGenResult genResult = TestOrdersGenerator.generateMultipleSymbols(genConfig);
+
+        // split commands between gateways by symbol, keeping original order for every symbol
+        final List<List<ApiCommand>> gatewaysCommands = new ArrayList<>();
+        for (int i = 0; i < gatewayThreads; i++) {
+            gatewaysCommands.add(new ArrayList<>());
+        }
+        genResult.getApiCommandsBenchmark().forEach(cmd -> gatewaysCommands.get(symbolOf(cmd) % gatewayThreads).add(cmd));
+
+        try (final ExchangeTestContainer container = containerFactory.get()) {
+
+            final ExchangeApi api = container.getApi();
+            final ExecutorService gatewaysExecutor = Executors.newFixedThreadPool(gatewayThreads, container.getThreadFactory());
+
+            final List<Float> perfResults = new ArrayList<>();
+            for (int j = 0; j < iterations; j++) {
+
+                container.addSymbols(coreSymbolSpecifications);
+                container.userAccountsInit(usersAccounts);
+
+                final CountDownLatch latchFill = new CountDownLatch(genResult.getApiCommandsFill().size());
+                container.setConsumer(cmd -> latchFill.countDown());
+                genResult.getApiCommandsFill().forEach(api::submitCommand);
+                latchFill.await();
+
+                final CountDownLatch latchBenchmark = new CountDownLatch(genResult.getApiCommandsBenchmark().size());
+                container.setConsumer(cmd -> latchBenchmark.countDown());
+
+                final CountDownLatch latchStart = new CountDownLatch(1);
+                final List<Future<?>> gateways = new ArrayList<>();
+                for (final List<ApiCommand> commands : gatewaysCommands) {
+                    gateways.add(gatewaysExecutor.submit(() -> {
+                        latchStart.await();
+                        if (batchSize == 1) {
+                            commands.forEach(api::submitCommand);
+                        } else {
+                            for (int from = 0; from < commands.size(); from += batchSize) {
+                                api.submitCommands(commands.subList(from, Math.min(from + batchSize, commands.size())));
+                            }
+                        }
+                        return null;
+                    }));
+                }
+
+                long t = System.currentTimeMillis();
+                latchStart.countDown();
+                latchBenchmark.await();
+                t = System.currentTimeMillis() - t;
+                for (final Future<?> gateway : gateways) {
+                    gateway.get();
+                }
+
+                final float perfMt = (float) genResult.getApiCommandsBenchmark().size() / (float) t / 1000.0f;
+                log.info("{}. {} gateways, batch size {}: {} MT/s", j, gatewayThreads, batchSize, String.format("%.3f", perfMt));
+                perfResults.add(perfMt);
+
+                assertTrue(container.totalBalanceReport().isGlobalBalancesAllZero());
+
+                container.resetExchangeCore();
+
+                System.gc();
+                Thread.sleep(300);
+            }
+
+            gatewaysExecutor.shutdown();
+            log.info("Average: {} MT/s", String.format("%.3f", perfResults.stream().mapToDouble(x -> x).average().orElse(0)));
+        }
+    }
+
+    private static int symbolOf(final ApiCommand cmd) {
+        if (cmd instanceof ApiPlaceOrder) {
+            return ((ApiPlaceOrder) cmd).symbol;
+        } else if (cmd instanceof ApiMoveOrder) {
+            return ((ApiMoveOrder) cmd).symbol;
+        } else if (cmd instanceof ApiCancelOrder) {
+            return ((ApiCancelOrder) cmd).symbol;
+        } else {
+            return 0;
+        }
+    }
+
 }